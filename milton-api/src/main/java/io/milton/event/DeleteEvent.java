@@ -17,16 +17,39 @@ package io.milton.event;
 
 import io.milton.resource.Resource;
 
-
 /**
+ * Fired when a resource is deleted. When a collection is deleted a single
+ * event is fired for the collection, which implies its members were removed
+ * with it
  *
  * @author brad
  */
 public class DeleteEvent implements ResourceEvent{
     private final Resource res;
+    private final String path;
 
     public DeleteEvent( Resource res ) {
+        this(res, null);
+    }
+
+    /**
+     *
+     * @param res - the deleted resource
+     * @param path - the decoded absolute path of the deleted resource, which
+     * might not be the request path, eg for the destination of a MOVE
+     */
+    public DeleteEvent( Resource res, String path ) {
         this.res = res;
+        this.path = path;
+    }
+
+    /**
+     *
+     * @return - the decoded absolute path of the deleted resource, or null if
+     * not known
+     */
+    public String getPath() {
+        return path;
     }
 
     @Override
@@ -74,6 +74,10 @@ public interface Request {
          * For compatibility with macOS finder from 10.5.3
          */
         X_EXPECTED_ENTITY_LENGTH("X-Expected-Entity-Length"),
+        /**
+         * The range to update for a partial update with PATCH
+         */
+        X_UPDATE_RANGE("X-Update-Range"),
         AUTHORIZATION("Authorization");
         public String code;
 
@@ -98,6 +102,7 @@ public interface Request {
         OPTIONS("OPTIONS", false),
         POST("POST", true),
         PUT("PUT", true),
+        PATCH("PATCH", true),
         TRACE("TRACE", false),
         ACL("ACL", true),
         CONNECT("CONNECT", true),
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.property;
+
+/**
+ * Marker interface for a PropertySource whose getPropertyMetaData and
+ * getAllPropertyNames results depend only on the resource's class and the
+ * property name.
+ *
+ * The PROPFIND machinery caches which of these sources supports a property
+ * for each resource class, and dispatches directly to it. Sources which do
+ * not implement this interface are consulted for every resource, because
+ * nothing is known about what their results depend on. For the same reason,
+ * values loaded by a BulkPropertyLoader are not used for properties which such
+ * a source supports, unless it is the loader itself.
+ *
+ * @author brad
+ */
+public interface ClassBasedPropertySource extends PropertySource {
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.resource;
+
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+
+/**
+ * A collection which can remove itself and everything beneath it in a single
+ * backend operation, such as dropping a directory tree or deleting all rows
+ * with a path prefix.
+ *<P/>
+ * When deleting one of these milton does not walk its members. Locks are
+ * checked with isLockedOutRecursive, then deleteTree is called instead of
+ * delete.
+ *
+ * @author brad
+ */
+public interface BulkDeletableCollection extends DeletableCollectionResource {
+
+	/**
+	 * Delete this collection and all of its members. Lock checking has
+	 * already been done
+	 */
+	void deleteTree() throws NotAuthorizedException, ConflictException, BadRequestException;
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.resource;
+
+import java.io.File;
+
+/**
+ * Indicates a GetableResource whose content is exactly the content of a file.
+ *
+ * This allows milton to send the content, or any range of it, directly from
+ * the file rather than through sendContent. The content is only sent without
+ * copying when the container supports it, eg Tomcat's sendfile, otherwise it
+ * is copied from the file to the output stream
+ *
+ * @author brad
+ */
+public interface FileBackedResource extends GetableResource {
+
+	/**
+	 *
+	 * @return - the file holding the content, or null if the content is not
+	 * currently available as a file, in which case sendContent is used
+	 */
+	File getContentFile();
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.resource;
+
+/**
+ * Indicates that authenticate accepts exactly the same credentials, and
+ * returns the same user, for every resource with the same realm. For example,
+ * when every resource delegates to one SecurityManager.
+ *
+ * This allows a login verified for one resource to be reused for any other
+ * resource in the realm, eg by the CredentialCache of BasicAuthHandler.
+ * Resources which make their own decision about who may log in must not
+ * implement this
+ *
+ * @author brad
+ */
+public interface RealmAuthenticatedResource extends Resource {
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.resource;
+
+/**
+ * Indicates a GetableResource which can efficiently send any range of its
+ * content, eg by reading from a position in a file, without reading the
+ * content before it.
+ *
+ * For requests with multiple ranges sendContent is called once per range for
+ * these resources. Other resources have their content read once from the
+ * start, skipping the bytes between ranges
+ *
+ * @author brad
+ */
+public interface SeekableResource extends GetableResource {
+
+}
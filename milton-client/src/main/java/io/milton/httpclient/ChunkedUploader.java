@@ -0,0 +1,280 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.httpclient;
+
+import io.milton.common.LogUtils;
+import io.milton.httpclient.Utils.CancelledException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a file as a series of chunks sent in parallel, using the resumable
+ * upload protocol implemented by milton's ChunkedUploadFilter.
+ *
+ * An upload session is created, then every chunk is PUT concurrently. Once
+ * all requests have completed the server is asked which chunks it has, and
+ * any which failed are sent again, up to maxAttempts times. Finally the
+ * session is finished, which assembles the chunks into the target resource.
+ *
+ * Each chunk is read directly from its region of the file, so a chunk can be
+ * resent without being buffered in memory.
+ *
+ * @author bradm
+ */
+public class ChunkedUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedUploader.class);
+    private final Host host;
+    private final HttpClient client;
+    private final long chunkSize;
+    private final int threads;
+    private int maxAttempts = 3;
+
+    public ChunkedUploader(Host host, HttpClient client, long chunkSize, int threads) {
+        this.host = host;
+        this.client = client;
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    /**
+     *
+     * @param encodedUrl - the fully qualified and encoded url of the resource
+     * to create or replace
+     * @param file
+     * @param listener - optional
+     * @return - the result of finishing the upload, or null if the server does
+     * not support chunked uploads, in which case the caller should fall back
+     * to a normal PUT
+     * @throws IOException
+     * @throws io.milton.httpclient.HttpException - if chunks could still not be
+     * uploaded after retrying
+     */
+    public HttpResult upload(String encodedUrl, File file, ProgressListener listener) throws IOException, HttpException {
+        HttpPost create = new HttpPost(encodedUrl + "?uploads");
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int res = Utils.executeHttpWithStatus(client, create, bout, host.newContext());
+        if (res != 201) {
+            LogUtils.debug(log, "upload: server did not create an upload session, status: ", res);
+            return null;
+        }
+        String sessionUrl = encodedUrl + "?uploadId=" + bout.toString("UTF-8").trim();
+        long length = file.length();
+        int numChunks = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+        LogUtils.debug(log, "upload: uploading", numChunks, "chunks to", sessionUrl);
+
+        AtomicLong bytesSent = new AtomicLong();
+        Set<Integer> missing = findMissing(sessionUrl, numChunks);
+        int attempt = 0;
+        while (!missing.isEmpty()) {
+            if (attempt++ >= maxAttempts) {
+                throw new GenericHttpException(encodedUrl, new IOException("Failed to upload chunks: " + missing));
+            }
+            sendChunks(sessionUrl, file, missing, bytesSent, listener);
+            missing = findMissing(sessionUrl, numChunks);
+        }
+
+        HttpPost finish = new HttpPost(sessionUrl + "&chunks=" + numChunks);
+        HttpResult result = Utils.executeHttpWithResult(client, finish, null, host.newContext());
+        if (listener != null) {
+            listener.onComplete(file.getName());
+        }
+        return result;
+    }
+
+    private void sendChunks(final String sessionUrl, final File file, Set<Integer> chunks, final AtomicLong bytesSent, final ProgressListener listener) throws IOException {
+        final long length = file.length();
+        ExecutorService exec = Executors.newFixedThreadPool(Math.min(threads, chunks.size()));
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (final Integer chunk : chunks) {
+                futures.add(exec.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws Exception {
+                        if (listener != null && listener.isCancelled()) {
+                            throw new CancelledException();
+                        }
+                        long offset = chunk * chunkSize;
+                        long size = Math.min(chunkSize, length - offset);
+                        HttpPut p = new HttpPut(sessionUrl + "&chunk=" + chunk);
+                        p.setEntity(new FileRegionEntity(file, offset, size));
+                        int res = Utils.executeHttpWithStatus(client, p, null, host.newContext());
+                        if (res >= 200 && res < 300) {
+                            long sent = bytesSent.addAndGet(size);
+                            if (listener != null) {
+                                listener.onProgress(sent, length, file.getName());
+                            }
+                        } else {
+                            log.warn("Failed to upload chunk " + chunk + " status: " + res);
+                        }
+                        return res;
+                    }
+                }));
+            }
+            for (Future<Integer> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof CancelledException) {
+                        throw (CancelledException) ex.getCause();
+                    }
+                    // will be retried if attempts remain
+                    log.warn("Exception uploading chunk", ex.getCause());
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    private Set<Integer> findMissing(String sessionUrl, int numChunks) throws IOException, HttpException {
+        HttpGet get = new HttpGet(sessionUrl);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int res = Utils.executeHttpWithStatus(client, get, bout, host.newContext());
+        if (res != 200) {
+            throw new GenericHttpException(res, sessionUrl);
+        }
+        Set<Integer> missing = new TreeSet<Integer>();
+        for (int i = 0; i < numChunks; i++) {
+            missing.add(i);
+        }
+        for (String s : bout.toString("UTF-8").split(",")) {
+            s = s.trim();
+            if (s.length() > 0) {
+                missing.remove(Integer.valueOf(s));
+            }
+        }
+        return missing;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * A repeatable entity for a region of a file. The region is re-read from
+     * the file each time the entity is written
+     */
+    private static class FileRegionEntity extends AbstractHttpEntity {
+
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        public FileRegionEntity(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            setContentType("application/octet-stream");
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            raf.seek(offset);
+            return new InputStream() {
+
+                long remaining = length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = raf.read();
+                    if (b >= 0) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int s = raf.read(b, off, (int) Math.min(len, remaining));
+                    if (s > 0) {
+                        remaining -= s;
+                    }
+                    return s;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    raf.close();
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buf = new byte[8192];
+                int s;
+                while ((s = in.read(buf)) > 0) {
+                    out.write(buf, 0, s);
+                }
+            } finally {
+                Utils.close(in);
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -206,7 +206,8 @@ public class Folder extends Resource {
     }
 
     /**
-     * Upload a new file
+     * Upload a new file. If the host has a chunkedUploadSize and the file is
+     * larger then that it is sent as parallel, resumable chunks
      *
      * @param newName
      * @param f
@@ -66,6 +66,7 @@ import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.auth.DigestScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.*;
 import org.jdom.Document;
@@ -99,6 +100,7 @@ public class Host extends Folder {
     private static final Set<String> WEBDAV_REDIRECTABLE = new HashSet<String>(Arrays.asList(new String[] {"PROPFIND", "LOCK", "UNLOCK", "DELETE"}));
 
     private static final Logger log = LoggerFactory.getLogger(Host.class);
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 8;
     public final String server;
     public final Integer port;
     public final String user;
@@ -114,6 +116,10 @@ public class Host extends Folder {
     private final List<ConnectionListener> connectionListeners = new ArrayList<ConnectionListener>();
     private boolean secure; // use HTTPS if true
     private boolean useDigestForPreemptiveAuth = true; // if true we will do pre-emptive auth with Digest, otherwise will use Basic
+    private Long chunkedUploadSize; // if set, files larger then this are uploaded as parallel chunks
+    private int uploadThreads = 4;
+    private final ProxyDetails proxyDetails;
+    private DefaultHttpClient uploadClient; // pooled, only used for chunked uploads
 
     static {
 //    System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.SimpleLog");
@@ -153,10 +159,21 @@ public class Host extends Folder {
         this.port = port;
         this.user = user;
         this.password = password;
-        client = new MyDefaultHttpClient();
+        this.proxyDetails = proxyDetails;
+        client = configure(new MyDefaultHttpClient());
+        transferService = new TransferService(client, connectionListeners);
+        transferService.setTimeout(timeoutMillis);
+        this.fileSyncer = fileSyncer;
+    }
+
+    /**
+     * Apply the retry, redirect, timeout, authentication and proxy settings of
+     * this host to a new client
+     */
+    private DefaultHttpClient configure(DefaultHttpClient c) {
         HttpRequestRetryHandler handler = new NoRetryHttpRequestRetryHandler();
-        client.setHttpRequestRetryHandler(handler);
-        client.setRedirectStrategy(new DefaultRedirectStrategy() {
+        c.setHttpRequestRetryHandler(handler);
+        c.setRedirectStrategy(new DefaultRedirectStrategy() {
             public boolean isRedirected(
                 final HttpRequest request,
                 final HttpResponse response,
@@ -179,14 +196,14 @@ public class Host extends Folder {
                 }
             }
         });
-        HttpParams params = client.getParams();
+        HttpParams params = c.getParams();
         HttpConnectionParams.setConnectionTimeout(params, 10000);
         HttpConnectionParams.setSoTimeout(params, 10000);
 
         if (user != null) {
-            client.getCredentialsProvider().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, password));
+            c.getCredentialsProvider().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, password));
             PreemptiveAuthInterceptor interceptor = new PreemptiveAuthInterceptor();
-            client.addRequestInterceptor(interceptor, 0);
+            c.addRequestInterceptor(interceptor, 0);
         }
 
 
@@ -197,18 +214,16 @@ public class Host extends Folder {
                 System.setProperty("java.net.useSystemProxies", "false");
                 if (proxyDetails.getProxyHost() != null && proxyDetails.getProxyHost().length() > 0) {
                     HttpHost proxy = new HttpHost(proxyDetails.getProxyHost(), proxyDetails.getProxyPort(), "http");
-                    client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+                    c.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
                     if (proxyDetails.hasAuth()) {
-                        client.getCredentialsProvider().setCredentials(
+                        c.getCredentialsProvider().setCredentials(
                                 new AuthScope(proxyDetails.getProxyHost(), proxyDetails.getProxyPort()),
                                 new UsernamePasswordCredentials(proxyDetails.getUserName(), proxyDetails.getPassword()));
                     }
                 }
             }
         }
-        transferService = new TransferService(client, connectionListeners);
-        transferService.setTimeout(timeoutMillis);
-        this.fileSyncer = fileSyncer;
+        return c;
     }
 
     /**
@@ -414,6 +429,23 @@ public class Host extends Folder {
                 throw new GenericHttpException(remotePath.toString(), ex);
             }
         }
+        if (chunkedUploadSize != null && matchCheck == null && file.length() > chunkedUploadSize) {
+            String dest = buildEncodedUrl(remotePath);
+            notifyStartRequest();
+            try {
+                HttpResult result = new ChunkedUploader(this, getUploadClient(), chunkedUploadSize, uploadThreads).upload(dest, file, listener);
+                if (result != null) {
+                    return result;
+                }
+                log.trace("Chunked upload not supported, falling back to PUT: " + remotePath);
+            } catch (CancelledException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                throw new GenericHttpException(remotePath.toString(), ex);
+            } finally {
+                notifyFinishRequest();
+            }
+        }
         InputStream in = null;
         try {
             in = new FileInputStream(file);
@@ -1042,6 +1074,25 @@ public class Host extends Folder {
         return client;
     }
 
+    /**
+     * A client with a thread safe connection pool, so chunks of an upload can
+     * be sent concurrently. The normal client keeps the single connection
+     * manager, which recovers a connection whose response was not consumed,
+     * where a pool would leak it. So this is only used by ChunkedUploader,
+     * which reads every response
+     *
+     * @return
+     */
+    synchronized HttpClient getUploadClient() {
+        if (uploadClient == null) {
+            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager();
+            cm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            cm.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE * 2);
+            uploadClient = configure(new MyDefaultHttpClient(cm));
+        }
+        return uploadClient;
+    }
+
     /**
      * TODO: should optimise so it only generates once per set of fields
      *
@@ -1078,6 +1129,35 @@ public class Host extends Folder {
         this.useDigestForPreemptiveAuth = useDigestForPreemptiveAuth;
     }
 
+    /**
+     * If set, files larger then this many bytes are uploaded as a series of
+     * chunks of this size, sent in parallel and retried individually if they
+     * fail. This requires the server to support milton's chunked upload
+     * protocol, otherwise a normal PUT is used. Default is null, ie disabled
+     *
+     * @return
+     */
+    public Long getChunkedUploadSize() {
+        return chunkedUploadSize;
+    }
+
+    public void setChunkedUploadSize(Long chunkedUploadSize) {
+        this.chunkedUploadSize = chunkedUploadSize;
+    }
+
+    /**
+     * The number of chunks to send concurrently for chunked uploads
+     *
+     * @return
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
     protected HttpContext newContext() {
         HttpContext context = new BasicHttpContext();
         AuthScheme authScheme;
@@ -1155,6 +1235,13 @@ public class Host extends Folder {
 
     static class MyDefaultHttpClient extends DefaultHttpClient {
 
+        MyDefaultHttpClient() {
+        }
+
+        MyDefaultHttpClient(ClientConnectionManager cm) {
+            super(cm);
+        }
+
         @Override
         protected HttpRequestRetryHandler createHttpRequestRetryHandler() {
             return new NoRetryHttpRequestRetryHandler();
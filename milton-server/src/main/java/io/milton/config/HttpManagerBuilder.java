@@ -37,9 +37,17 @@ import io.milton.http.http11.auth.LoginResponseHandler.LoginPageTypeHandler;
 import io.milton.http.json.JsonResourceFactory;
 import io.milton.http.quota.QuotaDataAccessor;
 import io.milton.http.values.ValueWriters;
+import io.milton.http.sync.ChangeLog;
+import io.milton.http.sync.ChangeLogEventListener;
+import io.milton.http.sync.MemoryChangeLog;
+import io.milton.http.sync.SyncCollectionReport;
+import io.milton.http.sync.SyncTokenPropertySource;
+import io.milton.http.upload.ChunkedUploadFilter;
+import io.milton.http.upload.ChunkedUploadManager;
 import io.milton.http.webdav.*;
 import io.milton.property.*;
 import java.io.File;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -86,10 +94,14 @@ public class HttpManagerBuilder {
 	private DigestAuthenticationHandler digestHandler;
 	private BasicAuthHandler basicHandler;
 	private CookieAuthenticationHandler cookieAuthenticationHandler;
+	private boolean enableCredentialCache;
+	private CredentialCache credentialCache;
 	private FormAuthenticationHandler formAuthenticationHandler;
 	private Map<UUID, Nonce> nonces = new ConcurrentHashMap<UUID, Nonce>();
 	private int nonceValiditySeconds = 60 * 60 * 24;
 	private NonceProvider nonceProvider;
+	private boolean enableStatelessNonces;
+	private String nonceSecret;
 	private AuthenticationService authenticationService;
 	private ExpiredNonceRemover expiredNonceRemover;
 	private List<Stoppable> shutdownHandlers = new CopyOnWriteArrayList<Stoppable>();
@@ -117,6 +129,22 @@ public class HttpManagerBuilder {
 	private ResourceHandlerHelper resourceHandlerHelper;
 	private boolean initDone;
 	private boolean enableCompression = true;
+	private CompressedVariantCache compressedVariantCache;
+	private boolean enableStreamingCompression;
+	private boolean enableMultiStatusCompression;
+	private boolean enablePropFindStreaming = false;
+	private boolean enableParallelPropFind = false;
+	private ParallelPropFindTraverser parallelPropFindTraverser;
+	private boolean enableSyncCollection = false;
+	private int deleteThreads = 1;
+	private boolean enableRequestResourceCache = true;
+	private boolean enableResourceCache;
+	private int resourceCacheMaxSize = 10000;
+	private boolean enableChunkedUpload;
+	private File chunkedUploadDir;
+	private long chunkedUploadExpirySeconds = 60 * 60 * 24;
+	private ChunkedUploadManager chunkedUploadManager;
+	private ChangeLog changeLog;
 	private boolean enableWellKnown = true;
 	private boolean enabledJson = true;
 	private boolean enableBasicAuth = true;
@@ -186,13 +214,26 @@ public class HttpManagerBuilder {
 			mainResourceFactory = new FileSystemResourceFactory(rootDir, securityManager, fsContextPath);
 			log.info("Using file system with root directory: " + rootDir.getAbsolutePath());
 		}
+		if (mainResourceFactory instanceof Stoppable) {
+			shutdownHandlers.add((Stoppable) mainResourceFactory);
+		}
+		if (enableResourceCache && !(mainResourceFactory instanceof CachingResourceFactory)) {
+			CachingResourceFactory crf = new CachingResourceFactory(mainResourceFactory, resourceCacheMaxSize);
+			crf.register(eventManager);
+			mainResourceFactory = crf;
+		}
 		log.info("Using mainResourceFactory: " + mainResourceFactory.getClass());
 		if (authenticationService == null) {
 			if (authenticationHandlers == null) {
 				authenticationHandlers = new ArrayList<AuthenticationHandler>();
+				if (credentialCache == null && enableCredentialCache) {
+					credentialCache = new CredentialCache();
+					showLog("credentialCache", credentialCache);
+				}
 				if (basicHandler == null) {
 					if (enableBasicAuth) {
 						basicHandler = new BasicAuthHandler();
+						basicHandler.setCredentialCache(credentialCache);
 					}
 				}
 				if (basicHandler != null) {
@@ -200,6 +241,14 @@ public class HttpManagerBuilder {
 				}
 				if (digestHandler == null) {
 					if (enableDigestAuth) {
+						if (nonceProvider == null && enableStatelessNonces) {
+							if (nonceSecret == null) {
+								nonceProvider = new HmacNonceProvider(nonceValiditySeconds);
+							} else {
+								nonceProvider = new HmacNonceProvider(nonceValiditySeconds, nonceSecret.getBytes(Charset.forName("UTF-8")));
+							}
+							showLog("nonceProvider", nonceProvider);
+						}
 						if (nonceProvider == null) {
 							if (expiredNonceRemover == null) {
 								expiredNonceRemover = new ExpiredNonceRemover(nonces, nonceValiditySeconds);
@@ -246,8 +295,10 @@ public class HttpManagerBuilder {
 		}
 
 		init(authenticationService);
-		shutdownHandlers.add(expiredNonceRemover);
-		expiredNonceRemover.start();
+		if (expiredNonceRemover != null) {
+			shutdownHandlers.add(expiredNonceRemover);
+			expiredNonceRemover.start();
+		}
 	}
 
 	private void init(AuthenticationService authenticationService) {
@@ -271,7 +322,14 @@ public class HttpManagerBuilder {
 			}
 			webdavResponseHandler = new DefaultWebDavResponseHandler(http11ResponseHandler, resourceTypeHelper, propFindXmlGenerator);
 			if (enableCompression) {
-				webdavResponseHandler = new CompressingResponseHandler(webdavResponseHandler);
+				CompressingResponseHandler compressingResponseHandler = new CompressingResponseHandler(webdavResponseHandler);
+				compressingResponseHandler.setStreaming(enableStreamingCompression);
+				compressingResponseHandler.setCompressMultiStatus(enableMultiStatusCompression);
+				if (compressedVariantCache != null) {
+					compressingResponseHandler.setVariantCache(compressedVariantCache);
+					shutdownHandlers.add(compressedVariantCache);
+				}
+				webdavResponseHandler = compressingResponseHandler;
 				showLog("webdavResponseHandler", webdavResponseHandler);
 			}
 			if (enableFormAuth) {
@@ -309,6 +367,7 @@ public class HttpManagerBuilder {
 			}
 			
 			Http11Protocol http11Protocol = new Http11Protocol(webdavResponseHandler, handlerHelper, resourceHandlerHelper, enableOptionsAuth, matchHelper, partialGetHelper);
+			shutdownHandlers.add(http11Protocol.getPutHelper());
 			protocols.add(http11Protocol);
 			if (propertySources == null) {
 				propertySources = initDefaultPropertySources(resourceTypeHelper);
@@ -329,6 +388,27 @@ public class HttpManagerBuilder {
 
 			if (webDavProtocol == null && webdavEnabled) {
 				webDavProtocol = new WebDavProtocol(handlerHelper, resourceTypeHelper, webdavResponseHandler, propertySources, quotaDataAccessor, propPatchSetter, initPropertyAuthoriser(), eTagGenerator, urlAdapter, resourceHandlerHelper, userAgentHelper);
+				webDavProtocol.getPropFindHandler().setStreaming(enablePropFindStreaming);
+				if (enableParallelPropFind) {
+					if (parallelPropFindTraverser == null) {
+						parallelPropFindTraverser = new ParallelPropFindTraverser();
+					}
+					shutdownHandlers.add(parallelPropFindTraverser);
+					webDavProtocol.getPropFindHandler().getPropertyBuilder().setTraverser(parallelPropFindTraverser);
+				}
+				if (enableSyncCollection) {
+					if (changeLog == null) {
+						changeLog = new MemoryChangeLog();
+						showLog("changeLog", changeLog);
+					}
+					if (changeLog instanceof Stoppable) {
+						shutdownHandlers.add((Stoppable) changeLog);
+					}
+					webDavProtocol.addPropertySource(new SyncTokenPropertySource(changeLog));
+					PropFindXmlGenerator syncXmlGenerator = propFindXmlGenerator != null ? propFindXmlGenerator : new PropFindXmlGenerator(valueWriters);
+					webDavProtocol.addReport(new SyncCollectionReport(changeLog, new PropFindPropertyBuilder(webDavProtocol.getPropertySources()), syncXmlGenerator));
+					new ChangeLogEventListener(changeLog, mainResourceFactory).register(eventManager);
+				}
 			}
 			if (webDavProtocol != null) {
 				protocols.add(webDavProtocol);
@@ -354,6 +434,23 @@ public class HttpManagerBuilder {
 			if (calDavProtocol != null) {
 				protocols.add(cardDavProtocol);
 			}
+
+			if (deleteThreads > 1) {
+				DeleteHelperImpl deleteHelper = new DeleteHelperImpl(handlerHelper);
+				deleteHelper.setDeleteThreads(deleteThreads);
+				shutdownHandlers.add(deleteHelper);
+				for (HttpExtension p : protocols) {
+					for (Handler h : p.getHandlers()) {
+						if (h instanceof DeleteHandler) {
+							((DeleteHandler) h).setDeleteHelper(deleteHelper);
+						} else if (h instanceof MoveHandler) {
+							((MoveHandler) h).setDeleteHelper(deleteHelper);
+						} else if (h instanceof CopyHandler) {
+							((CopyHandler) h).setDeleteHelper(deleteHelper);
+						}
+					}
+				}
+			}
 		}
 
 		if (protocolHandlers == null) {
@@ -391,6 +488,19 @@ public class HttpManagerBuilder {
 		} else {
 			filters = new ArrayList<Filter>();
 		}
+		if (enableChunkedUpload) {
+			if (chunkedUploadManager == null) {
+				File dir = chunkedUploadDir;
+				if (dir == null) {
+					dir = new File(System.getProperty("java.io.tmpdir"), "milton-uploads");
+				}
+				chunkedUploadManager = new ChunkedUploadManager(dir, chunkedUploadExpirySeconds);
+			}
+			chunkedUploadManager.start();
+			shutdownHandlers.add(chunkedUploadManager);
+			filters.add(new ChunkedUploadFilter(chunkedUploadManager, handlerHelper));
+			log.info("Enabled chunked uploads in: " + chunkedUploadManager.getRootDir().getAbsolutePath());
+		}
 		filters.add(defaultStandardFilter);
 	}
 
@@ -403,7 +513,11 @@ public class HttpManagerBuilder {
 				l.afterInit(this);
 			}
 		}		
-		HttpManager httpManager = new HttpManager(outerResourceFactory, webdavResponseHandler, protocolHandlers, entityTransport, filters, eventManager, shutdownHandlers);
+		ResourceFactory rf = outerResourceFactory;
+		if (enableRequestResourceCache && !(rf instanceof RequestCachingResourceFactory)) {
+			rf = new RequestCachingResourceFactory(rf);
+		}
+		HttpManager httpManager = new HttpManager(rf, webdavResponseHandler, protocolHandlers, entityTransport, filters, eventManager, shutdownHandlers);
 		if( listeners != null ) {
 			for( InitListener l : listeners ) {
 				l.afterBuild(this, httpManager);
@@ -423,7 +537,7 @@ public class HttpManagerBuilder {
 	}
 
 	private List<PropertySource> initDefaultPropertySources(ResourceTypeHelper resourceTypeHelper) {
-		List<PropertySource> list = new ArrayList<PropertySource>();
+		List<PropertySource> list = new PropertySourcesList();
 		if (multiNamespaceCustomPropertySource == null) {
 			if( multiNamespaceCustomPropertySourceEnabled ) {
 				multiNamespaceCustomPropertySource = new MultiNamespaceCustomPropertySource();
@@ -527,6 +641,68 @@ public class HttpManagerBuilder {
 		this.nonceProvider = nonceProvider;
 	}
 
+	/**
+	 * If true, and no nonceProvider has been set, Digest nonces are issued by
+	 * an HmacNonceProvider, which signs each nonce instead of storing it. Set
+	 * nonceSecret to the same value on each server in a cluster so that they
+	 * accept each other's nonces
+	 *
+	 * @return
+	 */
+	public boolean isEnableStatelessNonces() {
+		return enableStatelessNonces;
+	}
+
+	public void setEnableStatelessNonces(boolean enableStatelessNonces) {
+		this.enableStatelessNonces = enableStatelessNonces;
+	}
+
+	/**
+	 * The key used to sign nonces when enableStatelessNonces is true. If null
+	 * a random key is used, so nonces are only valid on this server
+	 *
+	 * @return
+	 */
+	public String getNonceSecret() {
+		return nonceSecret;
+	}
+
+	public void setNonceSecret(String nonceSecret) {
+		this.nonceSecret = nonceSecret;
+	}
+
+	/**
+	 * If true, and no credentialCache has been set, a CredentialCache is
+	 * created for the Basic authentication handler, so that repeated logins
+	 * with the same credentials are not verified every time.
+	 * Basic logins are only cached for resources which implement
+	 * RealmAuthenticatedResource, such as the file system resources, and then
+	 * apply to the whole realm. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableCredentialCache() {
+		return enableCredentialCache;
+	}
+
+	public void setEnableCredentialCache(boolean enableCredentialCache) {
+		this.enableCredentialCache = enableCredentialCache;
+	}
+
+	/**
+	 * The cache of successful logins, if enabled. Call invalidate on it when a
+	 * user's password changes
+	 *
+	 * @return
+	 */
+	public CredentialCache getCredentialCache() {
+		return credentialCache;
+	}
+
+	public void setCredentialCache(CredentialCache credentialCache) {
+		this.credentialCache = credentialCache;
+	}
+
 	public AuthenticationService getAuthenticationService() {
 		return authenticationService;
 	}
@@ -732,6 +908,238 @@ public class HttpManagerBuilder {
 		this.enableCompression = enableCompression;
 	}
 
+	/**
+	 * If set, and compression is enabled, compressed content is cached here
+	 * and reused until the resource changes. Default is null, so content is
+	 * compressed on every request
+	 *
+	 * @return
+	 */
+	public CompressedVariantCache getCompressedVariantCache() {
+		return compressedVariantCache;
+	}
+
+	public void setCompressedVariantCache(CompressedVariantCache compressedVariantCache) {
+		this.compressedVariantCache = compressedVariantCache;
+	}
+
+	/**
+	 * If true, and compression is enabled, large or dynamic content is
+	 * compressed directly to the response and sent chunked, rather than being
+	 * buffered to find its compressed length. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableStreamingCompression() {
+		return enableStreamingCompression;
+	}
+
+	public void setEnableStreamingCompression(boolean enableStreamingCompression) {
+		this.enableStreamingCompression = enableStreamingCompression;
+	}
+
+	/**
+	 * If true, and compression is enabled, PROPFIND and REPORT multistatus
+	 * responses are compressed for clients which accept gzip. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableMultiStatusCompression() {
+		return enableMultiStatusCompression;
+	}
+
+	public void setEnableMultiStatusCompression(boolean enableMultiStatusCompression) {
+		this.enableMultiStatusCompression = enableMultiStatusCompression;
+	}
+
+	/**
+	 * If true, PROPFIND responses are streamed to the client as each resource
+	 * is processed, instead of being generated in memory. Recommended for large
+	 * collections. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnablePropFindStreaming() {
+		return enablePropFindStreaming;
+	}
+
+	public void setEnablePropFindStreaming(boolean enablePropFindStreaming) {
+		this.enablePropFindStreaming = enablePropFindStreaming;
+	}
+
+	/**
+	 * If true, PROPFIND requests with a depth greater than 1 (including
+	 * Depth: infinity) are traversed in parallel by a ParallelPropFindTraverser,
+	 * which also limits the size and duration of the traversal. Resources and
+	 * property sources must be thread safe to use this. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableParallelPropFind() {
+		return enableParallelPropFind;
+	}
+
+	public void setEnableParallelPropFind(boolean enableParallelPropFind) {
+		this.enableParallelPropFind = enableParallelPropFind;
+	}
+
+	/**
+	 * The traverser used when enableParallelPropFind is true. If not set a
+	 * default one will be created
+	 *
+	 * @return
+	 */
+	public ParallelPropFindTraverser getParallelPropFindTraverser() {
+		return parallelPropFindTraverser;
+	}
+
+	public void setParallelPropFindTraverser(ParallelPropFindTraverser parallelPropFindTraverser) {
+		this.parallelPropFindTraverser = parallelPropFindTraverser;
+	}
+
+	/**
+	 * The number of threads used to delete large collection trees, shared by
+	 * DELETE, and MOVE and COPY with overwrite. Default is 1, which deletes
+	 * everything on the request thread. Only set this higher if resources can be
+	 * deleted from any thread, ie they do not rely on thread bound state such
+	 * as a database session
+	 *
+	 * @return
+	 */
+	public int getDeleteThreads() {
+		return deleteThreads;
+	}
+
+	public void setDeleteThreads(int deleteThreads) {
+		this.deleteThreads = deleteThreads;
+	}
+
+	/**
+	 * If true, the sync-collection REPORT (RFC 6578) and the DAV:sync-token
+	 * property are supported. Changes are recorded in the changeLog by
+	 * listening to events. The property is only available on collections which
+	 * implement SyncCollectionResource. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableSyncCollection() {
+		return enableSyncCollection;
+	}
+
+	public void setEnableSyncCollection(boolean enableSyncCollection) {
+		this.enableSyncCollection = enableSyncCollection;
+	}
+
+	/**
+	 * Where changes are recorded when enableSyncCollection is true. If not set
+	 * a MemoryChangeLog is used, so sync tokens will not survive a restart. Use
+	 * a FileChangeLog to persist changes
+	 *
+	 * @return
+	 */
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	public void setChangeLog(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	/**
+	 * If true, the resource factory given to the HttpManager is wrapped in a
+	 * RequestCachingResourceFactory, so that repeated lookups of the same path
+	 * within a request only go to your resource factory once. Default is true
+	 *
+	 * @return
+	 */
+	public boolean isEnableRequestResourceCache() {
+		return enableRequestResourceCache;
+	}
+
+	public void setEnableRequestResourceCache(boolean enableRequestResourceCache) {
+		this.enableRequestResourceCache = enableRequestResourceCache;
+	}
+
+	/**
+	 * If true, the mainResourceFactory is wrapped in a CachingResourceFactory
+	 * which holds resources between requests, and is invalidated by change
+	 * events. Only enable this if your resources can be shared across requests
+	 * and users, and milton is the only thing changing them. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableResourceCache() {
+		return enableResourceCache;
+	}
+
+	public void setEnableResourceCache(boolean enableResourceCache) {
+		this.enableResourceCache = enableResourceCache;
+	}
+
+	/**
+	 * The maximum number of resources held by the resource cache. Default is
+	 * 10000
+	 *
+	 * @return
+	 */
+	public int getResourceCacheMaxSize() {
+		return resourceCacheMaxSize;
+	}
+
+	public void setResourceCacheMaxSize(int resourceCacheMaxSize) {
+		this.resourceCacheMaxSize = resourceCacheMaxSize;
+	}
+
+	/**
+	 * If true, a ChunkedUploadFilter is added so that clients can upload large
+	 * files as a resumable series of chunks. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isEnableChunkedUpload() {
+		return enableChunkedUpload;
+	}
+
+	public void setEnableChunkedUpload(boolean enableChunkedUpload) {
+		this.enableChunkedUpload = enableChunkedUpload;
+	}
+
+	/**
+	 * Directory to hold chunks of uploads in progress. Defaults to
+	 * milton-uploads in the system temp directory
+	 *
+	 * @return
+	 */
+	public File getChunkedUploadDir() {
+		return chunkedUploadDir;
+	}
+
+	public void setChunkedUploadDir(File chunkedUploadDir) {
+		this.chunkedUploadDir = chunkedUploadDir;
+	}
+
+	/**
+	 * Uploads which have not received a chunk for this many seconds are
+	 * deleted. Default is 24 hours
+	 *
+	 * @return
+	 */
+	public long getChunkedUploadExpirySeconds() {
+		return chunkedUploadExpirySeconds;
+	}
+
+	public void setChunkedUploadExpirySeconds(long chunkedUploadExpirySeconds) {
+		this.chunkedUploadExpirySeconds = chunkedUploadExpirySeconds;
+	}
+
+	public ChunkedUploadManager getChunkedUploadManager() {
+		return chunkedUploadManager;
+	}
+
+	public void setChunkedUploadManager(ChunkedUploadManager chunkedUploadManager) {
+		this.chunkedUploadManager = chunkedUploadManager;
+	}
+
 	public boolean isEnableWellKnown() {
 		return enableWellKnown;
 	}
@@ -31,15 +31,23 @@ import org.slf4j.LoggerFactory;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.http11.Bufferable;
 import io.milton.http.http11.DefaultHttp11ResponseHandler.BUFFERING;
+import io.milton.http.webdav.ParallelPropFindTraverser;
+import io.milton.http.webdav.PropFindPropertyBuilder;
 import io.milton.http.webdav.PropFindResponse;
+import io.milton.http.webdav.PropertiesRequest;
+import io.milton.http.webdav.StreamingResponseHandler;
 import io.milton.http.webdav.WebDavResponseHandler;
+import java.net.URISyntaxException;
 
 /**
  * Response Handler which wraps another
  *
+ * Streaming responses are passed on if the wrapped handler supports them,
+ * otherwise they are built in memory and passed on as ordinary responses
+ *
  * @author brad
  */
-public abstract class AbstractWrappingResponseHandler implements WebDavResponseHandler, Bufferable {
+public abstract class AbstractWrappingResponseHandler implements StreamingResponseHandler, Bufferable {
 
 	private static final Logger log = LoggerFactory.getLogger(AbstractWrappingResponseHandler.class);
 	/**
@@ -176,6 +184,40 @@ public abstract class AbstractWrappingResponseHandler implements WebDavResponseH
 		wrapped.respondPropFind(propFindResponses, response, request, r);
 	}
 
+	@Override
+	public void respondPropFind(PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, PropFindPropertyBuilder propertyBuilder, Response response, Request request) {
+		if (wrapped instanceof StreamingResponseHandler) {
+			((StreamingResponseHandler) wrapped).respondPropFind(pfr, depth, parseResult, url, propertyBuilder, response, request);
+			return;
+		}
+		List<PropFindResponse> propFindResponses;
+		try {
+			propFindResponses = propertyBuilder.buildProperties(pfr, depth, parseResult, url);
+		} catch (URISyntaxException ex) {
+			throw new RuntimeException("Exception parsing url, indicating the requested URL is not correctly encoded. Requested url is: " + url, ex);
+		} catch (NotAuthorizedException ex) {
+			throw new RuntimeException(ex);
+		} catch (BadRequestException ex) {
+			throw new RuntimeException(ex);
+		} catch (ParallelPropFindTraverser.LimitExceededException ex) {
+			log.warn("PROPFIND limit reached for: " + url + " - " + ex.getMessage());
+			wrapped.respondInsufficientStorage(request, response, null);
+			return;
+		}
+		wrapped.respondPropFind(propFindResponses, response, request, pfr);
+	}
+
+	@Override
+	public void respondReport(Resource resource, Response response, Request request, Response.Entity entity) {
+		if (wrapped instanceof StreamingResponseHandler) {
+			((StreamingResponseHandler) wrapped).respondReport(resource, response, request, entity);
+		} else {
+			response.setStatus(Response.Status.SC_MULTI_STATUS);
+			response.setContentTypeHeader("text/xml");
+			response.setEntity(entity);
+		}
+	}
+
 	public void respondServerError(Request request, Response response, String reason) {
 		wrapped.respondServerError(request, response, reason);
 	}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http;
+
+import io.milton.common.Path;
+import io.milton.common.Utils;
+import io.milton.event.DeleteEvent;
+import io.milton.event.Event;
+import io.milton.event.EventListener;
+import io.milton.event.EventManager;
+import io.milton.event.MoveEvent;
+import io.milton.event.NewFolderEvent;
+import io.milton.event.PropPatchEvent;
+import io.milton.event.PutEvent;
+import io.milton.event.ResponseEvent;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.webdav.Dest;
+import io.milton.resource.Resource;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps a ResourceFactory and keeps resolved resources between requests. This
+ * avoids going to the backend to locate frequently accessed resources on
+ * every request.
+ *
+ * The cache is bounded by the number of entries, and least recently used
+ * entries are evicted first. It is split into segments, each with its own lock
+ * and share of the maximum size, so that concurrent requests don't contend on
+ * a single lock. Only the resource objects are held, so listings (eg
+ * getChildren for a Depth: 1 PROPFIND) and properties still come from the
+ * resources themselves, and each entry counts as one regardless of its size.
+ *
+ * Entries are invalidated by listening for PutEvent, DeleteEvent, MoveEvent,
+ * NewFolderEvent and PropPatchEvent, so call register with the EventManager.
+ * A DeleteEvent gives the path of the deleted resource. For other events the
+ * changed resource is the target of the request (and for a MOVE, also the
+ * destination), so the request path, its parent and, for new folders, all of
+ * its ancestors are invalidated. The destination of a COPY is invalidated when
+ * the response completes. Entries are invalidated again when the response
+ * completes, in case another request reloaded them in the meantime. A resource
+ * whose load started before an invalidation of its segment is returned but
+ * not cached, since it may be the state from before the change.
+ *
+ * Changes made other than through milton will not be seen until the entry is
+ * evicted, so only use this where milton is the only writer, and where
+ * resource objects can safely be shared between requests and users.
+ *
+ * @author brad
+ */
+public class CachingResourceFactory implements ResourceFactory, EventListener {
+
+	private static final Logger log = LoggerFactory.getLogger(CachingResourceFactory.class);
+	private static final String ATT_PENDING = "_milton_cache_invalidations";
+	private static final int SEGMENTS = 16;
+	private final ResourceFactory wrapped;
+	private final Segment[] segments;
+	private final int maxSize;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 *
+	 * @param wrapped - the factory to load resources from
+	 * @param maxSize - the maximum number of resources to hold
+	 */
+	public CachingResourceFactory(ResourceFactory wrapped, int maxSize) {
+		this.wrapped = wrapped;
+		this.maxSize = maxSize;
+		int segmentMax = Math.max(1, maxSize / SEGMENTS);
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentMax);
+		}
+	}
+
+	/**
+	 * Register this for all events which invalidate cache entries
+	 *
+	 * @param eventManager
+	 */
+	public void register(EventManager eventManager) {
+		eventManager.registerEventListener(this, PutEvent.class);
+		eventManager.registerEventListener(this, DeleteEvent.class);
+		eventManager.registerEventListener(this, MoveEvent.class);
+		eventManager.registerEventListener(this, NewFolderEvent.class);
+		eventManager.registerEventListener(this, PropPatchEvent.class);
+		eventManager.registerEventListener(this, ResponseEvent.class);
+	}
+
+	@Override
+	public Resource getResource(String host, String path) throws NotAuthorizedException, BadRequestException {
+		String key = key(host, path);
+		Segment seg = segment(key);
+		Resource cached = seg.get(key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		misses.incrementAndGet();
+		long generation = seg.generation();
+		Resource r = wrapped.getResource(host, path);
+		if (r != null && isCacheable(r)) {
+			seg.put(key, r, generation);
+		}
+		return r;
+	}
+
+	/**
+	 * Whether the given resource should be cached. Default is always true
+	 *
+	 * @param r
+	 * @return
+	 */
+	protected boolean isCacheable(Resource r) {
+		return true;
+	}
+
+	@Override
+	public void onEvent(Event e) {
+		if (e instanceof ResponseEvent) {
+			onResponse(((ResponseEvent) e).getRequest());
+			return;
+		}
+		Request request = HttpManager.request();
+		if (request == null) {
+			log.info("Resource event outside of a request, so clearing cache: " + e.getClass());
+			clear();
+			return;
+		}
+		String host = request.getHostHeader();
+		if (e instanceof DeleteEvent && ((DeleteEvent) e).getPath() != null) {
+			Path path = Path.path(((DeleteEvent) e).getPath());
+			invalidate(request, key(host, toString(path)), true);
+			invalidate(request, key(host, toString(path.getParent())), false);
+			return;
+		}
+		Path path = Path.path(HttpManager.decodeUrl(request.getAbsolutePath()));
+		boolean removeDescendants = e instanceof DeleteEvent || e instanceof MoveEvent;
+		invalidate(request, key(host, toString(path)), removeDescendants);
+		if (e instanceof NewFolderEvent) {
+			// folders may have been created for any segment of the path
+			for (Path p = path.getParent(); p != null; p = p.getParent()) {
+				invalidate(request, key(host, toString(p)), false);
+			}
+		} else if (!(e instanceof PropPatchEvent)) {
+			// child names of the parent have changed
+			invalidate(request, key(host, toString(path.getParent())), false);
+		}
+		if (e instanceof MoveEvent && request.getDestinationHeader() != null) {
+			invalidateDestination(request);
+		}
+	}
+
+	private void onResponse(Request request) {
+		// invalidate again now that changes are complete, in case of concurrent reloads
+		PendingKeys pending = (PendingKeys) request.getAttributes().remove(ATT_PENDING);
+		if (pending != null) {
+			for (Map.Entry<String, Boolean> e : pending.entrySet()) {
+				invalidateKey(e.getKey(), e.getValue());
+			}
+		}
+		if (request.getMethod() == Request.Method.COPY && request.getDestinationHeader() != null) {
+			// COPY doesn't fire an event for the new resource
+			Dest dest = Utils.getDecodedDestination(request.getDestinationHeader());
+			invalidateKey(key(dest.host, dest.url), false);
+			invalidateKey(key(dest.host, Utils.suffixSlash(dest.url) + dest.name), true);
+		}
+	}
+
+	private void invalidateDestination(Request request) {
+		Dest dest = Utils.getDecodedDestination(request.getDestinationHeader());
+		invalidate(request, key(dest.host, dest.url), false);
+		invalidate(request, key(dest.host, Utils.suffixSlash(dest.url) + dest.name), true);
+	}
+
+	private void invalidate(Request request, String key, boolean removeDescendants) {
+		invalidateKey(key, removeDescendants);
+		PendingKeys pending = (PendingKeys) request.getAttributes().get(ATT_PENDING);
+		if (pending == null) {
+			pending = new PendingKeys();
+			request.getAttributes().put(ATT_PENDING, pending);
+		}
+		if (!Boolean.TRUE.equals(pending.get(key))) {
+			pending.put(key, removeDescendants);
+		}
+	}
+
+	private void invalidateKey(String key, boolean removeDescendants) {
+		if (segment(key).remove(key)) {
+			invalidations.incrementAndGet();
+		}
+		if (removeDescendants) {
+			String prefix = key.endsWith("/") ? key : key + "/";
+			for (Segment seg : segments) {
+				invalidations.addAndGet(seg.removePrefix(prefix));
+			}
+		}
+	}
+
+	private String toString(Path p) {
+		return (p == null || p.isRoot()) ? "/" : p.toString("/");
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear() {
+		for (Segment seg : segments) {
+			seg.clear();
+		}
+	}
+
+	private Segment segment(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % SEGMENTS];
+	}
+
+	private static String key(String host, String path) {
+		if (path == null || path.length() == 0) {
+			path = "/";
+		} else if (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return host + ":" + path;
+	}
+
+	public ResourceFactory getWrapped() {
+		return wrapped;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Number of entries removed to keep within the maximum size
+	 *
+	 * @return
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Number of entries removed because of change events
+	 *
+	 * @return
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public int getSize() {
+		int n = 0;
+		for (Segment seg : segments) {
+			n += seg.size();
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return "CachingResourceFactory: size=" + getSize() + "/" + maxSize + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions() + " invalidations=" + getInvalidations();
+	}
+
+	/**
+	 * Keys invalidated during a request, to be invalidated again when it completes
+	 */
+	private static class PendingKeys extends LinkedHashMap<String, Boolean> {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private class Segment {
+
+		private final LinkedHashMap<String, Resource> map = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+		private final int max;
+		private long generation; // incremented on every invalidation
+
+		Segment(int max) {
+			this.max = max;
+		}
+
+		synchronized Resource get(String key) {
+			return map.get(key);
+		}
+
+		synchronized long generation() {
+			return generation;
+		}
+
+		/**
+		 * Add the resource, unless the segment has been invalidated since the
+		 * given generation, ie since the resource started loading
+		 */
+		synchronized void put(String key, Resource r, long loadGeneration) {
+			if (loadGeneration != generation) {
+				return;
+			}
+			map.put(key, r);
+			Iterator<Resource> it = map.values().iterator();
+			while (map.size() > max && it.hasNext()) {
+				it.next();
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized boolean remove(String key) {
+			generation++;
+			return map.remove(key) != null;
+		}
+
+		synchronized int removePrefix(String prefix) {
+			generation++;
+			int count = 0;
+			Iterator<Map.Entry<String, Resource>> it = map.entrySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().getKey().startsWith(prefix)) {
+					it.remove();
+					count++;
+				}
+			}
+			return count;
+		}
+
+		synchronized void clear() {
+			generation++;
+			map.clear();
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+	}
+}
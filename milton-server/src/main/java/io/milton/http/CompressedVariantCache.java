@@ -0,0 +1,564 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+import io.milton.common.FileUtils;
+import io.milton.common.Stoppable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds compressed variants of resources so that frequently requested files,
+ * such as css and javascript, are only compressed once for each version.
+ *
+ * Small variants are held in memory and larger ones in files in the cache
+ * directory. Each tier has its own size limit, and least recently used
+ * variants are evicted first. Callers provide a key which identifies the
+ * version of the content, such as the unique id and etag, so that a changed
+ * resource simply results in a new key and the old variant ages out.
+ *
+ * Concurrent requests for the same missing key are coalesced, so only one
+ * thread compresses the content and the others wait for its result.
+ *
+ * Files of evicted variants are deleted once no response is using them. A
+ * variant which is neither written nor released within leaseTimeout is
+ * treated as abandoned, so its file is not kept forever.
+ *
+ * @author brad
+ */
+public class CompressedVariantCache implements Stoppable {
+
+	private static final Logger log = LoggerFactory.getLogger(CompressedVariantCache.class);
+
+	/**
+	 * Writes the compressed content for a variant
+	 */
+	public interface Compressor {
+
+		void compress(OutputStream out) throws Exception;
+	}
+	private final File dir;
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final List<Entry> evicted = new ArrayList<Entry>();
+	private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long maxMemoryEntrySize = 100000;
+	private long maxMemorySize = 10000000;
+	private long maxDiskSize = 100000000;
+	private long leaseTimeout = 60000;
+	private long memorySize;
+	private long diskSize;
+
+	/**
+	 * Creates a cache using a directory under java.io.tmpdir
+	 */
+	public CompressedVariantCache() {
+		this(new File(System.getProperty("java.io.tmpdir"), "milton-compressed"));
+	}
+
+	/**
+	 *
+	 * @param dir - the directory to hold larger variants in. Any existing
+	 * files are deleted, since they cannot be matched to keys
+	 */
+	public CompressedVariantCache(File dir) {
+		this.dir = dir;
+		if (dir.exists()) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					if (f.isFile() && !f.delete()) {
+						log.warn("Couldnt delete old variant file: " + f.getAbsolutePath());
+					}
+				}
+			}
+		} else if (!dir.mkdirs()) {
+			throw new RuntimeException("Couldnt create variant cache directory: " + dir.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Get the variant for the given key, compressing it with the given
+	 * compressor if it is not cached. The caller must either write the
+	 * returned variant or release it
+	 *
+	 * @param key - identifies the content version and encoding
+	 * @param compressor - writes the compressed content if not cached
+	 * @return
+	 * @throws Exception - any exception from the compressor
+	 */
+	public Variant get(final String key, final Compressor compressor) throws Exception {
+		Entry e = lookup(key);
+		if (e != null) {
+			hits.incrementAndGet();
+			return new Variant(e);
+		}
+		FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+
+			@Override
+			public Entry call() throws Exception {
+				Entry e = lookup(key);
+				if (e != null) {
+					return e;
+				}
+				misses.incrementAndGet();
+				return store(key, compress(compressor));
+			}
+		});
+		FutureTask<Entry> existing = loading.putIfAbsent(key, task);
+		if (existing == null) {
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+			return new Variant(result(task));
+		}
+		// another thread is compressing this key, so wait for it
+		hits.incrementAndGet();
+		e = result(existing);
+		if (!e.acquire()) {
+			// evicted from disk before we could read it
+			return put(key, compressor);
+		}
+		return new Variant(e);
+	}
+
+	/**
+	 * Compress and store the variant, replacing any existing one for the key
+	 */
+	Variant put(String key, Compressor compressor) throws Exception {
+		misses.incrementAndGet();
+		return new Variant(store(key, compress(compressor)));
+	}
+
+	private Entry result(FutureTask<Entry> task) throws Exception {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private synchronized Entry lookup(String key) {
+		Entry e = memory.get(key);
+		if (e == null) {
+			e = disk.get(key);
+		}
+		if (e != null && !e.acquire()) {
+			return null;
+		}
+		return e;
+	}
+
+	private Entry compress(Compressor compressor) throws Exception {
+		SpillingOutputStream out = new SpillingOutputStream();
+		try {
+			compressor.compress(out);
+			out.close();
+		} catch (Exception e) {
+			out.discard();
+			throw e;
+		}
+		if (out.file == null) {
+			return new Entry(out.buffer.toByteArray());
+		} else {
+			return new Entry(out.file, out.size);
+		}
+	}
+
+	/**
+	 * Adds the entry, replacing any existing entry for the key and evicting
+	 * older ones as required. The returned entry has a reader registered,
+	 * which is released when its variant is written or released
+	 */
+	private synchronized Entry store(String key, Entry e) {
+		e.acquire();
+		deleteUnused();
+		remove(key);
+		if (e.data != null) {
+			memory.put(key, e);
+			memorySize += e.length;
+			Iterator<Entry> it = memory.values().iterator();
+			while (memorySize > maxMemorySize && it.hasNext()) {
+				Entry old = it.next();
+				it.remove();
+				memorySize -= old.length;
+			}
+		} else {
+			disk.put(key, e);
+			diskSize += e.length;
+			Iterator<Entry> it = disk.values().iterator();
+			while (diskSize > maxDiskSize && it.hasNext()) {
+				Entry old = it.next();
+				it.remove();
+				diskSize -= old.length;
+				evict(old);
+			}
+		}
+		return e;
+	}
+
+	private void remove(String key) {
+		Entry old = memory.remove(key);
+		if (old != null) {
+			memorySize -= old.length;
+		}
+		old = disk.remove(key);
+		if (old != null) {
+			diskSize -= old.length;
+			evict(old);
+		}
+	}
+
+	private void evict(Entry e) {
+		if (!e.evict(leaseTimeout)) {
+			evicted.add(e);
+		}
+	}
+
+	/**
+	 * Delete files of evicted entries which are no longer being used, or
+	 * whose readers have been abandoned
+	 */
+	private void deleteUnused() {
+		Iterator<Entry> it = evicted.iterator();
+		while (it.hasNext()) {
+			if (it.next().deleteIfUnused(leaseTimeout)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove all variants
+	 */
+	public synchronized void clear() {
+		memory.clear();
+		memorySize = 0;
+		for (Entry e : disk.values()) {
+			evict(e);
+		}
+		disk.clear();
+		diskSize = 0;
+		deleteUnused();
+	}
+
+	@Override
+	public void stop() {
+		clear();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Variants up to this size are held in memory, larger ones on disk.
+	 * Default is 100,000 bytes
+	 *
+	 * @return
+	 */
+	public long getMaxMemoryEntrySize() {
+		return maxMemoryEntrySize;
+	}
+
+	public void setMaxMemoryEntrySize(long maxMemoryEntrySize) {
+		this.maxMemoryEntrySize = maxMemoryEntrySize;
+	}
+
+	/**
+	 * Total size of variants held in memory. Default is 10,000,000 bytes
+	 *
+	 * @return
+	 */
+	public long getMaxMemorySize() {
+		return maxMemorySize;
+	}
+
+	public void setMaxMemorySize(long maxMemorySize) {
+		this.maxMemorySize = maxMemorySize;
+	}
+
+	/**
+	 * Total size of variants held on disk. Default is 100,000,000 bytes
+	 *
+	 * @return
+	 */
+	public long getMaxDiskSize() {
+		return maxDiskSize;
+	}
+
+	public void setMaxDiskSize(long maxDiskSize) {
+		this.maxDiskSize = maxDiskSize;
+	}
+
+	/**
+	 * Milliseconds after a variant is returned from get within which it is
+	 * expected to start being written. After this, if it has been evicted,
+	 * its file may be deleted even if it was never released. Default is
+	 * 60,000
+	 *
+	 * @return
+	 */
+	public long getLeaseTimeout() {
+		return leaseTimeout;
+	}
+
+	public void setLeaseTimeout(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public synchronized long getMemorySize() {
+		return memorySize;
+	}
+
+	public synchronized long getDiskSize() {
+		return diskSize;
+	}
+
+	/**
+	 * Evicted variants whose files have not been deleted yet, because they
+	 * are still being used
+	 *
+	 * @return
+	 */
+	synchronized int getEvictedCount() {
+		return evicted.size();
+	}
+
+	/**
+	 * A compressed variant returned for one request. This is the response
+	 * entity, and writing it releases it. If it will not be written it
+	 * should be released instead. Variants on disk are copied from their
+	 * file to the response stream
+	 */
+	public static class Variant implements Response.Entity {
+
+		private final Entry entry;
+		private boolean released;
+
+		private Variant(Entry entry) {
+			this.entry = entry;
+		}
+
+		public long getLength() {
+			return entry.length;
+		}
+
+		@Override
+		public void write(Response response, OutputStream out) throws Exception {
+			try {
+				if (entry.data != null) {
+					out.write(entry.data);
+				} else {
+					if (!entry.startWrite()) {
+						throw new IOException("Variant file was deleted before being written: " + entry.file.getAbsolutePath());
+					}
+					try {
+						FileInputStream fin = new FileInputStream(entry.file);
+						try {
+							IOUtils.copyLarge(fin, out);
+						} finally {
+							FileUtils.close(fin);
+						}
+					} finally {
+						entry.endWrite();
+					}
+				}
+				out.flush();
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Release without writing, eg if the response is abandoned. Has no
+		 * effect if already written or released
+		 */
+		public synchronized void release() {
+			if (!released) {
+				released = true;
+				entry.release();
+			}
+		}
+	}
+
+	/**
+	 * The cached content for a key, shared by the variants returned for it
+	 */
+	private static class Entry {
+
+		private final byte[] data;
+		private final File file;
+		private final long length;
+		private int readers;
+		private int writers;
+		private long lastAcquired;
+		private boolean evicted;
+		private boolean deleted;
+
+		private Entry(byte[] data) {
+			this.data = data;
+			this.file = null;
+			this.length = data.length;
+		}
+
+		private Entry(File file, long length) {
+			this.data = null;
+			this.file = file;
+			this.length = length;
+		}
+
+		private synchronized boolean acquire() {
+			if (deleted) {
+				return false;
+			}
+			readers++;
+			lastAcquired = System.currentTimeMillis();
+			return true;
+		}
+
+		private synchronized void release() {
+			readers--;
+			if (evicted && readers <= 0) {
+				deleteIfUnused(0);
+			}
+		}
+
+		private synchronized boolean startWrite() {
+			if (deleted) {
+				return false;
+			}
+			writers++;
+			return true;
+		}
+
+		private synchronized void endWrite() {
+			writers--;
+		}
+
+		/**
+		 *
+		 * @return - true if the file has been deleted
+		 */
+		private synchronized boolean evict(long leaseTimeout) {
+			evicted = true;
+			return deleteIfUnused(leaseTimeout);
+		}
+
+		/**
+		 * Delete the file if nothing is writing it, and no reader has been
+		 * registered within the lease timeout
+		 *
+		 * @return - true if the file has been deleted
+		 */
+		private synchronized boolean deleteIfUnused(long leaseTimeout) {
+			if (deleted) {
+				return true;
+			}
+			if (writers > 0) {
+				return false;
+			}
+			if (readers > 0 && System.currentTimeMillis() - lastAcquired < leaseTimeout) {
+				return false;
+			}
+			deleted = true;
+			if (file != null && !file.delete()) {
+				log.warn("Couldnt delete variant file: " + file.getAbsolutePath());
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Buffers in memory up to maxMemoryEntrySize, then moves to a file in the
+	 * cache directory
+	 */
+	private class SpillingOutputStream extends OutputStream {
+
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private File file;
+		private OutputStream fout;
+		private long size;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			size += len;
+			if (fout != null) {
+				fout.write(b, off, len);
+				return;
+			}
+			buffer.write(b, off, len);
+			if (buffer.size() > maxMemoryEntrySize) {
+				file = File.createTempFile("variant", ".gz", dir);
+				fout = new BufferedOutputStream(new FileOutputStream(file));
+				buffer.writeTo(fout);
+				buffer = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (fout != null) {
+				fout.close();
+			}
+		}
+
+		void discard() {
+			FileUtils.close(fout);
+			if (file != null && !file.delete()) {
+				log.warn("Couldnt delete variant file: " + file.getAbsolutePath());
+			}
+		}
+	}
+}
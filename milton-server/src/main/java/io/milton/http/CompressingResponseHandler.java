@@ -17,14 +17,26 @@ package io.milton.http;
 
 import io.milton.resource.GetableResource;
 import io.milton.resource.Resource;
+import io.milton.http.entity.ByteArrayEntity;
 import io.milton.http.entity.CompressedResourceEntity;
+import io.milton.http.entity.GzipEntity;
+import io.milton.http.entity.GzipResourceEntity;
 import io.milton.http.entity.InputStreamEntity;
 import io.milton.http.exceptions.NotFoundException;
 import io.milton.http.http11.DefaultHttp11ResponseHandler;
 import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.webdav.PropFindPropertyBuilder;
+import io.milton.http.webdav.PropFindResponse;
+import io.milton.http.webdav.PropertiesRequest;
+import io.milton.resource.PropFindableResource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,6 +65,15 @@ public class CompressingResponseHandler extends AbstractWrappingResponseHandler
 	 */
 	private int maxMemorySize = 100000;
 	private CacheControlHelper cacheControlHelper = new DefaultCacheControlHelper();
+	private CompressedVariantCache variantCache;
+	private List<String> compressibleTypes = new ArrayList<String>(Arrays.asList("text", "css", "js", "javascript"));
+	private long minCompressSize;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int fastCompressionLevel = Deflater.BEST_SPEED;
+	private LoadProbe loadProbe;
+	private boolean streaming;
+	private boolean compressMultiStatus;
+	private int minMultiStatusCompressSize = 1000;
 
 	public CompressingResponseHandler() {
 	}
@@ -104,21 +125,67 @@ public class CompressingResponseHandler extends AbstractWrappingResponseHandler
 			if (canCompress(r, contentType, acceptableEncodings)) {
 				log.trace("respondContent: compressable");
 
+				String variantKey = variantCache == null ? null : variantKey(r, contentType, params, request.getAuthorization());
+				if (variantKey != null) {
+					CompressedVariantCache.Variant variant;
+					try {
+						variant = variantCache.get(variantKey, new GzipCompressor(r, params, contentType, compressionLevel));
+					} catch (NotFoundException e) {
+						throw e;
+					} catch (Exception ex) {
+						throw new RuntimeException(ex);
+					}
+					try {
+						setRespondContentCommonHeaders(response, resource, Response.Status.SC_OK, request.getAuthorization());
+						response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+						response.setVaryHeader("Accept-Encoding");
+						response.setContentLengthHeader(variant.getLength());
+						response.setContentTypeHeader(contentType);
+						cacheControlHelper.setCacheControl(r, response, request.getAuthorization());
+						response.setEntity(variant);
+					} catch (RuntimeException e) {
+						variant.release();
+						throw e;
+					}
+					return;
+				}
+
+				int level = currentCompressionLevel();
+				if (streaming) {
+					Long length = r.getContentLength();
+					if (length == null || length > maxMemorySize) {
+						// no content length, so will be sent chunked
+						log.trace("respondContent-streaming: " + resource.getClass());
+						setRespondContentCommonHeaders(response, resource, Response.Status.SC_OK, request.getAuthorization());
+						response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+						response.setVaryHeader("Accept-Encoding");
+						response.setContentTypeHeader(contentType);
+						cacheControlHelper.setCacheControl(r, response, request.getAuthorization());
+						response.setEntity(new GzipResourceEntity(r, params, contentType, level));
+						return;
+					}
+				}
+
 				// get the zipped content before sending so we can determine its
 				// compressed size
 				BufferingOutputStream tempOut = new BufferingOutputStream(maxMemorySize);
+				GzipResourceEntity.LevelGzipOutputStream gzipOut = null;
 				try {
-					OutputStream gzipOut = new GZIPOutputStream(tempOut);
+					gzipOut = GzipResourceEntity.gzip(tempOut, level);
 					r.sendContent(gzipOut, null, params, contentType);
 					gzipOut.flush();
 					gzipOut.close();
 					tempOut.flush();
 				} catch (NotFoundException e) {
+					tempOut.deleteTempFileIfExists();
 					throw e;
 				} catch (Exception ex) {
 					tempOut.deleteTempFileIfExists();
 					throw new RuntimeException(ex);
 				} finally {
+					if (gzipOut != null) {
+						gzipOut.end();
+					}
 					FileUtils.close(tempOut);
 				}
 
@@ -144,6 +211,80 @@ public class CompressingResponseHandler extends AbstractWrappingResponseHandler
 		}
 	}
 
+	@Override
+	public void respondPropFind(List<PropFindResponse> propFindResponses, Response response, Request request, PropFindableResource pfr) {
+		super.respondPropFind(propFindResponses, response, request, pfr);
+		compressMultiStatus(response, request);
+	}
+
+	@Override
+	public void respondPropFind(List<PropFindResponse> propFindResponses, Response response, Request request, Resource r) {
+		super.respondPropFind(propFindResponses, response, request, r);
+		compressMultiStatus(response, request);
+	}
+
+	@Override
+	public void respondPropFind(PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, PropFindPropertyBuilder propertyBuilder, Response response, Request request) {
+		super.respondPropFind(pfr, depth, parseResult, url, propertyBuilder, response, request);
+		compressMultiStatus(response, request);
+	}
+
+	@Override
+	public void respondReport(Resource resource, Response response, Request request, Response.Entity entity) {
+		super.respondReport(resource, response, request, entity);
+		compressMultiStatus(response, request);
+	}
+
+	/**
+	 * Compress the entity set by the wrapped handler if the client accepts
+	 * gzip. Entities already in memory are compressed immediately so the
+	 * content length is known, and are only compressed if they are at least
+	 * minMultiStatusCompressSize. Others are always compressed as they are
+	 * written, since their size is unknown and the encoding must be decided
+	 * before any of the body is sent
+	 */
+	private void compressMultiStatus(Response response, Request request) {
+		if (!compressMultiStatus || !acceptsGzip(request.getAcceptEncodingHeader())) {
+			return;
+		}
+		Response.Entity entity = response.getEntity();
+		if (entity == null) {
+			return;
+		}
+		response.setVaryHeader("Accept-Encoding");
+		int level = currentCompressionLevel();
+		if (entity instanceof ByteArrayEntity) {
+			byte[] arr = ((ByteArrayEntity) entity).getArr();
+			if (arr.length < minMultiStatusCompressSize) {
+				return;
+			}
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(arr.length / 4);
+			try {
+				GzipResourceEntity.LevelGzipOutputStream gzipOut = GzipResourceEntity.gzip(bout, level);
+				try {
+					gzipOut.write(arr);
+					gzipOut.close();
+				} finally {
+					gzipOut.end();
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			byte[] compressed = bout.toByteArray();
+			log.trace("compressed multistatus from " + arr.length + " to " + compressed.length);
+			response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+			response.setContentLengthHeader((long) compressed.length);
+			response.setEntity(new ByteArrayEntity(compressed));
+		} else {
+			response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+			response.setEntity(new GzipEntity(entity, level));
+		}
+	}
+
+	private boolean acceptsGzip(String acceptableEncodings) {
+		return acceptableEncodings != null && acceptableEncodings.toLowerCase().indexOf("gzip") > -1;
+	}
+
 	protected void setRespondContentCommonHeaders(Response response, Resource resource, Response.Status status, Auth auth) {
 		response.setStatus(status);
 		response.setDateHeader(new Date());
@@ -154,16 +295,72 @@ public class CompressingResponseHandler extends AbstractWrappingResponseHandler
 		DefaultHttp11ResponseHandler.setModifiedDate(response, resource, auth);
 	}
 
+	/**
+	 * The key for the compressed variant of the resource, made from its unique
+	 * id, etag (or modified date), content type and the current user, since
+	 * content may be generated differently for each user. Returns null if the
+	 * resource cannot be identified or versioned, or the request has
+	 * parameters which might change the content, so it is not cached.
+	 *
+	 * Override to leave out the user where content is known to be the same
+	 * for everyone, so that one variant is shared
+	 */
+	protected String variantKey(GetableResource r, String contentType, Map<String, String> params, Auth auth) {
+		if (params != null && !params.isEmpty()) {
+			return null;
+		}
+		String uniqueId = r.getUniqueId();
+		if (uniqueId == null) {
+			return null;
+		}
+		String version = wrapped.generateEtag(r);
+		if (version == null) {
+			Date modDate = r.getModifiedDate();
+			if (modDate == null) {
+				return null;
+			}
+			version = Long.toString(modDate.getTime());
+		}
+		String user = auth == null || auth.getUser() == null ? "" : auth.getUser();
+		return uniqueId + "|" + version + "|" + contentType + "|" + user + "|gzip";
+	}
+
+	/**
+	 * The compression level to use now, which is fastCompressionLevel if the
+	 * loadProbe says the server is saturated, otherwise compressionLevel
+	 *
+	 * @return
+	 */
+	protected int currentCompressionLevel() {
+		if (loadProbe != null && loadProbe.isSaturated()) {
+			log.trace("server is saturated, using fast compression");
+			return fastCompressionLevel;
+		}
+		return compressionLevel;
+	}
+
 	private boolean canCompress(GetableResource r, String contentType, String acceptableEncodings) {
 		log.trace("canCompress: contentType: " + contentType + " acceptable-encodings: " + acceptableEncodings);
 		if (contentType != null) {
 			contentType = contentType.toLowerCase();
 			// We don't want to compress things like jpg's, mp3's, video files, etc, since they're already compressed
 			// and attempting to compress compressed data is just dumb
-			// This list really should be from a parameter - TODO
-			boolean contentIsCompressable = contentType.contains("text") || contentType.contains("css") || contentType.contains("js") || contentType.contains("javascript");
+			boolean contentIsCompressable = false;
+			for (String s : compressibleTypes) {
+				if (contentType.contains(s)) {
+					contentIsCompressable = true;
+					break;
+				}
+			}
+			if (contentIsCompressable && minCompressSize > 0) {
+				Long length = r.getContentLength();
+				if (length != null && length < minCompressSize) {
+					log.trace("too small to compress: " + length);
+					return false;
+				}
+			}
 			if (contentIsCompressable) {
-				boolean supportsGzip = (acceptableEncodings != null && acceptableEncodings.toLowerCase().indexOf("gzip") > -1);
+				boolean supportsGzip = acceptsGzip(acceptableEncodings);
 				log.trace("supports gzip: " + supportsGzip);
 				return supportsGzip;
 			}
@@ -171,6 +368,134 @@ public class CompressingResponseHandler extends AbstractWrappingResponseHandler
 		return false;
 	}
 
+	/**
+	 * If set, compressed content is held in this cache and reused until the
+	 * resource changes, instead of compressing on every request. Default is null
+	 *
+	 * @return
+	 */
+	public CompressedVariantCache getVariantCache() {
+		return variantCache;
+	}
+
+	public void setVariantCache(CompressedVariantCache variantCache) {
+		this.variantCache = variantCache;
+	}
+
+	/**
+	 * Content is compressed if its content type contains any of these
+	 * strings. Default is text, css, js and javascript
+	 *
+	 * @return
+	 */
+	public List<String> getCompressibleTypes() {
+		return compressibleTypes;
+	}
+
+	public void setCompressibleTypes(List<String> compressibleTypes) {
+		this.compressibleTypes = compressibleTypes;
+	}
+
+	/**
+	 * Resources with a known content length less than this are not
+	 * compressed. Default is 0
+	 *
+	 * @return
+	 */
+	public long getMinCompressSize() {
+		return minCompressSize;
+	}
+
+	public void setMinCompressSize(long minCompressSize) {
+		this.minCompressSize = minCompressSize;
+	}
+
+	/**
+	 * The java.util.zip.Deflater level to compress with. Default is
+	 * Deflater.DEFAULT_COMPRESSION
+	 *
+	 * @return
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * The level to compress with when the loadProbe says the server is
+	 * saturated. Default is Deflater.BEST_SPEED
+	 *
+	 * @return
+	 */
+	public int getFastCompressionLevel() {
+		return fastCompressionLevel;
+	}
+
+	public void setFastCompressionLevel(int fastCompressionLevel) {
+		this.fastCompressionLevel = fastCompressionLevel;
+	}
+
+	/**
+	 * If set, this is checked before compressing and fastCompressionLevel is
+	 * used when it reports the server is saturated. Default is null
+	 *
+	 * @return
+	 */
+	public LoadProbe getLoadProbe() {
+		return loadProbe;
+	}
+
+	public void setLoadProbe(LoadProbe loadProbe) {
+		this.loadProbe = loadProbe;
+	}
+
+	/**
+	 * If true, content which is larger than maxMemorySize, or has no known
+	 * length, is compressed directly to the response without a content
+	 * length, so is sent chunked. Otherwise it is compressed to a buffer
+	 * first. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * If true, PROPFIND and REPORT multistatus responses are compressed when
+	 * the client accepts gzip. Default is false
+	 *
+	 * @return
+	 */
+	public boolean isCompressMultiStatus() {
+		return compressMultiStatus;
+	}
+
+	public void setCompressMultiStatus(boolean compressMultiStatus) {
+		this.compressMultiStatus = compressMultiStatus;
+	}
+
+	/**
+	 * Buffered multistatus responses smaller than this are sent uncompressed.
+	 * Streamed responses are always compressed. Default is 1000 bytes
+	 *
+	 * @return
+	 */
+	public int getMinMultiStatusCompressSize() {
+		return minMultiStatusCompressSize;
+	}
+
+	public void setMinMultiStatusCompressSize(int minMultiStatusCompressSize) {
+		this.minMultiStatusCompressSize = minMultiStatusCompressSize;
+	}
+
 	public void setMaxMemorySize(int maxMemorySize) {
 		this.maxMemorySize = maxMemorySize;
 	}
@@ -178,4 +503,31 @@ public class CompressingResponseHandler extends AbstractWrappingResponseHandler
 	public int getMaxMemorySize() {
 		return maxMemorySize;
 	}
+
+	private static class GzipCompressor implements CompressedVariantCache.Compressor {
+
+		private final GetableResource r;
+		private final Map<String, String> params;
+		private final String contentType;
+		private final int level;
+
+		GzipCompressor(GetableResource r, Map<String, String> params, String contentType, int level) {
+			this.r = r;
+			this.params = params;
+			this.contentType = contentType;
+			this.level = level;
+		}
+
+		@Override
+		public void compress(OutputStream out) throws Exception {
+			GzipResourceEntity.LevelGzipOutputStream gzipOut = GzipResourceEntity.gzip(out, level);
+			try {
+				r.sendContent(gzipOut, null, params, contentType);
+				gzipOut.finish();
+				gzipOut.flush();
+			} finally {
+				gzipOut.end();
+			}
+		}
+	}
 }
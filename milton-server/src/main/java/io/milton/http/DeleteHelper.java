@@ -46,4 +46,18 @@ public interface DeleteHelper {
      * @param r
      */
     void delete(DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException;
+
+    /**
+     * Check for locks and delete the resource and any child resources, walking
+     * the tree only once. Nothing is deleted if any resource is locked.
+     *
+     * @param req
+     * @param r
+     * @param path - the decoded absolute path of the resource, reported in
+     * the DeleteEvent. May be null if not known
+     * @param eventManager
+     * @return - false if the resource or a child is locked or otherwise not
+     * deletable, in which case nothing has been deleted
+     */
+    boolean deleteIfNotLocked(Request req, DeletableResource r, String path, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException;
 }
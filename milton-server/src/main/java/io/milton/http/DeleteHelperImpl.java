@@ -12,9 +12,9 @@
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package io.milton.http;
 
+import io.milton.resource.BulkDeletableCollection;
 import io.milton.resource.DeletableCollectionResource;
 import io.milton.resource.CollectionResource;
 import io.milton.resource.DeletableResource;
@@ -22,25 +22,52 @@ import io.milton.resource.Resource;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.common.Stoppable;
+import io.milton.common.Utils;
 import io.milton.event.DeleteEvent;
 import io.milton.event.EventManager;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Default implementation of DeleteHelper
  *
- * It will delegate to the resource if it implements DeletableCollectionResource,
- * otherwise it will walk the collection if its a CollectionResource, and finally
- * will just call handlerHelper.isLockedOut otherwise
+ * The tree is walked once to check locks and build a plan of what to delete.
+ * Resources which implement DeletableCollectionResource are not walked, and
+ * are responsible for checking their own locks and deleting their members. A
+ * BulkDeletableCollection is removed with a single call to deleteTree.
+ *
+ * Other collections are walked, and once the plan is complete the members are
+ * deleted first, then the collections, deepest first. If deleteThreads is
+ * greater than 1, each of these steps is spread over a bounded thread pool for
+ * large trees. This is off by default, because resources are then deleted on
+ * pool threads, which will not see thread bound state such as a database
+ * session (though HttpManager.request() is bound). Only enable it where
+ * resources can be deleted from any thread.
+ *
+ * When the delete succeeds a single DeleteEvent is fired for the deleted
+ * resource. If it fails part way through, an event is fired for each resource
+ * which was actually removed.
  *
  */
-public class DeleteHelperImpl implements DeleteHelper {
+public class DeleteHelperImpl implements DeleteHelper, Stoppable {
 
 	private Logger log = LoggerFactory.getLogger(DeleteHelperImpl.class);
 	private final HandlerHelper handlerHelper;
+	private int deleteThreads = 1;
+	private int parallelThreshold = 100;
+	private ExecutorService executor;
 
 	public DeleteHelperImpl(HandlerHelper handlerHelper) {
 		this.handlerHelper = handlerHelper;
@@ -48,74 +75,276 @@ public class DeleteHelperImpl implements DeleteHelper {
 
 	@Override
 	public boolean isLockedOut(Request req, Resource r) throws NotAuthorizedException, BadRequestException {
-		if (r instanceof DeletableCollectionResource) {
-			DeletableCollectionResource dcr = (DeletableCollectionResource) r;
-			boolean locked = dcr.isLockedOutRecursive(req);
-			if (locked && log.isInfoEnabled()) {
-				log.info("isLocked, as reported by DeletableCollectionResource: " + dcr.getName());
+		if (r instanceof DeletableResource) {
+			try {
+				return plan(req, (DeletableResource) r, true) == null;
+			} catch (ConflictException ex) {
+				return true; // not thrown when checking locks
 			}
-			return locked;
-		} else if (r instanceof CollectionResource) {
-			CollectionResource col = (CollectionResource) r;
-			List<Resource> list = new ArrayList<Resource>();
-			list.addAll(col.getChildren());
-			for (Resource rChild : list) {
-				if (rChild instanceof DeletableResource) {
-					DeletableResource rChildDel = (DeletableResource) rChild;
-					if (isLockedOut(req, rChildDel)) {
-						if (log.isInfoEnabled()) {
-							log.info("isLocked: " + rChild.getName() + " type:" + rChild.getClass());
-						}
-						return true;
-					}
-				} else {
-					if (log.isInfoEnabled()) {
+		} else {
+			return handlerHelper.isLockedOut(req, r);
+		}
+	}
+
+	@Override
+	public void delete(DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException {
+		execute(plan(null, r, false), null, eventManager);
+	}
+
+	@Override
+	public boolean deleteIfNotLocked(Request req, DeletableResource r, String path, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException {
+		DeletePlan plan = plan(req, r, true);
+		if (plan == null) {
+			return false;
+		}
+		execute(plan, path, eventManager);
+		return true;
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Walk the tree breadth first, so collections are listed in order of
+	 * depth
+	 *
+	 * @return - null if checkLocks is true and something is locked or not
+	 * deletable
+	 */
+	private DeletePlan plan(Request req, DeletableResource root, boolean checkLocks) throws NotAuthorizedException, BadRequestException, ConflictException {
+		DeletePlan plan = new DeletePlan(root);
+		LinkedList<Node> queue = new LinkedList<Node>();
+		queue.add(new Node(root, null, 0));
+		while (!queue.isEmpty()) {
+			Node node = queue.removeFirst();
+			DeletableResource r = node.resource;
+			if (r instanceof DeletableCollectionResource) {
+				if (checkLocks && ((DeletableCollectionResource) r).isLockedOutRecursive(req)) {
+					log.info("isLocked, as reported by DeletableCollectionResource: " + r.getName());
+					return null;
+				}
+				plan.members.add(node);
+			} else if (r instanceof CollectionResource) {
+				if (checkLocks && handlerHelper.isLockedOut(req, r)) {
+					log.info("isLocked, as reported by handlerHelper on resource: " + r.getName());
+					return null;
+				}
+				plan.collections.add(node);
+				for (Resource rChild : ((CollectionResource) r).getChildren()) {
+					if (rChild == null) {
+						log.warn("got a null item in list");
+					} else if (rChild instanceof DeletableResource) {
+						String path = node.path == null ? rChild.getName() : node.path + "/" + rChild.getName();
+						queue.add(new Node((DeletableResource) rChild, path, node.depth + 1));
+					} else if (checkLocks) {
 						log.info("a child resource is not deletable: " + rChild.getName() + " type: " + rChild.getClass());
+						return null;
+					} else {
+						log.warn("Couldnt delete child resource: " + rChild.getName() + " of type; " + rChild.getClass().getName() + " because it does not implement: " + DeletableResource.class.getCanonicalName());
+						throw new ConflictException(rChild);
 					}
-					return true;
 				}
+			} else {
+				if (checkLocks && handlerHelper.isLockedOut(req, r)) {
+					log.info("isLocked, as reported by handlerHelper on resource: " + r.getName());
+					return null;
+				}
+				plan.members.add(node);
 			}
-			return false;
+		}
+		return plan;
+	}
 
-		} else {
-			boolean locked = handlerHelper.isLockedOut(req, r);
-			if (locked && log.isInfoEnabled()) {
-				log.info("isLocked, as reported by handlerHelper on resource: " + r.getName());
+	/**
+	 *
+	 * @param path - the decoded absolute path of the root, or null if not known
+	 */
+	private void execute(DeletePlan plan, String path, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException {
+		List<Node> deleted = Collections.synchronizedList(new ArrayList<Node>());
+		boolean parallel = deleteThreads > 1 && plan.members.size() + plan.collections.size() >= parallelThreshold;
+		boolean ok = false;
+		try {
+			deleteAll(plan.members, parallel, deleted);
+			// collections are in order of depth, so delete from the end to do the deepest first
+			int end = plan.collections.size();
+			while (end > 0) {
+				int depth = plan.collections.get(end - 1).depth;
+				int start = end - 1;
+				while (start > 0 && plan.collections.get(start - 1).depth == depth) {
+					start--;
+				}
+				deleteAll(plan.collections.subList(start, end), parallel, deleted);
+				end = start;
+			}
+			ok = true;
+		} finally {
+			if (eventManager != null) {
+				if (ok) {
+					eventManager.fireEvent(new DeleteEvent(plan.root, path));
+				} else {
+					// only report what was actually removed
+					List<Node> list;
+					synchronized (deleted) {
+						list = new ArrayList<Node>(deleted);
+					}
+					for (Node n : list) {
+						String nodePath = (path == null || n.path == null) ? path : Utils.suffixSlash(path) + n.path;
+						eventManager.fireEvent(new DeleteEvent(n.resource, nodePath));
+					}
+				}
 			}
-			return locked;
-
 		}
 	}
 
-	@Override
-	public void delete(DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException {
-		if (r instanceof DeletableCollectionResource) {
-			r.delete();
-
-		} else if (r instanceof CollectionResource) {
-			CollectionResource col = (CollectionResource) r;
-			List<Resource> list = new ArrayList<Resource>();
-			list.addAll(col.getChildren());
-			for (Resource rChild : list) {
-				if (rChild == null) {
-					log.warn("got a null item in list");
-				} else {
-					if (rChild instanceof DeletableResource) {
-						DeletableResource rChildDel = (DeletableResource) rChild;
-						if (eventManager != null) {
-							eventManager.fireEvent(new DeleteEvent(rChildDel));
+	private void deleteAll(List<Node> nodes, boolean parallel, final List<Node> deleted) throws NotAuthorizedException, ConflictException, BadRequestException {
+		if (!parallel || nodes.size() < 2) {
+			for (Node n : nodes) {
+				delete(n, deleted);
+			}
+			return;
+		}
+		final Request request = HttpManager.request();
+		final Response response = HttpManager.response();
+		int batchSize = Math.max(1, nodes.size() / (deleteThreads * 4));
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int i = 0; i < nodes.size(); i += batchSize) {
+			final List<Node> batch = nodes.subList(i, Math.min(nodes.size(), i + batchSize));
+			futures.add(executor().submit(new Callable<Object>() {
+
+				@Override
+				public Object call() throws Exception {
+					boolean bound = false;
+					if (HttpManager.request() == null) {
+						HttpManager.bind(request, response);
+						bound = true;
+					}
+					try {
+						for (Node n : batch) {
+							delete(n, deleted);
+						}
+					} finally {
+						if (bound) {
+							HttpManager.unbind();
 						}
-						delete(rChildDel, eventManager);
-					} else {
-						log.warn("Couldnt delete child resource: " + rChild.getName() + " of type; " + rChild.getClass().getName() + " because it does not implement: " + DeletableResource.class.getCanonicalName());
-						throw new ConflictException(rChild);
 					}
+					return null;
+				}
+			}));
+		}
+		Throwable error = null;
+		for (Future<Object> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				error = ex;
+			} catch (ExecutionException ex) {
+				if (error == null) {
+					error = ex.getCause();
 				}
 			}
-			r.delete();
+		}
+		if (error instanceof NotAuthorizedException) {
+			throw (NotAuthorizedException) error;
+		} else if (error instanceof ConflictException) {
+			throw (ConflictException) error;
+		} else if (error instanceof BadRequestException) {
+			throw (BadRequestException) error;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else if (error != null) {
+			throw new RuntimeException(error);
+		}
+	}
 
+	private void delete(Node n, List<Node> deleted) throws NotAuthorizedException, ConflictException, BadRequestException {
+		if (n.resource instanceof BulkDeletableCollection) {
+			((BulkDeletableCollection) n.resource).deleteTree();
 		} else {
-			r.delete();
+			n.resource.delete();
+		}
+		deleted.add(n);
+	}
+
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(deleteThreads, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "milton-delete-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * The maximum number of resources deleted concurrently. Default is 1, ie
+	 * everything is deleted on the calling thread. Only set this higher if
+	 * resources do not depend on thread bound state, and call stop when done
+	 * to release the threads
+	 *
+	 * @return
+	 */
+	public int getDeleteThreads() {
+		return deleteThreads;
+	}
+
+	public void setDeleteThreads(int deleteThreads) {
+		this.deleteThreads = deleteThreads;
+	}
+
+	/**
+	 * Trees with fewer resources then this are deleted on the calling thread.
+	 * Default is 100
+	 *
+	 * @return
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	public void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	private static class DeletePlan {
+
+		final DeletableResource root;
+		/**
+		 * Resources deleted with a single call, ie non-collections and
+		 * collections which delete their own members
+		 */
+		final List<Node> members = new ArrayList<Node>();
+		/**
+		 * Collections which are emptied by deleting members, in order of depth
+		 */
+		final List<Node> collections = new ArrayList<Node>();
+
+		DeletePlan(DeletableResource root) {
+			this.root = root;
+		}
+	}
+
+	private static class Node {
+
+		final DeletableResource resource;
+		final String path; // relative to the root, null for the root
+		final int depth;
+
+		Node(DeletableResource resource, String path, int depth) {
+			this.resource = resource;
+			this.path = path;
+			this.depth = depth;
 		}
 	}
 }
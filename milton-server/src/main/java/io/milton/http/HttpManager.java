@@ -56,6 +56,24 @@ public class HttpManager {
 	public static Response response() {
 		return tlResponse.get();
 	}
+
+	/**
+	 * Make the given request and response available from request() and
+	 * response() on the current thread. This is for work done on behalf of a
+	 * request on some other thread, which must call unbind when finished
+	 *
+	 * @param request
+	 * @param response
+	 */
+	public static void bind(Request request, Response response) {
+		tlRequest.set(request);
+		tlResponse.set(response);
+	}
+
+	public static void unbind() {
+		tlRequest.remove();
+		tlResponse.remove();
+	}
 	private final ProtocolHandlers handlers;
 	private final List<Filter> filters;
 	private final List<EventListener> eventListeners = new ArrayList<EventListener>();
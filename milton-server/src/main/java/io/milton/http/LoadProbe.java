@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+/**
+ * Reports whether the server is busy, so that optional work such as high
+ * compression levels can be reduced
+ *
+ * @author brad
+ */
+public interface LoadProbe {
+
+	/**
+	 *
+	 * @return - true if the server is saturated and should avoid optional work
+	 */
+	boolean isSaturated();
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http;
+
+import io.milton.http.exceptions.ConflictException;
+import io.milton.resource.Resource;
+import java.util.List;
+
+/**
+ * Thrown when an operation on a collection succeeded for some members but
+ * failed for others, so that the handler can respond with a 207 listing the
+ * members which failed.
+ *
+ * The hrefs in the statii are relative to the target of the operation, eg the
+ * destination of a COPY, and are resolved by the handler
+ *
+ * @author brad
+ */
+public class MultiStatusException extends ConflictException {
+
+	private static final long serialVersionUID = 1L;
+	private final List<HrefStatus> statii;
+
+	public MultiStatusException(Resource r, List<HrefStatus> statii) {
+		super(r, statii.size() + " members could not be processed");
+		this.statii = statii;
+	}
+
+	public List<HrefStatus> getStatii() {
+		return statii;
+	}
+}
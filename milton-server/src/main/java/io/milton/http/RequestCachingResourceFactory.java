@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+import io.milton.common.LogUtils;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.resource.Resource;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps a ResourceFactory and remembers the result of each getResource call for
+ * the life of the current request, so that handlers which look up the same
+ * path several times (eg the target and parent of a PUT, or the ancestors of a
+ * new file) only go to the wrapped factory once.
+ *
+ * Found resources are held in the request attributes so they are discarded
+ * when the request completes. Not found results are not cached, because
+ * handlers such as POST, ACL or custom handlers can create resources without
+ * invalidating the cache. Calls made outside of a request go directly to the
+ * wrapped factory.
+ *
+ * Handlers which create, move or delete resources must call invalidate for the
+ * affected paths, so that later lookups in the same request see the change.
+ *
+ * @author brad
+ */
+public class RequestCachingResourceFactory implements ResourceFactory {
+
+	private static final Logger log = LoggerFactory.getLogger(RequestCachingResourceFactory.class);
+	private static final String ATT_CACHE = "_milton_request_resource_cache";
+	private final ResourceFactory wrapped;
+
+	public RequestCachingResourceFactory(ResourceFactory wrapped) {
+		this.wrapped = wrapped;
+	}
+
+	@Override
+	public Resource getResource(String host, String path) throws NotAuthorizedException, BadRequestException {
+		Map<String, Resource> cache = cache(HttpManager.request(), true);
+		if (cache == null) {
+			return wrapped.getResource(host, path);
+		}
+		String key = key(host, path);
+		Resource r = cache.get(key);
+		if (r != null) {
+			LogUtils.trace(log, "getResource: cache hit", key);
+			return r;
+		}
+		r = wrapped.getResource(host, path);
+		if (r != null) {
+			cache.put(key, r);
+		}
+		return r;
+	}
+
+	public ResourceFactory getWrapped() {
+		return wrapped;
+	}
+
+	/**
+	 * Remove the given path, and any paths beneath it, from the cache for the
+	 * current request. Does nothing if there is no current request or nothing
+	 * has been cached
+	 *
+	 * @param host
+	 * @param path - the decoded path of a resource which has been created,
+	 * moved or deleted
+	 */
+	public static void invalidate(String host, String path) {
+		Map<String, Resource> cache = cache(HttpManager.request(), false);
+		if (cache == null || cache.isEmpty()) {
+			return;
+		}
+		String key = key(host, path);
+		String prefix = key.endsWith("/") ? key : key + "/";
+		Iterator<String> it = cache.keySet().iterator();
+		while (it.hasNext()) {
+			String k = it.next();
+			if (k.equals(key) || k.startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove everything from the cache for the current request
+	 */
+	public static void invalidateAll() {
+		Map<String, Resource> cache = cache(HttpManager.request(), false);
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	private static Map<String, Resource> cache(Request request, boolean create) {
+		if (request == null) {
+			return null;
+		}
+		Map<String, Object> atts = request.getAttributes();
+		ResourceCache cache = (ResourceCache) atts.get(ATT_CACHE);
+		if (cache == null && create) {
+			cache = new ResourceCache();
+			atts.put(ATT_CACHE, cache);
+		}
+		return cache;
+	}
+
+	private static String key(String host, String path) {
+		if (path == null || path.length() == 0) {
+			path = "/";
+		} else if (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return host + ":" + path;
+	}
+
+	/**
+	 * May be used from several threads, eg a parallel propfind
+	 */
+	private static class ResourceCache extends ConcurrentHashMap<String, Resource> {
+
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * LoadProbe which uses the operating system's load average. The server is
+ * considered saturated when the load average per processor exceeds
+ * maxLoadPerProcessor.
+ *
+ * The load average is only read once per checkInterval, and where the
+ * platform does not provide a load average the server is never considered
+ * saturated
+ *
+ * @author brad
+ */
+public class SystemLoadProbe implements LoadProbe {
+
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	private double maxLoadPerProcessor = 1.0;
+	private long checkInterval = 1000;
+	private volatile long lastCheck;
+	private volatile boolean saturated;
+
+	@Override
+	public boolean isSaturated() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck > checkInterval) {
+			lastCheck = now;
+			double load = os.getSystemLoadAverage();
+			saturated = load >= 0 && load / os.getAvailableProcessors() > maxLoadPerProcessor;
+		}
+		return saturated;
+	}
+
+	/**
+	 * Default is 1.0, ie the run queue is as long as the number of processors
+	 *
+	 * @return
+	 */
+	public double getMaxLoadPerProcessor() {
+		return maxLoadPerProcessor;
+	}
+
+	public void setMaxLoadPerProcessor(double maxLoadPerProcessor) {
+		this.maxLoadPerProcessor = maxLoadPerProcessor;
+	}
+
+	/**
+	 * Milliseconds between reading the load average. Default is 1000
+	 *
+	 * @return
+	 */
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+}
@@ -15,13 +15,17 @@
 
 package io.milton.http;
 
+import io.milton.http.webdav.WebDavProtocol;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,12 +37,38 @@ import io.milton.common.FileUtils;
  * of the generated xml, including whitespace.
  * <P/>
  * The XML is not guaranteed to be parseable.
+ * <P/>
+ * Output is encoded as UTF-8 directly into a byte buffer, which is taken from
+ * a shared pool and returned when flush is called. Nothing is written to the
+ * underlying stream until the buffer fills or flush is called, so callers MUST
+ * call flush when finished
  *
  * @author brad
  */
 public class XmlWriter {
 
-    private Logger log = LoggerFactory.getLogger(XmlWriter.class);
+    private static final Logger log = LoggerFactory.getLogger(XmlWriter.class);
+    private static final int BUFFER_SIZE = 8192;
+    private static final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(64);
+    /**
+     * Pre-encoded names for the elements which make up most of a multistatus
+     * response, keyed on local name. Only used with the DAV: prefix
+     */
+    private static final Map<String, byte[]> davTokens = new HashMap<String, byte[]>();
+
+    static {
+        for (String name : new String[]{"multistatus", "response", "href", "propstat", "prop", "status"}) {
+            davTokens.put(name, encodeAscii(WebDavProtocol.DAV_PREFIX + ":" + name));
+        }
+    }
+
+    private static byte[] encodeAscii(String s) {
+        byte[] arr = new byte[s.length()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = (byte) s.charAt(i);
+        }
+        return arr;
+    }
 
     public enum Type {
 
@@ -46,11 +76,21 @@ public class XmlWriter {
         CLOSING,
         NO_CONTENT
     };
-    protected final Writer writer;
+    /**
+     * Writes characters into this XmlWriter's buffer, so output written by
+     * subclasses through it stays in order with everything else
+     *
+     * @deprecated subclasses should use the write methods on XmlWriter
+     */
+    @Deprecated
+    protected final Writer writer = new BufferWriter();
+    private final OutputStream out;
+    private byte[] buf;
+    private int pos;
 	private boolean allowNewlines = false;
 
     public XmlWriter(OutputStream out) {
-        this.writer = new PrintWriter(out, true);
+        this.out = out;
     }
 
     /**
@@ -59,10 +99,15 @@ public class XmlWriter {
      * @param value
      */
     private void append(String value) {
-        try {
-            writer.write(value);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buf[pos++] = (byte) c;
+            } else {
+                i = appendMultiByte(value, i, c);
+            }
         }
     }
 
@@ -72,10 +117,144 @@ public class XmlWriter {
      * @param c
      */
     private void append(char c) {
-        try {
-            writer.write((int) c);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+        if (c < 0x80) {
+            ensure(1);
+            buf[pos++] = (byte) c;
+        } else {
+            appendMultiByte(null, 0, c);
+        }
+    }
+
+    /**
+     * Append the text, escaping xml special characters as we go
+     *
+     * @param value
+     */
+    private void appendEscaped(String value) {
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    append("&amp;");
+                    break;
+                case '<':
+                    append("&lt;");
+                    break;
+                case '>':
+                    append("&gt;");
+                    break;
+                case '"':
+                    append("&quot;");
+                    break;
+                case '\'':
+                    append("&apos;");
+                    break;
+                default:
+                    if (c < 0x80) {
+                        ensure(1);
+                        buf[pos++] = (byte) c;
+                    } else {
+                        i = appendMultiByte(value, i, c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Encode a non-ascii character as UTF-8. If the character is the first of a
+     * surrogate pair then the second character is consumed too
+     *
+     * @return - the index of the last character consumed
+     */
+    private int appendMultiByte(String value, int i, char c) {
+        if (c < 0x800) {
+            ensure(2);
+            buf[pos++] = (byte) (0xc0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            if (value != null && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(i + 1));
+                ensure(4);
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                return i + 1;
+            } else {
+                append('?'); // malformed, same as the jdk encoder
+            }
+        } else if (Character.isLowSurrogate(c)) {
+            append('?');
+        } else {
+            ensure(3);
+            buf[pos++] = (byte) (0xe0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void append(byte[] arr) {
+        ensure(arr.length);
+        if (arr.length > buf.length - pos) {
+            // too big to ever fit in the buffer, so just send it
+            drain();
+            try {
+                out.write(arr);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        } else {
+            System.arraycopy(arr, 0, buf, pos, arr.length);
+            pos += arr.length;
+        }
+    }
+
+    /**
+     * Append a possibly prefixed element name, using the pre-encoded version
+     * for common DAV elements
+     */
+    private void appendName(String nsPrefix, String name) {
+        if (nsPrefix != null) {
+            if (WebDavProtocol.DAV_PREFIX.equals(nsPrefix)) {
+                byte[] token = davTokens.get(name);
+                if (token != null) {
+                    append(token);
+                    return;
+                }
+            }
+            append(nsPrefix);
+            append(':');
+        }
+        append(name);
+    }
+
+    /**
+     * Make sure there is room for the given number of bytes in the buffer,
+     * acquiring a buffer from the pool or draining to the output stream as
+     * required
+     */
+    private void ensure(int required) {
+        if (buf == null) {
+            buf = bufferPool.poll();
+            if (buf == null) {
+                buf = new byte[BUFFER_SIZE];
+            }
+            pos = 0;
+        } else if (pos + required > buf.length) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        if (buf != null && pos > 0) {
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            pos = 0;
         }
     }
 
@@ -105,6 +284,24 @@ public class XmlWriter {
         }
     }
 
+    /**
+     * Write a single element containing text, escaping any xml special characters
+     * in the value as it is written
+     *
+     * @param namespace - optional, namespace prefix
+     * @param name - the local name of the element to create
+     * @param value - unescaped text. If null a no-content element is written
+     */
+    public void writeEscapedProperty(String namespace, String name, String value) {
+        if (value == null) {
+            writeProperty(namespace, name);
+        } else {
+            writeElement(namespace, name, Type.OPENING);
+            appendEscaped(value);
+            writeElement(namespace, name, Type.CLOSING);
+        }
+    }
+
     public void writeProperty(String namespace, String name) {
         writeElement(namespace, name, Type.NO_CONTENT);
     }
@@ -190,27 +387,20 @@ public class XmlWriter {
             this.parent = parent;
             this.name = name;
             this.nsPrefix = nsPrefix;
-            append("<");
-            if (nsPrefix != null) {
-                append(nsPrefix);
-                append(":");
-            }
-            append(name);
+            append('<');
+            appendName(nsPrefix, name);
         }
         Element(Element parent, String uri, String nsPrefix, String name) {
             this.parent = parent;
             this.name = name;
             this.nsPrefix = nsPrefix;
-            append("<");
-            if (nsPrefix != null) {
-                append(nsPrefix);
-                append(":");
-            }
-            append(name);
-			append(" ");
-			append("xmlns:" + nsPrefix + "=\"");
+            append('<');
+            appendName(nsPrefix, name);
+			append(" xmlns:");
+			append(nsPrefix);
+			append("=\"");
 			append(uri);
-			append("\"");
+			append('"');
         }
 
 		
@@ -281,13 +471,10 @@ public class XmlWriter {
         }
         public Element close(boolean newline) {
             if (openEnded) {
-                if (nsPrefix != null) {
-                    append("</" + nsPrefix + ":" + name + ">");
-					newLine();
-                } else {
-                    append("</" + name + ">");
-					newLine();
-                }
+                append("</");
+                appendName(nsPrefix, name);
+                append('>');
+				newLine();
                 if (newline) {
                     newLine();
                 }
@@ -387,41 +574,59 @@ public class XmlWriter {
         if ((nsPrefix != null) && (nsPrefix.length() > 0)) {
             switch (type) {
                 case OPENING:
+                    append('<');
+                    appendName(nsPrefix, name);
                     if (nsUrl != null) {
-                        append("<" + nsPrefix + ":" + name + " xmlns:" + nsPrefix + "=\"" + nsUrl + "\">");
-                    } else {
-                        append("<" + nsPrefix + ":" + name + ">");
+                        appendNamespaceDeclaration(nsPrefix, nsUrl);
                     }
+                    append('>');
                     break;
                 case CLOSING:
-					append("</" + nsPrefix + ":" + name + ">");
+					append("</");
+                    appendName(nsPrefix, name);
+                    append('>');
                     newLine();
                     break;
                 case NO_CONTENT:
                 default:
+                    append('<');
+                    appendName(nsPrefix, name);
                     if (nsUrl != null) {
-                        append("<" + nsPrefix + ":" + name + " xmlns:" + nsPrefix + "=\"" + nsUrl + "\"/>");
-                    } else {
-                        append("<" + nsPrefix + ":" + name + "/>");
+                        appendNamespaceDeclaration(nsPrefix, nsUrl);
                     }
+                    append("/>");
                     break;
             }
         } else {
             switch (type) {
                 case OPENING:
-                    append("<" + name + ">");
+                    append('<');
+                    append(name);
+                    append('>');
                     break;
-                case CLOSING:					
-                    append("</" + name + ">\n");
+                case CLOSING:
+                    append("</");
+                    append(name);
+                    append(">\n");
                     break;
                 case NO_CONTENT:
                 default:
-                    append("<" + name + "/>");
+                    append('<');
+                    append(name);
+                    append("/>");
                     break;
             }
         }
     }
 
+    private void appendNamespaceDeclaration(String nsPrefix, String nsUrl) {
+        append(" xmlns:");
+        append(nsPrefix);
+        append("=\"");
+        append(nsUrl);
+        append('"');
+    }
+
     /**
      * Append plain text.
      *
@@ -431,13 +636,39 @@ public class XmlWriter {
         append(text);
     }
 
+    /**
+     * Append text, escaping any xml special characters
+     *
+     * @param text - unescaped text
+     */
+    public void writeEscapedText(String text) {
+        appendEscaped(text);
+    }
+
+    /**
+     * Append bytes which are already UTF-8 encoded XML, eg an element which
+     * was generated separately
+     *
+     * @param data
+     */
+    public void writeRaw(byte[] data) {
+        drain();
+        try {
+            out.write(data);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     /**
      * Write a CDATA segment.
      *
      * @param data Data to append
      */
     public void writeData(String data) {
-        append("<![CDATA[" + data + "]]>");
+        append("<![CDATA[");
+        append(data);
+        append("]]>");
     }
 
     public void writeXMLHeader() {
@@ -448,18 +679,57 @@ public class XmlWriter {
      * Send data and reinitializes buffer.
      */
     public void flush() {
+        drain();
+        if (buf != null) {
+            bufferPool.offer(buf); // if the pool is full just let it be collected
+            buf = null;
+        }
         try {
-            writer.flush();
+            out.flush();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Encodes characters written to the deprecated writer field into the same
+     * buffer as the rest of the output
+     */
+    private class BufferWriter extends Writer {
+
+        private char highSurrogate;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                if (highSurrogate != 0) {
+                    XmlWriter.this.append(new String(new char[]{highSurrogate, c}));
+                    highSurrogate = 0;
+                } else if (Character.isHighSurrogate(c)) {
+                    highSurrogate = c; // wait for the other half
+                } else {
+                    XmlWriter.this.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            XmlWriter.this.flush();
+        }
+
+        @Override
+        public void close() {
+            XmlWriter.this.flush();
+        }
+    }
+
     public void sample(InputStream in) {
         log.debug("outputting sample");
         try {
-            ByteArrayOutputStream out = FileUtils.readIn(in);
-            writer.write(out.toString());
+            ByteArrayOutputStream sample = FileUtils.readIn(in);
+            append(sample.toByteArray());
         } catch (FileNotFoundException ex) {
             log.error("", ex);
         } catch (IOException ex) {
@@ -28,7 +28,7 @@ import io.milton.http.values.HrefList;
 import io.milton.http.webdav.PropertyMap;
 import io.milton.http.webdav.PropertyMap.StandardProperty;
 import io.milton.http.webdav.WebDavProtocol;
-import io.milton.property.PropertySource;
+import io.milton.property.ClassBasedPropertySource;
 import io.milton.http.caldav.PrincipalSearchPropertySetReport;
 import io.milton.resource.PropFindableResource;
 import io.milton.resource.Resource;
@@ -46,7 +46,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author brad
  */
-public class ACLProtocol implements HttpExtension, PropertySource {
+public class ACLProtocol implements HttpExtension, ClassBasedPropertySource {
 
 	private static final Logger log = LoggerFactory.getLogger(ACLProtocol.class);
 	private final PropertyMap propertyMap;
@@ -41,7 +41,7 @@ import io.milton.http.webdav.PropertyMap;
 import io.milton.http.webdav.PropertyMap.StandardProperty;
 import io.milton.http.webdav.WebDavProtocol;
 import io.milton.http.webdav.WebDavResponseHandler;
-import io.milton.property.PropertySource;
+import io.milton.property.ClassBasedPropertySource;
 import io.milton.resource.CalendarCollection;
 import io.milton.resource.CalendarResource;
 import io.milton.resource.ICalResource;
@@ -67,7 +67,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author brad
  */
-public class CalDavProtocol implements HttpExtension, PropertySource, WellKnownHandler {
+public class CalDavProtocol implements HttpExtension, ClassBasedPropertySource, WellKnownHandler {
 
     private static final Logger log = LoggerFactory.getLogger(CalDavProtocol.class);
     // Standard caldav properties
@@ -17,29 +17,27 @@ package io.milton.http.caldav;
 
 import io.milton.http.DateUtils;
 import io.milton.http.DateUtils.DateParseException;
-import io.milton.http.HttpManager;
 import io.milton.common.Utils;
+import io.milton.http.Response;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.report.AbstractStreamingReport;
+import io.milton.http.report.ReportRequest;
+import io.milton.http.values.ValueAndType;
 import io.milton.http.webdav.PropFindPropertyBuilder;
-import io.milton.http.webdav.PropFindResponse;
 import io.milton.http.webdav.PropFindXmlGenerator;
+import io.milton.http.webdav.PropFindXmlGenerator.MultiStatusWriter;
 import io.milton.http.webdav.PropertiesRequest;
-import io.milton.http.webdav.WebDavProtocol;
 import io.milton.resource.CalendarResource;
 import io.milton.resource.ICalResource;
-import io.milton.http.report.Report;
 import io.milton.resource.Resource;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import javax.xml.namespace.QName;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,13 +45,11 @@ import org.slf4j.LoggerFactory;
  *
  * @author brad
  */
-public class CalendarQueryReport implements Report {
+public class CalendarQueryReport extends AbstractStreamingReport {
 
 	private static final Logger log = LoggerFactory.getLogger(CalendarQueryReport.class);
 	private final PropFindPropertyBuilder propertyBuilder;
 	private final PropFindXmlGenerator xmlGenerator;
-	private final Namespace NS_DAV = Namespace.getNamespace(WebDavProtocol.NS_DAV.getPrefix(), WebDavProtocol.NS_DAV.getName());
-	private final Namespace NS_CAL = Namespace.getNamespace("C", CalDavProtocol.CALDAV_NS);
 	private final ICalFormatter formatter = new ICalFormatter();
 
 	public CalendarQueryReport(PropFindPropertyBuilder propertyBuilder, PropFindXmlGenerator xmlGenerator) {
@@ -67,58 +63,35 @@ public class CalendarQueryReport implements Report {
 	}
 
 	@Override
-	public String process(String host, String path, Resource resource, Document doc) throws BadRequestException, NotAuthorizedException {
+	public Response.Entity process(String host, String path, Resource resource, ReportRequest request) throws BadRequestException, NotAuthorizedException {
 		log.debug("process");
-		// The requested properties
-		Set<QName> props = getProps(doc);
-
-		PropertiesRequest parseResult = PropertiesRequest.toProperties(props);
-
-		// Generate the response
-		List<PropFindResponse> respProps = new ArrayList<PropFindResponse>();
-
-		if (resource instanceof CalendarResource) {
-			CalendarResource calendar = (CalendarResource) resource;
-			List<ICalResource> foundResources = findCalendarResources(calendar, doc);
-			log.trace("foundResources: " + foundResources.size());
-			String parentHref = HttpManager.request().getAbsolutePath();
-			parentHref = Utils.suffixSlash(parentHref);
-			for (ICalResource cr : foundResources) {
-				String href = parentHref + cr.getName();
-				//List<PropFindResponse> resps = propertyBuilder.buildProperties(calendar, 0, parseResult, href);
-
-				List<PropFindResponse> resps = new ArrayList<PropFindResponse>();
-				propertyBuilder.processResource(resps, cr, parseResult, href, 0, 0, href);
-
-				respProps.addAll(resps);
-			}
-		} else {
-			throw new BadRequestException(resource, "Resource is not a " + CalendarResource.class.getCanonicalName() + " is a: " + resource.getClass());
+		if (request.getProperties().isEmpty()) {
+			throw new BadRequestException(resource, "No prop element");
 		}
-
-		String xml = xmlGenerator.generate(respProps);
-		return xml;
-	}
-
-	private Set<QName> getProps(Document doc) {
-		Element elProp = doc.getRootElement().getChild("prop", NS_DAV);
-		if (elProp == null) {
-			throw new RuntimeException("No prop element");
+		if (!(resource instanceof CalendarResource)) {
+			throw new BadRequestException(resource, "Resource is not a " + CalendarResource.class.getCanonicalName() + " is a: " + resource.getClass());
 		}
-
-		Set<QName> set = new HashSet<QName>();
-		for (Object o : elProp.getChildren()) {
-			if (o instanceof Element) {
-				Element el = (Element) o;
-				String local = el.getName();
-				String ns = el.getNamespaceURI();
-				set.add(new QName(ns, local, el.getNamespacePrefix()));
+		final CalendarResource calendar = (CalendarResource) resource;
+		final PropertiesRequest parseResult = PropertiesRequest.toProperties(request.getProperties());
+		final List<ICalResource> foundResources = findCalendarResources(calendar, request);
+		log.trace("foundResources: " + foundResources.size());
+		final String parentHref = Utils.suffixSlash(path);
+		return new Response.Entity() {
+
+			@Override
+			public void write(Response response, OutputStream outputStream) throws Exception {
+				MultiStatusWriter writer = xmlGenerator.begin(parseResult.getNames(), outputStream);
+				Map<Resource, Map<QName, ValueAndType>> preloaded = propertyBuilder.loadProperties(calendar, foundResources, parseResult);
+				for (ICalResource cr : foundResources) {
+					String href = parentHref + cr.getName();
+					propertyBuilder.processResource(writer, cr, parseResult, href, 0, 0, href, preloaded.get(cr));
+				}
+				writer.finish();
 			}
-		}
-		return set;
+		};
 	}
 
-	private List<ICalResource> findCalendarResources(CalendarResource calendar, Document doc) throws NotAuthorizedException, BadRequestException {
+	private List<ICalResource> findCalendarResources(CalendarResource calendar, ReportRequest request) throws NotAuthorizedException, BadRequestException {
 		// build a list of all calendar resources
 		List<ICalResource> list = new ArrayList<ICalResource>();
 		for (Resource r : calendar.getChildren()) {
@@ -129,26 +102,26 @@ public class CalendarQueryReport implements Report {
 		}
 
 		// filter out those that don't match
-		Element elFilterRoot = doc.getRootElement().getChild("filter", NS_CAL);
+		ReportRequest.Element elFilterRoot = request.getRoot().getChild(CalDavProtocol.CALDAV_NS, "filter");
 		if (elFilterRoot == null) {
 			// no filter so return all
 			return list;
 		}
 
-		Element elSecondFilter = elFilterRoot.getChild("comp-filter", NS_CAL);
+		ReportRequest.Element elSecondFilter = elFilterRoot.getChild(CalDavProtocol.CALDAV_NS, "comp-filter");
 		if (elSecondFilter == null) {
 			// no second filter so return all
 			return list;
 		}
 
-		Element elTimeRange = elSecondFilter.getChild("time-range", NS_CAL);
+		ReportRequest.Element elTimeRange = elSecondFilter.getChild(CalDavProtocol.CALDAV_NS, "time-range");
 		if (elTimeRange == null) {
 			// no time range filter so return all
 			return list;
 		}
 
-		String sStart = elTimeRange.getAttributeValue("start");
-		String sFinish = elTimeRange.getAttributeValue("end");
+		String sStart = elTimeRange.getAttribute("start");
+		String sFinish = elTimeRange.getAttribute("end");
 
 		Date start = null;
 		Date end = null;
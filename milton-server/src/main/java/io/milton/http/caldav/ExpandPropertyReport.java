@@ -18,26 +18,30 @@ package io.milton.http.caldav;
 import io.milton.http.ResourceFactory;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
-import io.milton.http.report.Report;
+import io.milton.http.Response;
+import io.milton.http.report.AbstractStreamingReport;
+import io.milton.http.report.ReportRequest;
 import io.milton.http.values.HrefList;
 import io.milton.http.values.PropFindResponseList;
 import io.milton.http.values.ValueAndType;
 import io.milton.http.webdav.PropFindPropertyBuilder;
 import io.milton.http.webdav.PropFindResponse;
+import io.milton.http.webdav.PropFindResponseListener;
 import io.milton.http.webdav.PropFindXmlGenerator;
+import io.milton.http.webdav.PropFindXmlGenerator.MultiStatusWriter;
 import io.milton.http.webdav.PropertiesRequest;
 import io.milton.http.webdav.PropertiesRequest.Property;
 import io.milton.http.webdav.WebDavProtocol;
 import io.milton.resource.PropFindableResource;
 import io.milton.resource.Resource;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import javax.xml.namespace.QName;
-import org.jdom.Document;
-import org.jdom.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -154,7 +158,7 @@ DAV:version-history of http://www.webdav.org/foo.html are reported.
  *
  * @author bradm
  */
-public class ExpandPropertyReport implements Report {
+public class ExpandPropertyReport extends AbstractStreamingReport {
 
 	private static final Logger log = LoggerFactory.getLogger(MultiGetReport.class);
 	private final ResourceFactory resourceFactory;
@@ -168,78 +172,101 @@ public class ExpandPropertyReport implements Report {
 	}
 
 	@Override
-	public String process(String host, String path, Resource calendar, Document doc) throws NotAuthorizedException, BadRequestException {
+	public Response.Entity process(final String host, final String path, Resource calendar, ReportRequest request) throws NotAuthorizedException, BadRequestException {
 		log.debug("process");
+		if (!(calendar instanceof PropFindableResource)) {
+			throw new BadRequestException(calendar, "Resource does not support properties: " + calendar.getClass());
+		}
+		final PropFindableResource pfr = (PropFindableResource) calendar;
+		final PropertiesRequest parseResult = parse(request.getRoot());
+		return new Response.Entity() {
+
+			@Override
+			public void write(Response response, OutputStream outputStream) throws Exception {
+				Set<QName> names = new HashSet<QName>();
+				addNames(names, parseResult.getProperties());
+				final MultiStatusWriter writer = xmlGenerator.begin(names, outputStream);
+				try {
+					propertyBuilder.buildProperties(pfr, 1, parseResult, path, new PropFindResponseListener() {
 
-		PropertiesRequest parseResult = parse(doc.getRootElement());
-		
-		List<PropFindResponse> propFindResponses;
-		try {
-			PropFindableResource pfr = (PropFindableResource) calendar;
-			propFindResponses = propertyBuilder.buildProperties(pfr, 1, parseResult, path);
-
-			for (PropFindResponse r : propFindResponses) {
-				Set<Entry<QName, ValueAndType>> set = r.getKnownProperties().entrySet();
-				set = new HashSet<Entry<QName, ValueAndType>>(set);
-				for (Entry<QName, ValueAndType> p : set) {
-					Object val = p.getValue().getValue();
-					QName name = p.getKey();
-					if (val instanceof HrefList) {
-						HrefList hrefList = (HrefList) val;
-						Property prop = parseResult.get(name);
-						PropFindResponseList propFindResponseList = toResponseList(host, hrefList, prop);
-						replaceHrefs(host, propFindResponseList, prop);
-						r.getKnownProperties().remove(name);
-						r.getKnownProperties().put(name, new ValueAndType(propFindResponseList, PropFindResponseList.class));
-					}
+						@Override
+						public void onResponse(PropFindResponse r) {
+							try {
+								expand(host, r, parseResult);
+							} catch (NotAuthorizedException ex) {
+								throw new ExpandFailedException(ex);
+							} catch (BadRequestException ex) {
+								throw new ExpandFailedException(ex);
+							} catch (URISyntaxException ex) {
+								throw new ExpandFailedException(ex);
+							}
+							writer.onResponse(r);
+						}
+					});
+				} catch (ExpandFailedException ex) {
+					// rethrow the original checked exception from the listener
+					throw ex.getCause();
+				} catch (URISyntaxException ex) {
+					throw new BadRequestException("Exception parsing url, indicating the requested URL is not correctly encoded. Please check the client application.", ex);
 				}
+				writer.finish();
 			}
-		} catch (URISyntaxException ex) {
-			throw new RuntimeException("Exception parsing url, indicating the requested URL is not correctly encoded. Please check the client application.", ex);
-		}
-
-		//show("",propFindResponses);
-		
-		String xml = xmlGenerator.generate(propFindResponses);
-		return xml;
+		};
 	}
 
-	public PropertiesRequest parse(Element elProp) {
-		Set<Property> set = new HashSet<Property>();
-		for (Object o : elProp.getChildren()) {
-			if (o instanceof Element) {
-				Element el = (Element) o;
-				if (el.getName().equals("property")) {
-					QName name = getQName(el);
-					Set<Property> nested = parseChildren(el);
-					Property p = new Property(name, nested);
-					set.add(p);
-				}
+	/**
+	 * Replace any HrefList values in the response with the responses for those
+	 * hrefs, as requested by nested property elements
+	 */
+	private void expand(String host, PropFindResponse r, PropertiesRequest parseResult) throws URISyntaxException, NotAuthorizedException, BadRequestException {
+		Set<Entry<QName, ValueAndType>> set = r.getKnownProperties().entrySet();
+		set = new HashSet<Entry<QName, ValueAndType>>(set);
+		for (Entry<QName, ValueAndType> p : set) {
+			Object val = p.getValue().getValue();
+			QName name = p.getKey();
+			if (val instanceof HrefList) {
+				HrefList hrefList = (HrefList) val;
+				Property prop = parseResult.get(name);
+				PropFindResponseList propFindResponseList = toResponseList(host, hrefList, prop);
+				replaceHrefs(host, propFindResponseList, prop);
+				r.getKnownProperties().remove(name);
+				r.getKnownProperties().put(name, new ValueAndType(propFindResponseList, PropFindResponseList.class));
 			}
 		}
+	}
+
+	private void addNames(Set<QName> names, Collection<Property> props) {
+		if (props == null) {
+			return;
+		}
+		for (Property p : props) {
+			names.add(p.getName());
+			addNames(names, p.getNested());
+		}
+	}
+
+	public PropertiesRequest parse(ReportRequest.Element elProp) {
+		Set<Property> set = parseChildren(elProp);
 		PropertiesRequest pr = new PropertiesRequest(set);
 		return pr;
 	}
 
-	private Set<Property> parseChildren(Element elProp) {
+	private Set<Property> parseChildren(ReportRequest.Element elProp) {
 		Set<Property> set = new HashSet<Property>();
-		for (Object o : elProp.getChildren()) {
-			if (o instanceof Element) {
-				Element el = (Element) o;
-				if (el.getName().equals("property")) {
-					QName name = getQName(el);					
-					Set<Property> nested = parseChildren(el);
-					Property p = new Property(name, nested);
-					set.add(p);
-				}
+		for (ReportRequest.Element el : elProp.getChildren()) {
+			if (el.getName().getLocalPart().equals("property")) {
+				QName name = getQName(el);
+				Set<Property> nested = parseChildren(el);
+				Property p = new Property(name, nested);
+				set.add(p);
 			}
 		}
 		return set;
 	}
 
-	private QName getQName(Element el) {
-		String local = el.getAttributeValue("name");
-		String ns = el.getAttributeValue("namespace");
+	private QName getQName(ReportRequest.Element el) {
+		String local = el.getAttribute("name");
+		String ns = el.getAttribute("namespace");
 		if (ns == null) {
 			ns = WebDavProtocol.DAV_URI;
 		}
@@ -288,6 +315,24 @@ public class ExpandPropertyReport implements Report {
 		}
 	}
 
+	/**
+	 * Carries a checked exception out of the PropFindResponseListener callback,
+	 * so write can rethrow the original
+	 */
+	private static class ExpandFailedException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		ExpandFailedException(Exception cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized Exception getCause() {
+			return (Exception) super.getCause();
+		}
+	}
+
 	private void show(String prefix, List<PropFindResponse> propFindResponses) {
 		for( PropFindResponse p : propFindResponses ) {
 			for( Entry<QName, ValueAndType> e : p.getKnownProperties().entrySet()) {
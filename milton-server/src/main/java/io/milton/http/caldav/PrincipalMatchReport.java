@@ -15,23 +15,26 @@
 
 package io.milton.http.caldav;
 
-import io.milton.http.report.Report;
+import io.milton.http.Response;
+import io.milton.http.report.AbstractStreamingReport;
+import io.milton.http.report.ReportRequest;
 import io.milton.resource.Resource;
-import org.jdom.Document;
 
 /**
  *
  * @author alex
  */
-public class PrincipalMatchReport implements Report
+public class PrincipalMatchReport extends AbstractStreamingReport
 {
 
+  @Override
   public String getName()
   {
     return "principal-match";
   }
 
-  public String process(String host, String path, Resource r, Document doc)
+  @Override
+  public Response.Entity process(String host, String path, Resource r, ReportRequest request)
   {
     throw new UnsupportedOperationException("Not supported yet.");
   }
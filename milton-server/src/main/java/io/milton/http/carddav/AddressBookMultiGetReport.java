@@ -16,25 +16,16 @@
 package io.milton.http.carddav;
 
 import io.milton.http.ResourceFactory;
+import io.milton.http.Response;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.report.AbstractStreamingReport;
+import io.milton.http.report.MultiGetEntity;
+import io.milton.http.report.ReportRequest;
 import io.milton.http.webdav.PropFindPropertyBuilder;
-import io.milton.http.webdav.PropFindResponse;
 import io.milton.http.webdav.PropFindXmlGenerator;
 import io.milton.http.webdav.PropertiesRequest;
-import io.milton.http.webdav.WebDavProtocol;
-import io.milton.http.report.Report;
-import io.milton.resource.PropFindableResource;
 import io.milton.resource.Resource;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import javax.xml.namespace.QName;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,17 +64,12 @@ import org.slf4j.LoggerFactory;
  * 
  * @author nabil.shams
  */
-public class AddressBookMultiGetReport implements Report {
-    // todo- requires refactoring, as MultiGetReport also have same piece of code. 
-    // todo- we should move the code to some common place for caldav and cardav. 
-    // todo- maybe, we can have abstract class for both protocols, or we can add 
-    // todo- util methods. 
+public class AddressBookMultiGetReport extends AbstractStreamingReport {
 
     private static final Logger log = LoggerFactory.getLogger(AddressBookMultiGetReport.class);
     private final ResourceFactory resourceFactory;
     private final PropFindPropertyBuilder propertyBuilder;
     private final PropFindXmlGenerator xmlGenerator;
-    private final Namespace NS_DAV = Namespace.getNamespace(WebDavProtocol.NS_DAV.getPrefix(), WebDavProtocol.NS_DAV.getName());
 
     public AddressBookMultiGetReport(ResourceFactory resourceFactory, PropFindPropertyBuilder propertyBuilder, PropFindXmlGenerator xmlGenerator) {
         this.resourceFactory = resourceFactory;
@@ -97,68 +83,12 @@ public class AddressBookMultiGetReport implements Report {
     }
 
     @Override
-    public String process(String host, String path, Resource calendar, Document doc) throws NotAuthorizedException, BadRequestException {
+    public Response.Entity process(String host, String path, Resource addressBook, ReportRequest request) throws NotAuthorizedException, BadRequestException {
         log.debug("process");
-        // The requested properties
-        Set<QName> props = getProps(doc);
-        // The requested resources
-        List<String> hrefs = getHrefs(doc);
-
-        PropertiesRequest parseResult = PropertiesRequest.toProperties(props);
-
-        // Generate the response
-        List<PropFindResponse> respProps = new ArrayList<PropFindResponse>();
-
-        for (String href : hrefs) {
-            Resource r = resourceFactory.getResource(host, href);
-            if (r != null) {
-                if (r instanceof PropFindableResource) {
-                    PropFindableResource pfr = (PropFindableResource) r;
-                    try {
-                        respProps.addAll(propertyBuilder.buildProperties(pfr, 0, parseResult, href));
-                    } catch (URISyntaxException ex) {
-                        throw new RuntimeException("There was an unencoded url requested: " + href, ex);
-                    }
-                } else {
-                    // todo
-                }
-            } else {
-                // todo
-            }
-        }
-
-        String xml = xmlGenerator.generate(respProps);
-        return xml;
-    }
-
-    private List<String> getHrefs(Document doc) {
-        List<String> list = new ArrayList<String>();
-        for (Object o : doc.getRootElement().getChildren()) {
-            if (o instanceof Element) {
-                Element el = (Element) o;
-                if (el.getName().equals("href")) {
-                    list.add(el.getText());
-                }
-            }
-        }
-        return list;
-    }
-
-    private Set<QName> getProps(Document doc) {
-        Element elProp = doc.getRootElement().getChild("prop", NS_DAV);
-        if (elProp == null) {
-            throw new RuntimeException("No prop element");
-        }
-
-        Set<QName> set = new HashSet<QName>();
-        for (Object o : elProp.getChildren()) {
-            if (o instanceof Element) {
-                Element el = (Element) o;
-                String local = el.getName();
-                String ns = el.getNamespaceURI();
-                set.add(new QName(ns, local, el.getNamespacePrefix()));
-            }
+        if (request.getProperties().isEmpty()) {
+            throw new BadRequestException(addressBook, "No prop element");
         }
-        return set;
+        PropertiesRequest parseResult = PropertiesRequest.toProperties(request.getProperties());
+        return new MultiGetEntity(resourceFactory, propertyBuilder, xmlGenerator, host, addressBook, request.getHrefs(), parseResult);
     }
 }
@@ -37,7 +37,7 @@ import io.milton.http.webdav.PropertyMap;
 import io.milton.http.webdav.PropertyMap.StandardProperty;
 import io.milton.http.webdav.WebDavProtocol;
 import io.milton.http.webdav.WebDavResponseHandler;
-import io.milton.property.PropertySource;
+import io.milton.property.ClassBasedPropertySource;
 import io.milton.common.LogUtils;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -66,7 +66,7 @@ import io.milton.resource.Resource;
  *
  * @author bradm
  */
-public class CardDavProtocol implements HttpExtension, PropertySource, WellKnownHandler {
+public class CardDavProtocol implements HttpExtension, ClassBasedPropertySource, WellKnownHandler {
 
     private static final Logger log = LoggerFactory.getLogger(CardDavProtocol.class);
     // Standard caldav properties
@@ -550,4 +550,4 @@ public class CardDavProtocol implements HttpExtension, PropertySource, WellKnown
             return null;
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -21,6 +21,9 @@ import io.milton.http.Response;
  * The normal, trivial, implementation of EntityTransport which simply
  * writes immediately and directly to the Response outputstream
  *
+ * File regions are given to the Response to send itself if it is a
+ * ZeroCopyResponse
+ *
  * @author brad
  */
 public class DefaultEntityTransport implements EntityTransport{
@@ -32,7 +35,14 @@ public class DefaultEntityTransport implements EntityTransport{
 	
 	@Override
 	public void sendResponseEntity(Response response) throws Exception {
-		response.getEntity().write(response, response.getOutputStream());
+		Response.Entity entity = response.getEntity();
+		if (entity instanceof FileRegionEntity && response instanceof ZeroCopyResponse) {
+			FileRegionEntity fre = (FileRegionEntity) entity;
+			if (((ZeroCopyResponse) response).sendFile(fre.getFile(), fre.getOffset(), fre.getLength())) {
+				return;
+			}
+		}
+		entity.write(response, response.getOutputStream());
 	}
 
 	@Override
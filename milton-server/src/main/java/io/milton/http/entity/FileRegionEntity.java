@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.entity;
+
+import io.milton.common.FileUtils;
+import io.milton.http.Response;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a region of a file. If the Response is a ZeroCopyResponse the
+ * DefaultEntityTransport will give it the region to send directly, otherwise
+ * it is written with FileChannel.transferTo to the output stream.
+ *
+ * Note that transferTo only avoids copying when the target is a FileChannel
+ * or SocketChannel. The output stream is wrapped with Channels.newChannel, so
+ * the content is still copied through a heap buffer, the same as a normal
+ * stream copy. Only a ZeroCopyResponse which hands the file to the container,
+ * eg ServletResponse using Tomcat's sendfile, avoids the copy
+ *
+ * @author brad
+ */
+public class FileRegionEntity implements Response.Entity {
+
+	private static final Logger log = LoggerFactory.getLogger(FileRegionEntity.class);
+	private final File file;
+	private final long offset;
+	private final long length;
+
+	public FileRegionEntity(File file, long offset, long length) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public void write(Response response, OutputStream outputStream) throws Exception {
+		try {
+			transfer(file, offset, length, Channels.newChannel(outputStream));
+			outputStream.flush();
+		} catch (IOException ex) {
+			log.warn("IOException writing to output, probably client terminated connection", ex);
+		}
+	}
+
+	/**
+	 * Write a region of the file to the channel with FileChannel.transferTo
+	 *
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 */
+	public static void transfer(File file, long offset, long length, WritableByteChannel target) throws IOException {
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			FileChannel in = fin.getChannel();
+			long pos = offset;
+			long end = offset + length;
+			while (pos < end) {
+				long n = in.transferTo(pos, end - pos, target);
+				if (n <= 0) {
+					break; // file has been truncated
+				}
+				pos += n;
+			}
+		} finally {
+			FileUtils.close(fin);
+		}
+	}
+}
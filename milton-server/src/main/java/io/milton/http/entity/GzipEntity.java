@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.entity;
+
+import io.milton.http.Response;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wraps an entity of unknown length, such as a streamed multistatus
+ * response, and compresses it as it is written.
+ *
+ * The Content-Encoding header must be set when this entity is set on the
+ * response, since headers might be sent as soon as the body is started
+ *
+ * @author brad
+ */
+public class GzipEntity implements Response.Entity {
+
+	private final Response.Entity wrapped;
+	private final int level;
+
+	public GzipEntity(Response.Entity wrapped, int level) {
+		this.wrapped = wrapped;
+		this.level = level;
+	}
+
+	public Response.Entity getWrapped() {
+		return wrapped;
+	}
+
+	@Override
+	public void write(Response response, OutputStream outputStream) throws Exception {
+		GzipResourceEntity.LevelGzipOutputStream gzip = GzipResourceEntity.gzip(outputStream, level);
+		try {
+			writeWrapped(response, gzip);
+			gzip.finish();
+		} finally {
+			gzip.end();
+		}
+		outputStream.flush();
+	}
+
+	private void writeWrapped(Response response, OutputStream gzip) throws Exception {
+		wrapped.write(response, new FilterOutputStream(gzip) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			/**
+			 * The wrapped entity might close the stream, but the response
+			 * stream is closed by milton
+			 */
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		});
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.entity;
+
+import io.milton.http.Response;
+import io.milton.resource.GetableResource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses the content of a resource while it is being written to the
+ * response. Since the compressed length is not known in advance no
+ * content length is set, so the response will be sent chunked.
+ *
+ * @author brad
+ */
+public class GzipResourceEntity implements Response.Entity {
+
+	private static final Logger log = LoggerFactory.getLogger(GzipResourceEntity.class);
+
+	/**
+	 * Create a GZIPOutputStream which compresses at the given level. Its
+	 * deflater is released when the stream is finished, and callers should
+	 * call end() if writing fails before then
+	 *
+	 * @param out
+	 * @param level - a java.util.zip.Deflater level, from 0 to 9, or -1 for
+	 * the default
+	 * @return
+	 * @throws IOException
+	 */
+	public static LevelGzipOutputStream gzip(OutputStream out, int level) throws IOException {
+		return new LevelGzipOutputStream(out, level);
+	}
+	private final GetableResource resource;
+	private final Map<String, String> params;
+	private final String contentType;
+	private final int level;
+
+	public GzipResourceEntity(GetableResource resource, Map<String, String> params, String contentType, int level) {
+		this.resource = resource;
+		this.params = params;
+		this.contentType = contentType;
+		this.level = level;
+	}
+
+	public GetableResource getResource() {
+		return resource;
+	}
+
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public void write(Response response, OutputStream outputStream) throws Exception {
+		try {
+			LevelGzipOutputStream gzipOut = gzip(outputStream, level);
+			try {
+				resource.sendContent(gzipOut, null, params, contentType);
+				gzipOut.finish();
+			} finally {
+				gzipOut.end();
+			}
+			outputStream.flush();
+		} catch (IOException ex) {
+			log.warn("IOException writing to output, probably client terminated connection", ex);
+		}
+	}
+
+	/**
+	 * A GZIPOutputStream with a configurable level, which ends its deflater
+	 * as soon as it is finished, instead of leaving the native memory to be
+	 * released by the garbage collector
+	 */
+	public static class LevelGzipOutputStream extends GZIPOutputStream {
+
+		private boolean ended;
+
+		public LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+			super(out, 8192);
+			def.setLevel(level);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (ended) {
+				return;
+			}
+			try {
+				super.finish();
+			} finally {
+				end();
+			}
+		}
+
+		/**
+		 * Release the deflater. If called before finish() the gzip trailer is
+		 * not written, so this is for when writing has failed. Nothing can be
+		 * written afterwards
+		 */
+		public void end() {
+			if (!ended) {
+				ended = true;
+				def.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.entity;
+
+import io.milton.http.Range;
+import io.milton.http.Response;
+import io.milton.resource.FileBackedResource;
+import io.milton.resource.GetableResource;
+import io.milton.resource.SeekableResource;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a multipart/byteranges body for a request with several ranges,
+ * reading directly from the resource.
+ *
+ * If the resource is a FileBackedResource each range is transferred directly
+ * from its file, or if it is a SeekableResource each range is requested from
+ * it in turn. Otherwise the content is read once from the start, discarding bytes
+ * outside the ranges. The resource is left to finish sending its content after
+ * the last range, rather than being interrupted with an exception which it
+ * might not pass on, and the rest is discarded. Ranges must be
+ * in ascending order and not overlap, as given by
+ * PartialGetHelper.coalesce
+ *
+ * @author brad
+ */
+public class MultipleRangesEntity implements Response.Entity {
+
+	private static final Logger log = LoggerFactory.getLogger(MultipleRangesEntity.class);
+	private final GetableResource resource;
+	private final List<Range> ranges;
+	private final Map<String, String> params;
+	private final String contentType;
+	private final Long contentLength;
+	private final String boundary;
+
+	public MultipleRangesEntity(GetableResource resource, List<Range> ranges, Map<String, String> params, String contentType, Long contentLength, String boundary) {
+		this.resource = resource;
+		this.ranges = ranges;
+		this.params = params;
+		this.contentType = contentType;
+		this.contentLength = contentLength;
+		this.boundary = boundary;
+	}
+
+	public GetableResource getResource() {
+		return resource;
+	}
+
+	public List<Range> getRanges() {
+		return ranges;
+	}
+
+	public String getBoundary() {
+		return boundary;
+	}
+
+	@Override
+	public void write(Response response, OutputStream outputStream) throws Exception {
+		try {
+			File file = null;
+			if (resource instanceof FileBackedResource) {
+				file = ((FileBackedResource) resource).getContentFile();
+			}
+			if (file != null) {
+				WritableByteChannel channel = Channels.newChannel(outputStream);
+				for (Range r : ranges) {
+					writePartHeader(r, outputStream);
+					FileRegionEntity.transfer(file, r.getStart(), r.getFinish() - r.getStart() + 1, channel);
+				}
+			} else if (resource instanceof SeekableResource) {
+				for (Range r : ranges) {
+					writePartHeader(r, outputStream);
+					resource.sendContent(outputStream, r, params, contentType);
+				}
+			} else {
+				log.trace("resource is not seekable, so reading sequentially");
+				resource.sendContent(new RangesOutputStream(outputStream), null, params, contentType);
+			}
+			outputStream.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+			outputStream.flush();
+		} catch (IOException ex) {
+			log.warn("IOException writing to output, probably client terminated connection", ex);
+		}
+	}
+
+	private void writePartHeader(Range r, OutputStream out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\r\n--").append(boundary).append("\r\n");
+		if (contentType != null) {
+			sb.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		sb.append("Content-Range: bytes ").append(r.getStart()).append("-").append(r.getFinish()).append("/");
+		sb.append(contentLength == null ? "*" : contentLength.toString());
+		sb.append("\r\n\r\n");
+		out.write(sb.toString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Passes through only the bytes within the ranges, writing a part header
+	 * at the start of each. Anything after the last range is discarded
+	 */
+	private class RangesOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private long pos;
+		private int current;
+		private boolean inPart;
+
+		RangesOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0 && current < ranges.size()) {
+				Range r = ranges.get(current);
+				if (pos < r.getStart()) {
+					int skip = (int) Math.min(len, r.getStart() - pos);
+					pos += skip;
+					off += skip;
+					len -= skip;
+					continue;
+				}
+				if (!inPart) {
+					writePartHeader(r, out);
+					inPart = true;
+				}
+				int n = (int) Math.min(len, r.getFinish() + 1 - pos);
+				out.write(b, off, n);
+				pos += n;
+				off += n;
+				len -= n;
+				if (pos > r.getFinish()) {
+					current++;
+					inPart = false;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
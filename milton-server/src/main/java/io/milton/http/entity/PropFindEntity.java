@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.entity;
+
+import io.milton.http.Response;
+import io.milton.http.webdav.PropFindPropertyBuilder;
+import io.milton.http.webdav.PropFindXmlGenerator;
+import io.milton.http.webdav.PropertiesRequest;
+import io.milton.resource.PropFindableResource;
+
+import java.io.OutputStream;
+
+/**
+ * Streams a PROPFIND multistatus response. Properties are resolved while the
+ * entity is being written, so each response element goes to the client as
+ * soon as it is ready and no content length is known in advance.
+ *
+ * Note that because the status has already been sent, an error while
+ * traversing the collection is reported as a 500 response element after the
+ * responses already written, and the document is then completed.
+ */
+public class PropFindEntity implements Response.Entity {
+
+    private final PropFindXmlGenerator xmlGenerator;
+    private final PropFindPropertyBuilder propertyBuilder;
+    private final PropFindableResource resource;
+    private final int depth;
+    private final PropertiesRequest parseResult;
+    private final String url;
+
+    public PropFindEntity(PropFindXmlGenerator xmlGenerator, PropFindPropertyBuilder propertyBuilder, PropFindableResource resource, int depth, PropertiesRequest parseResult, String url) {
+        this.xmlGenerator = xmlGenerator;
+        this.propertyBuilder = propertyBuilder;
+        this.resource = resource;
+        this.depth = depth;
+        this.parseResult = parseResult;
+        this.url = url;
+    }
+
+    public PropFindableResource getResource() {
+        return resource;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public PropertiesRequest getParseResult() {
+        return parseResult;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public void write(Response response, OutputStream outputStream) throws Exception {
+        xmlGenerator.generate(resource, depth, parseResult, url, propertyBuilder, outputStream);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.entity;
+
+import java.io.File;
+
+/**
+ * Implemented by Response implementations which can send a region of a file
+ * more efficiently than by writing to the output stream, eg using sendfile.
+ *
+ * Only implement this when the container really avoids the copy. Transferring
+ * to a channel which wraps the output stream copies through a heap buffer,
+ * which is what FileRegionEntity already does when this returns false
+ *
+ * @author brad
+ */
+public interface ZeroCopyResponse {
+
+	/**
+	 * Send the given region of the file as the response body. The content
+	 * length header will already be set
+	 *
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return - true if the content was sent, false if it could not be and
+	 * should be written to the output stream instead
+	 */
+	boolean sendFile(File file, long offset, long length) throws Exception;
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.fs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes file content so that readers never see a partially written file.
+ *
+ * Content is copied into a temporary file in the same directory as the
+ * destination using large, pooled buffers, then renamed over the destination.
+ *
+ * Temporary files are named ".{name}.{uuid}.milton-tmp", and only names of
+ * exactly that form are treated as temporary, so they are hidden from
+ * listings without hiding user files which happen to share the suffix. A
+ * temporary file left behind by a crash is removed by removeIfStale once it
+ * has not been modified for staleTempMillis.
+ *
+ * Whether data is forced to disk before the rename is controlled by the
+ * SyncPolicy:
+ *
+ * NEVER - rely on the operating system to flush the data eventually
+ *
+ * ON_CLOSE - force each file to disk before it is renamed
+ *
+ * GROUP_COMMIT - as for ON_CLOSE, but concurrent writers are batched so that
+ * one thread forces all files which are waiting, and the others return once
+ * their file has been forced
+ *
+ * Note that the rename is only atomic on platforms where File.renameTo
+ * replaces an existing file, which includes unix-like systems. Elsewhere the
+ * destination is deleted first
+ *
+ * @author brad
+ */
+public class AtomicFileWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(AtomicFileWriter.class);
+	private static final String TEMP_SUFFIX = ".milton-tmp";
+	private static final Pattern TEMP_NAME = Pattern.compile("\\..+\\.[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}" + Pattern.quote(TEMP_SUFFIX));
+	private static final long MAX_TRANSFER = 64 * 1024 * 1024;
+
+	public enum SyncPolicy {
+
+		NEVER,
+		ON_CLOSE,
+		GROUP_COMMIT
+	}
+
+	private final BlockingQueue<byte[]> buffers;
+	private final int bufferSize;
+	private final Object commitLock = new Object();
+	private final List<PendingSync> pending = new ArrayList<PendingSync>();
+	private final Set<File> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+	private SyncPolicy syncPolicy = SyncPolicy.NEVER;
+	private long groupCommitDelayMillis = 2;
+	private long staleTempMillis = 60 * 60 * 1000;
+
+	public AtomicFileWriter() {
+		this(256 * 1024, 16);
+	}
+
+	/**
+	 *
+	 * @param bufferSize - the size of each copy buffer
+	 * @param maxPooledBuffers - the maximum number of buffers to keep for reuse
+	 */
+	public AtomicFileWriter(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<byte[]>(maxPooledBuffers);
+	}
+
+	/**
+	 * Replace the content of dest with the data in the input stream, creating
+	 * it if it does not exist
+	 *
+	 * @param dest
+	 * @param in
+	 * @param length - the expected length if known, otherwise null. If given
+	 * and the stream does not supply exactly this many bytes an IOException is
+	 * thrown and dest is not changed
+	 * @return - the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(File dest, InputStream in, Long length) throws IOException {
+		File tmp = tempFileFor(dest);
+		boolean ok = false;
+		try {
+			long written;
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				written = copy(in, channel);
+				if (length != null && written != length) {
+					throw new IOException("Expected " + length + " bytes but received " + written + " for: " + dest.getAbsolutePath());
+				}
+				sync(channel);
+			} finally {
+				raf.close();
+			}
+			moveIntoPlace(tmp, dest);
+			ok = true;
+			return written;
+		} finally {
+			if (!ok) {
+				deleteTemp(tmp);
+			}
+			inProgress.remove(tmp);
+		}
+	}
+
+	/**
+	 * Copy src to dest with FileChannel.transferTo, which lets the operating
+	 * system move the data without it passing through the java heap. As with
+	 * write, dest only appears once the copy is complete
+	 *
+	 * @param src
+	 * @param dest
+	 * @return - the number of bytes copied
+	 * @throws IOException
+	 */
+	public long copy(File src, File dest) throws IOException {
+		File tmp = tempFileFor(dest);
+		boolean ok = false;
+		try {
+			long pos = 0;
+			FileInputStream fin = new FileInputStream(src);
+			try {
+				RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+				try {
+					FileChannel in = fin.getChannel();
+					FileChannel out = raf.getChannel();
+					long size = in.size();
+					while (pos < size) {
+						long n = in.transferTo(pos, Math.min(size - pos, MAX_TRANSFER), out);
+						if (n <= 0) {
+							throw new IOException("Copy of " + src.getAbsolutePath() + " stopped at " + pos + " of " + size + " bytes");
+						}
+						pos += n;
+					}
+					sync(out);
+				} finally {
+					raf.close();
+				}
+			} finally {
+				fin.close();
+			}
+			moveIntoPlace(tmp, dest);
+			ok = true;
+			return pos;
+		} finally {
+			if (!ok) {
+				deleteTemp(tmp);
+			}
+			inProgress.remove(tmp);
+		}
+	}
+
+	private File tempFileFor(File dest) {
+		File tmp = new File(dest.getParentFile(), "." + dest.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		inProgress.add(tmp);
+		return tmp;
+	}
+
+	/**
+	 * Delete the file if it is a temporary file which is not being written by
+	 * this writer and has not been modified for staleTempMillis, ie it was
+	 * left behind by a crash or a failed delete
+	 *
+	 * @param f
+	 * @return - true if the file was deleted
+	 */
+	public boolean removeIfStale(File f) {
+		if (!isTempFile(f) || inProgress.contains(f)) {
+			return false;
+		}
+		long modified = f.lastModified();
+		if (modified == 0 || System.currentTimeMillis() - modified < staleTempMillis) {
+			return false;
+		}
+		if (f.delete()) {
+			log.info("Removed stale temporary file: " + f.getAbsolutePath());
+			return true;
+		}
+		log.warn("Couldnt delete stale temporary file: " + f.getAbsolutePath());
+		return false;
+	}
+
+	private void moveIntoPlace(File tmp, File dest) throws IOException {
+		if (!tmp.renameTo(dest)) {
+			// some platforms wont rename over an existing file
+			dest.delete();
+			if (!tmp.renameTo(dest)) {
+				throw new IOException("Couldnt rename " + tmp.getAbsolutePath() + " to " + dest.getAbsolutePath());
+			}
+		}
+	}
+
+	private void deleteTemp(File tmp) {
+		if (tmp.exists() && !tmp.delete()) {
+			log.warn("Couldnt delete temporary file: " + tmp.getAbsolutePath());
+		}
+	}
+
+	private long copy(InputStream in, FileChannel channel) throws IOException {
+		byte[] buf = buffers.poll();
+		if (buf == null) {
+			buf = new byte[bufferSize];
+		}
+		try {
+			long total = 0;
+			while (true) {
+				// fill the buffer before writing so the file is written in large blocks
+				int n = 0;
+				int s;
+				while (n < buf.length && (s = in.read(buf, n, buf.length - n)) >= 0) {
+					n += s;
+				}
+				if (n == 0) {
+					break;
+				}
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+				while (bb.hasRemaining()) {
+					channel.write(bb);
+				}
+				total += n;
+				if (n < buf.length) {
+					break;
+				}
+			}
+			return total;
+		} finally {
+			buffers.offer(buf);
+		}
+	}
+
+	private void sync(FileChannel channel) throws IOException {
+		switch (syncPolicy) {
+			case ON_CLOSE:
+				channel.force(true);
+				break;
+			case GROUP_COMMIT:
+				groupCommit(channel);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * The first thread to get the commit lock forces every pending channel,
+	 * including those of threads waiting for the lock, which then find their
+	 * channel already done
+	 */
+	private void groupCommit(FileChannel channel) throws IOException {
+		PendingSync mine = new PendingSync(channel);
+		synchronized (pending) {
+			pending.add(mine);
+		}
+		synchronized (commitLock) {
+			if (!mine.done) {
+				if (groupCommitDelayMillis > 0) {
+					try {
+						Thread.sleep(groupCommitDelayMillis); // give other writers a chance to join this batch
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				List<PendingSync> batch;
+				synchronized (pending) {
+					batch = new ArrayList<PendingSync>(pending);
+					pending.clear();
+				}
+				for (PendingSync p : batch) {
+					try {
+						p.channel.force(true);
+					} catch (IOException ex) {
+						p.error = ex;
+					}
+					p.done = true;
+				}
+				if (log.isTraceEnabled()) {
+					log.trace("group commit of " + batch.size() + " files");
+				}
+			}
+		}
+		if (mine.error != null) {
+			throw mine.error;
+		}
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * How long the thread doing a group commit waits for other writers to
+	 * join the batch. Default is 2ms
+	 *
+	 * @return
+	 */
+	public long getGroupCommitDelayMillis() {
+		return groupCommitDelayMillis;
+	}
+
+	public void setGroupCommitDelayMillis(long groupCommitDelayMillis) {
+		this.groupCommitDelayMillis = groupCommitDelayMillis;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * How long a temporary file must be unmodified before removeIfStale
+	 * treats it as abandoned. Default is one hour
+	 *
+	 * @return
+	 */
+	public long getStaleTempMillis() {
+		return staleTempMillis;
+	}
+
+	public void setStaleTempMillis(long staleTempMillis) {
+		this.staleTempMillis = staleTempMillis;
+	}
+
+	/**
+	 *
+	 * @param f
+	 * @return - true if the file is a temporary file created by this class,
+	 * which should be hidden from directory listings
+	 */
+	public static boolean isTempFile(File f) {
+		return TEMP_NAME.matcher(f.getName()).matches();
+	}
+
+	private static class PendingSync {
+
+		final FileChannel channel;
+		volatile boolean done;
+		volatile IOException error;
+
+		PendingSync(FileChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
@@ -30,9 +30,15 @@ import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.http11.auth.DigestResponse;
+import io.milton.http.entity.FileRegionEntity;
+import io.milton.resource.FileBackedResource;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
 import java.util.Date;
 import java.util.Map;
 import org.apache.commons.io.IOUtils;
@@ -65,6 +71,22 @@ public class ClassPathResourceFactory implements ResourceFactory {
 		}
 
 		// try to locate a resource with the given path
+		URL url = this.getClass().getResource(p.toString());
+		if (url == null) {
+			return null;
+		}
+		if ("file".equals(url.getProtocol())) {
+			// an exploded classpath directory, so can send directly from the file
+			try {
+				File file = new File(url.toURI());
+				if (file.isFile()) {
+					log.trace("return file backed class path resource");
+					return new ClassPathResource(host, p, file);
+				}
+			} catch (URISyntaxException e) {
+				log.debug("couldnt convert url to file: " + url, e);
+			}
+		}
 		InputStream content = this.getClass().getResourceAsStream(p.toString());
 		if (content == null) {
 			return null;
@@ -130,23 +152,36 @@ public class ClassPathResourceFactory implements ResourceFactory {
 		this.securityManager = securityManager;
 	}
 
-	public class ClassPathResource implements GetableResource, DigestResource, PostableResource {
+	public class ClassPathResource implements GetableResource, DigestResource, PostableResource, FileBackedResource {
 
 		private final String host;
 		private final Path path;
 		private final InputStream content;
+		private final File file;
 
 		public ClassPathResource(String host, Path path, InputStream content) {
 			this.host = host;
 			this.path = path;
 			this.content = content;
+			this.file = null;
 			if (content == null) {
 				throw new IllegalArgumentException("content cannot be null");
 			}
 		}
 
+		public ClassPathResource(String host, Path path, File file) {
+			this.host = host;
+			this.path = path;
+			this.content = null;
+			this.file = file;
+		}
+
 		@Override
 		public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotAuthorizedException, BadRequestException {
+			if (file != null) {
+				FileRegionEntity.transfer(file, 0, file.length(), Channels.newChannel(out));
+				return;
+			}
 			try {
 				IOUtils.copy(content, out);
 			} catch (NullPointerException npe) {
@@ -171,7 +206,15 @@ public class ClassPathResourceFactory implements ResourceFactory {
 
 		@Override
 		public Long getContentLength() {
-			return null;
+			return file == null ? null : file.length();
+		}
+
+		/**
+		 * Only available for resources in a classpath directory, not in a jar
+		 */
+		@Override
+		public File getContentFile() {
+			return file;
 		}
 
 		@Override
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.fs;
+
+import io.milton.common.Service;
+import io.milton.http.LockInfo;
+import io.milton.http.LockManager;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.resource.LockableResource;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A lock manager which indexes locks in a tree of path segments, so that
+ * depth infinity locks on ancestors, and locks on descendants, can be found by
+ * walking only the path of the resource.
+ *
+ * getCurrentToken returns the lock on the resource itself, or a depth infinity
+ * lock on one of its ancestors, so the usual lock checks in HandlerHelper apply
+ * to the whole locked tree.
+ *
+ * Locking and unlocking different resources does not contend on a shared
+ * monitor, and lookups do not lock at all. Expired locks are removed by a
+ * timer wheel which is started with the first lock, and also whenever an
+ * expired lock is found.
+ *
+ * FsResource's are keyed on the path of their file, other resources on their
+ * unique ID. Override getPath to index other resources by their path.
+ *
+ * Note that, like the other lock managers here, all locks are treated as
+ * exclusive
+ *
+ * @author brad
+ */
+public class ConcurrentLockManager implements LockManager, Service {
+
+    private static final Logger log = LoggerFactory.getLogger( ConcurrentLockManager.class );
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 512;
+    private final Node root = new Node( null, null );
+    private final ConcurrentMap<String, CurrentLock> locksByToken = new ConcurrentHashMap<String, CurrentLock>();
+    private final ExpiryWheel wheel = new ExpiryWheel();
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public LockResult lock( LockTimeout timeout, LockInfo lockInfo, LockableResource r ) {
+        List<String> path = getPath( r );
+        LockToken newToken = new LockToken( UUID.randomUUID().toString(), lockInfo, timeout );
+        boolean infinity = lockInfo != null && lockInfo.depth == LockInfo.LockDepth.INFINITY;
+        CurrentLock newLock = null;
+        while( newLock == null ) {
+            Node node = findOrCreate( path );
+            if( node == null ) {
+                continue; // a node on the path was removed while we were creating it
+            }
+            CurrentLock existing;
+            synchronized( node ) {
+                if( node.detached ) {
+                    continue;
+                }
+                existing = node.lock;
+                if( existing == null ) {
+                    newLock = new CurrentLock( node, path, newToken, infinity );
+                    node.lock = newLock;
+                }
+            }
+            if( existing != null ) {
+                if( !existing.isExpired() ) {
+                    return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                }
+                release( existing );
+            }
+        }
+        // The new lock is published before looking for conflicting locks, and a
+        // concurrent lock does the same, so at least one of them will see the other
+        for( Node n = newLock.node.parent; n != null; n = n.parent ) {
+            n.locksBelow.incrementAndGet();
+        }
+        if( isConflicting( newLock ) ) {
+            log.debug( "lock conflicts with an ancestor or descendant lock" );
+            if( release( newLock ) ) {
+                prune( newLock.node );
+            }
+            return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+        }
+        locksByToken.put( newToken.tokenId, newLock );
+        wheel.schedule( newLock );
+        return LockResult.success( newToken );
+    }
+
+    @Override
+    public LockResult refresh( String tokenId, LockableResource resource ) {
+        CurrentLock curLock = locksByToken.get( tokenId );
+        if( curLock == null || curLock.isExpired() ) {
+            log.debug( "can't refresh because no lock" );
+            return LockResult.failed( LockResult.FailureReason.PRECONDITION_FAILED );
+        } else {
+            curLock.token.setFrom( new Date() );
+            return LockResult.success( curLock.token );
+        }
+    }
+
+    @Override
+    public void unlock( String tokenId, LockableResource r ) throws NotAuthorizedException {
+        CurrentLock curLock = locksByToken.get( tokenId );
+        if( curLock == null || curLock.isExpired() ) {
+            if( getCurrentToken( r ) == null ) {
+                log.debug( "not locked" );
+                return;
+            }
+            throw new NotAuthorizedException( r );
+        }
+        if( !curLock.isInScope( getPath( r ) ) ) {
+            throw new NotAuthorizedException( r );
+        }
+        if( release( curLock ) ) {
+            prune( curLock.node );
+        }
+    }
+
+    @Override
+    public LockToken getCurrentToken( LockableResource r ) {
+        List<String> path = getPath( r );
+        Node node = root;
+        int remaining = path.size();
+        for( String name : path ) {
+            node = node.children.get( name );
+            if( node == null ) {
+                return null;
+            }
+            remaining--;
+            CurrentLock l = liveLock( node );
+            if( l != null && ( l.infinity || remaining == 0 ) ) {
+                return l.token;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the locks on the members of a collection with a single walk of the
+     * tree, such as for the lock discovery property in a depth 1 PROPFIND
+     *
+     * @param parent
+     * @param childNames
+     * @return - the current lock of each child which is locked, directly or by
+     * a depth infinity lock on the parent or an ancestor, keyed by name
+     */
+    public Map<String, LockToken> getChildLocks( LockableResource parent, Collection<String> childNames ) {
+        Map<String, LockToken> map = new HashMap<String, LockToken>();
+        CurrentLock inherited = null;
+        Node node = root;
+        for( String name : getPath( parent ) ) {
+            node = node.children.get( name );
+            if( node == null ) {
+                return map;
+            }
+            CurrentLock l = liveLock( node );
+            if( l != null && l.infinity ) {
+                inherited = l;
+                break;
+            }
+        }
+        for( String name : childNames ) {
+            if( inherited != null ) {
+                map.put( name, inherited.token );
+            } else {
+                Node child = node.children.get( name );
+                CurrentLock l = child == null ? null : liveLock( child );
+                if( l != null ) {
+                    map.put( name, l.token );
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * The path segments used to index the resource's locks
+     *
+     * @param r
+     * @return
+     */
+    protected List<String> getPath( LockableResource r ) {
+        return pathOf( r );
+    }
+
+    /**
+     * The segments of the file path of an FsResource, or just the unique ID
+     * of any other resource
+     */
+    static List<String> pathOf( LockableResource r ) {
+        if( r instanceof FsResource ) {
+            LinkedList<String> path = new LinkedList<String>();
+            File f = ( (FsResource) r ).getFile().getAbsoluteFile();
+            while( f != null ) {
+                path.addFirst( f.getName() );
+                f = f.getParentFile();
+            }
+            return path;
+        } else {
+            String id = r.getUniqueId();
+            return Collections.singletonList( id == null ? r.getName() : id );
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if( scheduler == null ) {
+            log.debug( "starting lock expiry, tick: " + TICK_MILLIS + "ms" );
+            scheduler = Executors.newScheduledThreadPool( 1, new DaemonThreadFactory() );
+            scheduler.scheduleAtFixedRate( wheel, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if( scheduler != null ) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    private Node findOrCreate( List<String> path ) {
+        Node node = root;
+        for( String name : path ) {
+            Node child = node.children.get( name );
+            if( child == null ) {
+                synchronized( node ) {
+                    if( node.detached ) {
+                        return null;
+                    }
+                    child = node.children.get( name );
+                    if( child == null ) {
+                        child = new Node( node, name );
+                        node.children.put( name, child );
+                    }
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private boolean isConflicting( CurrentLock newLock ) {
+        for( Node n = newLock.node.parent; n != null; n = n.parent ) {
+            CurrentLock l = n.lock;
+            if( l != null && l.infinity && !l.isExpired() ) {
+                return true;
+            }
+        }
+        return newLock.infinity && newLock.node.locksBelow.get() > 0 && hasLiveLockBelow( newLock.node );
+    }
+
+    private boolean hasLiveLockBelow( Node node ) {
+        for( Node child : node.children.values() ) {
+            CurrentLock l = child.lock;
+            if( l != null && !l.isExpired() ) {
+                return true;
+            }
+            if( child.locksBelow.get() > 0 && hasLiveLockBelow( child ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CurrentLock liveLock( Node node ) {
+        CurrentLock l = node.lock;
+        if( l == null ) {
+            return null;
+        }
+        if( l.isExpired() ) {
+            if( release( l ) ) {
+                prune( l.node );
+            }
+            return null;
+        }
+        return l;
+    }
+
+    /**
+     * Remove the lock, if it is still current
+     *
+     * @return - true if the lock was removed by this call
+     */
+    private boolean release( CurrentLock l ) {
+        Node node = l.node;
+        synchronized( node ) {
+            if( node.lock != l ) {
+                return false;
+            }
+            node.lock = null;
+        }
+        log.debug( "removeLock: " + l.token.tokenId );
+        for( Node n = node.parent; n != null; n = n.parent ) {
+            n.locksBelow.decrementAndGet();
+        }
+        locksByToken.remove( l.token.tokenId, l );
+        return true;
+    }
+
+    /**
+     * Remove the node, and then any ancestors, which no longer have locks or
+     * children
+     */
+    private void prune( Node node ) {
+        while( node.parent != null ) {
+            Node parent = node.parent;
+            synchronized( parent ) {
+                synchronized( node ) {
+                    if( node.detached || node.lock != null || !node.children.isEmpty() ) {
+                        return;
+                    }
+                    parent.children.remove( node.name, node );
+                    node.detached = true;
+                }
+            }
+            node = parent;
+        }
+    }
+
+    private static class Node {
+
+        final Node parent;
+        final String name;
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+        /**
+         * The number of locks on descendants of this node
+         */
+        final AtomicInteger locksBelow = new AtomicInteger();
+        volatile CurrentLock lock;
+        /**
+         * Set, while holding this node's monitor, when the node has been removed
+         * from the tree
+         */
+        boolean detached;
+
+        Node( Node parent, String name ) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    private static class CurrentLock {
+
+        final Node node;
+        final List<String> path;
+        final LockToken token;
+        final boolean infinity;
+
+        CurrentLock( Node node, List<String> path, LockToken token, boolean infinity ) {
+            this.node = node;
+            this.path = new ArrayList<String>( path );
+            this.token = token;
+            this.infinity = infinity;
+        }
+
+        boolean isExpired() {
+            return token.timeout != null && token.isExpired();
+        }
+
+        boolean isInScope( List<String> resourcePath ) {
+            if( resourcePath.size() < path.size() || ( resourcePath.size() > path.size() && !infinity ) ) {
+                return false;
+            }
+            return resourcePath.subList( 0, path.size() ).equals( path );
+        }
+
+        /**
+         * @return - the time the lock expires, if not refreshed, or null if it
+         * never expires
+         */
+        Long expiresAt() {
+            Long seconds = token.timeout == null ? null : token.timeout.getSeconds();
+            if( seconds == null || seconds > Integer.MAX_VALUE ) {
+                return null;
+            }
+            return token.getFrom().getTime() + seconds * 1000;
+        }
+    }
+
+    /**
+     * A ring of buckets, one per tick, holding the locks which are due to
+     * expire in that tick. Locks which have been refreshed, or which are due in
+     * a later revolution of the wheel, are put back when their bucket is
+     * visited
+     */
+    private class ExpiryWheel implements Runnable {
+
+        private final List<Queue<CurrentLock>> buckets;
+        private volatile long lastTick;
+
+        ExpiryWheel() {
+            buckets = new ArrayList<Queue<CurrentLock>>( WHEEL_SIZE );
+            for( int i = 0; i < WHEEL_SIZE; i++ ) {
+                buckets.add( new ConcurrentLinkedQueue<CurrentLock>() );
+            }
+            lastTick = System.currentTimeMillis() / TICK_MILLIS;
+        }
+
+        void schedule( CurrentLock l ) {
+            Long expiresAt = l.expiresAt();
+            if( expiresAt == null ) {
+                return;
+            }
+            start();
+            long tick = Math.max( expiresAt / TICK_MILLIS + 1, lastTick + 1 );
+            buckets.get( (int) ( tick % WHEEL_SIZE ) ).add( l );
+        }
+
+        @Override
+        public void run() {
+            try {
+                long now = System.currentTimeMillis() / TICK_MILLIS;
+                long from = Math.max( lastTick + 1, now - WHEEL_SIZE + 1 );
+                lastTick = now;
+                for( long tick = from; tick <= now; tick++ ) {
+                    expire( buckets.get( (int) ( tick % WHEEL_SIZE ) ) );
+                }
+            } catch( Throwable e ) {
+                log.error( "Exception removing expired locks", e );
+            }
+        }
+
+        private void expire( Queue<CurrentLock> bucket ) {
+            // only visit what is there now, as some will be put back
+            for( int i = bucket.size(); i > 0; i-- ) {
+                CurrentLock l = bucket.poll();
+                if( l == null ) {
+                    return;
+                }
+                if( l.node.lock != l ) {
+                    continue; // already unlocked
+                }
+                if( l.isExpired() ) {
+                    if( release( l ) ) {
+                        prune( l.node );
+                    }
+                } else {
+                    schedule( l );
+                }
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, ConcurrentLockManager.class.getCanonicalName() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
@@ -16,11 +16,16 @@
 package io.milton.http.fs;
 
 import io.milton.common.Path;
+import io.milton.common.Stoppable;
 import io.milton.http.LockManager;
 import io.milton.http.ResourceFactory;
 import io.milton.http.fs.NullSecurityManager;
 import io.milton.resource.Resource;
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +35,7 @@ import org.slf4j.LoggerFactory;
  * Using this with milton is equivalent to using the dav servlet in tomcat
  *
  */
-public final class FileSystemResourceFactory implements ResourceFactory {
+public final class FileSystemResourceFactory implements ResourceFactory, Stoppable {
 
     private static final Logger log = LoggerFactory.getLogger(FileSystemResourceFactory.class);
     private FileContentService contentService;
@@ -43,6 +48,10 @@ public final class FileSystemResourceFactory implements ResourceFactory {
     String defaultPage;
     boolean digestAllowed = true;
     private String ssoPrefix;
+    private int copyThreads = 4;
+    private ExecutorService copyExecutor;
+    private boolean ownCopyExecutor;
+    private final AtomicFileWriter defaultFileWriter = new AtomicFileWriter();
 
     /**
      * Creates and (optionally) initialises the factory. This looks for a
@@ -254,6 +263,80 @@ public final class FileSystemResourceFactory implements ResourceFactory {
         return ssoPrefix;
     }
 
+    /**
+     * The writer used for copies. This is the content service's writer if it
+     * is a SimpleFileContentService, so they share a sync policy
+     *
+     * @return
+     */
+    public AtomicFileWriter getFileWriter() {
+        if (contentService instanceof SimpleFileContentService) {
+            return ((SimpleFileContentService) contentService).getFileWriter();
+        }
+        return defaultFileWriter;
+    }
+
+    /**
+     * Executes file copies for directory COPY requests. This is shared by all
+     * requests so that concurrent copies cant saturate the disk
+     *
+     * @return
+     */
+    public synchronized ExecutorService getCopyExecutor() {
+        if (copyExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            copyExecutor = Executors.newFixedThreadPool(copyThreads, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "milton-fs-copy-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            ownCopyExecutor = true;
+        }
+        return copyExecutor;
+    }
+
+    /**
+     * Use the given executor for copies. It is not shut down when this factory
+     * is stopped
+     *
+     * @param copyExecutor
+     */
+    public synchronized void setCopyExecutor(ExecutorService copyExecutor) {
+        stop();
+        this.copyExecutor = copyExecutor;
+    }
+
+    /**
+     * Shuts down the default copy executor, if it has been created. Copies
+     * already submitted are completed
+     */
+    @Override
+    public synchronized void stop() {
+        if (copyExecutor != null && ownCopyExecutor) {
+            copyExecutor.shutdown();
+        }
+        copyExecutor = null;
+        ownCopyExecutor = false;
+    }
+
+    /**
+     * The number of files copied concurrently by the default copy executor.
+     * Default is 4
+     *
+     * @return
+     */
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    public void setCopyThreads(int copyThreads) {
+        this.copyThreads = copyThreads;
+    }
+
     public FileContentService getContentService() {
         return contentService;
     }
@@ -16,13 +16,17 @@
 package io.milton.http.fs;
 
 import io.milton.http.*;
+import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.resource.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,6 +75,11 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
         File[] files = this.file.listFiles();
         if (files != null) {
             for (File fchild : files) {
+                if (AtomicFileWriter.isTempFile(fchild)) {
+                    // an upload in progress, or left behind by a crash
+                    factory.getFileWriter().removeIfStale(fchild);
+                    continue;
+                }
                 FsResource res = factory.resolveFile(this.host, fchild);
                 if (res != null) {
                     list.add(res);
@@ -79,6 +88,17 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
                 }
             }
         }
+        if (factory.getLockManager() instanceof ConcurrentLockManager && !list.isEmpty()) {
+            // look up the locks of all members in one pass, rather than one lookup per member
+            List<String> names = new ArrayList<String>();
+            for (FsResource res : list) {
+                names.add(res.getName());
+            }
+            Map<String, LockToken> locks = ((ConcurrentLockManager) factory.getLockManager()).getChildLocks(this, names);
+            for (FsResource res : list) {
+                res.setListedLock(locks.get(res.getName()));
+            }
+        }
         return list;
     }
 
@@ -100,24 +120,82 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
     @Override
     public Resource createNew(String name, InputStream in, Long length, String contentType) throws IOException {
         File dest = new File(this.getFile(), name);
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(dest);
-            IOUtils.copy(in, out);
-        } finally {
-            IOUtils.closeQuietly(out);
-        }
+        setFileContent(contentService, dest, in, length);
         // todo: ignores contentType
         return factory.resolveFile(this.host, dest);
 
     }
 
+    /**
+     * Directories are created as the tree is walked, and files are copied
+     * concurrently on the factory's copy executor. Files which cant be copied
+     * are reported in a MultiStatusException once the rest of the tree is done
+     */
     @Override
-    protected void doCopy(File dest) {
-        try {
-            FileUtils.copyDirectory(this.getFile(), dest);
-        } catch (IOException ex) {
-            throw new RuntimeException("Failed to copy to:" + dest.getAbsolutePath(), ex);
+    protected void doCopy(File dest) throws ConflictException {
+        String srcPath = file.getAbsolutePath() + File.separator;
+        if (dest.getAbsolutePath().startsWith(srcPath)) {
+            throw new ConflictException(this, "Cannot copy a folder into itself");
+        }
+        if (!dest.isDirectory() && !dest.mkdirs()) {
+            throw new RuntimeException("Failed to create: " + dest.getAbsolutePath());
+        }
+        long tm = System.currentTimeMillis();
+        List<HrefStatus> failures = Collections.synchronizedList(new ArrayList<HrefStatus>());
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        copyChildren(file, dest, "", factory.getFileWriter(), factory.getCopyExecutor(), futures, failures);
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted copying to: " + dest.getAbsolutePath(), ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Failed to copy to: " + dest.getAbsolutePath(), ex.getCause());
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("copied " + futures.size() + " files to " + dest.getAbsolutePath() + " in " + (System.currentTimeMillis() - tm) + "ms, failures: " + failures.size());
+        }
+        if (!failures.isEmpty()) {
+            throw new MultiStatusException(this, failures);
+        }
+    }
+
+    private void copyChildren(File srcDir, File destDir, String href, final AtomicFileWriter writer, ExecutorService exec, List<Future<?>> futures, final List<HrefStatus> failures) {
+        File[] children = srcDir.listFiles();
+        if (children == null) {
+            log.warn("Couldnt list: " + srcDir.getAbsolutePath());
+            failures.add(new HrefStatus(href, Response.Status.SC_INTERNAL_SERVER_ERROR));
+            return;
+        }
+        for (final File child : children) {
+            if (AtomicFileWriter.isTempFile(child)) {
+                continue;
+            }
+            final File destChild = new File(destDir, child.getName());
+            final String childHref = href + io.milton.common.Utils.percentEncode(child.getName());
+            if (child.isDirectory()) {
+                if (!destChild.isDirectory() && !destChild.mkdir()) {
+                    log.warn("Couldnt create: " + destChild.getAbsolutePath());
+                    failures.add(new HrefStatus(childHref + "/", Response.Status.SC_INTERNAL_SERVER_ERROR));
+                } else {
+                    copyChildren(child, destChild, childHref + "/", writer, exec, futures, failures);
+                }
+            } else {
+                futures.add(exec.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            writer.copy(child, destChild);
+                        } catch (IOException ex) {
+                            log.warn("Failed to copy: " + child.getAbsolutePath() + " - " + ex.getMessage());
+                            failures.add(new HrefStatus(childHref, Response.Status.SC_INTERNAL_SERVER_ERROR));
+                        }
+                    }
+                }));
+            }
         }
     }
 
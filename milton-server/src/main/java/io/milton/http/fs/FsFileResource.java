@@ -22,11 +22,17 @@ import io.milton.common.WritingException;
 import io.milton.http.Auth;
 import io.milton.http.Range;
 import io.milton.http.Request;
+import io.milton.http.entity.FileRegionEntity;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
+import io.milton.http.http11.PartialllyUpdateableResource;
+import io.milton.http.http11.PutHelper;
 import io.milton.resource.*;
 import java.io.*;
+import java.nio.channels.Channels;
 import java.util.Map;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +40,7 @@ import org.slf4j.LoggerFactory;
 /**
  *
  */
-public class FsFileResource extends FsResource implements CopyableResource, DeletableResource, GetableResource, MoveableResource, PropFindableResource {
+public class FsFileResource extends FsResource implements CopyableResource, DeletableResource, GetableResource, MoveableResource, PropFindableResource, SeekableResource, FileBackedResource, PartialllyUpdateableResource {
 
     private static final Logger log = LoggerFactory.getLogger(FsFileResource.class);
     
@@ -73,12 +79,33 @@ public class FsFileResource extends FsResource implements CopyableResource, Dele
 
     @Override
     public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotFoundException {
+        File contentFile = getContentFile();
+        if (contentFile != null) {
+            if (!contentFile.exists()) {
+                throw new NotFoundException("Couldnt locate content");
+            }
+            // http ranges include the finish byte
+            long start = range == null ? 0 : range.getStart();
+            long length = range == null ? contentFile.length() : range.getFinish() - range.getStart() + 1;
+            FileRegionEntity.transfer(contentFile, start, length, Channels.newChannel(out));
+            out.flush();
+            return;
+        }
         InputStream in = null;
         try {
             in = contentService.getFileContent(file);
             if (range != null) {
                 log.debug("sendContent: ranged content: " + file.getAbsolutePath());
-                RangeUtils.writeRange(in, range, out);
+                // http ranges include the finish byte
+                long toSkip = range.getStart();
+                while (toSkip > 0) {
+                    long n = in.skip(toSkip);
+                    if (n <= 0) {
+                        break;
+                    }
+                    toSkip -= n;
+                }
+                RangeUtils.sendBytes(in, out, range.getFinish() - range.getStart() + 1);
             } else {
                 log.debug("sendContent: send whole file " + file.getAbsolutePath());
                 IOUtils.copy(in, out);
@@ -95,6 +122,74 @@ public class FsFileResource extends FsResource implements CopyableResource, Dele
         }
     }
 
+    /**
+     * Since this resource supports partial updates it is also replaceable, so
+     * a PUT to an existing file replaces its content here, with authorisation
+     * checked against the file and a 204 response, instead of going through
+     * createNew on the parent folder. The content is written in the same way
+     * as createNew writes it
+     */
+    @Override
+    public void replaceContent(InputStream in, Long length) throws BadRequestException, ConflictException, NotAuthorizedException {
+        try {
+            setFileContent(contentService, file, in, length);
+        } catch (IOException ex) {
+            throw new RuntimeException("Exception replacing content of: " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Writes the range directly into the file with positional writes, so the
+     * rest of the content is not touched. Where the content service
+     * transforms content the whole content is read, patched and written back
+     */
+    @Override
+    public void replacePartialContent(Range range, InputStream in) {
+        try {
+            if (getContentFile() != null) {
+                PutHelper.patchFile(file, range, in);
+            } else {
+                File temp = File.createTempFile("milton-partial", null);
+                try {
+                    InputStream existing = contentService.getFileContent(file);
+                    OutputStream tempOut = null;
+                    try {
+                        tempOut = new FileOutputStream(temp);
+                        IOUtils.copy(existing, tempOut);
+                    } finally {
+                        IOUtils.closeQuietly(existing);
+                        IOUtils.closeQuietly(tempOut);
+                    }
+                    PutHelper.patchFile(temp, range, in);
+                    InputStream patched = new FileInputStream(temp);
+                    try {
+                        contentService.setFileContent(file, patched);
+                    } finally {
+                        IOUtils.closeQuietly(patched);
+                    }
+                } finally {
+                    if (!temp.delete()) {
+                        log.warn("Couldnt delete temp file: " + temp.getAbsolutePath());
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Exception updating content of: " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * The file can only be sent directly when the content service stores
+     * content as is
+     */
+    @Override
+    public File getContentFile() {
+        if (contentService instanceof SimpleFileContentService) {
+            return file;
+        }
+        return null;
+    }
+
     /**
      * @{@inheritDoc}
      */
@@ -109,7 +204,7 @@ public class FsFileResource extends FsResource implements CopyableResource, Dele
     @Override
     protected void doCopy(File dest) {
         try {
-            FileUtils.copyFile(file, dest);
+            factory.getFileWriter().copy(file, dest);
         } catch (IOException ex) {
             throw new RuntimeException("Failed doing copy to: " + dest.getAbsolutePath(), ex);
         }
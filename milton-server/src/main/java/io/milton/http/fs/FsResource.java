@@ -17,10 +17,13 @@ package io.milton.http.fs;
 
 import io.milton.http.*;
 import io.milton.http.Request.Method;
+import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.http11.auth.DigestResponse;
 import io.milton.resource.*;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,15 +31,20 @@ import org.slf4j.LoggerFactory;
 /**
  *
  */
-public abstract class FsResource implements Resource, MoveableResource, CopyableResource, LockableResource, DigestResource {
+public abstract class FsResource implements Resource, MoveableResource, CopyableResource, LockableResource, DigestResource, RealmAuthenticatedResource {
 
     private static final Logger log = LoggerFactory.getLogger(FsResource.class);
     File file;
     final FileSystemResourceFactory factory;
     final String host;
     String ssoPrefix;
+    /**
+     * The lock found when listing the parent directory, if lockListed
+     */
+    private LockToken listedLock;
+    private boolean lockListed;
 
-    protected abstract void doCopy(File dest);
+    protected abstract void doCopy(File dest) throws ConflictException;
 
     public FsResource(String host, FileSystemResourceFactory factory, File file) {
         this.host = host;
@@ -48,6 +56,18 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
         return file;
     }
 
+    /**
+     * Write content through the content service, passing the length on where
+     * the service can use it
+     */
+    protected static void setFileContent(FileContentService contentService, File dest, InputStream in, Long length) throws IOException {
+        if (contentService instanceof SimpleFileContentService) {
+            ((SimpleFileContentService) contentService).setFileContent(dest, in, length);
+        } else {
+            contentService.setFileContent(dest, in);
+        }
+    }
+
     @Override
     public String getUniqueId() {
         String s = file.lastModified() + "_" + file.length() + "_" + file.getAbsolutePath();
@@ -97,13 +117,16 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
         return this.getName().compareTo(o.getName());
     }
 
-    public void moveTo(CollectionResource newParent, String newName) {
+    public void moveTo(CollectionResource newParent, String newName) throws ConflictException {
         if (newParent instanceof FsDirectoryResource) {
             FsDirectoryResource newFsParent = (FsDirectoryResource) newParent;
             File dest = new File(newFsParent.getFile(), newName);
+            // Always a single rename, so the move is atomic. If that isnt possible, eg
+            // because the destination is on another file system, the move fails rather
+            // than falling back to a copy and delete
             boolean ok = this.file.renameTo(dest);
             if (!ok) {
-                throw new RuntimeException("Failed to move to: " + dest.getAbsolutePath());
+                throw new ConflictException(this, "Failed to move to: " + dest.getAbsolutePath());
             }
             this.file = dest;
         } else {
@@ -111,7 +134,7 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
         }
     }
 
-    public void copyTo(CollectionResource newParent, String newName) {
+    public void copyTo(CollectionResource newParent, String newName) throws ConflictException {
         if (newParent instanceof FsDirectoryResource) {
             FsDirectoryResource newFsParent = (FsDirectoryResource) newParent;
             File dest = new File(newFsParent.getFile(), newName);
@@ -129,23 +152,39 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
     }
 
     public LockResult lock(LockTimeout timeout, LockInfo lockInfo) throws NotAuthorizedException {
+        lockListed = false;
         return factory.getLockManager().lock(timeout, lockInfo, this);
     }
 
     public LockResult refreshLock(String token) throws NotAuthorizedException {
+        lockListed = false;
         return factory.getLockManager().refresh(token, this);
     }
 
     public void unlock(String tokenId) throws NotAuthorizedException {
+        lockListed = false;
         factory.getLockManager().unlock(tokenId, this);
     }
 
     public LockToken getCurrentLock() {
-        if (factory.getLockManager() != null) {
+        if (lockListed) {
+            return listedLock;
+        } else if (factory.getLockManager() != null) {
             return factory.getLockManager().getCurrentToken(this);
         } else {
             log.warn("getCurrentLock called, but no lock manager: file: " + file.getAbsolutePath());
             return null;
         }
     }
+
+    /**
+     * Called by the parent directory when the locks of all of its members have
+     * been looked up at once
+     *
+     * @param token - the current lock, or null if not locked
+     */
+    void setListedLock(LockToken token) {
+        this.listedLock = token;
+        this.lockListed = true;
+    }
 }
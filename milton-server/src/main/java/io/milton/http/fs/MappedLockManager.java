@@ -0,0 +1,623 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.fs;
+
+import io.milton.http.LockInfo;
+import io.milton.http.LockManager;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.resource.LockableResource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A lock manager which keeps its locks in a memory mapped file, so that
+ * several JVM's on the same host can share locks, and locks survive a restart.
+ *
+ * The file is a hash table of fixed size records, indexed by a hash of the
+ * locked path, with linear probing. The slot of each lock is encoded in the low
+ * bits of its token, so a lock can be found from its token without searching.
+ *
+ * Changes are made while holding an exclusive lock on the file, which the OS
+ * releases if the process dies. Each record has a version which is odd while
+ * it is being written, and a CRC, so a reader which does not take the file
+ * lock can detect a record which is being changed, and a writer can detect a
+ * record left half written by a process which died. Call setForceWrites to
+ * also flush each change to disk.
+ *
+ * Slots which no longer hold a live lock are kept as tombstones, so that
+ * searches for records after them in the same probe sequence still succeed.
+ * Whenever a tombstone (or an expired lock) is followed by an empty slot it is
+ * returned to empty, as is any tombstone before it, so searches stay short.
+ * Because a lock's slot is part of its token records are never moved, so the
+ * last empty slot is never used; the header holds a count of empty slots.
+ *
+ * Like ConcurrentLockManager, a depth infinity lock applies to all members of
+ * the locked collection. Taking a depth infinity lock scans the whole table,
+ * other operations probe only the resource's path and its ancestors. Paths
+ * longer than 255 bytes are stored as a digest, so locks on them can not
+ * prevent a depth infinity lock on an ancestor.
+ *
+ * Only one instance should be opened for a file within a JVM.
+ *
+ * @author brad
+ */
+public class MappedLockManager implements LockManager {
+
+    private static final Logger log = LoggerFactory.getLogger( MappedLockManager.class );
+    private static final int MAGIC = 0x4d4c434b; // MLCK
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int EMPTY_COUNT_OFFSET = 16;
+    private static final int RECORD_SIZE = 512;
+    private static final int PATH_OFFSET = 64;
+    private static final int PATH_BYTES = 256;
+    private static final int USER_OFFSET = PATH_OFFSET + PATH_BYTES;
+    private static final int USER_BYTES = RECORD_SIZE - USER_OFFSET;
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 2;
+    private static final int READ_RETRIES = 100;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private boolean forceWrites;
+
+    /**
+     * Open or create a lock table with 4096 slots
+     *
+     * @param file
+     * @throws IOException
+     */
+    public MappedLockManager( File file ) throws IOException {
+        this( file, 4096 );
+    }
+
+    /**
+     *
+     * @param file
+     * @param slots - the maximum number of locks, if the file is created. An
+     * existing file keeps its size
+     * @throws IOException
+     */
+    public MappedLockManager( File file, int slots ) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile( file, "rw" );
+        this.channel = raf.getChannel();
+        FileLock fl = channel.lock();
+        try {
+            ByteBuffer header = ByteBuffer.allocate( 16 );
+            if( raf.length() >= HEADER_SIZE ) {
+                channel.read( header, 0 );
+            }
+            header.flip();
+            if( header.remaining() < 16 || header.getInt( 0 ) == 0 ) {
+                log.info( "creating lock table: " + file.getAbsolutePath() + " slots: " + slots );
+                raf.setLength( HEADER_SIZE + (long) slots * RECORD_SIZE );
+                header.clear();
+                header.putInt( MAGIC ).putInt( FORMAT_VERSION ).putInt( slots ).putInt( RECORD_SIZE );
+                header.flip();
+                channel.write( header, 0 );
+                channel.force( true );
+            } else {
+                if( header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION ) {
+                    throw new IOException( "Not a lock table: " + file.getAbsolutePath() );
+                }
+                int existingSlots = header.getInt();
+                if( header.getInt() != RECORD_SIZE ) {
+                    throw new IOException( "Unsupported record size in lock table: " + file.getAbsolutePath() );
+                }
+                if( existingSlots != slots ) {
+                    log.info( "using existing lock table size: " + existingSlots );
+                }
+                slots = existingSlots;
+            }
+        } finally {
+            fl.release();
+        }
+        this.slots = slots;
+        this.buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * RECORD_SIZE );
+        synchronized( this ) {
+            fl = lockFile();
+            try {
+                // recount, in case a process died between changing a slot and the count
+                int empty = 0;
+                for( int slot = 0; slot < slots; slot++ ) {
+                    if( readLocked( slot ).state == EMPTY ) {
+                        empty++;
+                    }
+                }
+                buffer.putInt( EMPTY_COUNT_OFFSET, empty );
+            } finally {
+                release( fl );
+            }
+        }
+    }
+
+    @Override
+    public LockResult lock( LockTimeout timeout, LockInfo lockInfo, LockableResource r ) {
+        List<String> path = getPath( r );
+        Record rec = new Record();
+        rec.state = LIVE;
+        rec.path = keyOf( path );
+        rec.pathHash = hash( rec.path );
+        rec.from = System.currentTimeMillis();
+        Long seconds = timeout == null ? null : timeout.getSeconds();
+        rec.timeoutSeconds = ( seconds == null || seconds > Integer.MAX_VALUE ) ? -1 : seconds;
+        if( lockInfo != null ) {
+            rec.scope = ordinal( lockInfo.scope );
+            rec.type = ordinal( lockInfo.type );
+            rec.depth = ordinal( lockInfo.depth );
+            rec.user = lockInfo.lockedByUser;
+        }
+        if( rec.user != null && rec.user.getBytes( UTF8 ).length > USER_BYTES ) {
+            log.warn( "Can't lock, user name is too long: " + rec.user );
+            return LockResult.failed( LockResult.FailureReason.PRECONDITION_FAILED );
+        }
+        synchronized( this ) {
+            FileLock fl = lockFile();
+            try {
+                for( int i = 1; i < path.size(); i++ ) {
+                    Record ancestor = find( keyOf( path.subList( 0, i ) ), true );
+                    if( ancestor != null && ancestor.isLive() && ancestor.isInfinity() ) {
+                        return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                    }
+                }
+                Record existing = find( rec.path, true );
+                if( existing != null && existing.isLive() ) {
+                    return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                }
+                if( rec.isInfinity() && hasLiveDescendant( rec.path ) ) {
+                    return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                }
+                rec.slot = existing != null ? existing.slot : freeSlot( rec.pathHash );
+                if( rec.slot < 0 ) {
+                    log.error( "Lock table is full: " + file.getAbsolutePath() );
+                    return LockResult.failed( LockResult.FailureReason.PRECONDITION_FAILED );
+                }
+                UUID random = UUID.randomUUID();
+                rec.tokenMsb = random.getMostSignificantBits();
+                rec.tokenLsb = ( random.getLeastSignificantBits() & 0xFFFFFFFF00000000L ) | rec.slot;
+                write( rec );
+                return LockResult.success( rec.toToken() );
+            } finally {
+                release( fl );
+            }
+        }
+    }
+
+    @Override
+    public LockResult refresh( String tokenId, LockableResource resource ) {
+        int slot = slotOf( tokenId );
+        if( slot >= 0 ) {
+            synchronized( this ) {
+                FileLock fl = lockFile();
+                try {
+                    Record rec = readLocked( slot );
+                    if( rec.isLive() && rec.tokenId().equals( tokenId ) ) {
+                        rec.from = System.currentTimeMillis();
+                        write( rec );
+                        return LockResult.success( rec.toToken() );
+                    }
+                } finally {
+                    release( fl );
+                }
+            }
+        }
+        log.debug( "can't refresh because no lock" );
+        return LockResult.failed( LockResult.FailureReason.PRECONDITION_FAILED );
+    }
+
+    @Override
+    public void unlock( String tokenId, LockableResource r ) throws NotAuthorizedException {
+        String key = keyOf( getPath( r ) );
+        int slot = slotOf( tokenId );
+        if( slot >= 0 ) {
+            synchronized( this ) {
+                FileLock fl = lockFile();
+                try {
+                    Record rec = readLocked( slot );
+                    if( rec.isLive() && rec.tokenId().equals( tokenId ) ) {
+                        if( !key.equals( rec.path ) && !( rec.isInfinity() && key.startsWith( rec.path + "/" ) ) ) {
+                            throw new NotAuthorizedException( r );
+                        }
+                        log.debug( "removeLock: " + tokenId );
+                        rec.state = DELETED;
+                        write( rec );
+                        reclaim( slot );
+                        return;
+                    }
+                } finally {
+                    release( fl );
+                }
+            }
+        }
+        if( getCurrentToken( r ) == null ) {
+            log.debug( "not locked" );
+        } else {
+            throw new NotAuthorizedException( r );
+        }
+    }
+
+    @Override
+    public LockToken getCurrentToken( LockableResource r ) {
+        List<String> path = getPath( r );
+        for( int i = 1; i <= path.size(); i++ ) {
+            Record rec = find( keyOf( path.subList( 0, i ) ), false );
+            if( rec != null && rec.isLive() && ( i == path.size() || rec.isInfinity() ) ) {
+                return rec.toToken();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The path segments used to index the resource's locks. The resulting
+     * paths must be the same in every JVM sharing the file
+     *
+     * @param r
+     * @return
+     */
+    protected List<String> getPath( LockableResource r ) {
+        return ConcurrentLockManager.pathOf( r );
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+    /**
+     * If true each change is flushed to disk before returning, so locks
+     * survive a crash of the host as well as of the process. Default is false
+     *
+     * @return
+     */
+    public boolean isForceWrites() {
+        return forceWrites;
+    }
+
+    public void setForceWrites( boolean forceWrites ) {
+        this.forceWrites = forceWrites;
+    }
+
+    /**
+     * Number of slots which are empty, ie have never been used or have been
+     * reclaimed
+     */
+    int getEmptySlots() {
+        return buffer.getInt( EMPTY_COUNT_OFFSET );
+    }
+
+    private Record find( String key, boolean locked ) {
+        long hash = hash( key );
+        int start = (int) ( ( hash & Long.MAX_VALUE ) % slots );
+        for( int i = 0; i < slots; i++ ) {
+            int slot = ( start + i ) % slots;
+            Record rec = locked ? readLocked( slot ) : readShared( slot );
+            if( rec.state == EMPTY ) {
+                if( locked && i > 0 ) {
+                    // the end of the probe sequence, so tidy up any expired locks before it
+                    reclaim( ( slot - 1 + slots ) % slots );
+                }
+                return null;
+            }
+            if( rec.state == LIVE && rec.pathHash == hash && key.equals( rec.path ) ) {
+                return rec;
+            }
+        }
+        return null;
+    }
+
+    private int freeSlot( long hash ) {
+        int start = (int) ( ( hash & Long.MAX_VALUE ) % slots );
+        for( int i = 0; i < slots; i++ ) {
+            int slot = ( start + i ) % slots;
+            Record rec = readLocked( slot );
+            if( !rec.isLive() ) {
+                if( rec.state == EMPTY && getEmptySlots() <= 1 ) {
+                    return -1; // keep one empty slot, so every search ends
+                }
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * If the given slot does not hold a live lock and the next slot is empty,
+     * then no probe sequence needs it, so make it empty. Repeat for the slots
+     * before it
+     */
+    private void reclaim( int slot ) {
+        if( readLocked( ( slot + 1 ) % slots ).state != EMPTY ) {
+            return;
+        }
+        for( int i = 0; i < slots; i++ ) {
+            Record rec = readLocked( slot );
+            if( rec.state == EMPTY || rec.isLive() ) {
+                return;
+            }
+            Record empty = new Record();
+            empty.slot = slot;
+            empty.state = EMPTY;
+            write( empty );
+            slot = ( slot - 1 + slots ) % slots;
+        }
+    }
+
+    private boolean hasLiveDescendant( String key ) {
+        String prefix = key + "/";
+        for( int slot = 0; slot < slots; slot++ ) {
+            Record rec = readLocked( slot );
+            if( rec.isLive() && rec.path.startsWith( prefix ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a record without the file lock, retrying while it is being written
+     */
+    private Record readShared( int slot ) {
+        int base = HEADER_SIZE + slot * RECORD_SIZE;
+        for( int i = 0; i < READ_RETRIES; i++ ) {
+            int version = buffer.getInt( base );
+            if( ( version & 1 ) == 0 ) {
+                byte[] data = new byte[RECORD_SIZE];
+                ByteBuffer b = buffer.duplicate();
+                b.position( base );
+                b.get( data );
+                if( buffer.getInt( base ) == version ) {
+                    Record rec = decode( data, slot );
+                    if( rec != null ) {
+                        return rec;
+                    }
+                }
+            }
+            Thread.yield();
+        }
+        // the writer might have died part way through
+        synchronized( this ) {
+            FileLock fl = lockFile();
+            try {
+                return readLocked( slot );
+            } finally {
+                release( fl );
+            }
+        }
+    }
+
+    /**
+     * Read a record while holding the file lock. A record which is still
+     * marked as being written was left by a process which died, so is kept if
+     * complete, otherwise discarded
+     */
+    private Record readLocked( int slot ) {
+        int base = HEADER_SIZE + slot * RECORD_SIZE;
+        int version = buffer.getInt( base );
+        byte[] data = new byte[RECORD_SIZE];
+        ByteBuffer b = buffer.duplicate();
+        b.position( base );
+        b.get( data );
+        Record rec = decode( data, slot );
+        if( ( version & 1 ) != 0 || rec == null ) {
+            if( rec == null ) {
+                log.warn( "Discarding incomplete lock record in slot: " + slot );
+                rec = new Record();
+                rec.slot = slot;
+                rec.state = DELETED; // not EMPTY, which would end searches for records after this one
+            }
+            write( rec );
+        }
+        return rec;
+    }
+
+    private void write( Record rec ) {
+        byte[] data = encode( rec );
+        int base = HEADER_SIZE + rec.slot * RECORD_SIZE;
+        boolean wasEmpty = buffer.get( base + 8 ) == EMPTY;
+        if( wasEmpty != ( rec.state == EMPTY ) ) {
+            buffer.putInt( EMPTY_COUNT_OFFSET, getEmptySlots() + ( wasEmpty ? -1 : 1 ) );
+        }
+        int version = ( buffer.getInt( base ) & ~1 ) + 1;
+        buffer.putInt( base, version );
+        ByteBuffer b = buffer.duplicate();
+        b.position( base + 4 );
+        b.put( data, 4, RECORD_SIZE - 4 );
+        buffer.putInt( base, version + 1 );
+        if( forceWrites ) {
+            buffer.force();
+        }
+    }
+
+    private byte[] encode( Record rec ) {
+        ByteBuffer b = ByteBuffer.allocate( RECORD_SIZE );
+        b.position( 8 );
+        b.put( rec.state ).put( rec.scope ).put( rec.type ).put( rec.depth );
+        b.position( 16 );
+        b.putLong( rec.pathHash ).putLong( rec.tokenMsb ).putLong( rec.tokenLsb ).putLong( rec.from ).putLong( rec.timeoutSeconds );
+        byte[] path = rec.path == null ? new byte[0] : rec.path.getBytes( UTF8 );
+        byte[] user = rec.user == null ? null : rec.user.getBytes( UTF8 );
+        b.putShort( (short) path.length ).putShort( (short) ( user == null ? -1 : user.length ) );
+        b.position( PATH_OFFSET );
+        b.put( path );
+        if( user != null ) {
+            b.position( USER_OFFSET );
+            b.put( user );
+        }
+        CRC32 crc = new CRC32();
+        crc.update( b.array(), 8, RECORD_SIZE - 8 );
+        b.putInt( 4, (int) crc.getValue() );
+        return b.array();
+    }
+
+    /**
+     * @return - null if the record is incomplete
+     */
+    private Record decode( byte[] data, int slot ) {
+        ByteBuffer b = ByteBuffer.wrap( data );
+        Record rec = new Record();
+        rec.slot = slot;
+        rec.state = b.get( 8 );
+        int storedCrc = b.getInt( 4 );
+        if( rec.state == EMPTY && storedCrc == 0 ) {
+            return rec; // never used
+        }
+        CRC32 crc = new CRC32();
+        crc.update( data, 8, RECORD_SIZE - 8 );
+        if( (int) crc.getValue() != storedCrc ) {
+            return null;
+        }
+        rec.scope = b.get( 9 );
+        rec.type = b.get( 10 );
+        rec.depth = b.get( 11 );
+        b.position( 16 );
+        rec.pathHash = b.getLong();
+        rec.tokenMsb = b.getLong();
+        rec.tokenLsb = b.getLong();
+        rec.from = b.getLong();
+        rec.timeoutSeconds = b.getLong();
+        int pathLength = b.getShort();
+        int userLength = b.getShort();
+        rec.path = new String( data, PATH_OFFSET, pathLength, UTF8 );
+        rec.user = userLength < 0 ? null : new String( data, USER_OFFSET, userLength, UTF8 );
+        return rec;
+    }
+
+    private FileLock lockFile() {
+        try {
+            return channel.lock();
+        } catch( IOException ex ) {
+            throw new RuntimeException( "Couldnt lock: " + file.getAbsolutePath(), ex );
+        }
+    }
+
+    private void release( FileLock fl ) {
+        try {
+            fl.release();
+        } catch( IOException ex ) {
+            log.error( "Couldnt release lock: " + file.getAbsolutePath(), ex );
+        }
+    }
+
+    private int slotOf( String tokenId ) {
+        try {
+            long slot = UUID.fromString( tokenId ).getLeastSignificantBits() & 0xFFFFFFFFL;
+            return slot < slots ? (int) slot : -1;
+        } catch( IllegalArgumentException e ) {
+            return -1;
+        }
+    }
+
+    /**
+     * The path as it is stored in a record, or a digest of it if too long
+     */
+    private static String keyOf( List<String> path ) {
+        StringBuilder sb = new StringBuilder();
+        for( String s : path ) {
+            if( sb.length() > 0 || !s.isEmpty() ) {
+                sb.append( '/' );
+            }
+            sb.append( s );
+        }
+        String key = sb.toString();
+        if( key.getBytes( UTF8 ).length <= PATH_BYTES ) {
+            return key;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( UTF8 ) );
+            StringBuilder hex = new StringBuilder( "#" );
+            for( byte d : digest ) {
+                hex.append( String.format( "%02x", d ) );
+            }
+            return hex.toString();
+        } catch( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a
+     */
+    private static long hash( String key ) {
+        long h = 0xcbf29ce484222325L;
+        for( byte b : key.getBytes( UTF8 ) ) {
+            h ^= ( b & 0xff );
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static byte ordinal( Enum<?> e ) {
+        return (byte) ( e == null ? 0 : e.ordinal() + 1 );
+    }
+
+    private static class Record {
+
+        int slot;
+        byte state;
+        byte scope;
+        byte type;
+        byte depth;
+        long pathHash;
+        long tokenMsb;
+        long tokenLsb;
+        long from;
+        long timeoutSeconds; // -1 is infinite
+        String path;
+        String user;
+
+        boolean isLive() {
+            return state == LIVE && !( timeoutSeconds >= 0 && System.currentTimeMillis() - from > timeoutSeconds * 1000 );
+        }
+
+        boolean isInfinity() {
+            return depth == ordinal( LockInfo.LockDepth.INFINITY );
+        }
+
+        String tokenId() {
+            return new UUID( tokenMsb, tokenLsb ).toString();
+        }
+
+        LockToken toToken() {
+            LockInfo info = new LockInfo( scope == 0 ? null : LockInfo.LockScope.values()[scope - 1], type == 0 ? null : LockInfo.LockType.values()[type - 1], user, depth == 0 ? null : LockInfo.LockDepth.values()[depth - 1] );
+            LockToken token = new LockToken( tokenId(), info, new LockTimeout( timeoutSeconds < 0 ? null : timeoutSeconds ) );
+            token.setFrom( new Date( from ) );
+            return token;
+        }
+    }
+}
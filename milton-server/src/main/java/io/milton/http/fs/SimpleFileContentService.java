@@ -16,7 +16,6 @@
 package io.milton.http.fs;
 
 import java.io.*;
-import org.apache.commons.io.IOUtils;
 
 /**
  *
@@ -24,15 +23,25 @@ import org.apache.commons.io.IOUtils;
  */
 public class SimpleFileContentService implements FileContentService {
 
+    private AtomicFileWriter fileWriter = new AtomicFileWriter();
+
     @Override
     public void setFileContent(File file, InputStream in) throws FileNotFoundException, IOException {
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(file);
-            IOUtils.copy(in, out);
-        } finally {
-            IOUtils.closeQuietly(out);
-        }
+        setFileContent(file, in, null);
+    }
+
+    /**
+     * Write the content to a temporary file and then move it into place, so
+     * readers never see a partially written file
+     *
+     * @param file
+     * @param in
+     * @param length - the expected length if known, used to preallocate the
+     * file
+     * @throws IOException
+     */
+    public void setFileContent(File file, InputStream in, Long length) throws IOException {
+        fileWriter.write(file, in, length);
     }
 
     @Override
@@ -40,4 +49,12 @@ public class SimpleFileContentService implements FileContentService {
         FileInputStream fin = new FileInputStream(file);
         return fin;
     }
+
+    public AtomicFileWriter getFileWriter() {
+        return fileWriter;
+    }
+
+    public void setFileWriter(AtomicFileWriter fileWriter) {
+        this.fileWriter = fileWriter;
+    }
 }
@@ -20,6 +20,7 @@ import io.milton.http.*;
 import io.milton.resource.Resource;
 import io.milton.http.Response.Status;
 import io.milton.http.entity.BufferingGetableResourceEntity;
+import io.milton.http.entity.FileRegionEntity;
 import io.milton.http.entity.GetableResourceEntity;
 import io.milton.http.exceptions.BadRequestException;
 import java.util.Date;
@@ -32,7 +33,9 @@ import org.slf4j.LoggerFactory;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
 import io.milton.resource.BufferingControlResource;
+import io.milton.resource.FileBackedResource;
 import io.milton.sso.ExternalIdentityProvider;
+import java.io.File;
 import java.io.IOException;
 import java.util.Properties;
 
@@ -194,7 +197,14 @@ public class DefaultHttp11ResponseHandler implements Http11ResponseHandler, Buff
 		if (ct != null) {
 			response.setContentTypeHeader(ct);
 		}
-		response.setEntity(new GetableResourceEntity(resource, range, params, ct));
+		File file = contentFile(resource);
+		if (file != null) {
+			long length = range.getFinish() - range.getStart() + 1;
+			response.setContentLengthHeader(length);
+			response.setEntity(new FileRegionEntity(file, range.getStart(), length));
+		} else {
+			response.setEntity(new GetableResourceEntity(resource, range, params, ct));
+		}
 	}
 
 	@Override
@@ -254,7 +264,12 @@ public class DefaultHttp11ResponseHandler implements Http11ResponseHandler, Buff
 				if (contentLength != null) {
 					response.setContentLengthHeader(contentLength);
 				}
-				response.setEntity(new GetableResourceEntity(gr, params, ct));
+				File file = contentFile(gr);
+				if (file != null && contentLength != null) {
+					response.setEntity(new FileRegionEntity(file, 0, contentLength));
+				} else {
+					response.setEntity(new GetableResourceEntity(gr, params, ct));
+				}
 			} else {
 				BufferingGetableResourceEntity e = new BufferingGetableResourceEntity(gr, params, ct, contentLength, getMaxMemorySize());
 				response.setEntity(e);
@@ -262,6 +277,17 @@ public class DefaultHttp11ResponseHandler implements Http11ResponseHandler, Buff
 		}
 	}
 
+	/**
+	 * The file to send content directly from, if the resource is a
+	 * FileBackedResource with its content currently in a file
+	 */
+	private File contentFile(GetableResource resource) {
+		if (resource instanceof FileBackedResource) {
+			return ((FileBackedResource) resource).getContentFile();
+		}
+		return null;
+	}
+
 	@Override
 	public void respondNotModified(GetableResource resource, Response response, Request request) {
 		log.trace("respondNotModified");
@@ -23,6 +23,7 @@ import io.milton.resource.DeletableResource;
 import io.milton.http.ResourceHandlerHelper;
 import io.milton.http.DeleteHelperImpl;
 import io.milton.http.HttpManager;
+import io.milton.http.RequestCachingResourceFactory;
 import io.milton.http.Request;
 import io.milton.http.exceptions.BadRequestException;
 
@@ -80,13 +81,12 @@ public class DeleteHandler implements ExistingEntityHandler {
 
         DeletableResource r = (DeletableResource) resource;
 
-        if (deleteHelper.isLockedOut(request, r)) {
+        if (!deleteHelper.deleteIfNotLocked(request, r, HttpManager.decodeUrl(request.getAbsolutePath()), manager.getEventManager())) {
             log.info("Could not delete. Is locked");
             responseHandler.respondDeleteFailed(request, response, r, Status.SC_LOCKED);
             return;
         }
-
-        deleteHelper.delete(r, manager.getEventManager());
+        RequestCachingResourceFactory.invalidate(request.getHostHeader(), HttpManager.decodeUrl(request.getAbsolutePath()));
         log.debug("deleted ok");
         responseHandler.respondNoContent(resource, response, request);
 
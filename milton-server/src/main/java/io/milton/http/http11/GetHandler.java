@@ -180,7 +180,7 @@ public class GetHandler implements ExistingEntityHandler {
             if( request.getMethod().equals( Method.HEAD ) ) {
                 responseHandler.respondHead( resource, response, request );
             } else {
-                List<Range> ranges = partialGetHelper.getRanges( request.getRangeHeader() );
+                List<Range> ranges = partialGetHelper.getRanges( request.getRangeHeader(), resource.getContentLength() );
                 if( ranges != null && ranges.size() > 0 ) {
 					partialGetHelper.sendPartialContent(resource, request, response, ranges, params);
                 } else {
@@ -33,6 +33,8 @@ public class Http11Protocol implements HttpExtension{
 
     private final HandlerHelper handlerHelper;
 
+    private final PutHelper putHelper;
+
     private List<CustomPostHandler> customPostHandlers;
 
     public Http11Protocol(Http11ResponseHandler responseHandler, HandlerHelper handlerHelper, ResourceHandlerHelper resourceHandlerHelper, boolean enableOptionsAuth, MatchHelper matchHelper, PartialGetHelper partialGetHelper) {
@@ -42,8 +44,9 @@ public class Http11Protocol implements HttpExtension{
         handlers.add(new GetHandler(responseHandler, resourceHandlerHelper, matchHelper, partialGetHelper));
         handlers.add(new PostHandler(responseHandler, resourceHandlerHelper));
         handlers.add(new DeleteHandler(responseHandler, resourceHandlerHelper, handlerHelper));
-		PutHelper putHelper = new PutHelper();
+		this.putHelper = new PutHelper();
         handlers.add(new PutHandler(responseHandler, handlerHelper, putHelper, matchHelper));
+        handlers.add(new PatchHandler(responseHandler, resourceHandlerHelper, putHelper));
     }
 
 	@Override
@@ -55,6 +58,16 @@ public class Http11Protocol implements HttpExtension{
         return handlerHelper;
     }
 
+    /**
+     * The helper shared by the PUT and PATCH handlers, exposed so partial
+     * update behaviour can be configured
+     *
+     * @return
+     */
+    public PutHelper getPutHelper() {
+        return putHelper;
+    }
+
 	@Override
     public List<CustomPostHandler> getCustomPostHandlers() {
         return customPostHandlers;
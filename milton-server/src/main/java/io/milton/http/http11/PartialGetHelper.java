@@ -19,20 +19,18 @@ import io.milton.resource.GetableResource;
 import io.milton.http.Range;
 import io.milton.http.Request;
 import io.milton.http.Response;
-import io.milton.http.entity.PartialEntity;
+import io.milton.http.entity.MultipleRangesEntity;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
-import io.milton.common.StreamUtils;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,12 +43,27 @@ public class PartialGetHelper {
 	private static final Logger log = LoggerFactory.getLogger(PartialGetHelper.class);
 	private final Http11ResponseHandler responseHandler;
 	private int maxMemorySize = 100000;
+	private int maxRanges = 20;
 
 	public PartialGetHelper(Http11ResponseHandler responseHandler) {
 		this.responseHandler = responseHandler;
 	}
 
 	public List<Range> getRanges(String rangeHeader) {
+		return getRanges(rangeHeader, null);
+	}
+
+	/**
+	 * Parse the Range header. Suffix ranges (eg -500) and open ranges (eg
+	 * 100-) can only be resolved if the content length is known, and are
+	 * otherwise ignored, as are ranges starting beyond the content.
+	 *
+	 * @param rangeHeader
+	 * @param contentLength - the length of the resource, or null if not known
+	 * @return - null if there is no header, or it has more than maxRanges
+	 * ranges, in which case the whole content should be sent
+	 */
+	public List<Range> getRanges(String rangeHeader, Long contentLength) {
 		if (rangeHeader == null || rangeHeader.length() == 0) {
 			log.trace("getRanges: no range header");
 			return null;
@@ -58,11 +71,14 @@ public class PartialGetHelper {
 		if (rangeHeader.startsWith("bytes=")) {
 			rangeHeader = rangeHeader.substring(6);
 			String[] arr = rangeHeader.split(",");
+			if (arr.length > maxRanges) {
+				log.warn("getRanges: too many ranges, will send whole content: " + arr.length);
+				return null;
+			}
 			List<Range> list = new ArrayList<Range>();
 			for (String s : arr) {
-				final Matcher matcher = Pattern.compile("\\s*(\\d+)-(\\d+)").matcher(s);
-				if (matcher.matches()) {
-					Range r = new Range(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)));
+				Range r = parseRange(s.trim(), contentLength);
+				if (r != null) {
 					list.add(r);
 				}
 			}
@@ -76,31 +92,118 @@ public class PartialGetHelper {
 		}
 	}
 
+	private Range parseRange(String s, Long contentLength) {
+		int pos = s.indexOf('-');
+		if (pos < 0) {
+			return null;
+		}
+		String first = s.substring(0, pos).trim();
+		String last = s.substring(pos + 1).trim();
+		try {
+			if (first.length() == 0) {
+				// suffix range, ie the last n bytes
+				if (contentLength == null || contentLength == 0 || last.length() == 0) {
+					return null;
+				}
+				long n = Long.parseLong(last);
+				if (n <= 0) {
+					return null;
+				}
+				return new Range(Math.max(0, contentLength - n), contentLength - 1);
+			}
+			long start = Long.parseLong(first);
+			if (start < 0 || (contentLength != null && start >= contentLength)) {
+				return null;
+			}
+			long finish;
+			if (last.length() == 0) {
+				if (contentLength == null) {
+					return null;
+				}
+				finish = contentLength - 1;
+			} else {
+				finish = Long.parseLong(last);
+				if (finish < start) {
+					return null;
+				}
+				if (contentLength != null && finish >= contentLength) {
+					finish = contentLength - 1;
+				}
+			}
+			return new Range(start, finish);
+		} catch (NumberFormatException e) {
+			log.trace("invalid range: " + s);
+			return null;
+		}
+	}
+
+	/**
+	 * Sort the ranges, and combine any which overlap or are adjacent
+	 *
+	 * @param ranges
+	 * @return - a new list in ascending order with no overlaps
+	 */
+	public static List<Range> coalesce(List<Range> ranges) {
+		List<Range> sorted = new ArrayList<Range>(ranges);
+		Collections.sort(sorted, new Comparator<Range>() {
+
+			@Override
+			public int compare(Range o1, Range o2) {
+				return o1.getStart() < o2.getStart() ? -1 : (o1.getStart() == o2.getStart() ? 0 : 1);
+			}
+		});
+		List<Range> list = new ArrayList<Range>();
+		Range current = null;
+		for (Range r : sorted) {
+			if (current == null) {
+				current = r;
+			} else if (r.getStart() <= current.getFinish() + 1) {
+				if (r.getFinish() > current.getFinish()) {
+					current = new Range(current.getStart(), r.getFinish());
+				}
+			} else {
+				list.add(current);
+				current = r;
+			}
+		}
+		if (current != null) {
+			list.add(current);
+		}
+		return list;
+	}
+
 	public void sendPartialContent(GetableResource resource, Request request, Response response, List<Range> ranges, Map<String, String> params) throws NotAuthorizedException, BadRequestException, IOException, NotFoundException {
 		log.trace("sendPartialContent");
+		ranges = coalesce(ranges);
 		if (ranges.size() == 1) {
 			log.trace("partial get, single range");
 			Range r = ranges.get(0);
 			responseHandler.respondPartialContent(resource, response, request, params, r);
 		} else {
 			log.trace("partial get, multiple ranges");
-			File temp = File.createTempFile("milton_partial_get", null);
-			FileOutputStream fout = null;
-			try {
-				fout = new FileOutputStream(temp);
-				BufferedOutputStream bufOut = new BufferedOutputStream(fout);
-				resource.sendContent(bufOut, null, params, request.getContentTypeHeader());
-				bufOut.flush();
-				fout.flush();
-			} finally {
-				StreamUtils.close(fout);
-			}
-            response.setEntity(
-               new PartialEntity(ranges, temp)
-            );
+			String boundary = UUID.randomUUID().toString();
+			String ct = resource.getContentType(request.getAcceptHeader());
+			response.setStatus(Response.Status.SC_PARTIAL_CONTENT);
+			response.setDateHeader(new Date());
+			response.setContentTypeHeader("multipart/byteranges; boundary=" + boundary);
+			response.setEntity(new MultipleRangesEntity(resource, ranges, params, ct, resource.getContentLength(), boundary));
 		}
 	}
 
+	/**
+	 * Requests with more ranges than this are sent the whole content. Default
+	 * is 20
+	 *
+	 * @return
+	 */
+	public int getMaxRanges() {
+		return maxRanges;
+	}
+
+	public void setMaxRanges(int maxRanges) {
+		this.maxRanges = maxRanges;
+	}
+
 	public int getMaxMemorySize() {
 		return maxMemorySize;
 	}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11;
+
+import io.milton.event.PutEvent;
+import io.milton.http.ExistingEntityHandler;
+import io.milton.http.HttpManager;
+import io.milton.http.Range;
+import io.milton.http.Request;
+import io.milton.http.RequestCachingResourceFactory;
+import io.milton.http.ResourceHandlerHelper;
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.exceptions.NotFoundException;
+import io.milton.resource.ReplaceableResource;
+import io.milton.resource.Resource;
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Supports partial updates with PATCH, where the range to update is given
+ * in an X-Update-Range header, compatible with the sabredav partial update
+ * plugin. This allows clients which cannot send a Content-Range with PUT to
+ * update part of a resource.
+ *
+ * The update is applied in the same way as a partial PUT, see
+ * PutHelper.replacePartialContent
+ *
+ * @author brad
+ */
+public class PatchHandler implements ExistingEntityHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(PatchHandler.class);
+	private final Http11ResponseHandler responseHandler;
+	private final ResourceHandlerHelper resourceHandlerHelper;
+	private final PutHelper putHelper;
+
+	public PatchHandler(Http11ResponseHandler responseHandler, ResourceHandlerHelper resourceHandlerHelper, PutHelper putHelper) {
+		this.responseHandler = responseHandler;
+		this.resourceHandlerHelper = resourceHandlerHelper;
+		this.putHelper = putHelper;
+	}
+
+	@Override
+	public String[] getMethods() {
+		return new String[]{Request.Method.PATCH.code};
+	}
+
+	@Override
+	public boolean isCompatible(Resource r) {
+		return r instanceof ReplaceableResource;
+	}
+
+	@Override
+	public void process(HttpManager manager, Request request, Response response) throws NotAuthorizedException, ConflictException, BadRequestException {
+		resourceHandlerHelper.process(manager, request, response, this);
+	}
+
+	@Override
+	public void processResource(HttpManager manager, Request request, Response response, Resource r) throws NotAuthorizedException, ConflictException, BadRequestException {
+		resourceHandlerHelper.processResource(manager, request, response, r, this);
+	}
+
+	@Override
+	public void processExistingResource(HttpManager manager, Request request, Response response, Resource resource) throws NotAuthorizedException, BadRequestException, ConflictException, NotFoundException {
+		ReplaceableResource replacee = (ReplaceableResource) resource;
+		Range range = putHelper.parseUpdateRange(resource, request);
+		log.debug("partial update: " + range);
+		try {
+			putHelper.replacePartialContent(replacee, range, request.getInputStream());
+		} catch (IOException ex) {
+			log.warn("IOException reading input stream. Probably interrupted upload: " + ex.getMessage());
+			return;
+		}
+		RequestCachingResourceFactory.invalidate(request.getHostHeader(), HttpManager.decodeUrl(request.getAbsolutePath()));
+		manager.getEventManager().fireEvent(new PutEvent(resource));
+		responseHandler.respondNoContent(resource, response, request);
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11;
+
+import io.milton.http.HttpManager;
+import io.milton.http.Range;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.resource.GetableResource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the existing content of a resource with a range of it replaced by
+ * the patch data, so a partial update can be applied by replacing the
+ * content without first copying it to a temporary file.
+ *
+ * The existing content is written by sendContent on a thread from the given
+ * executor into a pipe, with the current request bound to that thread so the
+ * resource sees the same HttpManager.request() as the caller. The executor
+ * must not be bounded, since the caller blocks until sendContent has written
+ * the content. If the range starts beyond the existing content the gap is filled
+ * with zeros. If the patch is shorter than the range, the existing content
+ * continues after the patch data
+ *
+ * @author brad
+ */
+class PatchedInputStream extends InputStream {
+
+	private static final Logger log = LoggerFactory.getLogger(PatchedInputStream.class);
+	private final PipedInputStream existing;
+	private final InputStream patch;
+	private final long start;
+	private long finish;
+	private long pos;
+	private boolean existingEof;
+	private volatile Throwable sendError;
+
+	PatchedInputStream(final GetableResource resource, Range range, InputStream patch, ExecutorService executor) throws IOException {
+		this.patch = patch;
+		this.start = range.getStart();
+		this.finish = range.getFinish();
+		this.existing = new PipedInputStream(65536);
+		final PipedOutputStream pipeOut = new PipedOutputStream(existing);
+		final Request request = HttpManager.request();
+		final Response response = HttpManager.response();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				HttpManager.bind(request, response);
+				try {
+					resource.sendContent(pipeOut, null, null, null);
+				} catch (Throwable e) {
+					sendError = e;
+				} finally {
+					HttpManager.unbind();
+					try {
+						pipeOut.close();
+					} catch (IOException ex) {
+						log.trace("exception closing pipe", ex);
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos < start) {
+			int max = (int) Math.min(len, start - pos);
+			int n = readExisting(b, off, max);
+			if (n < 0) {
+				// pad up to the start of the range
+				Arrays.fill(b, off, off + max, (byte) 0);
+				n = max;
+			}
+			pos += n;
+			return n;
+		}
+		if (pos <= finish) {
+			int n = patch.read(b, off, (int) Math.min(len, finish + 1 - pos));
+			if (n < 0) {
+				log.warn("patch data ended before the end of the range at: " + pos);
+				finish = pos - 1;
+			} else {
+				skipExisting(n);
+				pos += n;
+				return n;
+			}
+		}
+		int n = readExisting(b, off, len);
+		if (n > 0) {
+			pos += n;
+		}
+		return n;
+	}
+
+	private int readExisting(byte[] b, int off, int len) throws IOException {
+		if (existingEof) {
+			return -1;
+		}
+		int n = existing.read(b, off, len);
+		if (n < 0) {
+			existingEof = true;
+			checkError();
+		}
+		return n;
+	}
+
+	private void skipExisting(long n) throws IOException {
+		byte[] buf = null;
+		while (n > 0 && !existingEof) {
+			if (buf == null) {
+				buf = new byte[(int) Math.min(n, 8192)];
+			}
+			int s = readExisting(buf, 0, (int) Math.min(n, buf.length));
+			if (s > 0) {
+				n -= s;
+			}
+		}
+	}
+
+	private void checkError() throws IOException {
+		Throwable e = sendError;
+		if (e != null) {
+			throw new IOException("Exception reading existing content", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// stops the sending thread if it is still writing
+		existing.close();
+	}
+}
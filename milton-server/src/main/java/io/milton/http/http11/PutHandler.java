@@ -21,7 +21,7 @@ import io.milton.resource.CollectionResource;
 import io.milton.resource.Resource;
 import io.milton.http.HandlerHelper;
 import io.milton.http.HttpManager;
-import io.milton.resource.GetableResource;
+import io.milton.http.RequestCachingResourceFactory;
 import io.milton.http.Range;
 import io.milton.resource.MakeCollectionableResource;
 import io.milton.http.exceptions.BadRequestException;
@@ -38,18 +38,11 @@ import io.milton.http.Response.Status;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.webdav.WebDavResponseHandler;
-import io.milton.common.FileUtils;
-import io.milton.common.RandomFileOutputStream;
 import io.milton.common.LogUtils;
 import io.milton.event.NewFolderEvent;
 import io.milton.event.PutEvent;
 import io.milton.http.Request;
 import io.milton.http.Response;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
 
 public class PutHandler implements Handler {
 
@@ -161,6 +154,7 @@ public class PutHandler implements Handler {
 			try {
 				manager.onProcessResourceStart(request, response, replacee);
 				processReplace(manager, request, response, replacee);
+				RequestCachingResourceFactory.invalidate(host, urlToCreateOrUpdate);
 				manager.getEventManager().fireEvent(new PutEvent(replacee));
 			} finally {
 				t = System.currentTimeMillis() - t;
@@ -209,6 +203,7 @@ public class PutHandler implements Handler {
 			String ct = putHelper.findContentTypes(request, newName);
 			LogUtils.debug(log, "PutHandler: creating resource of type: ", ct);
 			Resource newlyCreated = folder.createNew(newName, request.getInputStream(), l, ct);
+			RequestCachingResourceFactory.invalidate(request.getHostHeader(), HttpManager.decodeUrl(request.getAbsolutePath()));
 			if (newlyCreated != null) {
 				if (newName != null && !newName.equals(newlyCreated.getName())) {
 					log.warn("getName on the created resource does not match the name requested by the client! requested: " + newName + " - created: " + newlyCreated.getName());
@@ -260,6 +255,7 @@ public class PutHandler implements Handler {
 				}
 				log.info( "autocreating new folder: " + path.getName());
 				CollectionResource newCol = mkcol.createCollection(path.getName());
+				RequestCachingResourceFactory.invalidate(host, path.toString());
 				manager.getEventManager().fireEvent(new NewFolderEvent(newCol));
 				return newCol;
 			} else {
@@ -292,52 +288,7 @@ public class PutHandler implements Handler {
 			Range range = putHelper.parseContentRange(replacee, request);
 			if (range != null) {
 				log.debug("partial put: " + range);
-				if (replacee instanceof PartialllyUpdateableResource) {
-					log.debug("doing partial put on a PartialllyUpdateableResource");
-					PartialllyUpdateableResource partialllyUpdateableResource = (PartialllyUpdateableResource) replacee;
-					partialllyUpdateableResource.replacePartialContent(range, request.getInputStream());
-				} else if (replacee instanceof GetableResource) {
-					log.debug("doing partial put on a GetableResource");
-					File tempFile = File.createTempFile("milton-partial", null);
-					RandomAccessFile randomAccessFile = null;
-
-					// The new length of the resource
-					long length;
-					try {
-						randomAccessFile = new RandomAccessFile(tempFile, "rw");
-						RandomFileOutputStream tempOut = new RandomFileOutputStream(tempFile);
-						GetableResource gr = (GetableResource) replacee;
-						// Update the content with the supplied partial content, and get the result as an inputstream
-						gr.sendContent(tempOut, null, null, null);
-
-						// Calculate new length, if the partial put is extending it
-						length = randomAccessFile.length();
-						if (range.getFinish() + 1 > length) {
-							length = range.getFinish() + 1;
-						}
-
-						randomAccessFile.setLength(length);
-						randomAccessFile.seek(range.getStart());
-
-						int numBytesRead;
-						byte[] copyBuffer = new byte[1024];
-						InputStream newContent = request.getInputStream();
-
-						while ((numBytesRead = newContent.read(copyBuffer)) != -1) {
-							randomAccessFile.write(copyBuffer, 0, numBytesRead);
-						}
-					} finally {
-						FileUtils.close(randomAccessFile);
-					}
-
-					InputStream updatedContent = new FileInputStream(tempFile);
-					BufferedInputStream bufin = new BufferedInputStream(updatedContent);
-
-					// Now, finally, we can just do a normal update
-					replacee.replaceContent(bufin, length);
-				} else {
-					throw new BadRequestException(replacee, "Cant apply partial update. Resource does not support PartialllyUpdateableResource or GetableResource");
-				}
+				putHelper.replacePartialContent(replacee, range, request.getInputStream());
 			} else {
 				// Not a partial update, but resource implements Replaceable, so give it the new data
 				Long l = request.getContentLengthHeader();
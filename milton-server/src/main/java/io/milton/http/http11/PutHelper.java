@@ -28,8 +28,24 @@ import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
 import io.milton.common.LogUtils;
+import io.milton.common.FileUtils;
+import io.milton.common.Stoppable;
+import io.milton.resource.ReplaceableResource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,9 +53,11 @@ import org.slf4j.LoggerFactory;
  * A collection of utility methods for PutHandler
  *
  */
-public class PutHelper {
+public class PutHelper implements Stoppable {
 
     private static final Logger log = LoggerFactory.getLogger( PutHelper.class );
+    private boolean streamingPartialUpdate;
+    private ExecutorService executor;
 
     /**
      * Largly copied from tomcat
@@ -200,4 +218,213 @@ public class PutHelper {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * Apply a partial update to the resource. Resources which implement
+     * PartialllyUpdateableResource are given the range to apply themselves.
+     * Otherwise the existing content is merged with the patch data and the
+     * result is given to replaceContent. If streamingPartialUpdate is true
+     * this is streamed directly from the existing content, otherwise the
+     * existing content is first copied to a temporary file.
+     *
+     * @param replacee
+     * @param range - the bytes to replace, zero based and inclusive
+     * @param in - the new data for the range
+     */
+    public void replacePartialContent(ReplaceableResource replacee, Range range, InputStream in) throws IOException, BadRequestException, NotAuthorizedException, ConflictException, NotFoundException {
+        if (replacee instanceof PartialllyUpdateableResource) {
+            log.debug("doing partial put on a PartialllyUpdateableResource");
+            ((PartialllyUpdateableResource) replacee).replacePartialContent(range, in);
+        } else if (replacee instanceof GetableResource) {
+            GetableResource gr = (GetableResource) replacee;
+            if (streamingPartialUpdate) {
+                log.debug("doing streaming partial put on a GetableResource");
+                Long length = gr.getContentLength();
+                if (length != null && range.getFinish() + 1 > length) {
+                    // the new length depends on how much patch data is sent,
+                    // which might be less than the range
+                    length = null;
+                }
+                PatchedInputStream patched = new PatchedInputStream(gr, range, in, executor());
+                try {
+                    replacee.replaceContent(patched, length);
+                } finally {
+                    patched.close();
+                }
+            } else {
+                log.debug("doing partial put on a GetableResource");
+                File tempFile = File.createTempFile("milton-partial", null);
+                try {
+                    FileOutputStream tempOut = new FileOutputStream(tempFile);
+                    try {
+                        BufferedOutputStream bufOut = new BufferedOutputStream(tempOut, 65536);
+                        gr.sendContent(bufOut, null, null, null);
+                        bufOut.flush();
+                    } finally {
+                        FileUtils.close(tempOut);
+                    }
+                    long length = patchFile(tempFile, range, in);
+                    InputStream updatedContent = new BufferedInputStream(new FileInputStream(tempFile), 65536);
+                    try {
+                        // Now, finally, we can just do a normal update
+                        replacee.replaceContent(updatedContent, length);
+                    } finally {
+                        FileUtils.close(updatedContent);
+                    }
+                } finally {
+                    if (!tempFile.delete()) {
+                        log.warn("Couldnt delete temp file: " + tempFile.getAbsolutePath());
+                    }
+                }
+            }
+        } else {
+            throw new BadRequestException(replacee, "Cant apply partial update. Resource does not support PartialllyUpdateableResource or GetableResource");
+        }
+    }
+
+    /**
+     * Write the data from the input stream into the file at the start of the
+     * range with positional channel writes, extending the file if required.
+     * No more than the length of the range is written
+     *
+     * @param file
+     * @param range
+     * @param in
+     * @return - the new length of the file
+     * @throws IOException
+     */
+    public static long patchFile(File file, Range range, InputStream in) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long pos = range.getStart();
+            long end = range.getFinish() + 1;
+            byte[] arr = new byte[65536];
+            ByteBuffer buf = ByteBuffer.wrap(arr);
+            while (pos < end) {
+                int n = in.read(arr, 0, (int) Math.min(arr.length, end - pos));
+                if (n < 0) {
+                    break;
+                }
+                buf.clear();
+                buf.limit(n);
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+            }
+            return channel.size();
+        } finally {
+            FileUtils.close(raf);
+        }
+    }
+
+    /**
+     * Parse the X-Update-Range header of a PATCH request, which is one of
+     * "append", "bytes=start-finish", "bytes=start-" or "bytes=-n", where the
+     * last means to replace the last n bytes. Open and suffix ranges are
+     * resolved using the length of the request body and the resource.
+     *
+     * @param r - the resource being updated
+     * @param request
+     * @return - the range to replace
+     * @throws BadRequestException - if the header is missing or invalid
+     */
+    public Range parseUpdateRange(Resource r, Request request) throws BadRequestException {
+        String s = request.getRequestHeader(Request.Header.X_UPDATE_RANGE);
+        if (s == null) {
+            throw new BadRequestException(r, "No " + Request.Header.X_UPDATE_RANGE.code + " header");
+        }
+        s = s.trim();
+        Long contentLength = (r instanceof GetableResource) ? ((GetableResource) r).getContentLength() : null;
+        Long bodyLength = getContentLength(request);
+        try {
+            if (s.equalsIgnoreCase("append")) {
+                if (contentLength == null || bodyLength == null) {
+                    throw new BadRequestException(r, "Cant append without knowing the resource and request lengths");
+                }
+                return checkRange(r, new Range(contentLength, contentLength + bodyLength - 1));
+            }
+            if (!s.startsWith("bytes=")) {
+                throw new BadRequestException(r, "Invalid update range: " + s);
+            }
+            s = s.substring(6).trim();
+            int dashPos = s.indexOf('-');
+            if (dashPos < 0) {
+                throw new BadRequestException(r, "Invalid update range: " + s);
+            }
+            String first = s.substring(0, dashPos).trim();
+            String last = s.substring(dashPos + 1).trim();
+            if (first.length() == 0) {
+                if (contentLength == null) {
+                    throw new BadRequestException(r, "Cant apply suffix range without knowing the resource length");
+                }
+                long n = Long.parseLong(last);
+                return checkRange(r, new Range(contentLength - n, contentLength - 1));
+            }
+            long start = Long.parseLong(first);
+            if (last.length() == 0) {
+                if (bodyLength == null) {
+                    throw new BadRequestException(r, "Cant apply open range without a content length");
+                }
+                return checkRange(r, new Range(start, start + bodyLength - 1));
+            }
+            return checkRange(r, new Range(start, Long.parseLong(last)));
+        } catch (NumberFormatException e) {
+            throw new BadRequestException(r, "Invalid update range: " + s);
+        }
+    }
+
+    private Range checkRange(Resource r, Range range) throws BadRequestException {
+        if (!validate(range)) {
+            throw new BadRequestException(r, "Invalid update range: " + range);
+        }
+        return range;
+    }
+
+    /**
+     * If true, partial updates to resources which are not
+     * PartialllyUpdateableResource are streamed from the existing content
+     * rather than being copied to a temporary file first. This requires that
+     * replaceContent does not overwrite the existing content until it has
+     * read the input stream, ie the resource uses copy-on-write. Default is
+     * false
+     *
+     * @return
+     */
+    public boolean isStreamingPartialUpdate() {
+        return streamingPartialUpdate;
+    }
+
+    public void setStreamingPartialUpdate(boolean streamingPartialUpdate) {
+        this.streamingPartialUpdate = streamingPartialUpdate;
+    }
+
+    /**
+     * Threads which read existing content for streaming partial updates. This
+     * is not bounded, since each update needs its own thread while the
+     * request thread waits on it
+     */
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "milton-partial-update-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
 }
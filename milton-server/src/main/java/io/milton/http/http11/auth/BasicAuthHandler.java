@@ -19,6 +19,7 @@ import io.milton.http.Auth;
 import io.milton.http.Auth.Scheme;
 import io.milton.http.AuthenticationHandler;
 import io.milton.http.Request;
+import io.milton.resource.RealmAuthenticatedResource;
 import io.milton.resource.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +31,7 @@ import org.slf4j.LoggerFactory;
 public class BasicAuthHandler implements AuthenticationHandler {
 
     private static final Logger log = LoggerFactory.getLogger( BasicAuthHandler.class );
+    private CredentialCache credentialCache;
 
 	@Override
     public boolean supports( Resource r, Request request ) {
@@ -45,7 +47,20 @@ public class BasicAuthHandler implements AuthenticationHandler {
     public Object authenticate( Resource resource, Request request ) {
         log.trace( "authenticate" );
         Auth auth = request.getAuthorization();
-        Object o = resource.authenticate( auth.getUser(), auth.getPassword() );
+        String realm = resource.getRealm();
+        boolean cacheable = isCacheable( resource );
+        Object o = null;
+        long generation = 0;
+        if( cacheable ) {
+            o = credentialCache.get( "Basic", realm, null, auth.getUser(), auth.getPassword() );
+            generation = credentialCache.getGeneration();
+        }
+        if( o == null ) {
+            o = resource.authenticate( auth.getUser(), auth.getPassword() );
+            if( o != null && cacheable ) {
+                credentialCache.put( "Basic", realm, null, auth.getUser(), auth.getPassword(), o, generation );
+            }
+        }
         log.trace( "result: {}", o );
         return o;
     }
@@ -62,4 +77,29 @@ public class BasicAuthHandler implements AuthenticationHandler {
     public boolean isCompatible( Resource resource, Request request ) {
         return true;
     }
+
+    /**
+     * A resource may decide for itself whether to accept a login, so logins
+     * are only cached for resources which declare that every resource in
+     * their realm would make the same decision
+     */
+    private boolean isCacheable( Resource resource ) {
+        return credentialCache != null && resource instanceof RealmAuthenticatedResource && resource.getRealm() != null;
+    }
+
+    /**
+     * If set, successful logins are remembered so the same credentials are
+     * not verified again until the entry expires. Only logins to a
+     * RealmAuthenticatedResource are cached, and they apply to every resource
+     * in its realm. Other resources are always asked
+     *
+     * @return
+     */
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    public void setCredentialCache( CredentialCache credentialCache ) {
+        this.credentialCache = credentialCache;
+    }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11.auth;
+
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the principals returned by successful logins, so that repeated
+ * requests with the same credentials do not need to be verified again, which
+ * can be slow when passwords are stored as strong hashes.
+ *
+ * Entries are keyed on an HMAC of the scheme, realm, resource, user and
+ * credential, with a random key, so credentials are not kept in memory.
+ * Entries expire after ttlSeconds, and the cache holds at most maxSize
+ * entries. The resource identifies what the login was verified against, and
+ * should be null only when the result does not depend on the resource, such
+ * as when a SecurityManager or a RealmAuthenticatedResource verifies it.
+ *
+ * When a user's password changes, or they are disabled, call invalidate so
+ * the old credentials are not accepted until they expire. To prevent a login
+ * which was being verified at the time from being cached afterwards, callers
+ * get the generation before verifying and pass it to put.
+ *
+ * Only successful logins are cached.
+ *
+ * @author brad
+ */
+public class CredentialCache {
+
+    private static final Logger log = LoggerFactory.getLogger(CredentialCache.class);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+    private int ttlSeconds = 300;
+    private int maxSize = 10000;
+
+    public CredentialCache() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     *
+     * @param scheme - eg Basic
+     * @param realm
+     * @param resource - identifies the resource the login is for, or null if
+     * the login does not depend on the resource
+     * @param user
+     * @param credential - the password, or other proof of identity given
+     * @return - the principal from a previous successful login with the same
+     * credentials, or null
+     */
+    public Object get(String scheme, String realm, String resource, String user, String credential) {
+        String k = keyOf(scheme, realm, resource, user, credential);
+        Entry e = entries.get(k);
+        if (e != null && e.expiresAt < System.currentTimeMillis()) {
+            entries.remove(k, e);
+            e = null;
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        log.trace("found cached login for: {}", user);
+        return e.principal;
+    }
+
+    /**
+     *
+     * @return - a value which changes whenever entries are invalidated. Get
+     * this before verifying a login which will be passed to put
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Remember a successful login, unless there has been an invalidation since
+     * the generation was read
+     *
+     * @param scheme
+     * @param realm
+     * @param resource
+     * @param user
+     * @param credential
+     * @param principal
+     * @param generation - the value of getGeneration from before the login
+     * was verified
+     */
+    public void put(String scheme, String realm, String resource, String user, String credential, Object principal, long generation) {
+        if (principal == null || generation != this.generation.get()) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            removeEntries();
+        }
+        String k = keyOf(scheme, realm, resource, user, credential);
+        Entry e = new Entry(user, principal, System.currentTimeMillis() + ttlSeconds * 1000L);
+        entries.put(k, e);
+        if (generation != this.generation.get()) {
+            // invalidated while adding, and the invalidation might not have seen this entry
+            entries.remove(k, e);
+        }
+    }
+
+    /**
+     * Remove all cached logins for the user, such as when their password
+     * changes
+     *
+     * @param user - the user name as given in the login
+     */
+    public void invalidate(String user) {
+        generation.incrementAndGet();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.user != null && e.user.equals(user)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     *
+     * @return - the proportion of lookups which found a cached login, between 0
+     * and 1
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * How long a successful login is remembered. Default is 300
+     *
+     * @return
+     */
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * The maximum number of logins to remember. Default is 10000
+     *
+     * @return
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Remove expired entries, and if that is not enough remove others too
+     */
+    private void removeEntries() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt < now) {
+                it.remove();
+            }
+        }
+        int toRemove = entries.size() - maxSize * 9 / 10;
+        if (toRemove > 0) {
+            log.debug("credential cache is full, discarding: " + toRemove);
+            it = entries.values().iterator();
+            while (it.hasNext() && toRemove-- > 0) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private String keyOf(String scheme, String realm, String resource, String user, String credential) {
+        Mac mac = macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            } catch (InvalidKeyException ex) {
+                throw new RuntimeException(ex);
+            }
+            macs.set(mac);
+        }
+        update(mac, scheme);
+        update(mac, realm);
+        update(mac, resource);
+        update(mac, user);
+        update(mac, credential);
+        return new String(Hex.encodeHex(mac.doFinal()));
+    }
+
+    /**
+     * Each field is prefixed with its length, so that fields can't run into
+     * each other
+     */
+    private void update(Mac mac, String s) {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(UTF8);
+        int len = s == null ? -1 : bytes.length;
+        mac.update(new byte[]{(byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len});
+        mac.update(bytes);
+    }
+
+    private static class Entry {
+
+        final String user;
+        final Object principal;
+        final long expiresAt;
+
+        Entry(String user, Object principal, long expiresAt) {
+            this.user = user;
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11.auth;
+
+import io.milton.http.Request;
+import io.milton.resource.Resource;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A nonce provider which does not store the nonces it issues. Each nonce
+ * contains the time it was issued and some random bytes, signed with an HMAC,
+ * so it can be validated by any server which has the same secret.
+ *
+ * To share nonces across a cluster give each server the same secret. If no
+ * secret is given a random one is generated, so nonces will only be valid on
+ * this server and until it is restarted.
+ *
+ * If nonce-count checking is enabled, a small window is kept for each nonce
+ * which has been used with a nonce-count, recording which of the last 32 counts
+ * have been seen. This rejects replayed counts while still allowing counts to
+ * arrive out of order, as IE sends them. Windows are only kept by the server
+ * which received the requests, and are discarded when the nonce expires, or
+ * when there are more than maxWindows of them.
+ *
+ * @author brad
+ */
+public class HmacNonceProvider implements NonceProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(HmacNonceProvider.class);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int RANDOM_BYTES = 8;
+    private static final int MAC_BYTES = 16;
+    private static final int WINDOW_SIZE = 32;
+    private final int nonceValiditySeconds;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+    private final ConcurrentHashMap<String, ReplayWindow> windows = new ConcurrentHashMap<String, ReplayWindow>();
+    private boolean enableNonceCountChecking;
+    private int maxWindows = 100000;
+
+    /**
+     *
+     * @param nonceValiditySeconds
+     * @param secret - the key used to sign nonces. Must be the same on all
+     * servers which should accept each other's nonces
+     */
+    public HmacNonceProvider(int nonceValiditySeconds, byte[] secret) {
+        this.nonceValiditySeconds = nonceValiditySeconds;
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Uses a random secret, so nonces are only valid on this server
+     *
+     * @param nonceValiditySeconds
+     */
+    public HmacNonceProvider(int nonceValiditySeconds) {
+        this(nonceValiditySeconds, randomSecret());
+        log.info("Created HmacNonceProvider with a random secret, nonces will not be valid on other servers");
+    }
+
+    @Override
+    public String createNonce(Resource resource, Request request) {
+        ByteBuffer b = ByteBuffer.allocate(8 + RANDOM_BYTES + MAC_BYTES);
+        b.putLong(System.currentTimeMillis());
+        byte[] rnd = new byte[RANDOM_BYTES];
+        random.nextBytes(rnd);
+        b.put(rnd);
+        b.put(sign(b.array(), 8 + RANDOM_BYTES));
+        return new String(Hex.encodeHex(b.array()));
+    }
+
+    @Override
+    public NonceValidity getNonceValidity(String nonce, Long nc) {
+        byte[] data;
+        try {
+            data = Hex.decodeHex(nonce.toCharArray());
+        } catch (DecoderException e) {
+            log.warn("couldnt parse nonce");
+            return NonceValidity.INVALID;
+        }
+        if (data.length != 8 + RANDOM_BYTES + MAC_BYTES) {
+            log.warn("couldnt parse nonce");
+            return NonceValidity.INVALID;
+        }
+        byte[] expected = sign(data, 8 + RANDOM_BYTES);
+        byte[] given = new byte[MAC_BYTES];
+        System.arraycopy(data, 8 + RANDOM_BYTES, given, 0, MAC_BYTES);
+        if (!MessageDigest.isEqual(expected, given)) {
+            log.warn("nonce signature is not valid");
+            return NonceValidity.INVALID;
+        }
+        long issued = ByteBuffer.wrap(data).getLong();
+        if (isExpired(issued)) {
+            log.debug("nonce has expired");
+            windows.remove(nonce);
+            return NonceValidity.EXPIRED;
+        }
+        if (nc == null || !enableNonceCountChecking) {
+            log.trace("nonce ok");
+            return NonceValidity.OK;
+        }
+        ReplayWindow window = windows.get(nonce);
+        if (window == null) {
+            if (windows.size() >= maxWindows) {
+                removeWindows();
+            }
+            ReplayWindow newWindow = new ReplayWindow(issued);
+            window = windows.putIfAbsent(nonce, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+        if (window.accept(nc)) {
+            log.trace("nonce and nonce-count ok");
+            return NonceValidity.OK;
+        } else {
+            log.warn("nonce-count has already been used, or is too old, possible replay attack. nc: " + nc);
+            return NonceValidity.INVALID;
+        }
+    }
+
+    /**
+     * Remove windows of expired nonces. If that is not enough, remove others
+     * too, which would allow counts on those nonces to be replayed
+     */
+    private void removeWindows() {
+        Iterator<ReplayWindow> it = windows.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next().issued)) {
+                it.remove();
+            }
+        }
+        if (windows.size() >= maxWindows) {
+            log.warn("Too many nonce-count windows, discarding some: " + windows.size());
+            it = windows.values().iterator();
+            int toRemove = windows.size() - maxWindows * 9 / 10;
+            while (it.hasNext() && toRemove-- > 0) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isExpired(long issued) {
+        long dif = (System.currentTimeMillis() - issued) / 1000;
+        return dif > nonceValiditySeconds || dif < -60; // allow for some clock skew between servers
+    }
+
+    private byte[] sign(byte[] data, int length) {
+        Mac mac = macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            } catch (InvalidKeyException ex) {
+                throw new RuntimeException(ex);
+            }
+            macs.set(mac);
+        }
+        mac.update(data, 0, length);
+        byte[] result = new byte[MAC_BYTES];
+        System.arraycopy(mac.doFinal(), 0, result, 0, MAC_BYTES);
+        return result;
+    }
+
+    private static byte[] randomSecret() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+
+    /**
+     * See SimpleMemoryNonceProvider.isEnableNonceCountChecking. Unlike that
+     * provider, counts may arrive in any order, but each can only be used once
+     *
+     * @return
+     */
+    public boolean isEnableNonceCountChecking() {
+        return enableNonceCountChecking;
+    }
+
+    public void setEnableNonceCountChecking(boolean enableNonceCountChecking) {
+        this.enableNonceCountChecking = enableNonceCountChecking;
+    }
+
+    /**
+     * The maximum number of nonces to record nonce-counts for. Default is
+     * 100000
+     *
+     * @return
+     */
+    public int getMaxWindows() {
+        return maxWindows;
+    }
+
+    public void setMaxWindows(int maxWindows) {
+        this.maxWindows = maxWindows;
+    }
+
+    int getWindowCount() {
+        return windows.size();
+    }
+
+    /**
+     * The highest nonce-count seen, in the high 32 bits, and a bit for each of
+     * the 32 counts up to and including it, in the low 32 bits. Updated with
+     * compare and set, so no locking is needed
+     */
+    private static class ReplayWindow {
+
+        final long issued;
+        final AtomicLong state = new AtomicLong();
+
+        ReplayWindow(long issued) {
+            this.issued = issued;
+        }
+
+        boolean accept(long nc) {
+            if (nc < 0 || nc > 0xFFFFFFFFL) {
+                return false; // nc is 8 hex digits
+            }
+            while (true) {
+                long current = state.get();
+                long highest = current >>> 32;
+                long seen = current & 0xFFFFFFFFL;
+                long updated;
+                if (nc > highest) {
+                    long shift = nc - highest;
+                    seen = shift >= WINDOW_SIZE ? 1 : ((seen << shift) | 1) & 0xFFFFFFFFL;
+                    updated = (nc << 32) | seen;
+                } else {
+                    long age = highest - nc;
+                    if (age >= WINDOW_SIZE || (seen & (1L << age)) != 0) {
+                        return false;
+                    }
+                    updated = (highest << 32) | seen | (1L << age);
+                }
+                if (state.compareAndSet(current, updated)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
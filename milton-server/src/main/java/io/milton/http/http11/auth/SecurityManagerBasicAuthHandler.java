@@ -32,6 +32,7 @@ public class SecurityManagerBasicAuthHandler implements AuthenticationHandler {
 
     private static final Logger log = LoggerFactory.getLogger(SecurityManagerBasicAuthHandler.class);
     private final io.milton.http.SecurityManager securityManager;
+    private CredentialCache credentialCache;
 
     public SecurityManagerBasicAuthHandler(SecurityManager securityManager) {
         this.securityManager = securityManager;
@@ -54,7 +55,19 @@ public class SecurityManagerBasicAuthHandler implements AuthenticationHandler {
     public Object authenticate(Resource resource, Request request) {
         log.debug("authenticate");
         Auth auth = request.getAuthorization();
-        Object o = securityManager.authenticate(auth.getUser(), auth.getPassword());
+        String realm = securityManager.getRealm(request.getHostHeader());
+        Object o = null;
+        long generation = 0;
+        if (credentialCache != null) {
+            o = credentialCache.get("Basic", realm, null, auth.getUser(), auth.getPassword());
+            generation = credentialCache.getGeneration();
+        }
+        if (o == null) {
+            o = securityManager.authenticate(auth.getUser(), auth.getPassword());
+            if (o != null && credentialCache != null) {
+                credentialCache.put("Basic", realm, null, auth.getUser(), auth.getPassword(), o, generation);
+            }
+        }
         log.debug("result: " + o);
         return o;
     }
@@ -73,4 +86,18 @@ public class SecurityManagerBasicAuthHandler implements AuthenticationHandler {
     public SecurityManager getSecurityManager() {
         return securityManager;
     }
+
+    /**
+     * If set, successful logins are remembered so the security manager is not
+     * asked to verify the same credentials again until the entry expires
+     *
+     * @return
+     */
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    public void setCredentialCache(CredentialCache credentialCache) {
+        this.credentialCache = credentialCache;
+    }
 }
@@ -95,8 +95,10 @@ public class SimpleMemoryNonceProvider implements NonceProvider {
         }
         Nonce n = nonces.get(value);
         if (n == null) {
+            // probably issued by us but since removed, or issued before a restart. Treat as expired
+            // so the client is sent a stale challenge, and can retry with a new nonce without asking the user
             log.debug("not found in map of size: " + nonces.size());
-            return NonceValidity.INVALID;
+            return NonceValidity.EXPIRED;
         } else {
             if (isExpired(n.getIssued())) {
                 log.debug("nonce has expired");
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.report;
+
+import io.milton.http.HttpManager;
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.resource.Resource;
+import java.io.UnsupportedEncodingException;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.jdom.Document;
+
+/**
+ * Base class for StreamingReport implementations, which supports the older
+ * Report method by converting the document and buffering the response.
+ *
+ * The parser used to convert documents is created when first needed, so
+ * reports which are only called with a ReportRequest never create one.
+ *
+ * @author brad
+ */
+public abstract class AbstractStreamingReport implements StreamingReport {
+
+	private ReportRequestParser documentParser;
+
+	@Override
+	public String process(String host, String path, Resource r, Document doc) throws BadRequestException, ConflictException, NotAuthorizedException {
+		if (documentParser == null) {
+			documentParser = new ReportRequestParser();
+		}
+		Response.Entity entity = process(host, path, r, documentParser.parse(doc));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			// entities may need the response, eg to add headers, so pass the current one
+			entity.write(HttpManager.response(), out);
+		} catch (BadRequestException ex) {
+			throw ex;
+		} catch (ConflictException ex) {
+			throw ex;
+		} catch (NotAuthorizedException ex) {
+			throw ex;
+		} catch (RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new RuntimeException("Exception writing report: " + getName(), ex);
+		}
+		try {
+			return out.toString("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.report;
+
+import io.milton.http.ResourceFactory;
+import io.milton.http.Response;
+import io.milton.http.values.ValueAndType;
+import io.milton.http.webdav.PropFindPropertyBuilder;
+import io.milton.http.webdav.PropFindXmlGenerator;
+import io.milton.http.webdav.PropFindXmlGenerator.MultiStatusWriter;
+import io.milton.http.webdav.PropertiesRequest;
+import io.milton.resource.PropFindableResource;
+import io.milton.resource.Resource;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the response for a multiget style report, ie one which returns the
+ * requested properties for a list of hrefs, such as calendar-multiget and
+ * addressbook-multiget.
+ *
+ * Hrefs are resolved and their properties loaded in batches, so that bulk
+ * loading is still possible while memory use does not grow with the number of
+ * hrefs requested. Hrefs which are not found are ignored.
+ *
+ * @author brad
+ */
+public class MultiGetEntity implements Response.Entity {
+
+	private static final Logger log = LoggerFactory.getLogger(MultiGetEntity.class);
+	public static final int BATCH_SIZE = 100;
+	private final ResourceFactory resourceFactory;
+	private final PropFindPropertyBuilder propertyBuilder;
+	private final PropFindXmlGenerator xmlGenerator;
+	private final String host;
+	private final Resource parent;
+	private final List<String> hrefs;
+	private final PropertiesRequest parseResult;
+
+	/**
+	 *
+	 * @param resourceFactory - to locate the resources
+	 * @param propertyBuilder
+	 * @param xmlGenerator
+	 * @param host
+	 * @param parent - the resource the report was requested on, used for bulk
+	 * loading
+	 * @param hrefs - the requested hrefs
+	 * @param parseResult - the requested properties
+	 */
+	public MultiGetEntity(ResourceFactory resourceFactory, PropFindPropertyBuilder propertyBuilder, PropFindXmlGenerator xmlGenerator, String host, Resource parent, List<String> hrefs, PropertiesRequest parseResult) {
+		this.resourceFactory = resourceFactory;
+		this.propertyBuilder = propertyBuilder;
+		this.xmlGenerator = xmlGenerator;
+		this.host = host;
+		this.parent = parent;
+		this.hrefs = hrefs;
+		this.parseResult = parseResult;
+	}
+
+	@Override
+	public void write(Response response, OutputStream outputStream) throws Exception {
+		MultiStatusWriter writer = xmlGenerator.begin(parseResult.getNames(), outputStream);
+		List<PropFindableResource> resources = new ArrayList<PropFindableResource>(BATCH_SIZE);
+		List<String> resourceHrefs = new ArrayList<String>(BATCH_SIZE);
+		for (String href : hrefs) {
+			Resource r = resourceFactory.getResource(host, href);
+			if (r == null) {
+				log.warn("requested href not found: " + href + " on resource factory: " + resourceFactory.getClass());
+			} else if (!(r instanceof PropFindableResource)) {
+				log.warn("requested href is for a non PropFindableResource: " + r.getClass() + " - " + href);
+			} else {
+				resources.add((PropFindableResource) r);
+				resourceHrefs.add(href);
+				if (resources.size() >= BATCH_SIZE) {
+					writeBatch(writer, resources, resourceHrefs);
+				}
+			}
+		}
+		writeBatch(writer, resources, resourceHrefs);
+		writer.finish();
+	}
+
+	private void writeBatch(MultiStatusWriter writer, List<PropFindableResource> resources, List<String> resourceHrefs) throws Exception {
+		if (resources.isEmpty()) {
+			return;
+		}
+		// Load properties for the batch together, where supported
+		Map<Resource, Map<QName, ValueAndType>> preloaded = propertyBuilder.loadProperties(parent, resources, parseResult);
+		for (int i = 0; i < resources.size(); i++) {
+			PropFindableResource pfr = resources.get(i);
+			String href = resourceHrefs.get(i);
+			try {
+				propertyBuilder.buildProperties(pfr, 0, parseResult, href, preloaded.get(pfr), writer);
+			} catch (URISyntaxException ex) {
+				throw new RuntimeException("There was an unencoded url requested: " + href, ex);
+			}
+		}
+		resources.clear();
+		resourceHrefs.clear();
+	}
+
+	public List<String> getHrefs() {
+		return hrefs;
+	}
+
+	public PropertiesRequest getParseResult() {
+		return parseResult;
+	}
+}
@@ -22,18 +22,22 @@ import io.milton.http.Request.Method;
 import io.milton.resource.Resource;
 import io.milton.http.ResourceHandlerHelper;
 import io.milton.http.Response;
+import io.milton.http.XmlWriter;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.webdav.StreamingResponseHandler;
+import io.milton.http.webdav.WebDavProtocol;
 import io.milton.http.webdav.WebDavResponseHandler;
 import io.milton.common.ReadingException;
 import io.milton.common.WritingException;
 import io.milton.resource.ReportableResource;
 import io.milton.http.entity.ByteArrayEntity;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.logging.Level;
-import org.jdom.JDOMException;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +51,7 @@ public class ReportHandler implements ExistingEntityHandler {
 	private final WebDavResponseHandler responseHandler;
 	private final ResourceHandlerHelper resourceHandlerHelper;
 	private final Map<String, Report> reports;
+	private ReportRequestParser requestParser = new ReportRequestParser();
 
 	public ReportHandler(WebDavResponseHandler responseHandler, ResourceHandlerHelper resourceHandlerHelper, Map<String, Report> reports) {
 		this.responseHandler = responseHandler;
@@ -72,22 +77,42 @@ public class ReportHandler implements ExistingEntityHandler {
 	@Override
 	public void processExistingResource(HttpManager manager, Request request, Response response, Resource resource) throws NotAuthorizedException, BadRequestException, ConflictException {
 		try {
-			org.jdom.input.SAXBuilder builder = new org.jdom.input.SAXBuilder();
-			org.jdom.Document doc = builder.build(request.getInputStream());
-			String reportName = doc.getRootElement().getName();
+			ReportRequest reportRequest = requestParser.parse(request.getInputStream(), documentReports());
+			String reportName = reportRequest.getName().getLocalPart();
 			Report r = reports.get(reportName);
 			if (r == null) {
 				log.error("report not known: " + reportName);
 				throw new BadRequestException(resource);
-			} else {
-				log.trace("process report: " + reportName + " with : " + r.getClass());
-				String xml = r.process(request.getHostHeader(), request.getAbsolutePath(), resource, doc);
-				response.setStatus(Response.Status.SC_MULTI_STATUS);
+			}
+			log.trace("process report: " + reportName + " with : " + r.getClass());
+			try {
+				Response.Entity entity;
+				if (r instanceof StreamingReport) {
+					entity = ((StreamingReport) r).process(request.getHostHeader(), request.getAbsolutePath(), resource, reportRequest);
+				} else {
+					String xml = r.process(request.getHostHeader(), request.getAbsolutePath(), resource, reportRequest.toDocument());
+					entity = new ByteArrayEntity(xml.getBytes("UTF-8"));
+				}
+				if (responseHandler instanceof StreamingResponseHandler) {
+					((StreamingResponseHandler) responseHandler).respondReport(resource, response, request, entity);
+				} else {
+					response.setStatus(Response.Status.SC_MULTI_STATUS);
+					response.setContentTypeHeader("text/xml");
+					response.setEntity(entity);
+				}
+			} catch (ReportPreconditionException ex) {
+				log.info("report precondition failed: " + ex.getPrecondition());
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				XmlWriter writer = new XmlWriter(bout);
+				writer.writeXMLHeader();
+				writer.writeElement(WebDavProtocol.NS_DAV.getPrefix(), WebDavProtocol.NS_DAV.getName(), "error", XmlWriter.Type.OPENING);
+				writer.writeElement(WebDavProtocol.NS_DAV.getPrefix(), ex.getPrecondition(), XmlWriter.Type.NO_CONTENT);
+				writer.close(WebDavProtocol.NS_DAV.getPrefix(), "error");
+				writer.flush();
+				response.setStatus(Response.Status.SC_FORBIDDEN);
 				response.setContentTypeHeader("text/xml");
-				response.setEntity(new ByteArrayEntity(xml.getBytes("UTF-8")));
+				response.setEntity(new ByteArrayEntity(bout.toByteArray()));
 			}
-		} catch (JDOMException ex) {
-			java.util.logging.Logger.getLogger(ReportHandler.class.getName()).log(Level.SEVERE, null, ex);
 		} catch (ReadingException ex) {
 			throw new RuntimeException(ex);
 		} catch (WritingException ex) {
@@ -97,6 +122,27 @@ public class ReportHandler implements ExistingEntityHandler {
 		}
 	}
 
+	/**
+	 * The names of reports which need the request as a JDOM document
+	 */
+	private Set<String> documentReports() {
+		Set<String> names = new HashSet<String>();
+		for (Map.Entry<String, Report> e : reports.entrySet()) {
+			if (!(e.getValue() instanceof StreamingReport)) {
+				names.add(e.getKey());
+			}
+		}
+		return names;
+	}
+
+	public ReportRequestParser getRequestParser() {
+		return requestParser;
+	}
+
+	public void setRequestParser(ReportRequestParser requestParser) {
+		this.requestParser = requestParser;
+	}
+
 	@Override
 	public boolean isCompatible(Resource res) {
 		return (res instanceof ReportableResource);
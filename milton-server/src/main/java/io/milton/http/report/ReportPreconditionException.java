@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.report;
+
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.resource.Resource;
+
+/**
+ * Thrown by a Report when a precondition defined by its specification has
+ * failed. The ReportHandler will respond with a 403 and an error element
+ * naming the precondition, eg DAV:valid-sync-token
+ *
+ * @author brad
+ */
+public class ReportPreconditionException extends BadRequestException {
+
+	private static final long serialVersionUID = 1L;
+	private final String precondition;
+
+	/**
+	 *
+	 * @param r
+	 * @param precondition - local name of the precondition element, in the DAV:
+	 * namespace
+	 */
+	public ReportPreconditionException(Resource r, String precondition) {
+		super(r, "Precondition failed: " + precondition);
+		this.precondition = precondition;
+	}
+
+	public String getPrecondition() {
+		return precondition;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.report;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.jdom.Document;
+
+/**
+ * A lightweight model of a REPORT request body, as produced by
+ * ReportRequestParser.
+ *
+ * The parts which can be large are held in compact form: the names in the
+ * DAV:prop element and the text of DAV:href elements which are immediate
+ * children of the root. Everything else (eg filters) is held as a simple
+ * element tree from getRoot, which does not include those prop and href
+ * elements. Content nested inside the requested property elements (such as
+ * the children of CALDAV:calendar-data) is not retained.
+ *
+ * For reports which have not been ported to StreamingReport the parser can
+ * also keep the whole request as a JDOM document, see toDocument
+ *
+ * @author brad
+ */
+public class ReportRequest {
+
+	private final Element root;
+	private final Set<QName> properties = new LinkedHashSet<QName>();
+	private final List<String> hrefs = new ArrayList<String>();
+	private boolean allProp;
+	private boolean propName;
+	private Document document;
+
+	public ReportRequest(Element root) {
+		this.root = root;
+	}
+
+	/**
+	 * The name of the root element, which identifies the report
+	 *
+	 * @return
+	 */
+	public QName getName() {
+		return root.getName();
+	}
+
+	/**
+	 * The root element, excluding the DAV:prop and DAV:href children
+	 *
+	 * @return
+	 */
+	public Element getRoot() {
+		return root;
+	}
+
+	/**
+	 * Names of the properties requested in the DAV:prop element, in document
+	 * order
+	 *
+	 * @return
+	 */
+	public Set<QName> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * The text of each DAV:href element which is an immediate child of the root,
+	 * in document order
+	 *
+	 * @return
+	 */
+	public List<String> getHrefs() {
+		return hrefs;
+	}
+
+	/**
+	 * True if the request contained a DAV:allprop element
+	 *
+	 * @return
+	 */
+	public boolean isAllProp() {
+		return allProp;
+	}
+
+	public void setAllProp(boolean allProp) {
+		this.allProp = allProp;
+	}
+
+	/**
+	 * True if the request contained a DAV:propname element
+	 *
+	 * @return
+	 */
+	public boolean isPropName() {
+		return propName;
+	}
+
+	public void setPropName(boolean propName) {
+		this.propName = propName;
+	}
+
+	/**
+	 * The request body as it was parsed, for reports which have not been
+	 * ported to StreamingReport
+	 *
+	 * @return
+	 * @throws IllegalStateException - if the parser was not asked to keep the
+	 * document, see ReportRequestParser.parse(InputStream, Set)
+	 */
+	public Document toDocument() {
+		if (document == null) {
+			throw new IllegalStateException("The request document was not kept for report: " + root.getName());
+		}
+		return document;
+	}
+
+	public void setDocument(Document document) {
+		this.document = document;
+	}
+
+	/**
+	 * A simple xml element, holding only what reports need: the name,
+	 * unqualified attributes, text and child elements
+	 */
+	public static class Element {
+
+		private final QName name;
+		private final Map<String, String> attributes;
+		private final List<Element> children = new ArrayList<Element>();
+		private String text;
+
+		public Element(QName name, Map<String, String> attributes) {
+			this.name = name;
+			this.attributes = attributes == null ? Collections.<String, String>emptyMap() : attributes;
+		}
+
+		public QName getName() {
+			return name;
+		}
+
+		public Map<String, String> getAttributes() {
+			return attributes;
+		}
+
+		public String getAttribute(String localName) {
+			return attributes.get(localName);
+		}
+
+		/**
+		 *
+		 * @return - the trimmed text content, or null if there was none
+		 */
+		public String getText() {
+			return text;
+		}
+
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		public List<Element> getChildren() {
+			return children;
+		}
+
+		/**
+		 * Find the first child with the given name
+		 *
+		 * @param namespaceUri
+		 * @param localName
+		 * @return - the child, or null if not found
+		 */
+		public Element getChild(String namespaceUri, String localName) {
+			for (Element el : children) {
+				if (el.name.getLocalPart().equals(localName) && el.name.getNamespaceURI().equals(namespaceUri)) {
+					return el;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Find all children with the given name
+		 *
+		 * @param namespaceUri
+		 * @param localName
+		 * @return
+		 */
+		public List<Element> getChildren(String namespaceUri, String localName) {
+			List<Element> list = new ArrayList<Element>();
+			for (Element el : children) {
+				if (el.name.getLocalPart().equals(localName) && el.name.getNamespaceURI().equals(namespaceUri)) {
+					list.add(el);
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			return name.toString();
+		}
+	}
+}
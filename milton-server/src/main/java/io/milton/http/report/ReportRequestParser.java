@@ -0,0 +1,325 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.report;
+
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.webdav.WebDavProtocol;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.jdom.Attribute;
+import org.jdom.Document;
+import org.jdom.Text;
+import org.jdom.input.SAXHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses a REPORT request body into a ReportRequest with a SAX parser, so no
+ * document tree is built for the (possibly very long) lists of hrefs and
+ * property names.
+ *
+ * Reports which have not been ported to StreamingReport need the whole
+ * document, so for those the parser also builds a JDOM document from the same
+ * parse events, see parse(InputStream, Set).
+ *
+ * DTDs are rejected where the underlying parser supports it. If it does not
+ * support a feature a warning is logged and the parser is used without it.
+ *
+ * @author brad
+ */
+public class ReportRequestParser {
+
+	private static final Logger log = LoggerFactory.getLogger(ReportRequestParser.class);
+	private final SAXParserFactory factory;
+
+	public ReportRequestParser() {
+		factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		// request bodies have no need for a DTD, and allowing one permits entity expansion attacks
+		setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		setFeature("http://xml.org/sax/features/external-general-entities", false);
+		setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+	}
+
+	private void setFeature(String name, boolean value) {
+		try {
+			factory.setFeature(name, value);
+		} catch (Exception e) {
+			log.warn("Parser does not support feature: " + name + " on " + factory.getClass() + " - " + e);
+		}
+	}
+
+	/**
+	 *
+	 * @param in - the request body
+	 * @return
+	 * @throws BadRequestException - if the body is not well formed xml
+	 * @throws IOException
+	 */
+	public ReportRequest parse(InputStream in) throws BadRequestException, IOException {
+		return parse(in, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Parse the request body, and if the local name of the root element is one
+	 * of the given report names also keep the body as a JDOM document, see
+	 * ReportRequest.toDocument
+	 *
+	 * @param in - the request body
+	 * @param documentReports - the names of reports which need the document
+	 * @return
+	 * @throws BadRequestException - if the body is not well formed xml
+	 * @throws IOException
+	 */
+	public ReportRequest parse(InputStream in, Set<String> documentReports) throws BadRequestException, IOException {
+		Handler handler = new Handler(documentReports);
+		try {
+			SAXParser parser = factory.newSAXParser();
+			parser.parse(in, handler);
+		} catch (ParserConfigurationException ex) {
+			throw new RuntimeException(ex);
+		} catch (SAXException ex) {
+			throw new BadRequestException("Invalid report request: " + ex.getMessage());
+		}
+		ReportRequest result = handler.builder.result;
+		if (result == null) {
+			throw new BadRequestException("Empty report request");
+		}
+		if (handler.documentHandler != null) {
+			result.setDocument(handler.documentHandler.getDocument());
+		}
+		return result;
+	}
+
+	/**
+	 * Build a ReportRequest from an already parsed document
+	 *
+	 * @param doc
+	 * @return
+	 */
+	public ReportRequest parse(Document doc) {
+		Builder builder = new Builder();
+		walk(builder, doc.getRootElement());
+		builder.result.setDocument(doc);
+		return builder.result;
+	}
+
+	private void walk(Builder builder, org.jdom.Element el) {
+		Map<String, String> map = null;
+		for (Object o : el.getAttributes()) {
+			Attribute att = (Attribute) o;
+			if (att.getNamespaceURI().length() == 0) {
+				if (map == null) {
+					map = new LinkedHashMap<String, String>();
+				}
+				map.put(att.getName(), att.getValue());
+			}
+		}
+		builder.start(el.getNamespaceURI(), el.getName(), el.getNamespacePrefix(), map);
+		for (Object o : el.getContent()) {
+			if (o instanceof org.jdom.Element) {
+				walk(builder, (org.jdom.Element) o);
+			} else if (o instanceof Text) {
+				char[] chars = ((Text) o).getText().toCharArray();
+				builder.characters(chars, 0, chars.length);
+			}
+		}
+		builder.end();
+	}
+
+	/**
+	 * Passes SAX events to the Builder and, until it is known not to be needed,
+	 * to a JDOM SAXHandler which builds the document
+	 */
+	private static class Handler extends DefaultHandler {
+
+		private final Builder builder = new Builder();
+		private final Set<String> documentReports;
+		private SAXHandler documentHandler = new SAXHandler();
+		private boolean started;
+
+		Handler(Set<String> documentReports) {
+			this.documentReports = documentReports;
+		}
+
+		@Override
+		public void startDocument() {
+			documentHandler.startDocument();
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) throws SAXException {
+			if (documentHandler != null) {
+				documentHandler.startPrefixMapping(prefix, uri);
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			if (!started) {
+				started = true;
+				if (!documentReports.contains(localName)) {
+					documentHandler = null;
+				}
+			}
+			Map<String, String> map = null;
+			for (int i = 0; i < atts.getLength(); i++) {
+				if (atts.getURI(i).length() == 0) {
+					if (map == null) {
+						map = new LinkedHashMap<String, String>();
+					}
+					map.put(atts.getLocalName(i), atts.getValue(i));
+				}
+			}
+			int pos = qName.indexOf(':');
+			builder.start(uri, localName, pos > 0 ? qName.substring(0, pos) : "", map);
+			if (documentHandler != null) {
+				documentHandler.startElement(uri, localName, qName, atts);
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			builder.characters(ch, start, length);
+			if (documentHandler != null) {
+				documentHandler.characters(ch, start, length);
+			}
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+			if (documentHandler != null) {
+				documentHandler.ignorableWhitespace(ch, start, length);
+			}
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) throws SAXException {
+			if (documentHandler != null) {
+				documentHandler.processingInstruction(target, data);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			builder.end();
+			if (documentHandler != null) {
+				documentHandler.endElement(uri, localName, qName);
+			}
+		}
+	}
+
+	/**
+	 * Receives parse events and builds the ReportRequest. The DAV:prop and
+	 * DAV:href children of the root are collected into compact form, everything
+	 * else goes into the element tree
+	 */
+	private static class Builder {
+
+		private final Deque<ReportRequest.Element> stack = new ArrayDeque<ReportRequest.Element>();
+		private final Deque<StringBuilder> texts = new ArrayDeque<StringBuilder>();
+		private final StringBuilder hrefText = new StringBuilder();
+		private ReportRequest result;
+		private int depth;
+		private int skipFrom; // depth at which we started ignoring content, or 0
+		private boolean inProp;
+		private boolean inHref;
+
+		void start(String uri, String localName, String prefix, Map<String, String> atts) {
+			depth++;
+			if (skipFrom > 0) {
+				return;
+			}
+			if (inProp) {
+				result.getProperties().add(new QName(uri, localName, prefix));
+				skipFrom = depth; // ignore anything nested inside the property
+				return;
+			}
+			if (depth == 2 && WebDavProtocol.DAV_URI.equals(uri)) {
+				if (localName.equals("prop")) {
+					inProp = true;
+					return;
+				} else if (localName.equals("href")) {
+					inHref = true;
+					hrefText.setLength(0);
+					return;
+				} else if (localName.equals("allprop")) {
+					result.setAllProp(true);
+					skipFrom = depth;
+					return;
+				} else if (localName.equals("propname")) {
+					result.setPropName(true);
+					skipFrom = depth;
+					return;
+				}
+			}
+			ReportRequest.Element el = new ReportRequest.Element(new QName(uri, localName, prefix), atts);
+			if (stack.isEmpty()) {
+				result = new ReportRequest(el);
+			} else {
+				stack.peek().getChildren().add(el);
+			}
+			stack.push(el);
+			texts.push(new StringBuilder());
+		}
+
+		void characters(char[] ch, int start, int length) {
+			if (skipFrom > 0 || inProp) {
+				return;
+			}
+			if (inHref) {
+				hrefText.append(ch, start, length);
+			} else if (!texts.isEmpty()) {
+				texts.peek().append(ch, start, length);
+			}
+		}
+
+		void end() {
+			if (skipFrom > 0) {
+				if (depth == skipFrom) {
+					skipFrom = 0;
+				}
+			} else if (inProp) {
+				inProp = false;
+			} else if (inHref) {
+				result.getHrefs().add(hrefText.toString().trim());
+				inHref = false;
+			} else {
+				ReportRequest.Element el = stack.pop();
+				String text = texts.pop().toString().trim();
+				if (text.length() > 0) {
+					el.setText(text);
+				}
+			}
+			depth--;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.report;
+
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.resource.Resource;
+
+/**
+ * A Report which receives a lightweight parsed request and writes its
+ * multistatus response incrementally, instead of building a JDOM document in
+ * and a String out.
+ *
+ * The ReportHandler parses the request with a ReportRequestParser, and sends
+ * the returned entity with a 207 status. Because the status has been sent by
+ * the time the entity is written, all validation of the request should be done
+ * in process, before the entity is returned.
+ *
+ * @author brad
+ */
+public interface StreamingReport extends Report {
+
+	/**
+	 * Check the request and return an entity which will write the multistatus
+	 * response
+	 *
+	 * @param host
+	 * @param path - the encoded path of the requested resource
+	 * @param r - the requested resource
+	 * @param request - the parsed request body
+	 * @return - the response entity
+	 */
+	Response.Entity process(String host, String path, Resource r, ReportRequest request) throws BadRequestException, ConflictException, NotAuthorizedException;
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import java.util.List;
+
+/**
+ * Records changes to the members of collections, so that clients can ask for
+ * only those changes which have occurred since they last synchronised, as
+ * per RFC 6578 (sync-collection REPORT)
+ *
+ * Collections are identified by a key, see SyncUtils.collectionKey. Sync
+ * tokens are opaque to clients but must be URI's.
+ *
+ * Implementations must be thread safe.
+ *
+ * @author brad
+ */
+public interface ChangeLog {
+
+	public enum ChangeType {
+
+		ADDED,
+		MODIFIED,
+		DELETED
+	}
+
+	/**
+	 * Get a token which represents the current state of the collection. The
+	 * collection will be known to the log from then on, until it is discarded
+	 *
+	 * @param collectionKey
+	 * @return - never null
+	 */
+	String getCurrentToken(String collectionKey);
+
+	/**
+	 * Find the changes to members of the collection since the given token was
+	 * issued. Where a member has changed more than once only the last change
+	 * is returned
+	 *
+	 * @param collectionKey
+	 * @param token - a token previously returned from getCurrentToken or in a
+	 * Changes object
+	 * @return - the changes and a new token, or null if the token is not
+	 * recognised or has expired, or the collection is not known to the log, in
+	 * which case the client must do a full resync
+	 */
+	Changes getChangesSince(String collectionKey, String token);
+
+	/**
+	 * Record a change to a member of a collection
+	 *
+	 * @param collectionKey - identifies the parent collection
+	 * @param memberName - the name of the member within the collection
+	 * @param type
+	 */
+	void recordChange(String collectionKey, String memberName, ChangeType type);
+
+	/**
+	 * Record that a collection has moved, so that its changes, and those of
+	 * collections within it, are found under the new key. Any collections
+	 * previously at the new key, or within it, are discarded
+	 *
+	 * @param fromKey - the path key of the collection before it moved, see
+	 * SyncUtils.pathKey
+	 * @param toKey - the path key of the collection after it moved
+	 */
+	void moveCollection(String fromKey, String toKey);
+
+	/**
+	 * Record that a collection has been deleted, so that its changes, and
+	 * those of collections within it, are discarded. Tokens issued for them are
+	 * not valid for a new collection with the same key
+	 *
+	 * @param collectionKey
+	 */
+	void deleteCollection(String collectionKey);
+
+	/**
+	 * A change to a single collection member
+	 */
+	public class Change {
+
+		private final String memberName;
+		private final ChangeType type;
+
+		public Change(String memberName, ChangeType type) {
+			this.memberName = memberName;
+			this.type = type;
+		}
+
+		public String getMemberName() {
+			return memberName;
+		}
+
+		public ChangeType getType() {
+			return type;
+		}
+	}
+
+	/**
+	 * The changes to a collection since some token, and the token representing
+	 * the state after those changes
+	 */
+	public class Changes {
+
+		private final String token;
+		private final List<Change> changes;
+
+		public Changes(String token, List<Change> changes) {
+			this.token = token;
+			this.changes = changes;
+		}
+
+		public String getToken() {
+			return token;
+		}
+
+		public List<Change> getChanges() {
+			return changes;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.common.Path;
+import io.milton.common.Utils;
+import io.milton.event.DeleteEvent;
+import io.milton.event.Event;
+import io.milton.event.EventListener;
+import io.milton.event.EventManager;
+import io.milton.event.MoveEvent;
+import io.milton.event.NewFolderEvent;
+import io.milton.event.PutEvent;
+import io.milton.event.ResourceEvent;
+import io.milton.event.ResponseEvent;
+import io.milton.http.HttpManager;
+import io.milton.http.Request;
+import io.milton.http.ResourceFactory;
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.sync.ChangeLog.ChangeType;
+import io.milton.http.webdav.Dest;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.Resource;
+import java.util.ArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for resource events and records them in a ChangeLog.
+ *
+ * Changes are held against the current request and only recorded when the
+ * ResponseEvent shows that the request succeeded, so a failed PUT or MOVE does
+ * not invalidate anything.
+ *
+ * The changed resource's parent collection is located from the path given in
+ * the event where there is one (as for DeleteEvent), otherwise from the
+ * request path. Changes to resources which do not appear in either (such as
+ * the children of a deleted folder) are not recorded individually. That is
+ * fine for sync-collection, which only reports immediate members.
+ *
+ * Collections are identified by their path unless they have a sync id (see
+ * SyncUtils.collectionKey), so when a collection is moved its changes are
+ * moved to its new path, and when it is deleted they are discarded.
+ *
+ * @author brad
+ */
+public class ChangeLogEventListener implements EventListener {
+
+	private static final Logger log = LoggerFactory.getLogger(ChangeLogEventListener.class);
+	private static final String ATT_PENDING = "_sync_pending_changes";
+	private final ChangeLog changeLog;
+	private final ResourceFactory resourceFactory;
+
+	public ChangeLogEventListener(ChangeLog changeLog, ResourceFactory resourceFactory) {
+		this.changeLog = changeLog;
+		this.resourceFactory = resourceFactory;
+	}
+
+	/**
+	 * Register this listener for all events it is interested in
+	 *
+	 * @param eventManager
+	 */
+	public void register(EventManager eventManager) {
+		eventManager.registerEventListener(this, PutEvent.class);
+		eventManager.registerEventListener(this, DeleteEvent.class);
+		eventManager.registerEventListener(this, MoveEvent.class);
+		eventManager.registerEventListener(this, NewFolderEvent.class);
+		eventManager.registerEventListener(this, ResponseEvent.class);
+	}
+
+	@Override
+	public void onEvent(Event e) {
+		if (e instanceof ResponseEvent) {
+			ResponseEvent re = (ResponseEvent) e;
+			onResponse(re.getRequest(), re.getResponse());
+			return;
+		}
+		Request request = HttpManager.request();
+		if (request == null) {
+			return;
+		}
+		try {
+			if (e instanceof MoveEvent) {
+				MoveEvent me = (MoveEvent) e;
+				addPending(request, me.getResource(), ChangeType.DELETED);
+				if (request.getDestinationHeader() != null) {
+					Dest dest = Utils.getDecodedDestination(request.getDestinationHeader());
+					String key = SyncUtils.collectionKey(me.getDestCollection(), dest.url);
+					pending(request).add(new PendingChange(key, me.getNewName(), ChangeType.ADDED));
+					if (me.getResource() instanceof CollectionResource) {
+						String from = SyncUtils.pathKey(HttpManager.decodeUrl(request.getAbsolutePath()));
+						String to = SyncUtils.pathKey(Utils.suffixSlash(dest.url) + me.getNewName());
+						pending(request).add(new PendingMove(from, to));
+					}
+				}
+			} else if (e instanceof DeleteEvent) {
+				DeleteEvent de = (DeleteEvent) e;
+				String path = de.getPath();
+				if (path != null) {
+					addPending(request, Path.path(path), ChangeType.DELETED);
+				} else {
+					addPending(request, de.getResource(), ChangeType.DELETED);
+					path = HttpManager.decodeUrl(request.getAbsolutePath());
+				}
+				if (de.getResource() instanceof CollectionResource) {
+					String pathKey = SyncUtils.pathKey(path);
+					pending(request).add(new PendingMove(pathKey, null));
+					String key = SyncUtils.collectionKey(de.getResource(), path);
+					if (!key.equals(pathKey)) {
+						pending(request).add(new PendingMove(key, null));
+					}
+				}
+			} else if (e instanceof PutEvent || e instanceof NewFolderEvent) {
+				// Put handlers fire after the change, so we can't tell created from updated
+				addPending(request, ((ResourceEvent) e).getResource(), ChangeType.MODIFIED);
+			}
+		} catch (NotAuthorizedException ex) {
+			log.warn("Couldnt locate parent to record change: " + ex.getMessage());
+		} catch (BadRequestException ex) {
+			log.warn("Couldnt locate parent to record change: " + ex.getMessage());
+		}
+	}
+
+	private void addPending(Request request, Resource r, ChangeType type) throws NotAuthorizedException, BadRequestException {
+		if (r == null || r.getName() == null) {
+			return;
+		}
+		Path parentPath = findParentPath(Path.path(HttpManager.decodeUrl(request.getAbsolutePath())), r.getName());
+		if (parentPath == null) {
+			log.trace("resource is not in the request path, not recording: " + r.getName());
+			return;
+		}
+		addPending(request, parentPath, r.getName(), type);
+	}
+
+	private void addPending(Request request, Path path, ChangeType type) throws NotAuthorizedException, BadRequestException {
+		if (path.isRoot() || path.getName() == null) {
+			return;
+		}
+		addPending(request, path.getParent() == null ? Path.root : path.getParent(), path.getName(), type);
+	}
+
+	private void addPending(Request request, Path parentPath, String name, ChangeType type) throws NotAuthorizedException, BadRequestException {
+		String sParent = parentPath.isRoot() ? "/" : parentPath.toString("/");
+		Resource parent = resourceFactory.getResource(request.getHostHeader(), sParent);
+		String key = SyncUtils.collectionKey(parent, sParent);
+		pending(request).add(new PendingChange(key, name, type));
+	}
+
+	/**
+	 * Find the deepest segment of the request path with the given name and
+	 * return its parent. This handles auto-created folders in a PUT, and
+	 * resource paths with a suffix as used by the json handlers.
+	 */
+	private Path findParentPath(Path requestPath, String name) {
+		Path p = requestPath;
+		while (p != null && !p.isRoot()) {
+			if (name.equals(p.getName())) {
+				return p.getParent() == null ? Path.root : p.getParent();
+			}
+			p = p.getParent();
+		}
+		return null;
+	}
+
+	private void onResponse(Request request, Response response) {
+		PendingChanges list = (PendingChanges) request.getAttributes().remove(ATT_PENDING);
+		if (list == null) {
+			return;
+		}
+		Response.Status status = response.getStatus();
+		if (status == null || status.code < 200 || status.code >= 300) {
+			log.trace("request did not succeed, discarding changes");
+			return;
+		}
+		for (Pending p : list) {
+			p.apply(changeLog);
+		}
+	}
+
+	private PendingChanges pending(Request request) {
+		PendingChanges list = (PendingChanges) request.getAttributes().get(ATT_PENDING);
+		if (list == null) {
+			list = new PendingChanges();
+			request.getAttributes().put(ATT_PENDING, list);
+		}
+		return list;
+	}
+
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	private static class PendingChanges extends ArrayList<Pending> {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private interface Pending {
+
+		void apply(ChangeLog changeLog);
+	}
+
+	private static class PendingChange implements Pending {
+
+		private final String collectionKey;
+		private final String memberName;
+		private final ChangeType type;
+
+		PendingChange(String collectionKey, String memberName, ChangeType type) {
+			this.collectionKey = collectionKey;
+			this.memberName = memberName;
+			this.type = type;
+		}
+
+		@Override
+		public void apply(ChangeLog changeLog) {
+			changeLog.recordChange(collectionKey, memberName, type);
+		}
+	}
+
+	/**
+	 * A moved or, if toKey is null, deleted collection
+	 */
+	private static class PendingMove implements Pending {
+
+		private final String fromKey;
+		private final String toKey;
+
+		PendingMove(String fromKey, String toKey) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+		}
+
+		@Override
+		public void apply(ChangeLog changeLog) {
+			if (toKey == null) {
+				changeLog.deleteCollection(fromKey);
+			} else {
+				changeLog.moveCollection(fromKey, toKey);
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.common.FileUtils;
+import io.milton.common.Stoppable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.UUID;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A ChangeLog which appends every change to a file, and reloads it on startup,
+ * so that sync tokens remain valid across restarts.
+ *
+ * The first line of the file holds the store id. Each subsequent line is a
+ * single change, as tab separated sequence number, change type, collection key
+ * and member name, with the last two url encoded. Lines for collections which
+ * have been issued a token, moved or deleted have the same layout. A partially
+ * written last line
+ * (eg after a crash) is truncated when the file is loaded, so the next change
+ * starts on a new line.
+ *
+ * Only the most recent changes for each collection are held in memory, as per
+ * MemoryChangeLog. Once the file has more than twice as many lines as there
+ * are changes held, and at least minCompactLines, it is rewritten with just
+ * the changes held, plus the state needed to expire the same tokens. The new
+ * file is written alongside and then renamed over the old one.
+ *
+ * @author brad
+ */
+public class FileChangeLog extends MemoryChangeLog implements Stoppable {
+
+	private static final Logger log = LoggerFactory.getLogger(FileChangeLog.class);
+	private static final String HEADER = "milton-changelog\t";
+	private static final String STATE = "STATE";
+	private static final String FLOOR = "FLOOR";
+	private static final String MOVE = "MOVE";
+	private static final String DELETE = "DELETE";
+	private final File file;
+	private Writer writer;
+	private long lines;
+	private long minCompactLines = 10000;
+
+	public FileChangeLog(File file) {
+		this(file, 1000);
+	}
+
+	/**
+	 *
+	 * @param file - the log file, which will be created if it does not exist
+	 * @param maxChangesPerCollection
+	 */
+	public FileChangeLog(File file, int maxChangesPerCollection) {
+		super(readStoreId(file));
+		this.file = file;
+		setMaxChangesPerCollection(maxChangesPerCollection);
+		load();
+		writer = openWriter(file);
+	}
+
+	@Override
+	public synchronized void recordChange(String collectionKey, String memberName, ChangeType type) {
+		super.recordChange(collectionKey, memberName, type);
+		if (lines >= minCompactLines && lines > 2L * getChangeCount()) {
+			compact();
+		}
+	}
+
+	@Override
+	protected void persist(long seq, String collectionKey, String memberName, ChangeType type) {
+		try {
+			write(line(seq, type.name(), encode(collectionKey), encode(memberName)));
+		} catch (IOException ex) {
+			throw new RuntimeException("Couldnt write to change log: " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	@Override
+	protected void persistCollection(String collectionKey, long floor) {
+		try {
+			write(line(floor, FLOOR, encode(collectionKey), "-"));
+		} catch (IOException ex) {
+			throw new RuntimeException("Couldnt write to change log: " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	@Override
+	protected void persistMove(long seq, String fromKey, String toKey) {
+		try {
+			if (toKey == null) {
+				write(line(seq, DELETE, encode(fromKey), "-"));
+			} else {
+				write(line(seq, MOVE, encode(fromKey), encode(toKey)));
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Couldnt write to change log: " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	private void write(String line) throws IOException {
+		writer.write(line);
+		writer.flush();
+		lines++;
+	}
+
+	/**
+	 * Rewrite the file with only the changes currently held. This is done
+	 * automatically as changes are recorded, see minCompactLines
+	 */
+	public synchronized void compact() {
+		File temp = tempFile(file);
+		final long[] count = new long[1];
+		FileOutputStream fout = null;
+		try {
+			fout = new FileOutputStream(temp);
+			final Writer w = new OutputStreamWriter(fout, "UTF-8");
+			w.write(HEADER + getStoreId() + "\n");
+			visit(new Visitor() {
+
+				@Override
+				public void state(long lastSeq) throws IOException {
+					w.write(line(lastSeq, STATE, "-", "-"));
+					count[0]++;
+				}
+
+				@Override
+				public void collection(String collectionKey, long floor) throws IOException {
+					w.write(line(floor, FLOOR, encode(collectionKey), "-"));
+					count[0]++;
+				}
+
+				@Override
+				public void change(long seq, String collectionKey, String memberName, ChangeType type) throws IOException {
+					w.write(line(seq, type.name(), encode(collectionKey), encode(memberName)));
+					count[0]++;
+				}
+			});
+			w.flush();
+			fout.getFD().sync();
+		} catch (IOException ex) {
+			IOUtils.closeQuietly(fout);
+			if (!temp.delete()) {
+				log.warn("Couldnt delete: " + temp.getAbsolutePath());
+			}
+			log.error("Couldnt compact change log: " + file.getAbsolutePath(), ex);
+			return;
+		} finally {
+			IOUtils.closeQuietly(fout);
+		}
+		IOUtils.closeQuietly(writer);
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new RuntimeException("Couldnt replace change log with compacted copy: " + temp.getAbsolutePath());
+		}
+		log.info("Compacted change log from " + lines + " to " + count[0] + " lines: " + file.getAbsolutePath());
+		lines = count[0];
+		writer = openWriter(file);
+	}
+
+	@Override
+	public synchronized void stop() {
+		IOUtils.closeQuietly(writer);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The file is not compacted until it has at least this many lines.
+	 * Default is 10000
+	 *
+	 * @return
+	 */
+	public long getMinCompactLines() {
+		return minCompactLines;
+	}
+
+	public void setMinCompactLines(long minCompactLines) {
+		this.minCompactLines = minCompactLines;
+	}
+
+	/**
+	 *
+	 * @return - the number of lines in the file, not including the header
+	 */
+	synchronized long getLines() {
+		return lines;
+	}
+
+	/**
+	 * Read the store id from the header of an existing file, or create the file
+	 * with a new store id
+	 */
+	private static String readStoreId(File file) {
+		try {
+			File temp = tempFile(file);
+			if (!file.exists() && temp.exists() && !temp.renameTo(file)) {
+				// a crash while replacing the file with a compacted copy
+				throw new RuntimeException("Couldnt restore change log from: " + temp.getAbsolutePath());
+			}
+			truncatePartialLine(file);
+			if (file.exists() && file.length() > 0) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+				try {
+					String line = reader.readLine();
+					if (line != null && line.startsWith(HEADER)) {
+						return line.substring(HEADER.length());
+					}
+					throw new RuntimeException("Not a change log file: " + file.getAbsolutePath());
+				} finally {
+					IOUtils.closeQuietly(reader);
+				}
+			} else {
+				String storeId = UUID.randomUUID().toString();
+				Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+				try {
+					w.write(HEADER + storeId + "\n");
+				} finally {
+					IOUtils.closeQuietly(w);
+				}
+				return storeId;
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Couldnt initialise change log: " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	/**
+	 * Remove anything after the last newline, which can only be the start of
+	 * a line which was being written when the server stopped
+	 */
+	private static void truncatePartialLine(File file) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			long pos = length;
+			byte[] buf = new byte[4096];
+			while (pos > 0) {
+				int n = (int) Math.min(buf.length, pos);
+				raf.seek(pos - n);
+				raf.readFully(buf, 0, n);
+				int i = n - 1;
+				while (i >= 0 && buf[i] != '\n') {
+					i--;
+				}
+				if (i >= 0) {
+					pos = pos - n + i + 1;
+					break;
+				}
+				pos -= n;
+			}
+			if (pos < length) {
+				log.warn("Truncating partial line from change log: " + file.getAbsolutePath() + " at " + pos);
+				raf.setLength(pos);
+			}
+		} finally {
+			FileUtils.close(raf);
+		}
+	}
+
+	private void load() {
+		BufferedReader reader = null;
+		int count = 0;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			reader.readLine(); // header
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				String[] parts = line.split("\t", -1);
+				if (parts.length != 4) {
+					log.warn("Ignoring invalid change log line: " + line);
+					continue;
+				}
+				try {
+					long n = Long.parseLong(parts[0]);
+					if (STATE.equals(parts[1])) {
+						replayState(n);
+					} else if (FLOOR.equals(parts[1])) {
+						replayFloor(decode(parts[2]), n);
+					} else if (MOVE.equals(parts[1])) {
+						replayMove(n, decode(parts[2]), decode(parts[3]));
+					} else if (DELETE.equals(parts[1])) {
+						replayMove(n, decode(parts[2]), null);
+					} else {
+						replay(n, decode(parts[2]), decode(parts[3]), ChangeType.valueOf(parts[1]));
+						count++;
+					}
+				} catch (IllegalArgumentException e) {
+					log.warn("Ignoring invalid change log line: " + line);
+				}
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Couldnt read change log: " + file.getAbsolutePath(), ex);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+		log.info("Loaded " + count + " changes from: " + file.getAbsolutePath());
+	}
+
+	private static Writer openWriter(File file) {
+		try {
+			return new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		} catch (IOException ex) {
+			throw new RuntimeException("Couldnt open change log: " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	private static File tempFile(File file) {
+		return new File(file.getParentFile(), file.getName() + ".compact");
+	}
+
+	private static String line(long n, String type, String key, String member) {
+		return n + "\t" + type + "\t" + key + "\t" + member + "\n";
+	}
+
+	private static String encode(String s) throws UnsupportedEncodingException {
+		return URLEncoder.encode(s, "UTF-8");
+	}
+
+	private static String decode(String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, "UTF-8");
+	}
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A ChangeLog which holds changes in memory. Tokens are only valid for the
+ * life of this instance, so after a restart clients will be asked to do a
+ * full resync.
+ *
+ * The number of changes kept for each collection is limited by
+ * maxChangesPerCollection. When older changes are discarded, tokens issued
+ * before them expire.
+ *
+ * The number of collections is limited by maxCollections. When it is
+ * exceeded the least recently used collection is discarded. Tokens are only
+ * valid for collections known to the log, ie which have had a token issued or
+ * a change recorded and have not since been discarded or deleted.
+ *
+ * @author brad
+ */
+public class MemoryChangeLog implements ChangeLog {
+
+	public static final String TOKEN_PREFIX = "http://milton.io/ns/sync/";
+	private final String storeId;
+	private final LinkedHashMap<String, CollectionLog> collections = new LinkedHashMap<String, CollectionLog>(16, 0.75f, true);
+	private int maxChangesPerCollection = 1000;
+	private int maxCollections = 10000;
+	private long lastSeq;
+	private int changeCount;
+
+	public MemoryChangeLog() {
+		this(UUID.randomUUID().toString());
+	}
+
+	/**
+	 *
+	 * @param storeId - included in every token, so tokens from a different
+	 * store are not accepted
+	 */
+	protected MemoryChangeLog(String storeId) {
+		this.storeId = storeId;
+	}
+
+	@Override
+	public synchronized String getCurrentToken(String collectionKey) {
+		CollectionLog log = collections.get(collectionKey);
+		if (log == null) {
+			// from now on, every change to the collection is kept
+			persistCollection(collectionKey, lastSeq);
+			log = newCollectionLog(collectionKey, lastSeq);
+		}
+		return toToken(log.latest);
+	}
+
+	@Override
+	public synchronized Changes getChangesSince(String collectionKey, String token) {
+		long since = parseToken(token);
+		if (since < 0 || since > lastSeq) {
+			return null;
+		}
+		CollectionLog log = collections.get(collectionKey);
+		if (log == null) {
+			return null; // never issued a token, or changes have been discarded
+		}
+		if (since < log.floor) {
+			return null; // changes the client has not seen have been discarded
+		}
+		Map<String, ChangeType> latest = new LinkedHashMap<String, ChangeType>();
+		for (Entry e : log.entries) {
+			if (e.seq > since) {
+				latest.remove(e.memberName);
+				latest.put(e.memberName, e.type);
+			}
+		}
+		List<Change> list = new ArrayList<Change>(latest.size());
+		for (Map.Entry<String, ChangeType> e : latest.entrySet()) {
+			list.add(new Change(e.getKey(), e.getValue()));
+		}
+		return new Changes(toToken(Math.max(since, log.latest)), list);
+	}
+
+	@Override
+	public synchronized void recordChange(String collectionKey, String memberName, ChangeType type) {
+		long seq = ++lastSeq;
+		persist(seq, collectionKey, memberName, type);
+		apply(seq, collectionKey, memberName, type);
+	}
+
+	@Override
+	public synchronized void moveCollection(String fromKey, String toKey) {
+		if (fromKey.equals(toKey)) {
+			return;
+		}
+		long seq = ++lastSeq;
+		persistMove(seq, fromKey, toKey);
+		applyMove(seq, fromKey, toKey);
+	}
+
+	@Override
+	public synchronized void deleteCollection(String collectionKey) {
+		long seq = ++lastSeq;
+		persistMove(seq, collectionKey, null);
+		applyMove(seq, collectionKey, null);
+	}
+
+	/**
+	 * Called when a change is recorded, before it is applied. Subclasses can
+	 * override to store changes durably
+	 */
+	protected void persist(long seq, String collectionKey, String memberName, ChangeType type) {
+	}
+
+	/**
+	 * Called when a token is first issued for a collection which is not known,
+	 * before it is added. Subclasses can override to store it durably, and
+	 * replay it with replayFloor
+	 */
+	protected void persistCollection(String collectionKey, long floor) {
+	}
+
+	/**
+	 * Called when a collection is moved or deleted, before it is applied.
+	 * Subclasses can override to store it durably, and replay it with replayMove
+	 *
+	 * @param toKey - null if the collection was deleted
+	 */
+	protected void persistMove(long seq, String fromKey, String toKey) {
+	}
+
+	/**
+	 * Apply a previously persisted change, for use by subclasses when loading
+	 * stored changes
+	 */
+	protected synchronized void replay(long seq, String collectionKey, String memberName, ChangeType type) {
+		if (seq > lastSeq) {
+			lastSeq = seq;
+		}
+		apply(seq, collectionKey, memberName, type);
+	}
+
+	/**
+	 * Apply a previously persisted move or delete, for use by subclasses when
+	 * loading stored changes
+	 */
+	protected synchronized void replayMove(long seq, String fromKey, String toKey) {
+		if (seq > lastSeq) {
+			lastSeq = seq;
+		}
+		applyMove(seq, fromKey, toKey);
+	}
+
+	/**
+	 * Restore the state written by visit, for use by subclasses when loading
+	 * a snapshot
+	 */
+	protected synchronized void replayState(long lastSeq) {
+		this.lastSeq = Math.max(this.lastSeq, lastSeq);
+	}
+
+	/**
+	 * Restore the floor of a collection written by visit or persistCollection.
+	 * This must be replayed before the collection's changes
+	 */
+	protected synchronized void replayFloor(String collectionKey, long floor) {
+		CollectionLog log = collections.get(collectionKey);
+		if (log == null) {
+			newCollectionLog(collectionKey, floor);
+		} else {
+			log.floor = floor;
+			log.latest = Math.max(log.latest, floor);
+		}
+	}
+
+	/**
+	 * Receives the retained state of the log, see visit
+	 */
+	protected interface Visitor {
+
+		void state(long lastSeq) throws IOException;
+
+		void collection(String collectionKey, long floor) throws IOException;
+
+		void change(long seq, String collectionKey, String memberName, ChangeType type) throws IOException;
+	}
+
+	/**
+	 * Pass everything needed to restore the current state to the visitor,
+	 * with collections in least recently used order, each followed by its
+	 * changes. Replaying these through replayState, replayFloor and replay
+	 * gives the same tokens and changes as this log
+	 */
+	protected synchronized void visit(Visitor visitor) throws IOException {
+		visitor.state(lastSeq);
+		for (Map.Entry<String, CollectionLog> col : collections.entrySet()) {
+			visitor.collection(col.getKey(), col.getValue().floor);
+			for (Entry e : col.getValue().entries) {
+				visitor.change(e.seq, col.getKey(), e.memberName, e.type);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return - the number of changes currently held
+	 */
+	protected synchronized int getChangeCount() {
+		return changeCount;
+	}
+
+	private void apply(long seq, String collectionKey, String memberName, ChangeType type) {
+		CollectionLog log = collections.get(collectionKey);
+		if (log == null) {
+			// all changes after the previous one are kept
+			log = newCollectionLog(collectionKey, seq - 1);
+		}
+		log.entries.addLast(new Entry(seq, memberName, type));
+		log.latest = seq;
+		changeCount++;
+		while (log.entries.size() > maxChangesPerCollection) {
+			log.floor = log.entries.removeFirst().seq;
+			changeCount--;
+		}
+	}
+
+	/**
+	 * Add a collection with no changes, discarding the least recently used
+	 * collections if there are too many
+	 *
+	 * @param floor - tokens before this are not valid for the collection
+	 */
+	private CollectionLog newCollectionLog(String collectionKey, long floor) {
+		CollectionLog log = new CollectionLog();
+		log.floor = floor;
+		log.latest = floor;
+		collections.put(collectionKey, log);
+		Iterator<CollectionLog> it = collections.values().iterator();
+		while (collections.size() > maxCollections && it.hasNext()) {
+			CollectionLog eldest = it.next();
+			if (eldest == log) {
+				break;
+			}
+			it.remove();
+			changeCount -= eldest.entries.size();
+		}
+		return log;
+	}
+
+	/**
+	 * Move the collection with the given key, and those within it, to the new
+	 * key. Any collections already there are discarded, and if a collection is
+	 * moved onto the key of one of them its tokens expire, since they cannot be
+	 * told apart from those of the discarded collection
+	 *
+	 * @param toKey - null to discard the collections
+	 */
+	private void applyMove(long seq, String fromKey, String toKey) {
+		List<String> movedKeys = new ArrayList<String>();
+		List<CollectionLog> movedLogs = new ArrayList<CollectionLog>();
+		Set<String> replaced = new HashSet<String>();
+		Iterator<Map.Entry<String, CollectionLog>> it = collections.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, CollectionLog> e = it.next();
+			String key = e.getKey();
+			if (isWithin(key, fromKey)) {
+				it.remove();
+				if (toKey == null) {
+					changeCount -= e.getValue().entries.size();
+				} else {
+					movedKeys.add(toKey + key.substring(fromKey.length()));
+					movedLogs.add(e.getValue());
+				}
+			} else if (toKey != null && isWithin(key, toKey)) {
+				it.remove();
+				changeCount -= e.getValue().entries.size();
+				replaced.add(key);
+			}
+		}
+		for (int i = 0; i < movedKeys.size(); i++) {
+			CollectionLog log = movedLogs.get(i);
+			if (replaced.contains(movedKeys.get(i))) {
+				changeCount -= log.entries.size();
+				log.entries.clear();
+				log.floor = seq;
+				log.latest = seq;
+			}
+			collections.put(movedKeys.get(i), log);
+		}
+	}
+
+	private static boolean isWithin(String key, String parentKey) {
+		return key.equals(parentKey) || key.startsWith(parentKey + "/");
+	}
+
+	private String toToken(long seq) {
+		return TOKEN_PREFIX + storeId + "/" + seq;
+	}
+
+	/**
+	 * @return - the sequence number in the token, or -1 if it is not valid for
+	 * this store
+	 */
+	private long parseToken(String token) {
+		String prefix = TOKEN_PREFIX + storeId + "/";
+		if (token == null || !token.startsWith(prefix)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(token.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public String getStoreId() {
+		return storeId;
+	}
+
+	/**
+	 * The maximum number of changes to keep for each collection. Default is 1000
+	 *
+	 * @return
+	 */
+	public int getMaxChangesPerCollection() {
+		return maxChangesPerCollection;
+	}
+
+	public void setMaxChangesPerCollection(int maxChangesPerCollection) {
+		this.maxChangesPerCollection = maxChangesPerCollection;
+	}
+
+	/**
+	 * The maximum number of collections to keep changes for. Default is 10000
+	 *
+	 * @return
+	 */
+	public int getMaxCollections() {
+		return maxCollections;
+	}
+
+	public void setMaxCollections(int maxCollections) {
+		this.maxCollections = maxCollections;
+	}
+
+	private static class CollectionLog {
+
+		private final Deque<Entry> entries = new ArrayDeque<Entry>();
+		private long latest;
+		private long floor;
+	}
+
+	private static class Entry {
+
+		private final long seq;
+		private final String memberName;
+		private final ChangeType type;
+
+		Entry(long seq, String memberName, ChangeType type) {
+			this.seq = seq;
+			this.memberName = memberName;
+			this.type = type;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.common.Utils;
+import io.milton.http.HttpManager;
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.report.AbstractStreamingReport;
+import io.milton.http.report.ReportPreconditionException;
+import io.milton.http.report.ReportRequest;
+import io.milton.http.sync.ChangeLog.Change;
+import io.milton.http.sync.ChangeLog.ChangeType;
+import io.milton.http.sync.ChangeLog.Changes;
+import io.milton.http.values.ValueAndType;
+import io.milton.http.webdav.PropFindPropertyBuilder;
+import io.milton.http.webdav.PropFindXmlGenerator;
+import io.milton.http.webdav.PropFindXmlGenerator.MultiStatusWriter;
+import io.milton.http.webdav.PropertiesRequest;
+import io.milton.http.webdav.WebDavProtocol;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.PropFindableResource;
+import io.milton.resource.Resource;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implements the sync-collection REPORT from RFC 6578.
+ *
+ * With an empty sync-token every member of the collection is returned, otherwise
+ * only those members which have been added, changed or removed since the token
+ * was issued, as recorded by the ChangeLog. Only sync-level 1 is supported, and
+ * the limit element is ignored
+ *
+ * The token and the set of members are resolved before the response is
+ * committed, so precondition failures still produce a DAV:error response. The
+ * member responses are then streamed as their properties are built.
+ *
+ * @author brad
+ */
+public class SyncCollectionReport extends AbstractStreamingReport {
+
+	private static final Logger log = LoggerFactory.getLogger(SyncCollectionReport.class);
+	private final ChangeLog changeLog;
+	private final PropFindPropertyBuilder propertyBuilder;
+	private final PropFindXmlGenerator xmlGenerator;
+
+	public SyncCollectionReport(ChangeLog changeLog, PropFindPropertyBuilder propertyBuilder, PropFindXmlGenerator xmlGenerator) {
+		this.changeLog = changeLog;
+		this.propertyBuilder = propertyBuilder;
+		this.xmlGenerator = xmlGenerator;
+	}
+
+	@Override
+	public String getName() {
+		return "sync-collection";
+	}
+
+	@Override
+	public Response.Entity process(String host, String path, Resource resource, ReportRequest request) throws BadRequestException, NotAuthorizedException {
+		if (!(resource instanceof CollectionResource)) {
+			throw new BadRequestException(resource, "sync-collection is only supported on collections");
+		}
+		CollectionResource col = (CollectionResource) resource;
+		String syncToken = getText(request, "sync-token");
+		String syncLevel = getText(request, "sync-level");
+		if (syncLevel != null && !syncLevel.equals("1")) {
+			log.info("unsupported sync-level: " + syncLevel);
+			throw new ReportPreconditionException(resource, "sync-traversal-supported");
+		}
+		final PropertiesRequest parseResult = PropertiesRequest.toProperties(request.getProperties());
+
+		String key = SyncUtils.collectionKey(col, HttpManager.decodeUrl(path));
+		final String parentHref = Utils.suffixSlash(path);
+		final List<PropFindableResource> found = new ArrayList<PropFindableResource>();
+		final List<String> removedHrefs = new ArrayList<String>();
+		final String newToken;
+		if (syncToken == null || syncToken.length() == 0) {
+			// take the token first, so changes made while listing are not missed
+			newToken = changeLog.getCurrentToken(key);
+			for (Resource r : col.getChildren()) {
+				if (r instanceof PropFindableResource) {
+					found.add((PropFindableResource) r);
+				}
+			}
+		} else {
+			Changes changes = changeLog.getChangesSince(key, syncToken);
+			if (changes == null) {
+				log.info("sync token is not valid: " + syncToken);
+				throw new ReportPreconditionException(resource, "valid-sync-token");
+			}
+			newToken = changes.getToken();
+			for (Change c : changes.getChanges()) {
+				Resource r = null;
+				if (c.getType() != ChangeType.DELETED) {
+					r = col.child(c.getMemberName());
+				}
+				if (r instanceof PropFindableResource) {
+					found.add((PropFindableResource) r);
+				} else if (r == null) {
+					removedHrefs.add(parentHref + Utils.percentEncode(c.getMemberName()));
+				}
+			}
+		}
+		if (log.isTraceEnabled()) {
+			log.trace("process: changed=" + found.size() + " removed=" + removedHrefs.size());
+		}
+		final Map<Resource, Map<QName, ValueAndType>> preloaded = propertyBuilder.loadProperties(col, found, parseResult);
+		return new Response.Entity() {
+
+			@Override
+			public void write(Response response, OutputStream outputStream) throws Exception {
+				MultiStatusWriter writer = xmlGenerator.begin(parseResult.getNames(), outputStream);
+				for (PropFindableResource r : found) {
+					String href = parentHref + Utils.percentEncode(r.getName());
+					propertyBuilder.processResource(writer, r, parseResult, href, 0, 0, href, preloaded.get(r));
+				}
+				for (String href : removedHrefs) {
+					writer.writeStatusResponse(href, Response.Status.SC_NOT_FOUND);
+				}
+				writer.writeSyncToken(newToken);
+				writer.finish();
+			}
+		};
+	}
+
+	private String getText(ReportRequest request, String localName) {
+		ReportRequest.Element el = request.getRoot().getChild(WebDavProtocol.DAV_URI, localName);
+		if (el == null || el.getText() == null) {
+			return null;
+		}
+		return el.getText().trim();
+	}
+
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+}
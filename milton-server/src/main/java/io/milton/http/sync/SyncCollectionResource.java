@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.resource.CollectionResource;
+
+/**
+ * A collection with an identifier which can be used to find its changes in a
+ * ChangeLog, regardless of its path.
+ *
+ * Unlike Resource.getUniqueId, which is often derived from the modified date,
+ * the sync id must not change for the life of the collection: not when members
+ * are added, changed or removed, and not when the collection is moved. It must
+ * never be used by another collection.
+ *
+ * Other collections are identified by their path, which a property source does
+ * not know, so the DAV:sync-token property is only available on collections
+ * which implement this.
+ *
+ * @author brad
+ */
+public interface SyncCollectionResource extends CollectionResource {
+
+	/**
+	 *
+	 * @return - an identifier which never changes, or null to use the path
+	 */
+	String getSyncId();
+}
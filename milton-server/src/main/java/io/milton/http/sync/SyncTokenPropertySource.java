@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.http.Response;
+import io.milton.http.webdav.WebDavProtocol;
+import io.milton.property.PropertySource;
+import io.milton.resource.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/**
+ * Provides the DAV:sync-token property on collections, as per RFC 6578
+ *
+ * Only collections with a sync id (see SyncCollectionResource) are supported,
+ * because the path of a resource is not known to a property source.
+ *
+ * @author brad
+ */
+public class SyncTokenPropertySource implements PropertySource {
+
+	public static final QName SYNC_TOKEN = new QName(WebDavProtocol.NS_DAV.getName(), "sync-token");
+	private final ChangeLog changeLog;
+
+	public SyncTokenPropertySource(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	@Override
+	public Object getProperty(QName name, Resource r) {
+		if (!isSupported(name, r)) {
+			return null;
+		}
+		return changeLog.getCurrentToken(SyncUtils.collectionKey(r, null));
+	}
+
+	@Override
+	public void setProperty(QName name, Object value, Resource r) throws PropertySetException {
+		throw new PropertySetException(Response.Status.SC_FORBIDDEN, "Property is read only: " + name);
+	}
+
+	@Override
+	public PropertyMetaData getPropertyMetaData(QName name, Resource r) {
+		if (isSupported(name, r)) {
+			return new PropertyMetaData(PropertyAccessibility.READ_ONLY, String.class);
+		}
+		return PropertyMetaData.UNKNOWN;
+	}
+
+	@Override
+	public void clearProperty(QName name, Resource r) throws PropertySetException {
+		throw new PropertySetException(Response.Status.SC_FORBIDDEN, "Property is read only: " + name);
+	}
+
+	@Override
+	public List<QName> getAllPropertyNames(Resource r) {
+		List<QName> list = new ArrayList<QName>();
+		if (isSupported(SYNC_TOKEN, r)) {
+			list.add(SYNC_TOKEN);
+		}
+		return list;
+	}
+
+	private boolean isSupported(QName name, Resource r) {
+		return SYNC_TOKEN.equals(name) && r instanceof SyncCollectionResource && ((SyncCollectionResource) r).getSyncId() != null;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.resource.Resource;
+
+/**
+ *
+ * @author brad
+ */
+public class SyncUtils {
+
+	/**
+	 * Returns the key used to identify a collection in a ChangeLog. This is
+	 * the collection's sync id if it is a SyncCollectionResource, otherwise
+	 * its path. Note that Resource.getUniqueId is not used, because it usually
+	 * changes whenever a member is added or removed
+	 *
+	 * @param col - the collection, may be null if not known
+	 * @param path - the decoded path of the collection, used if it has no sync id
+	 * @return
+	 */
+	public static String collectionKey(Resource col, String path) {
+		if (col instanceof SyncCollectionResource) {
+			String id = ((SyncCollectionResource) col).getSyncId();
+			if (id != null) {
+				return "id:" + id;
+			}
+		}
+		return pathKey(path);
+	}
+
+	/**
+	 * Returns the key for the collection at the given path, ignoring any sync
+	 * id. Unless this is the root, the keys of collections within it start with
+	 * this key followed by a slash
+	 *
+	 * @param path - the decoded path of the collection
+	 * @return
+	 */
+	public static String pathKey(String path) {
+		if (path == null) {
+			path = "/";
+		}
+		while (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (path.length() == 0) {
+			path = "/";
+		}
+		return "path:" + path;
+	}
+}
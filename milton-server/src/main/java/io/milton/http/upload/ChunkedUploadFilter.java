@@ -0,0 +1,422 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.upload;
+
+import io.milton.common.ContentTypeUtils;
+import io.milton.common.FileUtils;
+import io.milton.common.Path;
+import io.milton.event.PutEvent;
+import io.milton.http.AuthenticationService.AuthStatus;
+import io.milton.http.Filter;
+import io.milton.http.FilterChain;
+import io.milton.http.HandlerHelper;
+import io.milton.http.HttpManager;
+import io.milton.http.Request;
+import io.milton.http.Request.Method;
+import io.milton.http.RequestCachingResourceFactory;
+import io.milton.http.Response;
+import io.milton.http.StandardFilter;
+import io.milton.http.entity.ByteArrayEntity;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.http11.Http11ResponseHandler;
+import io.milton.http.quota.StorageChecker.StorageErrorReason;
+import io.milton.http.webdav.WebDavResponseHandler;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.PutableResource;
+import io.milton.resource.ReplaceableResource;
+import io.milton.resource.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implements resumable, chunked uploads. All requests are made to the URL of
+ * the resource being uploaded, with query parameters identifying the
+ * operation:
+ *
+ * POST url?uploads - create a new upload session. Responds with 201, the id of
+ * the session in the body and a Location header for the session
+ *
+ * PUT url?uploadId=x&amp;chunk=n - store the request body as chunk n (zero
+ * indexed). Chunks can be sent in any order and concurrently, and sending a
+ * chunk again replaces it
+ *
+ * GET url?uploadId=x - returns a comma separated list of the chunks which have
+ * been completely received
+ *
+ * POST url?uploadId=x&amp;chunks=n - assemble chunks 0 to n-1 into the target
+ * resource, creating it in its parent PutableResource or replacing it if it
+ * is a ReplaceableResource. If chunks is omitted all received chunks are
+ * used, and they must be contiguous. The session is removed on success
+ *
+ * DELETE url?uploadId=x - abandon the upload
+ *
+ * Requests without these parameters are passed down the chain. Every
+ * operation is authorised as a PUT against the resource which will finally be
+ * modified, and a session can only be used by the user which created it.
+ * Chunks are streamed to disk as they arrive and are streamed from disk into
+ * the target on completion, so large uploads are never held in memory. Chunks
+ * and uploads which exceed the size limits of the ChunkedUploadManager are
+ * refused with 413, and new sessions beyond its limit with 503.
+ *
+ * Add this before the StandardFilter, or enable it with
+ * HttpManagerBuilder.setEnableChunkedUpload
+ *
+ * @author brad
+ */
+public class ChunkedUploadFilter implements Filter {
+
+	private static final Logger log = LoggerFactory.getLogger(ChunkedUploadFilter.class);
+	public static final String PARAM_UPLOADS = "uploads";
+	public static final String PARAM_UPLOAD_ID = "uploadId";
+	public static final String PARAM_CHUNK = "chunk";
+	public static final String PARAM_CHUNKS = "chunks";
+	private final ChunkedUploadManager uploadManager;
+	private final HandlerHelper handlerHelper;
+	private int maxChunks = 100000;
+
+	public ChunkedUploadFilter(ChunkedUploadManager uploadManager, HandlerHelper handlerHelper) {
+		this.uploadManager = uploadManager;
+		this.handlerHelper = handlerHelper;
+	}
+
+	@Override
+	public void process(FilterChain chain, Request request, Response response) {
+		Map<String, String> params = parseQuery(request.getAbsoluteUrl());
+		if (!params.containsKey(PARAM_UPLOADS) && !params.containsKey(PARAM_UPLOAD_ID)) {
+			chain.process(request, response);
+			return;
+		}
+		HttpManager manager = chain.getHttpManager();
+		Http11ResponseHandler responseHandler = manager.getResponseHandler();
+		try {
+			process(manager, request, response, params);
+			if (response.getEntity() != null) {
+				manager.sendResponseEntity(response);
+			}
+		} catch (BadRequestException ex) {
+			log.warn("BadRequestException: " + ex.getReason());
+			responseHandler.respondBadRequest(ex.getResource(), response, request);
+		} catch (ConflictException ex) {
+			log.warn("conflictException: " + ex.getMessage());
+			responseHandler.respondConflict(ex.getResource(), response, request, StandardFilter.INTERNAL_SERVER_ERROR_HTML);
+		} catch (NotAuthorizedException ex) {
+			log.warn("NotAuthorizedException", ex);
+			responseHandler.respondUnauthorised(ex.getResource(), response, request);
+		} catch (Throwable e) {
+			log.error("Exception processing chunked upload", e);
+			response.sendError(Response.Status.SC_INTERNAL_SERVER_ERROR, StandardFilter.INTERNAL_SERVER_ERROR_HTML);
+		}
+	}
+
+	private void process(HttpManager manager, Request request, Response response, Map<String, String> params) throws NotAuthorizedException, ConflictException, BadRequestException, IOException {
+		Http11ResponseHandler responseHandler = manager.getResponseHandler();
+		String host = request.getHostHeader();
+		Path path = Path.path(HttpManager.decodeUrl(request.getAbsolutePath()));
+		String url = path.toString();
+
+		// Find the resource which will finally be modified, which is the target if it can be
+		// replaced, otherwise its parent
+		Resource target = manager.getResourceFactory().getResource(host, url);
+		Resource modified;
+		if (target instanceof ReplaceableResource) {
+			modified = target;
+		} else if (target != null) {
+			responseHandler.respondMethodNotAllowed(target, response, request);
+			return;
+		} else {
+			Resource parent = path.getParent() == null ? null : manager.getResourceFactory().getResource(host, path.getParent().toString());
+			if (parent == null) {
+				responseHandler.respondNotFound(response, request);
+				return;
+			} else if (!(parent instanceof PutableResource)) {
+				responseHandler.respondMethodNotImplemented(parent, response, request);
+				return;
+			}
+			modified = parent;
+		}
+
+		AuthStatus authStatus = handlerHelper.checkAuthentication(manager, modified, request);
+		if (authStatus != null && authStatus.loginFailed) {
+			responseHandler.respondUnauthorised(modified, response, request);
+			return;
+		}
+		if (!handlerHelper.checkAuthorisation(manager, modified, request, Method.PUT, authStatus == null ? null : authStatus.auth)) {
+			responseHandler.respondUnauthorised(modified, response, request);
+			return;
+		}
+		if (handlerHelper.isLockedOut(request, modified)) {
+			respondLocked(responseHandler, request, response, modified);
+			return;
+		}
+
+		String user = authStatus == null || authStatus.auth == null ? null : authStatus.auth.getUser();
+		Method method = request.getMethod();
+		if (params.containsKey(PARAM_UPLOADS)) {
+			if (method == Method.POST) {
+				create(request, response, host, url, user);
+			} else {
+				responseHandler.respondMethodNotAllowed(modified, response, request);
+			}
+			return;
+		}
+
+		UploadSession session = uploadManager.get(params.get(PARAM_UPLOAD_ID));
+		if (session == null || !session.isFor(host, url, user)) {
+			responseHandler.respondNotFound(response, request);
+			return;
+		}
+		if (method == Method.PUT) {
+			putChunk(request, response, responseHandler, modified, session, params.get(PARAM_CHUNK));
+		} else if (method == Method.GET || method == Method.HEAD) {
+			status(response, session, method == Method.GET);
+		} else if (method == Method.POST) {
+			finish(manager, request, response, target, modified, session, path, params.get(PARAM_CHUNKS));
+		} else if (method == Method.DELETE) {
+			if (!uploadManager.beginFinish(session)) {
+				throw new ConflictException(modified, "Upload is being finished or chunks are being written");
+			}
+			try {
+				uploadManager.remove(session);
+			} finally {
+				uploadManager.endFinish(session);
+			}
+			responseHandler.respondNoContent(modified, response, request);
+		} else {
+			responseHandler.respondMethodNotAllowed(modified, response, request);
+		}
+	}
+
+	private void create(Request request, Response response, String host, String url, String user) throws IOException {
+		UploadSession session = uploadManager.create(host, url, user);
+		if (session == null) {
+			response.sendError(Response.Status.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress");
+			return;
+		}
+		String location = request.getAbsoluteUrl();
+		int pos = location.indexOf("?");
+		if (pos > 0) {
+			location = location.substring(0, pos);
+		}
+		location = location + "?" + PARAM_UPLOAD_ID + "=" + session.getId();
+		response.setStatus(Response.Status.SC_CREATED);
+		response.setLocationHeader(location);
+		setTextEntity(response, session.getId(), true);
+	}
+
+	private void putChunk(Request request, Response response, Http11ResponseHandler responseHandler, Resource modified, UploadSession session, String sChunk) throws BadRequestException, ConflictException, IOException {
+		int chunk = parseInt(modified, PARAM_CHUNK, sChunk);
+		if (chunk >= maxChunks) {
+			throw new BadRequestException(modified, "Chunk number exceeds maximum of " + maxChunks);
+		}
+		try {
+			uploadManager.writeChunk(session, chunk, request.getInputStream(), request.getContentLengthHeader());
+		} catch (ChunkedUploadManager.UploadException ex) {
+			if (ex.getReason() == ChunkedUploadManager.UploadException.Reason.TOO_LARGE) {
+				log.warn(ex.getMessage());
+				response.sendError(Response.Status.SC_REQUEST_TOO_LONG, ex.getMessage());
+				return;
+			} else if (ex.getReason() == ChunkedUploadManager.UploadException.Reason.FINISHING) {
+				throw new ConflictException(modified, ex.getMessage());
+			} else {
+				throw new BadRequestException(modified, ex.getMessage());
+			}
+		}
+		log.trace("stored chunk " + chunk + " for upload " + session.getId());
+		responseHandler.respondNoContent(modified, response, request);
+	}
+
+	private void status(Response response, UploadSession session, boolean sendBody) {
+		StringBuilder sb = new StringBuilder();
+		for (Integer i : session.getChunkStore().getChunkNumbers()) {
+			if (sb.length() > 0) {
+				sb.append(",");
+			}
+			sb.append(i);
+		}
+		response.setStatus(Response.Status.SC_OK);
+		response.setCacheControlNoCacheHeader();
+		setTextEntity(response, sb.toString(), sendBody);
+	}
+
+	private void finish(HttpManager manager, Request request, Response response, Resource target, Resource modified, UploadSession session, Path path, String sChunks) throws NotAuthorizedException, ConflictException, BadRequestException, IOException {
+		Http11ResponseHandler responseHandler = manager.getResponseHandler();
+		String host = request.getHostHeader();
+		if (!uploadManager.beginFinish(session)) {
+			throw new ConflictException(modified, "Upload is already being finished or chunks are being written");
+		}
+		try {
+			FileChunkStore store = session.getChunkStore();
+			SortedSet<Integer> present = store.getChunkNumbers();
+			int numChunks;
+			if (sChunks != null) {
+				numChunks = parseInt(modified, PARAM_CHUNKS, sChunks);
+			} else {
+				numChunks = present.isEmpty() ? 0 : present.last() + 1;
+			}
+			for (int i = 0; i < numChunks; i++) {
+				if (!present.contains(i)) {
+					throw new ConflictException(modified, "Upload is missing chunk: " + i);
+				}
+			}
+			long length = store.getLength(numChunks);
+
+			StorageErrorReason storageErr = null;
+			if (target != null) {
+				Resource parent = manager.getResourceFactory().getResource(host, path.getParent().toString());
+				if (parent instanceof CollectionResource) {
+					storageErr = handlerHelper.checkStorageOnReplace(request, (CollectionResource) parent, target, host);
+				}
+			} else {
+				storageErr = handlerHelper.checkStorageOnAdd(request, (CollectionResource) modified, path.getParent(), host);
+			}
+			if (storageErr != null) {
+				respondInsufficientStorage(responseHandler, request, response, storageErr);
+				return;
+			}
+
+			InputStream in = store.openStream(numChunks);
+			Resource result;
+			try {
+				if (target != null) {
+					ReplaceableResource replacee = (ReplaceableResource) target;
+					replacee.replaceContent(in, length);
+					result = replacee;
+				} else {
+					String name = path.getName();
+					result = ((PutableResource) modified).createNew(name, in, length, ContentTypeUtils.findContentTypes(name));
+					if (result == null) {
+						throw new RuntimeException("createNew method on: " + modified.getClass() + " returned a null resource");
+					}
+				}
+			} finally {
+				FileUtils.close(in);
+			}
+			RequestCachingResourceFactory.invalidate(host, path.toString());
+			manager.getEventManager().fireEvent(new PutEvent(result));
+			uploadManager.remove(session);
+			log.debug("finished upload " + session.getId() + " to " + path + " length: " + length);
+			if (target != null) {
+				responseHandler.respondNoContent(result, response, request);
+			} else {
+				responseHandler.respondCreated(result, response, request);
+			}
+		} finally {
+			uploadManager.endFinish(session);
+		}
+	}
+
+	private void respondLocked(Http11ResponseHandler responseHandler, Request request, Response response, Resource existingResource) {
+		if (responseHandler instanceof WebDavResponseHandler) {
+			((WebDavResponseHandler) responseHandler).respondLocked(request, response, existingResource);
+		} else {
+			response.setStatus(Response.Status.SC_LOCKED);
+		}
+	}
+
+	private void respondInsufficientStorage(Http11ResponseHandler responseHandler, Request request, Response response, StorageErrorReason storageErrorReason) {
+		if (responseHandler instanceof WebDavResponseHandler) {
+			((WebDavResponseHandler) responseHandler).respondInsufficientStorage(request, response, storageErrorReason);
+		} else {
+			response.setStatus(Response.Status.SC_INSUFFICIENT_STORAGE);
+		}
+	}
+
+	private void setTextEntity(Response response, String text, boolean sendBody) {
+		byte[] arr;
+		try {
+			arr = text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+		response.setContentTypeHeader("text/plain");
+		response.setContentLengthHeader((long) arr.length);
+		if (sendBody) {
+			response.setEntity(new ByteArrayEntity(arr));
+		}
+	}
+
+	private int parseInt(Resource r, String name, String s) throws BadRequestException {
+		if (s == null) {
+			throw new BadRequestException(r, "Missing parameter: " + name);
+		}
+		try {
+			int i = Integer.parseInt(s.trim());
+			if (i < 0) {
+				throw new BadRequestException(r, "Invalid value for " + name + ": " + s);
+			}
+			return i;
+		} catch (NumberFormatException e) {
+			throw new BadRequestException(r, "Invalid value for " + name + ": " + s);
+		}
+	}
+
+	/**
+	 * Parse the query string only. The request body must not be touched here
+	 * since for chunk PUTs it is the chunk data
+	 *
+	 * @param absoluteUrl
+	 * @return
+	 */
+	static Map<String, String> parseQuery(String absoluteUrl) {
+		Map<String, String> map = new HashMap<String, String>();
+		int pos = absoluteUrl.indexOf("?");
+		if (pos < 0) {
+			return map;
+		}
+		for (String nv : absoluteUrl.substring(pos + 1).split("&")) {
+			if (nv.length() == 0) {
+				continue;
+			}
+			int eq = nv.indexOf("=");
+			try {
+				if (eq < 0) {
+					map.put(URLDecoder.decode(nv, "UTF-8"), "");
+				} else {
+					map.put(URLDecoder.decode(nv.substring(0, eq), "UTF-8"), URLDecoder.decode(nv.substring(eq + 1), "UTF-8"));
+				}
+			} catch (UnsupportedEncodingException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		return map;
+	}
+
+	public ChunkedUploadManager getUploadManager() {
+		return uploadManager;
+	}
+
+	/**
+	 * The highest chunk number accepted is one less than this. Default is
+	 * 100000
+	 *
+	 * @return
+	 */
+	public int getMaxChunks() {
+		return maxChunks;
+	}
+
+	public void setMaxChunks(int maxChunks) {
+		this.maxChunks = maxChunks;
+	}
+}
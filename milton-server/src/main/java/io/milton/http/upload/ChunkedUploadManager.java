@@ -0,0 +1,530 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.upload;
+
+import io.milton.common.FileUtils;
+import io.milton.common.Service;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and locates UploadSessions, each of which is a directory under the
+ * root directory holding a FileChunkStore and a small properties file
+ * describing the upload.
+ *
+ * Because sessions are held on disk they survive restarts, so a client can
+ * resume an upload by asking which chunks are present and sending the rest.
+ * Sessions which have not received a chunk within the expiry period are
+ * assumed to be abandoned and are periodically deleted
+ *
+ * The number of sessions, overall and for each user, the size of each chunk
+ * and the total size of each upload are limited, so that clients cannot use
+ * unbounded disk space. Each session belongs to the user which created it.
+ *
+ * The owner of each session, and the length of each chunk received, are
+ * kept in memory so the limits can be checked without listing the session
+ * directories. They are loaded from disk when first needed after a restart
+ *
+ * @author brad
+ */
+public class ChunkedUploadManager implements Runnable, Service {
+
+	private static final Logger log = LoggerFactory.getLogger(ChunkedUploadManager.class);
+	private static final String SESSION_FILE = "session.properties";
+	private static final int INTERVAL_SECONDS = 60;
+	private final File rootDir;
+	private final long expirySeconds;
+	private final Map<String, Activity> activity = new HashMap<String, Activity>();
+	private final Map<String, ChunkLengths> chunkLengths = new HashMap<String, ChunkLengths>();
+	private final ScheduledExecutorService scheduler;
+	private Map<String, String> owners;
+	private int maxSessions = 1000;
+	private int maxSessionsPerUser = 20;
+	private long maxChunkSize = 100 * 1024 * 1024;
+	private long maxUploadSize = 10L * 1024 * 1024 * 1024;
+
+	/**
+	 *
+	 * @param rootDir - directory to hold upload sessions, will be created if it
+	 * does not exist
+	 * @param expirySeconds - the number of seconds since the last chunk was
+	 * received after which a session is removed
+	 */
+	public ChunkedUploadManager(File rootDir, long expirySeconds) {
+		this.rootDir = rootDir;
+		this.expirySeconds = expirySeconds;
+		scheduler = Executors.newScheduledThreadPool(1, new DaemonThreadFactory());
+	}
+
+	@Override
+	public void start() {
+		if (!rootDir.exists() && !rootDir.mkdirs()) {
+			throw new RuntimeException("Couldnt create upload directory: " + rootDir.getAbsolutePath());
+		}
+		log.debug("scheduling checks for expired uploads every " + INTERVAL_SECONDS + " seconds");
+		scheduler.scheduleAtFixedRate(this, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void stop() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Create a new, empty, upload session for the given resource
+	 *
+	 * @param host
+	 * @param url - the decoded path of the resource to be created or replaced
+	 * @param user - the name of the user creating the session, or null if
+	 * anonymous. Only this user can use the session
+	 * @return - the new session, or null if there are already maxSessions
+	 * sessions, or maxSessionsPerUser sessions for the user
+	 * @throws IOException
+	 */
+	public synchronized UploadSession create(String host, String url, String user) throws IOException {
+		Map<String, String> sessions = owners();
+		if (sessions.size() >= maxSessions) {
+			log.warn("Not creating upload session, there are already: " + sessions.size());
+			return null;
+		}
+		int count = 0;
+		for (String owner : sessions.values()) {
+			if (owner == null ? user == null : owner.equals(user)) {
+				count++;
+			}
+		}
+		if (count >= maxSessionsPerUser) {
+			log.warn("Not creating upload session, user: " + user + " already has: " + count);
+			return null;
+		}
+		String id = UUID.randomUUID().toString();
+		File dir = new File(rootDir, id);
+		if (!dir.mkdirs()) {
+			throw new IOException("Couldnt create upload session directory: " + dir.getAbsolutePath());
+		}
+		Date created = new Date();
+		Properties props = new Properties();
+		if (host != null) {
+			props.setProperty("host", host);
+		}
+		props.setProperty("url", url);
+		if (user != null) {
+			props.setProperty("user", user);
+		}
+		props.setProperty("created", Long.toString(created.getTime()));
+		FileOutputStream fout = new FileOutputStream(new File(dir, SESSION_FILE));
+		try {
+			props.store(fout, null);
+		} finally {
+			FileUtils.close(fout);
+		}
+		sessions.put(id, user);
+		chunkLengths.put(id, new ChunkLengths());
+		log.debug("created upload session: " + id + " for " + url);
+		return new UploadSession(id, host, url, user, created, new FileChunkStore(dir));
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - the session with the given id, or null if there is no such
+	 * session or it has expired
+	 */
+	public UploadSession get(String id) {
+		if (id == null) {
+			return null;
+		}
+		try {
+			// only accept ids we could have issued, so the id cant be used to walk the file system
+			id = UUID.fromString(id).toString();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		File dir = new File(rootDir, id);
+		if (isExpired(dir)) {
+			return null;
+		}
+		Properties props = readSession(dir);
+		if (props == null) {
+			return null;
+		}
+		String url = props.getProperty("url");
+		if (url == null) {
+			return null;
+		}
+		Date created = new Date(Long.parseLong(props.getProperty("created", "0")));
+		return new UploadSession(id, props.getProperty("host"), url, props.getProperty("user"), created, new FileChunkStore(dir));
+	}
+
+	/**
+	 * Store a chunk for the session, enforcing the chunk and upload size
+	 * limits. The chunk is not stored if the session is being finished
+	 *
+	 * @param session
+	 * @param chunk - zero indexed chunk number
+	 * @param in
+	 * @param contentLength - the declared length of the chunk, if known. If
+	 * given, a chunk of any other length is discarded
+	 * @return - the number of bytes stored
+	 * @throws IOException
+	 * @throws UploadException - if the chunk was not stored because a limit
+	 * was exceeded, the chunk was incomplete or the session is being finished
+	 */
+	public long writeChunk(UploadSession session, int chunk, InputStream in, Long contentLength) throws IOException, UploadException {
+		FileChunkStore store = session.getChunkStore();
+		beginChunk(session);
+		try {
+			if (contentLength != null && contentLength > maxChunkSize) {
+				throw new UploadException("Chunk " + chunk + " is larger than the maximum of " + maxChunkSize + " bytes", UploadException.Reason.TOO_LARGE);
+			}
+			long limit = Math.min(maxChunkSize, maxUploadSize - otherChunksLength(session, chunk));
+			if (limit < 0 || (contentLength != null && contentLength > limit)) {
+				throw new UploadException("Upload is larger than the maximum of " + maxUploadSize + " bytes", UploadException.Reason.TOO_LARGE);
+			}
+			long written = store.writeChunk(chunk, in, limit);
+			if (written < 0) {
+				throw new UploadException("Chunk " + chunk + " exceeds the size limit of " + limit + " bytes", UploadException.Reason.TOO_LARGE);
+			}
+			if (contentLength != null && contentLength != written) {
+				// incomplete chunk, probably an interrupted connection. Dont keep it
+				store.deleteChunk(chunk);
+				chunkDeleted(session, chunk);
+				throw new UploadException("Received " + written + " bytes for chunk " + chunk + " but expected " + contentLength, UploadException.Reason.INCOMPLETE);
+			}
+			if (!chunkWritten(session, chunk, written)) {
+				// other chunks were written concurrently
+				store.deleteChunk(chunk);
+				throw new UploadException("Upload is larger than the maximum of " + maxUploadSize + " bytes", UploadException.Reason.TOO_LARGE);
+			}
+			return written;
+		} finally {
+			endChunk(session);
+		}
+	}
+
+	private synchronized long otherChunksLength(UploadSession session, int chunk) {
+		return chunkLengths(session).other(chunk);
+	}
+
+	/**
+	 * Record the length of a chunk which has been stored, unless it takes the
+	 * upload over the size limit, in which case it is forgotten and the
+	 * caller must delete it
+	 */
+	private synchronized boolean chunkWritten(UploadSession session, int chunk, long length) {
+		ChunkLengths lengths = chunkLengths(session);
+		if (length + lengths.other(chunk) > maxUploadSize) {
+			lengths.remove(chunk);
+			return false;
+		}
+		lengths.put(chunk, length);
+		return true;
+	}
+
+	private synchronized void chunkDeleted(UploadSession session, int chunk) {
+		chunkLengths(session).remove(chunk);
+	}
+
+	/**
+	 * The lengths of the chunks in the session, read from disk the first time
+	 * the session is used since a restart
+	 */
+	private ChunkLengths chunkLengths(UploadSession session) {
+		ChunkLengths lengths = chunkLengths.get(session.getId());
+		if (lengths == null) {
+			lengths = new ChunkLengths();
+			FileChunkStore store = session.getChunkStore();
+			for (Integer i : store.getChunkNumbers()) {
+				lengths.put(i, store.getChunkFile(i).length());
+			}
+			chunkLengths.put(session.getId(), lengths);
+		}
+		return lengths;
+	}
+
+	/**
+	 * The owner of each session, by session id. Read from disk the first time
+	 * it is needed
+	 */
+	private Map<String, String> owners() {
+		if (owners == null) {
+			owners = new HashMap<String, String>();
+			File[] dirs = rootDir.listFiles();
+			if (dirs != null) {
+				for (File dir : dirs) {
+					Properties props = readSession(dir);
+					if (props != null) {
+						owners.put(dir.getName(), props.getProperty("user"));
+					}
+				}
+			}
+		}
+		return owners;
+	}
+
+	private synchronized void forget(String id) {
+		chunkLengths.remove(id);
+		if (owners != null) {
+			owners.remove(id);
+		}
+	}
+
+	private Properties readSession(File dir) {
+		File sessionFile = new File(dir, SESSION_FILE);
+		if (!sessionFile.exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		FileInputStream fin = null;
+		try {
+			fin = new FileInputStream(sessionFile);
+			props.load(fin);
+		} catch (IOException ex) {
+			log.warn("Couldnt read upload session: " + sessionFile.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			FileUtils.close(fin);
+		}
+		return props;
+	}
+
+	private synchronized void beginChunk(UploadSession session) throws UploadException {
+		Activity a = activity.get(session.getId());
+		if (a == null) {
+			a = new Activity();
+			activity.put(session.getId(), a);
+		} else if (a.finishing) {
+			throw new UploadException("Upload is being finished", UploadException.Reason.FINISHING);
+		}
+		a.writers++;
+	}
+
+	private synchronized void endChunk(UploadSession session) {
+		Activity a = activity.get(session.getId());
+		a.writers--;
+		if (a.writers == 0 && !a.finishing) {
+			activity.remove(session.getId());
+		}
+	}
+
+	/**
+	 * Mark the session as being finished. While this is held no chunks can be
+	 * added to the session, and it cannot be finished concurrently
+	 *
+	 * @param session
+	 * @return - false if the session is already being finished, or chunks are
+	 * being written to it
+	 */
+	public synchronized boolean beginFinish(UploadSession session) {
+		if (activity.containsKey(session.getId())) {
+			return false;
+		}
+		Activity a = new Activity();
+		a.finishing = true;
+		activity.put(session.getId(), a);
+		return true;
+	}
+
+	public synchronized void endFinish(UploadSession session) {
+		activity.remove(session.getId());
+	}
+
+	public synchronized boolean isFinishing(UploadSession session) {
+		Activity a = activity.get(session.getId());
+		return a != null && a.finishing;
+	}
+
+	private synchronized boolean isActive(String id) {
+		return activity.containsKey(id);
+	}
+
+	/**
+	 * Delete the session and all its chunks
+	 *
+	 * @param session
+	 */
+	public void remove(UploadSession session) {
+		log.debug("removing upload session: " + session.getId());
+		session.getChunkStore().deleteChunks();
+		forget(session.getId());
+	}
+
+	/**
+	 * Removes expired sessions
+	 */
+	@Override
+	public void run() {
+		File[] dirs = rootDir.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		for (File dir : dirs) {
+			if (dir.isDirectory() && isExpired(dir) && !isActive(dir.getName())) {
+				log.info("removing abandoned upload: " + dir.getName());
+				new FileChunkStore(dir).deleteChunks();
+				forget(dir.getName());
+			}
+		}
+	}
+
+	private boolean isExpired(File dir) {
+		long age = (System.currentTimeMillis() - dir.lastModified()) / 1000;
+		return age > expirySeconds;
+	}
+
+	public File getRootDir() {
+		return rootDir;
+	}
+
+	public long getExpirySeconds() {
+		return expirySeconds;
+	}
+
+	/**
+	 * The maximum number of upload sessions which can exist at once. Default
+	 * is 1000
+	 *
+	 * @return
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * The maximum number of upload sessions which a single user can have at
+	 * once. Anonymous sessions share a single allowance. Default is 20
+	 *
+	 * @return
+	 */
+	public int getMaxSessionsPerUser() {
+		return maxSessionsPerUser;
+	}
+
+	public void setMaxSessionsPerUser(int maxSessionsPerUser) {
+		this.maxSessionsPerUser = maxSessionsPerUser;
+	}
+
+	/**
+	 * The maximum size in bytes of a single chunk. Default is 100MB
+	 *
+	 * @return
+	 */
+	public long getMaxChunkSize() {
+		return maxChunkSize;
+	}
+
+	public void setMaxChunkSize(long maxChunkSize) {
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	/**
+	 * The maximum total size in bytes of all chunks in a session. Default is
+	 * 10GB
+	 *
+	 * @return
+	 */
+	public long getMaxUploadSize() {
+		return maxUploadSize;
+	}
+
+	public void setMaxUploadSize(long maxUploadSize) {
+		this.maxUploadSize = maxUploadSize;
+	}
+
+	/**
+	 * A chunk could not be stored
+	 */
+	public static class UploadException extends Exception {
+
+		public enum Reason {
+
+			TOO_LARGE,
+			INCOMPLETE,
+			FINISHING
+		}
+		private static final long serialVersionUID = 1L;
+		private final Reason reason;
+
+		public UploadException(String message, Reason reason) {
+			super(message);
+			this.reason = reason;
+		}
+
+		public Reason getReason() {
+			return reason;
+		}
+	}
+
+	private static class Activity {
+
+		int writers;
+		boolean finishing;
+	}
+
+	/**
+	 * The length of each stored chunk in a session, and their total
+	 */
+	private static class ChunkLengths {
+
+		private final Map<Integer, Long> lengths = new HashMap<Integer, Long>();
+		private long total;
+
+		void put(int chunk, long length) {
+			remove(chunk);
+			lengths.put(chunk, length);
+			total += length;
+		}
+
+		void remove(int chunk) {
+			Long old = lengths.remove(chunk);
+			if (old != null) {
+				total -= old;
+			}
+		}
+
+		long other(int chunk) {
+			Long l = lengths.get(chunk);
+			return l == null ? total : total - l;
+		}
+	}
+
+	private class DaemonThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, ChunkedUploadManager.class.getCanonicalName());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
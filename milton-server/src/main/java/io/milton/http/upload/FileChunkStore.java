@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.upload;
+
+import io.milton.common.ChunkStore;
+import io.milton.common.FileUtils;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A ChunkStore which keeps each chunk in its own file within a directory.
+ *
+ * Chunks are written to a temporary file and renamed into place, so a chunk
+ * is either completely present or absent, and different chunks can be
+ * written concurrently. Chunks can be streamed in directly with writeChunk,
+ * and read back in order with openStream, so the content never needs to be
+ * held in memory.
+ *
+ * @author brad
+ */
+public class FileChunkStore implements ChunkStore {
+
+	private static final Logger log = LoggerFactory.getLogger(FileChunkStore.class);
+	private static final String CHUNK_PREFIX = "chunk-";
+	private final File dir;
+
+	public FileChunkStore(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public void newChunk(int i, byte[] data) {
+		try {
+			writeChunk(i, new ByteArrayInputStream(data));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Stream the data for chunk i to disk, replacing any previous copy of the
+	 * chunk
+	 *
+	 * @param i - zero indexed chunk number
+	 * @param in
+	 * @return - the number of bytes written
+	 * @throws IOException
+	 */
+	public long writeChunk(int i, InputStream in) throws IOException {
+		return writeChunk(i, in, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Stream the data for chunk i to disk, replacing any previous copy of the
+	 * chunk, unless it is longer than maxLength
+	 *
+	 * @param i - zero indexed chunk number
+	 * @param in
+	 * @param maxLength - the maximum number of bytes to accept
+	 * @return - the number of bytes written, or -1 if there were more than
+	 * maxLength, in which case nothing is stored
+	 * @throws IOException
+	 */
+	public long writeChunk(int i, InputStream in, long maxLength) throws IOException {
+		if (i < 0) {
+			throw new IllegalArgumentException("Invalid chunk number: " + i);
+		}
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Couldnt create chunk directory: " + dir.getAbsolutePath());
+		}
+		File tmp = new File(dir, CHUNK_PREFIX + i + "." + UUID.randomUUID() + ".tmp");
+		long length;
+		FileOutputStream fout = new FileOutputStream(tmp);
+		try {
+			length = copy(in, fout, maxLength);
+			if (length < 0) {
+				FileUtils.close(fout);
+				tmp.delete();
+				return -1;
+			}
+			fout.getFD().sync();
+		} catch (IOException ex) {
+			FileUtils.close(fout);
+			tmp.delete();
+			throw ex;
+		} finally {
+			FileUtils.close(fout);
+		}
+		File dest = getChunkFile(i);
+		if (!tmp.renameTo(dest)) {
+			// some platforms wont rename over an existing file
+			dest.delete();
+			if (!tmp.renameTo(dest)) {
+				tmp.delete();
+				throw new IOException("Couldnt move chunk into place: " + dest.getAbsolutePath());
+			}
+		}
+		dir.setLastModified(System.currentTimeMillis());
+		return length;
+	}
+
+	private long copy(InputStream in, OutputStream out, long maxLength) throws IOException {
+		byte[] buf = new byte[4096];
+		long length = 0;
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			length += n;
+			if (length > maxLength) {
+				return -1;
+			}
+			out.write(buf, 0, n);
+		}
+		return length;
+	}
+
+	@Override
+	public byte[] getChunk(int i) {
+		File f = getChunkFile(i);
+		if (!f.exists()) {
+			return null;
+		}
+		try {
+			return org.apache.commons.io.FileUtils.readFileToByteArray(f);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Removes a single chunk, eg if it was found to be incomplete
+	 *
+	 * @param i
+	 */
+	public void deleteChunk(int i) {
+		getChunkFile(i).delete();
+	}
+
+	@Override
+	public void deleteChunks() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.delete()) {
+					log.warn("Couldnt delete: " + f.getAbsolutePath());
+				}
+			}
+		}
+		dir.delete();
+	}
+
+	public File getChunkFile(int i) {
+		return new File(dir, CHUNK_PREFIX + i);
+	}
+
+	/**
+	 *
+	 * @return - the numbers of the chunks which are completely written, in
+	 * ascending order
+	 */
+	public SortedSet<Integer> getChunkNumbers() {
+		SortedSet<Integer> set = new TreeSet<Integer>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(CHUNK_PREFIX) && !name.endsWith(".tmp")) {
+					try {
+						set.add(Integer.parseInt(name.substring(CHUNK_PREFIX.length())));
+					} catch (NumberFormatException e) {
+						log.warn("Ignoring unexpected file in chunk store: " + name);
+					}
+				}
+			}
+		}
+		return set;
+	}
+
+	/**
+	 *
+	 * @param numChunks
+	 * @return - the combined length of chunks 0 to numChunks-1
+	 */
+	public long getLength(int numChunks) {
+		long l = 0;
+		for (int i = 0; i < numChunks; i++) {
+			l += getChunkFile(i).length();
+		}
+		return l;
+	}
+
+	/**
+	 * Open a stream which reads chunks 0 to numChunks-1 in order. Each chunk
+	 * file is only opened once the previous one has been read, so only one
+	 * file handle is held at a time
+	 *
+	 * @param numChunks
+	 * @return
+	 * @throws FileNotFoundException - if any of the chunks are missing
+	 */
+	public InputStream openStream(final int numChunks) throws FileNotFoundException {
+		for (int i = 0; i < numChunks; i++) {
+			File f = getChunkFile(i);
+			if (!f.exists()) {
+				throw new FileNotFoundException("Missing chunk: " + i);
+			}
+		}
+		Enumeration<InputStream> en = new Enumeration<InputStream>() {
+			int next = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return next < numChunks;
+			}
+
+			@Override
+			public InputStream nextElement() {
+				if (next >= numChunks) {
+					throw new NoSuchElementException();
+				}
+				File f = getChunkFile(next++);
+				try {
+					return new FileInputStream(f);
+				} catch (FileNotFoundException ex) {
+					throw new RuntimeException("Chunk was removed while reading: " + f.getAbsolutePath(), ex);
+				}
+			}
+		};
+		return new SequenceInputStream(en);
+	}
+
+	public File getDir() {
+		return dir;
+	}
+}
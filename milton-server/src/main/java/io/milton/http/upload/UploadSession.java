@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.upload;
+
+import java.util.Date;
+
+/**
+ * An upload which is in progress, ie chunks are being received for a target
+ * resource but it has not yet been finished. Sessions are identified by a
+ * random id, and are only valid for the host and url they were created for,
+ * and only for the user which created them
+ *
+ * @author brad
+ */
+public class UploadSession {
+
+	private final String id;
+	private final String host;
+	private final String url;
+	private final String user;
+	private final Date createdDate;
+	private final FileChunkStore chunkStore;
+
+	public UploadSession(String id, String host, String url, String user, Date createdDate, FileChunkStore chunkStore) {
+		this.id = id;
+		this.host = host;
+		this.url = url;
+		this.user = user;
+		this.createdDate = createdDate;
+		this.chunkStore = chunkStore;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 *
+	 * @return - the host header of the request which created this upload, may
+	 * be null
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 *
+	 * @return - the decoded path of the resource being uploaded
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 *
+	 * @return - the name of the user which created this upload, or null if it
+	 * was created anonymously
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+
+	public FileChunkStore getChunkStore() {
+		return chunkStore;
+	}
+
+	/**
+	 *
+	 * @param host
+	 * @param url
+	 * @param user - the name of the current user, or null if anonymous
+	 * @return - true if this session was created for the given resource by
+	 * the given user
+	 */
+	public boolean isFor(String host, String url, String user) {
+		if (!this.url.equals(url)) {
+			return false;
+		}
+		if (this.user == null ? user != null : !this.user.equals(user)) {
+			return false;
+		}
+		return this.host == null ? host == null : this.host.equals(host);
+	}
+}
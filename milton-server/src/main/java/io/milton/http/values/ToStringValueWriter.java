@@ -15,7 +15,6 @@
 
 package io.milton.http.values;
 
-import io.milton.common.Utils;
 import io.milton.http.XmlWriter;
 import java.util.Map;
 
@@ -25,17 +24,11 @@ public class ToStringValueWriter implements ValueWriter {
         return true;
     }
 
-    private String nameEncode( String s ) {
-        //return Utils.encode(href, false); // see MIL-31
-        return Utils.escapeXml( s );
-    }
-
     public void writeValue( XmlWriter writer, String nsUri, String prefix, String localName, Object val, String href, Map<String, String> nsPrefixes ) {
         if( val == null ) {
             writer.writeProperty( prefix, localName );
         } else {
-            String s = nameEncode( val.toString() );
-            writer.writeProperty( prefix, localName, s );
+            writer.writeEscapedProperty( prefix, localName, val.toString() );
         }
     }
 
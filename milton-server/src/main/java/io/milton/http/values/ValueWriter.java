@@ -38,7 +38,7 @@ public interface ValueWriter {
      * @param val
      * @return
      */
-    boolean supports( String nsUri, String localName, Class valueClass );
+    boolean supports( String nsUri, String localName, Class<?> valueClass );
 
     /**
      * Write the value out to XML using the given XmlWriter
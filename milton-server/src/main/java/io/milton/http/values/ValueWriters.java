@@ -16,7 +16,10 @@
 package io.milton.http.values;
 
 import io.milton.http.XmlWriter;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.xml.namespace.QName;
@@ -30,6 +33,14 @@ import org.slf4j.LoggerFactory;
  * They also parse string values in PROPPATCH requests into the strongly
  * typed values.
  *
+ * The writer selected for each combination of property name and value class
+ * is cached, so the list is only scanned the first time a combination is seen.
+ * This assumes that ValueWriter.supports depends only on its arguments. Since
+ * property names can come from clients, at most maxCacheSize combinations are
+ * cached, and the least recently used is dropped to make room for a new one.
+ * The cache is cleared when the list is
+ * modified through getValueWriters()
+ *
  * @author brad
  */
 public class ValueWriters {
@@ -37,14 +48,18 @@ public class ValueWriters {
 	private static final Logger log = LoggerFactory.getLogger( ValueWriters.class );
 	
     private final List<ValueWriter> writers;
+	private final List<ValueWriter> writersView = new InvalidatingList();
+	private final Map<DispatchKey, Selection> dispatch = Collections.synchronizedMap(new DispatchCache());
+	private int maxCacheSize = 1000;
 
     /**
-     * Allows the set of value writers to be injected
+     * Allows the set of value writers to be injected. The list is copied, so
+     * to change the writers later use getValueWriters()
      *
      * @param valueWriters
      */
     public ValueWriters(List<ValueWriter> valueWriters) {
-        this.writers = valueWriters;
+        this.writers = new ArrayList<ValueWriter>(valueWriters);
     }
 
     /**
@@ -86,23 +101,41 @@ public class ValueWriters {
      * @param nsPrefixes
      */
     public void writeValue(XmlWriter writer, QName qname, String prefix, ValueAndType vat, String href, Map<String, String> nsPrefixes) {
-        for (ValueWriter vw : writers) {
-			if( vat.getValue() != null ) {
-				if( vat.getValue().getClass() != vat.getType()) {
-					throw new RuntimeException("Inconsistent type information: " + vat.getValue().getClass() + " != " + vat.getType());
-				}
+		if( vat.getValue() != null ) {
+			if( vat.getValue().getClass() != vat.getType()) {
+				throw new RuntimeException("Inconsistent type information: " + vat.getValue().getClass() + " != " + vat.getType());
 			}
-            if (vw.supports(qname.getNamespaceURI(), qname.getLocalPart(), vat.getType())) {
-                vw.writeValue(writer, qname.getNamespaceURI(), prefix, qname.getLocalPart(), vat.getValue(), href, nsPrefixes);
-                break;
-            }
-        }
+		}
+		ValueWriter vw = findWriter(qname, vat.getType());
+		if (vw != null) {
+			vw.writeValue(writer, qname.getNamespaceURI(), prefix, qname.getLocalPart(), vat.getValue(), href, nsPrefixes);
+		}
     }
 
+    /**
+     * Returns the list of writers. Changes made through the returned list
+     * clear the cached writer selections
+     *
+     * @return
+     */
     public List<ValueWriter> getValueWriters() {
-        return writers;
+        return writersView;
     }
 
+	/**
+	 * The maximum number of property name and value class combinations to
+	 * remember the writer for. Default is 1000
+	 *
+	 * @return
+	 */
+	public int getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	public void setMaxCacheSize(int maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+	}
+
     /**
      * Find the first ValueWriter which supports the given property and use it
      * to parse the value
@@ -112,14 +145,135 @@ public class ValueWriters {
      * @param value
      * @return
      */
-    public Object parse(QName qname, Class valueType, String value) {
-        for (ValueWriter vw : writers) {
-            if (vw.supports(qname.getNamespaceURI(), qname.getLocalPart(), valueType)) {
-				log.trace("parse: Found supporting value writer {} ", vw);
-                return vw.parse(qname.getNamespaceURI(), qname.getLocalPart(), value);
-            }
-        }
+    public Object parse(QName qname, Class<?> valueType, String value) {
+		ValueWriter vw = findWriter(qname, valueType);
+		if (vw != null) {
+			log.trace("parse: Found supporting value writer {} ", vw);
+			return vw.parse(qname.getNamespaceURI(), qname.getLocalPart(), value);
+		}
 		log.warn("parse: No value writer supports: qname: " + qname + " type:" + valueType + " value:" + value );
         return null;
     }
+
+	/**
+	 * Find the first writer, in list order, which supports the given property
+	 * and value type. The result, including the absence of a writer, is cached
+	 *
+	 * @param qname
+	 * @param valueType
+	 * @return - the writer, or null if none support the property
+	 */
+	private ValueWriter findWriter(QName qname, Class<?> valueType) {
+		if (valueType == null) {
+			// rare, so just scan
+			return scan(qname, valueType);
+		}
+		DispatchKey key = new DispatchKey(qname, valueType);
+		Selection selection = dispatch.get(key);
+		if (selection == null) {
+			selection = new Selection(scan(qname, valueType));
+			dispatch.put(key, selection);
+		}
+		return selection.writer;
+	}
+
+	private ValueWriter scan(QName qname, Class<?> valueType) {
+		for (ValueWriter vw : writers) {
+			if (vw.supports(qname.getNamespaceURI(), qname.getLocalPart(), valueType)) {
+				return vw;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The writer found for a property, which may be null
+	 */
+	private static class Selection {
+
+		private final ValueWriter writer;
+
+		Selection(ValueWriter writer) {
+			this.writer = writer;
+		}
+	}
+
+	private static class DispatchKey {
+
+		private final QName qname;
+		private final Class<?> valueType;
+
+		DispatchKey(QName qname, Class<?> valueType) {
+			this.qname = qname;
+			this.valueType = valueType;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DispatchKey)) {
+				return false;
+			}
+			DispatchKey other = (DispatchKey) obj;
+			return qname.equals(other.qname) && valueType == other.valueType;
+		}
+
+		@Override
+		public int hashCode() {
+			return qname.hashCode() * 31 + valueType.hashCode();
+		}
+	}
+
+	/**
+	 * Access ordered, so the eldest entry is the least recently used
+	 */
+	private class DispatchCache extends LinkedHashMap<DispatchKey, Selection> {
+
+		private static final long serialVersionUID = 1L;
+
+		DispatchCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<DispatchKey, Selection> eldest) {
+			return size() > maxCacheSize;
+		}
+	}
+
+	/**
+	 * A view of the writers list which clears the dispatch cache whenever
+	 * it is modified
+	 */
+	private class InvalidatingList extends AbstractList<ValueWriter> {
+
+		@Override
+		public ValueWriter get(int index) {
+			return writers.get(index);
+		}
+
+		@Override
+		public int size() {
+			return writers.size();
+		}
+
+		@Override
+		public ValueWriter set(int index, ValueWriter element) {
+			ValueWriter old = writers.set(index, element);
+			dispatch.clear();
+			return old;
+		}
+
+		@Override
+		public void add(int index, ValueWriter element) {
+			writers.add(index, element);
+			dispatch.clear();
+		}
+
+		@Override
+		public ValueWriter remove(int index) {
+			ValueWriter old = writers.remove(index);
+			dispatch.clear();
+			return old;
+		}
+	}
 }
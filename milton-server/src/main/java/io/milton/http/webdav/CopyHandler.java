@@ -14,7 +14,10 @@
  */
 package io.milton.http.webdav;
 
+import io.milton.http.HrefStatus;
 import io.milton.http.HttpManager;
+import io.milton.http.MultiStatusException;
+import io.milton.http.RequestCachingResourceFactory;
 import io.milton.resource.Resource;
 import io.milton.http.Response;
 import io.milton.http.DeleteHelperImpl;
@@ -31,6 +34,8 @@ import io.milton.http.Request.Method;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
+import java.util.ArrayList;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -104,30 +109,31 @@ public class CopyHandler implements ExistingEntityHandler {
 						return;
 					} else {
 						// Overwrite is absent or T, so continue
-						if (deleteHelper.isLockedOut(request, rExisting)) {
+						if (deleteExistingBeforeCopy && rExisting instanceof DeletableResource) {
+							log.debug("copy destination exists and is deletable, delete it..");
+							DeletableResource dr = (DeletableResource) rExisting;
+
+							// Check the user can delete
+							if (!handlerHelper.checkAuthorisation(manager, dr, request, Method.DELETE, request.getAuthorization())) {
+								responseHandler.respondUnauthorised(colDest, response, request);
+								return;
+							}
+
+							// checks locks and deletes in a single pass over the destination
+							if (!deleteHelper.deleteIfNotLocked(request, dr, Utils.suffixSlash(dest.url) + dest.name, manager.getEventManager())) {
+								log.info("destination resource exists, and overwrite header IS set, but destination is locked. dest name: " + dest.name + " dest folder: " + colDest.getName());
+								responseHandler.respondPreconditionFailed(request, response, resource);
+								return;
+							}
+							wasDeleted = true;
+						} else if (deleteHelper.isLockedOut(request, rExisting)) {
 							log.info("destination resource exists, and overwrite header IS set, but destination is locked. dest name: " + dest.name + " dest folder: " + colDest.getName());
 							responseHandler.respondPreconditionFailed(request, response, resource);
 							return;
-						} else {
-							if (deleteExistingBeforeCopy) {
-								if (rExisting instanceof DeletableResource) {
-									log.debug("copy destination exists and is deletable, delete it..");
-									DeletableResource dr = (DeletableResource) rExisting;
-									
-									// Check the user can delete
-									if (!handlerHelper.checkAuthorisation(manager, dr, request, Method.DELETE, request.getAuthorization())) {
-										responseHandler.respondUnauthorised(colDest, response, request);
-										return;
-									}
-
-									deleteHelper.delete(dr, manager.getEventManager());
-									wasDeleted = true;
-								} else {
-									log.warn("copy destination exists and is a collection so must be deleted, but does not implement: " + DeletableResource.class);
-									responseHandler.respondConflict(rExisting, response, request, dest.toString());
-									return;
-								}
-							}
+						} else if (deleteExistingBeforeCopy) {
+							log.warn("copy destination exists and is a collection so must be deleted, but does not implement: " + DeletableResource.class);
+							responseHandler.respondConflict(rExisting, response, request, dest.toString());
+							return;
 						}
 					}
 				}
@@ -138,7 +144,20 @@ public class CopyHandler implements ExistingEntityHandler {
 					responseHandler.respondUnauthorised(colDest, response, request);
 					return;
 				}
-				r.copyTo(colDest, dest.name);
+				try {
+					r.copyTo(colDest, dest.name);
+				} catch (MultiStatusException ex) {
+					// some members were copied, report those which werent
+					RequestCachingResourceFactory.invalidate(dest.host, Utils.suffixSlash(dest.url) + dest.name);
+					String base = Utils.suffixSlash(request.getDestinationHeader());
+					List<HrefStatus> statii = new ArrayList<HrefStatus>();
+					for (HrefStatus s : ex.getStatii()) {
+						statii.add(new HrefStatus(base + s.href, s.status));
+					}
+					responseHandler.responseMultiStatus(resource, response, request, statii);
+					return;
+				}
+				RequestCachingResourceFactory.invalidate(dest.host, Utils.suffixSlash(dest.url) + dest.name);
 
 				// See http://www.ettrema.com:8080/browse/MIL-87
 				if (wasDeleted) {
@@ -178,4 +197,12 @@ public class CopyHandler implements ExistingEntityHandler {
 	public UserAgentHelper getUserAgentHelper() {
 		return userAgentHelper;
 	}
+
+	public DeleteHelper getDeleteHelper() {
+		return deleteHelper;
+	}
+
+	public void setDeleteHelper(DeleteHelper deleteHelper) {
+		this.deleteHelper = deleteHelper;
+	}
 }
@@ -16,6 +16,7 @@
 package io.milton.http.webdav;
 
 import io.milton.resource.GetableResource;
+import io.milton.resource.PropFindableResource;
 import io.milton.http.HrefStatus;
 import io.milton.http.Range;
 import io.milton.http.Request;
@@ -25,6 +26,7 @@ import io.milton.http.Response.Status;
 import io.milton.common.Utils;
 import io.milton.http.entity.ByteArrayEntity;
 import io.milton.http.entity.MultiStatusEntity;
+import io.milton.http.entity.PropFindEntity;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
@@ -44,7 +46,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author brad
  */
-public class DefaultWebDavResponseHandler implements WebDavResponseHandler, Bufferable {
+public class DefaultWebDavResponseHandler implements StreamingResponseHandler, Bufferable {
 
     private static final Logger log = LoggerFactory.getLogger( DefaultWebDavResponseHandler.class );
     protected final Http11ResponseHandler wrapped;
@@ -196,6 +198,28 @@ public class DefaultWebDavResponseHandler implements WebDavResponseHandler, Buff
         response.setEntity(new ByteArrayEntity(arr));
     }
 
+	@Override
+    public void respondPropFind( PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, PropFindPropertyBuilder propertyBuilder, Response response, Request request ) {
+        log.trace("respondPropFind - streaming");
+        response.setStatus( Status.SC_MULTI_STATUS );
+        response.setDateHeader( new Date() );
+		response.setContentTypeHeader( "application/xml; charset=utf-8" );
+        List<String> supportedLevels = resourceTypeHelper.getSupportedLevels( pfr );
+        String s = Utils.toCsv( supportedLevels );
+        response.setDavHeader( s );
+        // no content length, we don't know it until we've finished
+        response.setEntity(new PropFindEntity(propFindXmlGenerator, propertyBuilder, pfr, depth, parseResult, url));
+    }
+
+	@Override
+    public void respondReport( Resource resource, Response response, Request request, Response.Entity entity ) {
+        log.trace("respondReport");
+        response.setStatus( Status.SC_MULTI_STATUS );
+        response.setDateHeader( new Date() );
+        response.setContentTypeHeader( "text/xml" );
+        response.setEntity( entity );
+    }
+
 	@Override
     public void respondInsufficientStorage( Request request, Response response, StorageErrorReason storageErrorReason ) {
         response.setStatus( Status.SC_INSUFFICIENT_STORAGE );
@@ -193,6 +193,7 @@ public class LockHandler implements ResourceHandler {
 
             log.debug( "Creating lock on unmapped resource: " + name );
             LockToken tok = lockingParent.createAndLock( name, timeout, lockInfo );
+            RequestCachingResourceFactory.invalidate( request.getHostHeader(), HttpManager.decodeUrl( request.getAbsolutePath() ) );
             if( tok == null ) {
                 throw new RuntimeException( "createAndLock returned null, from resource of type: " + lockingParent.getClass().getCanonicalName());
             }
@@ -20,6 +20,7 @@ import io.milton.resource.CollectionResource;
 import io.milton.resource.Resource;
 import io.milton.http.HandlerHelper;
 import io.milton.http.HttpManager;
+import io.milton.http.RequestCachingResourceFactory;
 import io.milton.resource.MakeCollectionableResource;
 import io.milton.common.Path;
 import io.milton.http.Request.Method;
@@ -157,6 +158,7 @@ public class MkColHandler implements Handler {
 			log.warn("createCollection returned null. In resource class: " + existingCol.getClass());
 			response.setStatus(Response.Status.SC_METHOD_NOT_ALLOWED);
 		} else {
+			RequestCachingResourceFactory.invalidate(request.getHostHeader(), HttpManager.decodeUrl(request.getAbsolutePath()));
 			manager.getEventManager().fireEvent(new NewFolderEvent(resource));
 			response.setStatus(Response.Status.SC_CREATED);
 		}
@@ -18,6 +18,7 @@ package io.milton.http.webdav;
 import io.milton.http.ExistingEntityHandler;
 import io.milton.resource.Resource;
 import io.milton.http.HttpManager;
+import io.milton.http.RequestCachingResourceFactory;
 import io.milton.common.Utils;
 import io.milton.http.Response;
 import io.milton.http.DeleteHelper;
@@ -115,13 +116,12 @@ public class MoveHandler implements ExistingEntityHandler {
 						if (rExisting instanceof DeletableResource) {
 							log.debug("deleting existing resource");
 							DeletableResource drExisting = (DeletableResource) rExisting;
-							if (deleteHelper.isLockedOut(request, drExisting)) {
+							log.debug("deleting pre-existing destination resource");
+							if (!deleteHelper.deleteIfNotLocked(request, drExisting, Utils.suffixSlash(dest.url) + dest.name, manager.getEventManager())) {
 								log.debug("destination resource exists but is locked");
 								responseHandler.respondLocked(request, response, drExisting);
 								return;
 							}
-							log.debug("deleting pre-existing destination resource");
-							deleteHelper.delete(drExisting, manager.getEventManager());
 							wasDeleted = true;
 						} else {
 							log.warn("destination exists, and overwrite header is set, but destination is not a DeletableResource");
@@ -139,6 +139,8 @@ public class MoveHandler implements ExistingEntityHandler {
 				}
 				manager.getEventManager().fireEvent(new MoveEvent(resource, colDest, dest.name));
 				r.moveTo(colDest, dest.name);
+				RequestCachingResourceFactory.invalidate(request.getHostHeader(), HttpManager.decodeUrl(request.getAbsolutePath()));
+				RequestCachingResourceFactory.invalidate(dest.host, Utils.suffixSlash(dest.url) + dest.name);
 				// See http://www.ettrema.com:8080/browse/MIL-87
 				if (wasDeleted) {
 					responseHandler.respondNoContent(resource, response, request);
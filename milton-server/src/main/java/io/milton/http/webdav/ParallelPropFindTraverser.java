@@ -0,0 +1,447 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.webdav;
+
+import io.milton.common.LogUtils;
+import io.milton.common.Stoppable;
+import io.milton.common.Utils;
+import io.milton.http.HttpManager;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.values.ValueAndType;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.PropFindableResource;
+import io.milton.resource.Resource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs deep (depth greater than 1) PROPFIND traversals by expanding
+ * collections in parallel on a bounded thread pool.
+ *
+ * Each resource is processed by a worker, which resolves its properties and,
+ * if the requested depth has not been reached, lists its children and queues
+ * them. The calling thread emits responses in the same order as a sequential
+ * traversal (ie parent, then each child and its descendants in turn) as soon
+ * as each one is ready, so results are deterministic regardless of which
+ * worker finishes first.
+ *
+ * Traversal is limited by a maximum number of resources and a time budget.
+ * When a limit is reached either a LimitExceededException is thrown, or the
+ * response is truncated, depending on failOnLimit. PropFindHandler reports the
+ * exception as a 507 Insufficient Storage. When streaming, the 207 status has
+ * already been sent, so a response for the requested href with a 507 status and
+ * a DAV:number-of-matches-within-limits error is written at the end of the
+ * multistatus instead (as in RFC 5323 and RFC 6578).
+ *
+ * Each node is released as soon as its response has been passed on, so a
+ * streaming listener only holds the subtrees which have not yet been written.
+ *
+ * Note that resources and property sources will be called from worker threads,
+ * so they must be safe to use concurrently. The current request and response
+ * are available from HttpManager.request() and response() on worker threads.
+ *
+ * @author brad
+ */
+public class ParallelPropFindTraverser implements Stoppable {
+
+	private static final Logger log = LoggerFactory.getLogger(ParallelPropFindTraverser.class);
+	private final ExecutorService executor;
+	private int maxNodes = 10000;
+	private long timeoutMillis = 30000;
+	private boolean failOnLimit = true;
+	private int infinityDepth = 50;
+
+	/**
+	 * Create with a pool of daemon threads sized to the number of processors
+	 */
+	public ParallelPropFindTraverser() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 *
+	 * @param threads - the maximum number of resources to process concurrently,
+	 * shared by all requests
+	 */
+	public ParallelPropFindTraverser(int threads) {
+		this(threads, 1000);
+	}
+
+	/**
+	 *
+	 * @param threads - the maximum number of resources to process concurrently,
+	 * shared by all requests
+	 * @param queueSize - the maximum number of resources waiting for a thread.
+	 * When the queue is full the submitting thread processes the resource itself,
+	 * which slows down expansion of very wide trees instead of queueing them
+	 * without limit
+	 */
+	public ParallelPropFindTraverser(int threads, int queueSize) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "milton-propfind-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}, new CallerRunsUnlessShutdownPolicy());
+	}
+
+	/**
+	 * Use the given executor, which will be shutdown when this is stopped
+	 *
+	 * @param executor
+	 */
+	public ParallelPropFindTraverser(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Traverse the given resource to the given depth, passing each response
+	 * to the listener in document order
+	 *
+	 * @param propertyBuilder - used to resolve properties for each resource
+	 * @param responses - receives responses
+	 * @param resource - the resource at the root of the traversal
+	 * @param parseResult - the requested properties
+	 * @param href - the encoded href of the root resource
+	 * @param requestedDepth
+	 * @param preloaded - any already loaded values for the root resource
+	 * @throws LimitExceededException - if a limit is reached and failOnLimit is true
+	 */
+	public void traverse(PropFindPropertyBuilder propertyBuilder, PropFindResponseListener responses, PropFindableResource resource, PropertiesRequest parseResult, String href, int requestedDepth, Map<QName, ValueAndType> preloaded) throws NotAuthorizedException, BadRequestException {
+		Traversal traversal = new Traversal(propertyBuilder, parseResult, requestedDepth);
+		Node root = new Node(resource, href, href, 0, preloaded);
+		traversal.nodeCount.incrementAndGet();
+		try {
+			traversal.submit(root);
+			traversal.emit(root, responses);
+		} finally {
+			traversal.cancelled = true;
+		}
+	}
+
+	@Override
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The maximum number of resources, including the root, which will be
+	 * included in a single response. Default is 10000
+	 *
+	 * @return
+	 */
+	public int getMaxNodes() {
+		return maxNodes;
+	}
+
+	public void setMaxNodes(int maxNodes) {
+		this.maxNodes = maxNodes;
+	}
+
+	/**
+	 * The maximum time in milliseconds to spend on a traversal. Default is
+	 * 30 seconds
+	 *
+	 * @return
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * If true (the default) reaching a limit results in a LimitExceededException,
+	 * otherwise the response is truncated, ie those resources found within the
+	 * limits are returned
+	 *
+	 * @return
+	 */
+	public boolean isFailOnLimit() {
+		return failOnLimit;
+	}
+
+	public void setFailOnLimit(boolean failOnLimit) {
+		this.failOnLimit = failOnLimit;
+	}
+
+	/**
+	 * The depth to use for a PROPFIND with Depth: infinity. Default is 50
+	 *
+	 * @return
+	 */
+	public int getInfinityDepth() {
+		return infinityDepth;
+	}
+
+	public void setInfinityDepth(int infinityDepth) {
+		this.infinityDepth = infinityDepth;
+	}
+
+	/**
+	 * Runs rejected tasks on the submitting thread, like CallerRunsPolicy, except
+	 * that once the executor has been shutdown the task is rejected rather than
+	 * silently discarded, so the traversal fails instead of waiting for it
+	 */
+	private static class CallerRunsUnlessShutdownPolicy extends ThreadPoolExecutor.CallerRunsPolicy {
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+			if (e.isShutdown()) {
+				throw new RejectedExecutionException("PROPFIND executor has been stopped");
+			}
+			super.rejectedExecution(r, e);
+		}
+	}
+
+	/**
+	 * Thrown when a traversal exceeds the maximum number of resources or its
+	 * time budget
+	 */
+	public static class LimitExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public LimitExceededException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A single resource in the traversal. Its response and children are set by
+	 * a worker, after which the latch is released
+	 */
+	private static class Node {
+
+		private PropFindableResource resource;
+		private final String href;
+		private final String collectionHref;
+		private final int depth;
+		private Map<QName, ValueAndType> preloaded;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private PropFindResponse response;
+		private List<Node> children;
+		private Throwable error;
+
+		Node(PropFindableResource resource, String href, String collectionHref, int depth, Map<QName, ValueAndType> preloaded) {
+			this.resource = resource;
+			this.href = href;
+			this.collectionHref = collectionHref;
+			this.depth = depth;
+			this.preloaded = preloaded;
+		}
+
+		/**
+		 * Called once the response has been emitted and the children taken,
+		 * so that neither this node nor its parent keeps the subtree reachable
+		 */
+		void release() {
+			resource = null;
+			preloaded = null;
+			response = null;
+			children = null;
+		}
+	}
+
+	/**
+	 * State for a single PROPFIND request
+	 */
+	private class Traversal {
+
+		private final PropFindPropertyBuilder propertyBuilder;
+		private final PropertiesRequest parseResult;
+		private final int requestedDepth;
+		private final Request request = HttpManager.request();
+		private final Response response = HttpManager.response();
+		private final long deadline = System.currentTimeMillis() + timeoutMillis;
+		private final AtomicInteger nodeCount = new AtomicInteger();
+		private volatile boolean limitExceeded;
+		private volatile boolean cancelled;
+
+		Traversal(PropFindPropertyBuilder propertyBuilder, PropertiesRequest parseResult, int requestedDepth) {
+			this.propertyBuilder = propertyBuilder;
+			this.parseResult = parseResult;
+			this.requestedDepth = requestedDepth;
+		}
+
+		void submit(final Node node) {
+			try {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						process(node);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				node.error = e;
+				node.done.countDown();
+			}
+		}
+
+		/**
+		 * Emit responses in document order, waiting for each to be ready
+		 */
+		void emit(Node root, PropFindResponseListener responses) throws NotAuthorizedException, BadRequestException {
+			Deque<Node> stack = new ArrayDeque<Node>();
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				Node node = stack.pop();
+				if (!await(node) || (node.error == null && node.response == null)) {
+					limitReached("PROPFIND did not complete within " + timeoutMillis + "ms");
+					return;
+				}
+				if (node.error != null) {
+					rethrow(node.error);
+				}
+				if (limitExceeded && failOnLimit) {
+					throw new LimitExceededException("PROPFIND exceeded the maximum of " + maxNodes + " resources");
+				}
+				responses.onResponse(node.response);
+				List<Node> children = node.children;
+				node.release();
+				if (children != null) {
+					for (int i = children.size() - 1; i >= 0; i--) {
+						stack.push(children.get(i));
+					}
+				}
+			}
+			if (limitExceeded) {
+				limitReached("PROPFIND exceeded the maximum of " + maxNodes + " resources");
+			}
+		}
+
+		private boolean await(Node node) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				return remaining > 0 && node.done.await(remaining, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ex);
+			}
+		}
+
+		private void limitReached(String message) {
+			if (failOnLimit) {
+				throw new LimitExceededException(message);
+			} else {
+				log.warn(message + ", response has been truncated");
+			}
+		}
+
+		private void process(final Node node) {
+			boolean bound = false;
+			try {
+				if (cancelled || System.currentTimeMillis() > deadline) {
+					return; // leaves response null, which emit treats as timed out
+				}
+				if (HttpManager.request() == null) {
+					HttpManager.bind(request, response);
+					bound = true;
+				}
+				propertyBuilder.processResource(new PropFindResponseListener() {
+
+					@Override
+					public void onResponse(PropFindResponse r) {
+						node.response = r;
+					}
+				}, node.resource, parseResult, node.href, node.depth, node.depth, node.collectionHref, node.preloaded);
+				if (node.depth < requestedDepth && node.resource instanceof CollectionResource) {
+					expand(node);
+				}
+			} catch (Throwable e) {
+				node.error = e;
+			} finally {
+				if (bound) {
+					HttpManager.unbind();
+				}
+				node.done.countDown();
+			}
+		}
+
+		private void expand(Node node) throws NotAuthorizedException, BadRequestException {
+			CollectionResource col = (CollectionResource) node.resource;
+			String href = node.href;
+			if (!href.endsWith("/")) {
+				href = href + "/";
+			}
+			List<PropFindableResource> children = new ArrayList<PropFindableResource>();
+			for (Resource child : col.getChildren()) {
+				if (child instanceof PropFindableResource) {
+					if (child.getName() == null) {
+						log.warn("null name for resource of type: " + child.getClass() + " in folder: " + href + " WILL NOT be returned in PROPFIND response!!");
+					} else {
+						children.add((PropFindableResource) child);
+					}
+				}
+			}
+			int total = nodeCount.addAndGet(children.size());
+			if (total > maxNodes) {
+				limitExceeded = true;
+				int allowed = children.size() - (total - maxNodes);
+				children = children.subList(0, Math.max(0, allowed));
+				LogUtils.debug(log, "expand: node limit reached at", href);
+			}
+			Map<Resource, Map<QName, ValueAndType>> childValues = propertyBuilder.loadProperties(col, children, parseResult);
+			List<Node> list = new ArrayList<Node>(children.size());
+			for (PropFindableResource child : children) {
+				String childHref = href + Utils.percentEncode(child.getName());
+				list.add(new Node(child, childHref, href, node.depth + 1, childValues.get(child)));
+			}
+			node.children = list;
+			for (Node childNode : list) {
+				submit(childNode);
+			}
+		}
+
+		private void rethrow(Throwable e) throws NotAuthorizedException, BadRequestException {
+			if (e instanceof NotAuthorizedException) {
+				throw (NotAuthorizedException) e;
+			} else if (e instanceof BadRequestException) {
+				throw (BadRequestException) e;
+			} else if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			} else if (e instanceof Error) {
+				throw (Error) e;
+			} else {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -15,6 +15,7 @@
 
 package io.milton.http.webdav;
 
+import io.milton.http.AbstractRequest;
 import io.milton.http.ExistingEntityHandler;
 import io.milton.resource.Resource;
 import io.milton.http.HttpManager;
@@ -53,6 +54,7 @@ public class PropFindHandler implements ExistingEntityHandler, PropertyHandler {
     private final WebDavResponseHandler responseHandler;
     private final PropFindPropertyBuilder propertyBuilder;
     private final PropertyAuthoriser permissionService = new DefaultPropertyAuthoriser();
+    private boolean streaming;
 
     /**
      * 
@@ -112,6 +114,15 @@ public class PropFindHandler implements ExistingEntityHandler, PropertyHandler {
         log.trace( "processExistingResource" );
         PropFindableResource pfr = (PropFindableResource) resource;
         int depth = request.getDepthHeader();
+        ParallelPropFindTraverser traverser = propertyBuilder.getTraverser();
+        if( traverser != null && depth == AbstractRequest.INFINITY ) {
+            // AbstractRequest limits infinity to a small depth, but the traverser
+            // enforces its own limits so can go deeper
+            String depthStr = request.getRequestHeader( Request.Header.DEPTH );
+            if( depthStr == null || depthStr.equals( "infinity" ) ) {
+                depth = traverser.getInfinityDepth();
+            }
+        }
         response.setStatus( Response.Status.SC_MULTI_STATUS );
         response.setContentTypeHeader( Response.XML );
         PropertiesRequest parseResult;
@@ -130,6 +141,8 @@ public class PropFindHandler implements ExistingEntityHandler, PropertyHandler {
                 log.trace( "permissionService denied access: " + permissionService.getClass().getCanonicalName() );
             }
             responseHandler.respondUnauthorised( resource, response, request );
+        } else if( streaming && responseHandler instanceof StreamingResponseHandler ) {
+            ( (StreamingResponseHandler) responseHandler ).respondPropFind( pfr, depth, parseResult, url, propertyBuilder, response, request );
         } else {
             List<PropFindResponse> propFindResponses;
 			try {
@@ -137,6 +150,10 @@ public class PropFindHandler implements ExistingEntityHandler, PropertyHandler {
 			} catch (URISyntaxException ex) {
 				log.error("Exception parsing url. request class: " + request.getClass() + ". Please check the client application is usign percentage encoding (see http://en.wikipedia.org/wiki/Percent-encoding)");
 				throw new RuntimeException("Exception parsing url, indicating the requested URL is not correctly encoded. Please check the client application. Requested url is: " + url, ex);
+			} catch (ParallelPropFindTraverser.LimitExceededException ex) {
+				log.warn("PROPFIND limit reached for: " + url + " - " + ex.getMessage());
+				responseHandler.respondInsufficientStorage( request, response, null );
+				return;
 			}
             if( log.isTraceEnabled() ) {
                 log.trace( "responses: " + propFindResponses.size() );
@@ -160,6 +177,30 @@ public class PropFindHandler implements ExistingEntityHandler, PropertyHandler {
         return permissionService;
     }
 
+    public PropFindPropertyBuilder getPropertyBuilder() {
+        return propertyBuilder;
+    }
+
+	/**
+	 * If true, PROPFIND responses are written to the client as each resource
+	 * is processed, rather than being built in memory first. This keeps memory
+	 * usage flat for large collections, but means that errors encountered
+	 * part way through can only be reported within the multistatus, as a 500
+	 * response for the requested resource. Only used if the response handler
+	 * is a StreamingResponseHandler.
+	 *
+	 * Default is false
+	 *
+	 * @return
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
 	/**
 	 * Display information about licensing. Implemented here because this is one
 	 * of the few classes in milton which is generally not replaceable.
@@ -24,12 +24,16 @@ import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.values.ValueAndType;
 import io.milton.http.webdav.PropFindResponse.NameAndError;
+import io.milton.property.BulkPropertyLoader;
+import io.milton.property.ClassBasedPropertySource;
 import io.milton.property.PropertySource;
 import io.milton.property.PropertySource.PropertyMetaData;
 import io.milton.common.LogUtils;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.xml.namespace.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,12 +51,26 @@ import org.slf4j.LoggerFactory;
  * This class uses a list of PropertySource's, where each PropertySource represents
  * some mechanism to read properties from a resource.
  *
+ * Which ClassBasedPropertySource supports a given property is resolved once per
+ * resource class and property name, and then cached, so that subsequent lookups
+ * dispatch directly to the owning source. Any other sources, whose results may
+ * depend on the resource instance or the request, are always consulted. The cache is discarded if the list of property sources
+ * changes, which is detected cheaply when the list is a PropertySourcesList.
+ *
+ * When listing the children of a collection, any BulkPropertyLoader (either the
+ * collection itself or a property source) is first asked to load the requested
+ * properties for all children in one call. Loaded values are not used for
+ * properties which a source that is neither a ClassBasedPropertySource nor a
+ * BulkPropertyLoader supports on that resource.
+ *
  * @author brad
  */
 public class PropFindPropertyBuilder {
 
 	private static final Logger log = LoggerFactory.getLogger(PropFindPropertyBuilder.class);
 	private final List<PropertySource> propertySources;
+	private volatile ResolutionIndex resolutionIndex;
+	private ParallelPropFindTraverser traverser;
 
 	/**
 	 *
@@ -76,35 +94,99 @@ public class PropFindPropertyBuilder {
 	 * @return
 	 */
 	public List<PropFindResponse> buildProperties(PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url) throws URISyntaxException, NotAuthorizedException, BadRequestException {
+		List<PropFindResponse> propFindResponses = new ArrayList<PropFindResponse>();
+		buildProperties(pfr, depth, parseResult, url, new ListAppendingListener(propFindResponses));
+		return propFindResponses;
+	}
+
+	/**
+	 * Same as buildProperties above, except that instead of accumulating a list
+	 * each PropFindResponse is passed to the listener as soon as it has been
+	 * built. This allows callers to stream responses for large collections
+	 * without holding them all in memory
+	 *
+	 * @param pfr - the resource to interrogate
+	 * @param depth - the depth header. 0 means only look at the given resource. 1 is to include children
+	 * @param parseResult - contains the list of fields, or a true boolean indicating all properties
+	 * @param url - the URL of the given resource - MUST be correctly encoded
+	 * @param listener - receives each response, in document order
+	 */
+	public void buildProperties(PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, PropFindResponseListener listener) throws URISyntaxException, NotAuthorizedException, BadRequestException {
 		LogUtils.trace(log, "buildProperties: ", pfr.getClass(), "url:", url);
 		url = fixUrlForWindows(url);
+		appendResponses(listener, pfr, depth, parseResult, url, null);
+	}
+
+	/**
+	 * Same as buildProperties above, but uses the given preloaded values (from
+	 * loadProperties) for the target resource in preference to property sources
+	 *
+	 * @param preloaded - property values already loaded for pfr, may be null
+	 */
+	public List<PropFindResponse> buildProperties(PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, Map<QName, ValueAndType> preloaded) throws URISyntaxException, NotAuthorizedException, BadRequestException {
 		List<PropFindResponse> propFindResponses = new ArrayList<PropFindResponse>();
-		appendResponses(propFindResponses, pfr, depth, parseResult, url);
+		buildProperties(pfr, depth, parseResult, url, preloaded, new ListAppendingListener(propFindResponses));
 		return propFindResponses;
 	}
 
+	/**
+	 * Uses the given preloaded values for the target resource, and passes each
+	 * response to the listener as soon as it has been built
+	 *
+	 * @param preloaded - property values already loaded for pfr, may be null
+	 * @param listener - receives each response, in document order
+	 */
+	public void buildProperties(PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, Map<QName, ValueAndType> preloaded, PropFindResponseListener listener) throws URISyntaxException, NotAuthorizedException, BadRequestException {
+		LogUtils.trace(log, "buildProperties: ", pfr.getClass(), "url:", url);
+		url = fixUrlForWindows(url);
+		appendResponses(listener, pfr, depth, parseResult, url, preloaded);
+	}
+
 	public ValueAndType getProperty(QName field, Resource resource) throws NotAuthorizedException, BadRequestException {		
-		for (PropertySource source : propertySources) {
-			PropertyMetaData meta = source.getPropertyMetaData(field, resource);
-			if (meta != null && !meta.isUnknown()) {
-				Object val = source.getProperty(field, resource);
-				return new ValueAndType(val, meta.getValueType());
-			}
+		SourceAndMeta found = resolutionIndex().resolve(field, resource);
+		if (found != null) {
+			Object val = found.source.getProperty(field, resource);
+			return new ValueAndType(val, found.meta.getValueType());
 		}
 		LogUtils.trace(log, "getProperty: property not found", field, "resource", resource.getClass(), "property sources", propertySources);
 		return null;
 	}
 
-	private void appendResponses(List<PropFindResponse> responses, PropFindableResource resource, int requestedDepth, PropertiesRequest parseResult, String encodedCollectionUrl) throws URISyntaxException, NotAuthorizedException, BadRequestException {
+	private void appendResponses(PropFindResponseListener responses, PropFindableResource resource, int requestedDepth, PropertiesRequest parseResult, String encodedCollectionUrl, Map<QName, ValueAndType> preloaded) throws URISyntaxException, NotAuthorizedException, BadRequestException {
 		String collectionHref = suffixSlash(resource, encodedCollectionUrl);
 		URI parentUri = new URI(collectionHref);
 
 		collectionHref = parentUri.toASCIIString();
-		processResource(responses, resource, parseResult, collectionHref, requestedDepth, 0, collectionHref);
+		if (traverser != null && requestedDepth > 1) {
+			traverser.traverse(this, responses, resource, parseResult, collectionHref, requestedDepth, preloaded);
+		} else {
+			processResource(responses, resource, parseResult, collectionHref, requestedDepth, 0, collectionHref, preloaded);
+		}
 
 	}
 
 	public void processResource(List<PropFindResponse> responses, PropFindableResource resource, PropertiesRequest parseResult, String href, int requestedDepth, int currentDepth, String collectionHref) throws NotAuthorizedException, BadRequestException {
+		processResource(new ListAppendingListener(responses), resource, parseResult, href, requestedDepth, currentDepth, collectionHref);
+	}
+
+	public void processResource(List<PropFindResponse> responses, PropFindableResource resource, PropertiesRequest parseResult, String href, int requestedDepth, int currentDepth, String collectionHref, Map<QName, ValueAndType> preloaded) throws NotAuthorizedException, BadRequestException {
+		processResource(new ListAppendingListener(responses), resource, parseResult, href, requestedDepth, currentDepth, collectionHref, preloaded);
+	}
+
+	public void processResource(PropFindResponseListener responses, PropFindableResource resource, PropertiesRequest parseResult, String href, int requestedDepth, int currentDepth, String collectionHref) throws NotAuthorizedException, BadRequestException {
+		processResource(responses, resource, parseResult, href, requestedDepth, currentDepth, collectionHref, null);
+	}
+
+	/**
+	 * Build the response for the given resource, and then for its children if
+	 * requested depth has not been reached
+	 *
+	 * @param preloaded - property values already loaded for this resource by a
+	 * BulkPropertyLoader, which take precedence over property sources unless
+	 * the property is supported by a source which is neither class based nor
+	 * a loader itself. May be null
+	 */
+	public void processResource(PropFindResponseListener responses, PropFindableResource resource, PropertiesRequest parseResult, String href, int requestedDepth, int currentDepth, String collectionHref, Map<QName, ValueAndType> preloaded) throws NotAuthorizedException, BadRequestException {
 		final LinkedHashMap<QName, ValueAndType> knownProperties = new LinkedHashMap<QName, ValueAndType>();
 		final ArrayList<NameAndError> unknownProperties = new ArrayList<NameAndError>();
 
@@ -113,9 +195,10 @@ public class PropFindPropertyBuilder {
 				href = href + "/";
 			}
 		}
+		ResolutionIndex index = resolutionIndex();
 		Set<QName> requestedFields;
 		if (parseResult.isAllProp()) {
-			requestedFields = findAllProps(resource);
+			requestedFields = index.findAllProps(resource);
 		} else {
 			requestedFields = parseResult.getNames();
 		}
@@ -126,28 +209,31 @@ public class PropFindPropertyBuilder {
 			if (field.getLocalPart().equals("href")) {
 				knownProperties.put(field, new ValueAndType(href, String.class));
 			} else {
-				boolean found = false;
-				for (PropertySource source : propertySources) {
-					LogUtils.trace(log, "look for field", field, " in property source", source.getClass());
-					PropertyMetaData meta = source.getPropertyMetaData(field, resource);
-					if (meta != null && !meta.isUnknown()) {
-						Object val;
-						try {
-							val = source.getProperty(field, resource);
-							LogUtils.trace(log, "processResource: got value", val, "from source", source.getClass());
-							if( val == null ) {
-								knownProperties.put(field, new ValueAndType(val, meta.getValueType())); // null, but we still need type information to write it so use meta
-							} else {
-								knownProperties.put(field, new ValueAndType(val, val.getClass())); // non-null, so use more robust class info
-							}
-						} catch (NotAuthorizedException ex) {
-							unknownProperties.add(new NameAndError(field, "Not authorised"));
+				SourceAndMeta found = index.resolve(field, resource);
+				ValueAndType preloadedValue = preloaded == null ? null : preloaded.get(field);
+				if (preloadedValue != null && (found == null || found.source instanceof ClassBasedPropertySource || found.source instanceof BulkPropertyLoader)) {
+					// other sources might not give the same value
+					// for this resource, eg the nautilus handling in WebDavProtocol
+					Object val = preloadedValue.getValue();
+					if (val != null && val.getClass() != preloadedValue.getType()) {
+						preloadedValue = new ValueAndType(val, val.getClass());
+					}
+					knownProperties.put(field, preloadedValue);
+				} else if (found != null) {
+					PropertySource source = found.source;
+					Object val;
+					try {
+						val = source.getProperty(field, resource);
+						LogUtils.trace(log, "processResource: got value", val, "from source", source.getClass());
+						if( val == null ) {
+							knownProperties.put(field, new ValueAndType(val, found.meta.getValueType())); // null, but we still need type information to write it so use meta
+						} else {
+							knownProperties.put(field, new ValueAndType(val, val.getClass())); // non-null, so use more robust class info
 						}
-						found = true;
-						break;
+					} catch (NotAuthorizedException ex) {
+						unknownProperties.add(new NameAndError(field, "Not authorised"));
 					}
-				}
-				if (!found) {
+				} else {
 					if (log.isDebugEnabled()) {
 						log.debug("property not found in any property source: " + field.toString());
 					}
@@ -169,24 +255,27 @@ public class PropFindPropertyBuilder {
 		Map<Status, List<NameAndError>> errorProperties = new EnumMap<Status, List<NameAndError>>(Status.class);
 		errorProperties.put(Status.SC_NOT_FOUND, unknownProperties);
 		PropFindResponse r = new PropFindResponse(href, knownProperties, errorProperties);
-		responses.add(r);
+		responses.onResponse(r);
 
 		if (requestedDepth > currentDepth && resource instanceof CollectionResource) {
 			CollectionResource col = (CollectionResource) resource;
 			List<? extends Resource> list = col.getChildren();
-			list = new ArrayList<Resource>(list);
+			List<PropFindableResource> children = new ArrayList<PropFindableResource>(list.size());
 			for (Resource child : list) {
 				if (child instanceof PropFindableResource) {
-					String childName = child.getName();
-					if (childName == null) {
+					if (child.getName() == null) {
 						log.warn("null name for resource of type: " + child.getClass() + " in folder: " + href + " WILL NOT be returned in PROPFIND response!!");
 					} else {
-						String childHref = href + Utils.percentEncode(childName);
-						// Note that the new collection href, is just the current href
-						processResource(responses, (PropFindableResource) child, parseResult, childHref, requestedDepth, currentDepth + 1, href);
+						children.add((PropFindableResource) child);
 					}
 				}
 			}
+			Map<Resource, Map<QName, ValueAndType>> childValues = loadProperties(col, children, parseResult);
+			for (PropFindableResource child : children) {
+				String childHref = href + Utils.percentEncode(child.getName());
+				// Note that the new collection href, is just the current href
+				processResource(responses, child, parseResult, childHref, requestedDepth, currentDepth + 1, href, childValues.get(child));
+			}
 		}
 
 	}
@@ -199,14 +288,278 @@ public class PropFindPropertyBuilder {
 	}
 
 	public Set<QName> findAllProps(PropFindableResource resource) throws NotAuthorizedException, BadRequestException {
-		Set<QName> names = new LinkedHashSet<QName>();
-		for (PropertySource source : this.propertySources) {
-			List<QName> allprops = source.getAllPropertyNames(resource);
-			if (allprops != null) {
-				names.addAll(allprops);
+		return resolutionIndex().findAllProps(resource);
+	}
+
+	/**
+	 * If set, requests with a depth greater than 1 are traversed in parallel
+	 * by the given traverser. Default is null, which means all traversal is
+	 * done sequentially on the calling thread
+	 *
+	 * @return
+	 */
+	public ParallelPropFindTraverser getTraverser() {
+		return traverser;
+	}
+
+	public void setTraverser(ParallelPropFindTraverser traverser) {
+		this.traverser = traverser;
+	}
+
+	/**
+	 * Ask any BulkPropertyLoader's to load the requested properties for all of
+	 * the given resources at once. The parent is consulted first if it is a
+	 * BulkPropertyLoader, then any property sources which are, in list order.
+	 * Where more than one loader returns a value for the same property the
+	 * first wins
+	 *
+	 * @param parent - the collection containing the resources, or the target of
+	 * a report. May be null
+	 * @param resources
+	 * @param parseResult
+	 * @return - loaded values keyed on resource identity, never null
+	 */
+	public Map<Resource, Map<QName, ValueAndType>> loadProperties(Resource parent, List<? extends Resource> resources, PropertiesRequest parseResult) throws NotAuthorizedException, BadRequestException {
+		ResolutionIndex index = resolutionIndex();
+		if (resources.isEmpty() || (index.bulkLoaders.length == 0 && !(parent instanceof BulkPropertyLoader))) {
+			return Collections.emptyMap();
+		}
+		Set<QName> fields;
+		if (parseResult.isAllProp()) {
+			fields = new LinkedHashSet<QName>();
+			for (Resource r : resources) {
+				if (r instanceof PropFindableResource) {
+					fields.addAll(index.findAllProps((PropFindableResource) r));
+				}
 			}
+		} else {
+			fields = parseResult.getNames();
+		}
+		List<BulkPropertyLoader> loaders = new ArrayList<BulkPropertyLoader>();
+		if (parent instanceof BulkPropertyLoader) {
+			loaders.add((BulkPropertyLoader) parent);
+		}
+		loaders.addAll(Arrays.asList(index.bulkLoaders));
+
+		Map<Resource, Map<QName, ValueAndType>> result = new IdentityHashMap<Resource, Map<QName, ValueAndType>>();
+		for (BulkPropertyLoader loader : loaders) {
+			Map<Resource, Map<QName, ValueAndType>> loaded = loader.loadProperties(fields, resources);
+			if (loaded == null) {
+				continue;
+			}
+			LogUtils.trace(log, "loadProperties: loaded", loaded.size(), "resources from", loader.getClass());
+			for (Map.Entry<Resource, Map<QName, ValueAndType>> e : loaded.entrySet()) {
+				if (e.getValue() == null) {
+					continue;
+				}
+				Map<QName, ValueAndType> values = result.get(e.getKey());
+				if (values == null) {
+					result.put(e.getKey(), new HashMap<QName, ValueAndType>(e.getValue()));
+				} else {
+					for (Map.Entry<QName, ValueAndType> v : e.getValue().entrySet()) {
+						if (!values.containsKey(v.getKey())) {
+							values.put(v.getKey(), v.getValue());
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the resolution index for the current list of property sources,
+	 * building a new one if the list has been modified since the last call
+	 */
+	private ResolutionIndex resolutionIndex() {
+		ResolutionIndex index = resolutionIndex;
+		if (index == null || !index.matches(propertySources)) {
+			index = new ResolutionIndex(propertySources);
+			resolutionIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * A property source together with the meta data it returned for a property
+	 */
+	private static class SourceAndMeta {
+
+		private final PropertySource source;
+		private final PropertyMetaData meta;
+
+		SourceAndMeta(PropertySource source, PropertyMetaData meta) {
+			this.source = source;
+			this.meta = meta;
+		}
+	}
+
+	/**
+	 * How to resolve a single property for a given resource class. Any sources
+	 * which are not class based and come before the owner must be asked first,
+	 * in order. The owner is the first class based source which claims the
+	 * property, or null if none do
+	 */
+	private static class Resolution {
+
+		private final PropertySource[] perInstance;
+		private final SourceAndMeta owner;
+
+		Resolution(PropertySource[] perInstance, SourceAndMeta owner) {
+			this.perInstance = perInstance;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * Caches property source resolution for a fixed snapshot of property sources.
+	 * Results for ClassBasedPropertySource's are keyed on resource class and
+	 * property name, any other sources are always called.
+	 */
+	private static class ResolutionIndex {
+
+		private final List<PropertySource> list;
+		private final int modCount;
+		private final PropertySource[] sources;
+		private final BulkPropertyLoader[] bulkLoaders;
+		private final ConcurrentMap<Class<?>, ConcurrentMap<QName, Resolution>> resolutions = new ConcurrentHashMap<Class<?>, ConcurrentMap<QName, Resolution>>();
+		private final ConcurrentMap<Class<?>, List<List<QName>>> allPropNames = new ConcurrentHashMap<Class<?>, List<List<QName>>>();
+
+		ResolutionIndex(List<PropertySource> propertySources) {
+			this.list = propertySources;
+			this.modCount = modCount(propertySources);
+			this.sources = propertySources.toArray(new PropertySource[propertySources.size()]);
+			List<BulkPropertyLoader> loaders = new ArrayList<BulkPropertyLoader>();
+			for (PropertySource ps : sources) {
+				if (ps instanceof BulkPropertyLoader) {
+					loaders.add((BulkPropertyLoader) ps);
+				}
+			}
+			this.bulkLoaders = loaders.toArray(new BulkPropertyLoader[loaders.size()]);
+		}
+
+		boolean matches(List<PropertySource> propertySources) {
+			if (propertySources instanceof PropertySourcesList) {
+				return propertySources == list && modCount(propertySources) == modCount;
+			}
+			// no way to tell if other lists have changed, so compare them
+			if (propertySources.size() != sources.length) {
+				return false;
+			}
+			int i = 0;
+			for (PropertySource ps : propertySources) {
+				if (ps != sources[i++]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int modCount(List<PropertySource> propertySources) {
+			if (propertySources instanceof PropertySourcesList) {
+				return ((PropertySourcesList) propertySources).getModCount();
+			}
+			return 0;
+		}
+
+		/**
+		 * Find the source which supports the given property on the given resource
+		 *
+		 * @return the source and its meta data, or null if no source supports
+		 * the property
+		 */
+		SourceAndMeta resolve(QName field, Resource resource) throws NotAuthorizedException, BadRequestException {
+			Resolution res = resolution(field, resource);
+			for (PropertySource source : res.perInstance) {
+				LogUtils.trace(log, "look for field", field, " in property source", source.getClass());
+				PropertyMetaData meta = source.getPropertyMetaData(field, resource);
+				if (meta != null && !meta.isUnknown()) {
+					return new SourceAndMeta(source, meta);
+				}
+			}
+			return res.owner;
+		}
+
+		private Resolution resolution(QName field, Resource resource) throws NotAuthorizedException, BadRequestException {
+			Class<?> c = resource.getClass();
+			ConcurrentMap<QName, Resolution> forClass = resolutions.get(c);
+			if (forClass == null) {
+				forClass = new ConcurrentHashMap<QName, Resolution>();
+				ConcurrentMap<QName, Resolution> existing = resolutions.putIfAbsent(c, forClass);
+				if (existing != null) {
+					forClass = existing;
+				}
+			}
+			Resolution res = forClass.get(field);
+			if (res == null) {
+				res = buildResolution(field, resource);
+				forClass.put(field, res);
+			}
+			return res;
+		}
+
+		private Resolution buildResolution(QName field, Resource resource) throws NotAuthorizedException, BadRequestException {
+			List<PropertySource> perInstance = new ArrayList<PropertySource>();
+			SourceAndMeta owner = null;
+			for (PropertySource source : sources) {
+				if (source instanceof ClassBasedPropertySource) {
+					PropertyMetaData meta = source.getPropertyMetaData(field, resource);
+					if (meta != null && !meta.isUnknown()) {
+						owner = new SourceAndMeta(source, meta);
+						break;
+					}
+				} else {
+					perInstance.add(source);
+				}
+			}
+			LogUtils.trace(log, "buildResolution: field", field, "class", resource.getClass(), "owner", (owner == null ? null : owner.source.getClass()));
+			return new Resolution(perInstance.toArray(new PropertySource[perInstance.size()]), owner);
+		}
+
+		Set<QName> findAllProps(PropFindableResource resource) throws NotAuthorizedException, BadRequestException {
+			List<List<QName>> cached = allPropNames.get(resource.getClass());
+			if (cached == null) {
+				cached = new ArrayList<List<QName>>(sources.length);
+				for (int i = 0; i < sources.length; i++) {
+					if (sources[i] instanceof ClassBasedPropertySource) {
+						cached.add(sources[i].getAllPropertyNames(resource));
+					} else {
+						cached.add(null);
+					}
+				}
+				allPropNames.put(resource.getClass(), cached);
+			}
+			Set<QName> names = new LinkedHashSet<QName>();
+			for (int i = 0; i < sources.length; i++) {
+				List<QName> allprops;
+				if (sources[i] instanceof ClassBasedPropertySource) {
+					allprops = cached.get(i);
+				} else {
+					allprops = sources[i].getAllPropertyNames(resource);
+				}
+				if (allprops != null) {
+					names.addAll(allprops);
+				}
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * Collects responses into a list, for callers which need the whole result
+	 */
+	private static class ListAppendingListener implements PropFindResponseListener {
+
+		private final List<PropFindResponse> list;
+
+		ListAppendingListener(List<PropFindResponse> list) {
+			this.list = list;
+		}
+
+		@Override
+		public void onResponse(PropFindResponse r) {
+			list.add(r);
 		}
-		return names;
 	}
 
 	/**
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.webdav;
+
+/**
+ * Receives each PropFindResponse as soon as PropFindPropertyBuilder has
+ * resolved its properties, in document order.
+ *
+ * This allows a multistatus response to be written incrementally instead
+ * of building a list of every response first.
+ *
+ * @author brad
+ */
+public interface PropFindResponseListener {
+
+	/**
+	 * Called once for each resource visited
+	 *
+	 * @param r - the fully resolved response for a single resource
+	 */
+	void onResponse(PropFindResponse r);
+}
@@ -16,12 +16,20 @@
 package io.milton.http.webdav;
 
 import io.milton.http.HttpManager;
+import io.milton.http.Response;
 import io.milton.http.XmlWriter;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.values.ValueWriters;
+import io.milton.resource.PropFindableResource;
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import javax.xml.namespace.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,26 +51,152 @@ public class PropFindXmlGenerator {
     }
 
     public String generate( List<PropFindResponse> propFindResponses ) {
-        ByteArrayOutputStream responseOutput = new ByteArrayOutputStream();
-        Map<String, String> mapOfNamespaces = helper.findNameSpaces( propFindResponses );
         ByteArrayOutputStream generatedXml = new ByteArrayOutputStream();
-        XmlWriter writer = new XmlWriter( generatedXml );
-        writer.writeXMLHeader();
-        writer.open(WebDavProtocol.NS_DAV.getPrefix() ,"multistatus" + helper.generateNamespaceDeclarations( mapOfNamespaces ) );
-        writer.newLine();
-        helper.appendResponses( writer, propFindResponses, mapOfNamespaces );
-        writer.close(WebDavProtocol.NS_DAV.getPrefix(),"multistatus" );
-        writer.flush();
+        generate( propFindResponses, generatedXml );
 		if(log.isTraceEnabled()) {
 			log.trace("---- PROPFIND response START: " + HttpManager.request().getAbsolutePath() + " -----");
 			log.trace( generatedXml.toString() );
 			log.trace("---- PROPFIND response END -----");
 		}
-        helper.write( generatedXml, responseOutput );
         try {
-            return responseOutput.toString( "UTF-8" );
+            return generatedXml.toString( "UTF-8" );
         } catch( UnsupportedEncodingException ex ) {
             throw new RuntimeException( ex );
         }
     }
+
+    /**
+     * Write the multistatus document for the given responses directly to the
+     * output stream
+     *
+     * @param propFindResponses
+     * @param out
+     */
+    public void generate( List<PropFindResponse> propFindResponses, OutputStream out ) {
+        Map<String, String> mapOfNamespaces = helper.findNameSpaces( propFindResponses );
+        XmlWriter writer = new XmlWriter( out );
+        writer.writeXMLHeader();
+        writer.open(WebDavProtocol.NS_DAV.getPrefix() ,"multistatus" + helper.generateNamespaceDeclarations( mapOfNamespaces ) );
+        writer.newLine();
+        helper.appendResponses( writer, propFindResponses, mapOfNamespaces );
+        writer.close(WebDavProtocol.NS_DAV.getPrefix(),"multistatus" );
+        writer.flush();
+    }
+
+    /**
+     * Build and write the multistatus document in a single pass. Each response
+     * is written to the output stream as soon as its properties have been
+     * resolved, so memory use does not grow with the size of the collection.
+     *
+     * Because namespace declarations must appear on the multistatus element,
+     * they are taken from the requested property names (or, for allprop, from
+     * the names available on the requested resource). Any namespace which only
+     * turns up on a child is declared on that child's response element.
+     *
+     * @param pfr - the resource to interrogate
+     * @param depth - the depth header
+     * @param parseResult - the requested fields
+     * @param url - the URL of the given resource - MUST be correctly encoded
+     * @param propertyBuilder - used to resolve properties
+     * @param out - the response output stream
+     */
+    public void generate( PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, PropFindPropertyBuilder propertyBuilder, OutputStream out ) throws URISyntaxException, NotAuthorizedException, BadRequestException {
+        Collection<QName> names;
+        if( parseResult.isAllProp() ) {
+            names = propertyBuilder.findAllProps( pfr );
+        } else {
+            names = parseResult.getNames();
+        }
+        MultiStatusWriter writer = begin( names, out );
+        try {
+            propertyBuilder.buildProperties( pfr, depth, parseResult, url, writer );
+        } catch( ParallelPropFindTraverser.LimitExceededException ex ) {
+            // the status has been sent, so report the limit within the multistatus
+            log.warn( "PROPFIND limit reached for: " + url + " - " + ex.getMessage() );
+            writer.writeErrorResponse( url, Response.Status.SC_INSUFFICIENT_STORAGE, "number-of-matches-within-limits" );
+        } catch( Exception ex ) {
+            // as above, but since each response is written whole the document can still be completed
+            log.error( "Exception streaming PROPFIND response for: " + url, ex );
+            writer.writeStatusResponse( url, Response.Status.SC_INTERNAL_SERVER_ERROR );
+        }
+        writer.finish();
+    }
+
+    /**
+     * Start writing a multistatus document, for callers which produce their
+     * responses one at a time. The caller must call finish on the returned
+     * writer when done.
+     *
+     * @param names - the property names expected in the responses, used for
+     * namespace declarations on the multistatus element. Others will be declared
+     * where they are used
+     * @param out
+     * @return
+     */
+    public MultiStatusWriter begin( Collection<QName> names, OutputStream out ) {
+        Map<String, String> mapOfNamespaces = helper.findNameSpaces( names );
+        XmlWriter writer = new XmlWriter( out );
+        writer.writeXMLHeader();
+        writer.open(WebDavProtocol.NS_DAV.getPrefix() ,"multistatus" + helper.generateNamespaceDeclarations( mapOfNamespaces ) );
+        writer.newLine();
+        return new MultiStatusWriter( writer, mapOfNamespaces );
+    }
+
+    /**
+     * Writes the responses of a multistatus document as they are produced.
+     * Each response is generated completely before any of it is written, so
+     * that if generating one fails the document can still be completed
+     */
+    public class MultiStatusWriter implements PropFindResponseListener {
+
+        private final XmlWriter writer;
+        private final Map<String, String> mapOfNamespaces;
+
+        private MultiStatusWriter( XmlWriter writer, Map<String, String> mapOfNamespaces ) {
+            this.writer = writer;
+            this.mapOfNamespaces = mapOfNamespaces;
+        }
+
+        @Override
+        public void onResponse( PropFindResponse r ) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            XmlWriter responseWriter = new XmlWriter( bout );
+            helper.appendResponse( responseWriter, r, mapOfNamespaces );
+            responseWriter.flush();
+            writer.writeRaw( bout.toByteArray() );
+        }
+
+        /**
+         * Write a response with only a status, such as a 404 for an href which
+         * was not found
+         */
+        public void writeStatusResponse( String href, Response.Status status ) {
+            helper.appendStatusResponse( writer, href, status );
+        }
+
+        /**
+         * Write a response with a status and a DAV:error element containing the
+         * given precondition or postcondition, eg to say that a response has been
+         * truncated
+         */
+        public void writeErrorResponse( String href, Response.Status status, String condition ) {
+            helper.appendErrorResponse( writer, href, status, condition );
+        }
+
+        /**
+         * Write the sync-token element of a sync-collection response, which
+         * follows the responses
+         */
+        public void writeSyncToken( String syncToken ) {
+            writer.writeEscapedProperty(WebDavProtocol.NS_DAV.getPrefix(), "sync-token", syncToken );
+        }
+
+        /**
+         * Close the multistatus element and flush the output
+         */
+        public void finish() {
+            writer.close(WebDavProtocol.NS_DAV.getPrefix(),"multistatus" );
+            writer.flush();
+        }
+    }
 }
@@ -21,14 +21,11 @@ import io.milton.http.XmlWriter;
 import io.milton.http.values.ValueAndType;
 import io.milton.http.values.ValueWriters;
 import io.milton.http.webdav.PropFindResponse.NameAndError;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.xml.namespace.QName;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 
 /**
  *
@@ -51,7 +48,31 @@ public class PropFindXmlGeneratorHelper {
 	 * @return - map where key is the uri, and value is the prefix
 	 */
 	Map<String, String> findNameSpaces(List<PropFindResponse> propFindResponses) {
-		int i = 1;
+		Map<String, String> map = initNameSpaces();
+		for (PropFindResponse r : propFindResponses) {
+			addNameSpaces(map, r.getKnownProperties().keySet());
+		}
+		return map;
+	}
+
+	/**
+	 * Find namespaces from the property names which will be written, before any
+	 * responses have been generated. This is used when streaming, where the
+	 * namespace declarations must be written before the responses are known.
+	 *
+	 * Any namespaces which turn up later are declared on the response element
+	 * which uses them, see appendResponse
+	 *
+	 * @param names
+	 * @return - map where key is the uri, and value is the prefix
+	 */
+	Map<String, String> findNameSpaces(Collection<QName> names) {
+		Map<String, String> map = initNameSpaces();
+		addNameSpaces(map, names);
+		return map;
+	}
+
+	private Map<String, String> initNameSpaces() {
 		Map<String, String> map = new HashMap<String, String>();
 		// always add webdav namespace
 		map.put(WebDavProtocol.NS_DAV.getName(), WebDavProtocol.NS_DAV.getPrefix());
@@ -60,16 +81,28 @@ public class PropFindXmlGeneratorHelper {
 		map.put("urn:ietf:params:xml:ns:caldav", "cal");
 		map.put("http://calendarserver.org/ns/", "cs");
 		map.put("urn:ietf:params:xml:ns:carddav", "card");
-		for (PropFindResponse r : propFindResponses) {
-			for (QName p : r.getKnownProperties().keySet()) {
-				String uri = p.getNamespaceURI();
-				//                    if( uri.endsWith( ":" ) ) uri = uri.substring( 0, uri.length() - 1 ); // strip trailing :
-				if (!map.containsKey(uri)) {
-					map.put(uri, "ns" + i++);
-				}
+		return map;
+	}
+
+	private void addNameSpaces(Map<String, String> map, Collection<QName> names) {
+		for (QName p : names) {
+			String uri = p.getNamespaceURI();
+			//                    if( uri.endsWith( ":" ) ) uri = uri.substring( 0, uri.length() - 1 ); // strip trailing :
+			if (!map.containsKey(uri)) {
+				map.put(uri, nextPrefix(map));
 			}
 		}
-		return map;
+	}
+
+	/**
+	 * Generate a prefix of the form nsX which is not already used in the map
+	 */
+	private String nextPrefix(Map<String, String> map) {
+		int i = 1;
+		while (map.containsValue("ns" + i)) {
+			i++;
+		}
+		return "ns" + i;
 	}
 
 	String generateNamespaceDeclarations(Map<String, String> mapOfNamespaces) {
@@ -90,6 +123,26 @@ public class PropFindXmlGeneratorHelper {
 
 	public void appendResponse(XmlWriter writer, PropFindResponse r, Map<String, String> mapOfNamespaces) {
 		XmlWriter.Element el = writer.begin(WebDavProtocol.NS_DAV.getPrefix(), "response");
+		// When streaming, the namespaces on the multistatus element are only a
+		// guess, so declare any others locally on this response
+		Map<String, String> undeclared = null;
+		for (QName p : r.getKnownProperties().keySet()) {
+			String uri = p.getNamespaceURI();
+			if (!mapOfNamespaces.containsKey(uri)) {
+				if (undeclared == null) {
+					mapOfNamespaces = new HashMap<String, String>(mapOfNamespaces);
+					undeclared = new HashMap<String, String>();
+				}
+				String prefix = nextPrefix(mapOfNamespaces);
+				mapOfNamespaces.put(uri, prefix);
+				undeclared.put(uri, prefix);
+			}
+		}
+		if (undeclared != null) {
+			for (Map.Entry<String, String> entry : undeclared.entrySet()) {
+				el.writeAtt("xmlns:" + entry.getValue(), entry.getKey());
+			}
+		}
 		el.open();
 		writer.writeProperty(WebDavProtocol.NS_DAV.getPrefix(), "href", r.getHref());
 		sendKnownProperties(writer, mapOfNamespaces, r.getKnownProperties(), r.getHref());
@@ -102,6 +155,31 @@ public class PropFindXmlGeneratorHelper {
 		el.close();
 	}
 
+	/**
+	 * Write a response element with only a status, such as is used for removed
+	 * members in a sync-collection report
+	 */
+	public void appendStatusResponse(XmlWriter writer, String href, Response.Status status) {
+		XmlWriter.Element el = writer.begin(WebDavProtocol.NS_DAV.getPrefix(), "response").open();
+		writer.writeProperty(WebDavProtocol.NS_DAV.getPrefix(), "href", href);
+		writer.writeProperty(WebDavProtocol.NS_DAV.getPrefix(), "status", status.toString());
+		el.close();
+	}
+
+	/**
+	 * Write a response element with a status and a DAV:error element holding
+	 * the named condition
+	 */
+	public void appendErrorResponse(XmlWriter writer, String href, Response.Status status, String condition) {
+		XmlWriter.Element el = writer.begin(WebDavProtocol.NS_DAV.getPrefix(), "response").open();
+		writer.writeProperty(WebDavProtocol.NS_DAV.getPrefix(), "href", href);
+		writer.writeProperty(WebDavProtocol.NS_DAV.getPrefix(), "status", status.toString());
+		XmlWriter.Element elError = writer.begin(WebDavProtocol.NS_DAV.getPrefix(), "error").open();
+		writer.writeProperty(WebDavProtocol.NS_DAV.getPrefix(), condition);
+		elError.close();
+		el.close();
+	}
+
 	private void sendKnownProperties(XmlWriter writer, Map<String, String> mapOfNamespaces, Map<QName, ValueAndType> properties, String href) {
 		sendProperties(Response.Status.SC_OK, writer, mapOfNamespaces, properties, href);
 	}
@@ -137,17 +215,6 @@ public class PropFindXmlGeneratorHelper {
 		}
 	}
 
-	void write(ByteArrayOutputStream out, OutputStream outputStream) {
-		try {
-			String xml = out.toString("UTF-8");
-			outputStream.write(xml.getBytes("UTF-8")); // note: this can and should write to the outputstream directory. but if it aint broke, dont fix it...
-		} catch (UnsupportedEncodingException ex) {
-			throw new RuntimeException(ex);
-		} catch (IOException ex) {
-			throw new RuntimeException(ex);
-		}
-	}
-
 	public ValueWriters getValueWriters() {
 		return valueWriters;
 	}
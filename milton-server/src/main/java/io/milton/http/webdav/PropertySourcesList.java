@@ -44,6 +44,22 @@ public class PropertySourcesList extends ArrayList<PropertySource> {
 		return super.add(e);
 	}
 
+	@Override
+	public PropertySource set(int index, PropertySource element) {
+		modCount++;
+		return super.set(index, element);
+	}
+
+	/**
+	 * Changes whenever a source is added, removed or replaced, so users can
+	 * check for changes without comparing every element
+	 *
+	 * @return
+	 */
+	public int getModCount() {
+		return modCount;
+	}
+
 	
 	
     /**
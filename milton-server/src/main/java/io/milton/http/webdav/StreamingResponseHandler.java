@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.webdav;
+
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.resource.PropFindableResource;
+import io.milton.resource.Resource;
+
+/**
+ * Optionally implemented by a WebDavResponseHandler which can send responses
+ * that are generated while they are being written. Callers must check for this
+ * interface and fall back to the buffered methods of WebDavResponseHandler if
+ * it is not implemented, so existing response handlers keep working.
+ *
+ * @author brad
+ */
+public interface StreamingResponseHandler extends WebDavResponseHandler {
+
+    /**
+     * Generate a streaming response for a PROPFIND. Properties are resolved
+     * as the response is written, so the complete multistatus document is never
+     * held in memory. The content length is not known so the response will
+     * normally be sent with chunked transfer encoding
+     *
+     * @param pfr - the requested resource
+     * @param depth - the depth header
+     * @param parseResult - the requested fields
+     * @param url - the encoded url of the requested resource
+     * @param propertyBuilder - used to resolve properties for each resource
+     * @param response
+     * @param request
+     */
+    void respondPropFind( PropFindableResource pfr, int depth, PropertiesRequest parseResult, String url, PropFindPropertyBuilder propertyBuilder, Response response, Request request );
+
+    /**
+     * Send the multistatus result of a REPORT. The entity might generate the
+     * report as it is written
+     *
+     * @param resource - the resource the report was run against
+     * @param response
+     * @param request
+     * @param entity - writes the report body
+     */
+    void respondReport( Resource resource, Response response, Request request, Response.Entity entity );
+}
@@ -76,6 +76,7 @@ public class WebDavProtocol implements HttpExtension, PropertySource {
 	private DisplayNameFormatter displayNameFormatter = new DefaultDisplayNameFormatter();
 	private final MkColHandler mkColHandler;
 	private final PropPatchHandler propPatchHandler;
+	private final PropFindHandler propFindHandler;
 	private List<CustomPostHandler> customPostHandlers;
 
 	public WebDavProtocol(HandlerHelper handlerHelper, ResourceTypeHelper resourceTypeHelper, WebDavResponseHandler responseHandler, List<PropertySource> propertySources, QuotaDataAccessor quotaDataAccessor, PropPatchSetter patchSetter, PropertyAuthoriser propertyAuthoriser, ETagGenerator eTagGenerator, UrlAdapter urlAdapter, ResourceHandlerHelper resourceHandlerHelper, UserAgentHelper userAgentHelper) {
@@ -132,7 +133,8 @@ public class WebDavProtocol implements HttpExtension, PropertySource {
 			log.info("creating default patcheSetter: " + PropertySourcePatchSetter.class);
 			patchSetter = new PropertySourcePatchSetter(propertySources, valueWriters);
 		}
-		handlers.add(new PropFindHandler(resourceHandlerHelper, resourceTypeHelper, responseHandler, propertySources));
+		propFindHandler = new PropFindHandler(resourceHandlerHelper, resourceTypeHelper, responseHandler, propertySources);
+		handlers.add(propFindHandler);
 		mkColHandler = new MkColHandler(responseHandler, handlerHelper);
 		handlers.add(mkColHandler);
 		propPatchHandler = new PropPatchHandler(resourceHandlerHelper, new DefaultPropPatchParser(), patchSetter, responseHandler, propertyAuthoriser);
@@ -209,6 +211,7 @@ public class WebDavProtocol implements HttpExtension, PropertySource {
 		PropertyMetaData propertyMetaData = propertyMap.getPropertyMetaData(name, r);
 		if (propertyMetaData != null) {
 			// Nautilus (at least on Ubuntu 12) doesnt like empty properties
+			// This depends on the request and value, so this is not a ClassBasedPropertySource
 			if (userAgentHelper.isNautilus(HttpManager.request())) {
 				Object v = getProperty(name, r);
 				if( v == null)  {
@@ -569,4 +572,8 @@ public class WebDavProtocol implements HttpExtension, PropertySource {
 	public PropPatchHandler getPropPatchHandler() {
 		return propPatchHandler;
 	}
+
+	public PropFindHandler getPropFindHandler() {
+		return propFindHandler;
+	}
 }
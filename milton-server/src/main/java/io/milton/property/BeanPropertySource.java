@@ -17,13 +17,16 @@ package io.milton.property;
 import io.milton.resource.Resource;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.common.LogUtils;
-import io.milton.property.PropertyAuthoriser.PropertyPermission;
-import io.milton.resource.AccessControlledResource;
-import io.milton.resource.AccessControlledResource.Priviledge;
 import java.beans.PropertyDescriptor;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.xml.namespace.QName;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.slf4j.Logger;
@@ -36,14 +39,23 @@ import org.slf4j.LoggerFactory;
  * This is similar in concept to form variable binding in web frameworks like
  * struts and MVC.
  *
+ * Classes are introspected once, the first time an instance is seen, and the
+ * resulting annotations, property descriptors and accessor methods are cached
+ * for subsequent requests. The cache does not keep classes loaded, so classes
+ * from a redeployed web application can still be unloaded
+ *
  * @author brad
  */
-public class BeanPropertySource implements PropertySource {
+public class BeanPropertySource implements ClassBasedPropertySource {
 
 	private static final Logger log = LoggerFactory.getLogger(BeanPropertySource.class);
 	private static final Object[] NOARGS = new Object[0];
 
-	
+	/**
+	 * Keys are weak and values soft, because the metadata refers to the class
+	 * through its methods and would otherwise keep the key reachable
+	 */
+	private final Map<Class<?>, Reference<BeanMetaData>> beanMetaDatas = new WeakHashMap<Class<?>, Reference<BeanMetaData>>();
 	
 	public BeanPropertySource() {
 	}
@@ -52,12 +64,12 @@ public class BeanPropertySource implements PropertySource {
 	
 	@Override
 	public Object getProperty(QName name, Resource r) throws NotAuthorizedException {
-		PropertyDescriptor pd = getPropertyDescriptor(r, name.getLocalPart());
-		if (pd == null) {
+		BeanPropertyMetaData prop = getBeanMetaData(r).get(name.getLocalPart());
+		if (prop == null || prop.readMethod == null) {
 			throw new IllegalArgumentException("no prop: " + name.getLocalPart() + " on " + r.getClass());
 		}
 		try {
-			return pd.getReadMethod().invoke(r, NOARGS);
+			return prop.readMethod.invoke(r, NOARGS);
 		} catch (Exception ex) {
 			if (ex.getCause() instanceof NotAuthorizedException) {
 				NotAuthorizedException na = (NotAuthorizedException) ex.getCause();
@@ -71,9 +83,9 @@ public class BeanPropertySource implements PropertySource {
 	@Override
 	public void setProperty(QName name, Object value, Resource r) throws NotAuthorizedException, PropertySetException {
 		log.debug("setProperty: " + name + " = " + value);
-		PropertyDescriptor pd = getPropertyDescriptor(r, name.getLocalPart());
+		BeanPropertyMetaData prop = getBeanMetaData(r).get(name.getLocalPart());
 		try {
-			pd.getWriteMethod().invoke(r, value);
+			prop.writeMethod.invoke(r, value);
 		} catch (PropertySetException e) {
 			throw e;
 		} catch (Exception ex) {
@@ -96,22 +108,135 @@ public class BeanPropertySource implements PropertySource {
 
 	@Override
 	public PropertyMetaData getPropertyMetaData(QName name, Resource r) {
-		log.debug("getPropertyMetaData");
-		BeanPropertyResource anno = getAnnotation(r);
-		if (anno == null) {
-			log.debug(" no annotation: ", r.getClass().getCanonicalName());
+		BeanMetaData bean = getBeanMetaData(r);
+		if (bean.annotation == null) {
+			LogUtils.trace(log, "getPropertyMetaData: no annotation", r.getClass());
 			return PropertyMetaData.UNKNOWN;
 		}
-		if (!name.getNamespaceURI().equals(anno.value())) {
-			log.debug("different namespace", anno.value(), name.getNamespaceURI());
+		if (!name.getNamespaceURI().equals(bean.annotation.value())) {
+			LogUtils.trace(log, "getPropertyMetaData: different namespace", bean.annotation.value(), name.getNamespaceURI());
 			return PropertyMetaData.UNKNOWN;
 		}
-
-		PropertyDescriptor pd = getPropertyDescriptor(r, name.getLocalPart());
-		if (pd == null || pd.getReadMethod() == null) {
-			LogUtils.debug(log, "getPropertyMetaData: no read method:", name.getLocalPart(), r.getClass());
+		BeanPropertyMetaData prop = bean.get(name.getLocalPart());
+		if (prop == null) {
+			LogUtils.trace(log, "getPropertyMetaData: no read method:", name.getLocalPart(), r.getClass());
 			return PropertyMetaData.UNKNOWN;
-		} else {
+		}
+		return prop.propertyMetaData;
+	}
+
+	@Override
+	public void clearProperty(QName name, Resource r) throws NotAuthorizedException {
+		setProperty(name, null, r);
+	}
+
+	@Override
+	public List<QName> getAllPropertyNames(Resource r) {
+		BeanMetaData bean = getBeanMetaData(r);
+		if (bean.annotation == null) {
+			return null;
+		}
+		return new ArrayList<QName>(bean.allPropertyNames);
+	}
+
+	
+
+	public BeanPropertyResource getAnnotation(Resource r) {
+		return getBeanMetaData(r).annotation;
+	}
+
+	public PropertyDescriptor getPropertyDescriptor(Resource r, String name) {
+		BeanPropertyMetaData prop = getBeanMetaData(r).get(name);
+		if (prop == null) {
+			return null;
+		}
+		return prop.descriptor;
+	}
+
+	private BeanMetaData getBeanMetaData(Resource r) {
+		Class<?> c = r.getClass();
+		BeanMetaData bean;
+		synchronized (beanMetaDatas) {
+			Reference<BeanMetaData> ref = beanMetaDatas.get(c);
+			bean = ref == null ? null : ref.get();
+		}
+		if (bean == null) {
+			// introspect outside the lock, a duplicate is harmless
+			bean = new BeanMetaData(c);
+			synchronized (beanMetaDatas) {
+				beanMetaDatas.put(c, new SoftReference<BeanMetaData>(bean));
+			}
+		}
+		return bean;
+	}
+
+	/**
+	 * Make the method callable without access checks, which avoids a security
+	 * check on every invocation and allows public methods declared on non-public
+	 * classes to be called
+	 */
+	private static Method accessible(Method m) {
+		if (m != null) {
+			try {
+				m.setAccessible(true);
+			} catch (SecurityException e) {
+				log.trace("could not make accessible: " + m, e);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Everything BeanPropertySource needs to know about a resource class,
+	 * resolved once by introspection
+	 */
+	private static class BeanMetaData {
+
+		private final BeanPropertyResource annotation;
+		private final Map<String, BeanPropertyMetaData> properties;
+		private final List<QName> allPropertyNames;
+
+		BeanMetaData(Class<?> c) {
+			this.annotation = c.getAnnotation(BeanPropertyResource.class);
+			Map<String, BeanPropertyMetaData> map = new HashMap<String, BeanPropertyMetaData>();
+			List<QName> names = new ArrayList<QName>();
+			for (PropertyDescriptor pd : PropertyUtils.getPropertyDescriptors(c)) {
+				map.put(pd.getName(), new BeanPropertyMetaData(pd, annotation));
+				if (annotation != null && pd.getReadMethod() != null) {
+					names.add(new QName(annotation.value(), pd.getName()));
+				}
+			}
+			this.properties = map;
+			this.allPropertyNames = Collections.unmodifiableList(names);
+		}
+
+		BeanPropertyMetaData get(String name) {
+			return properties.get(name);
+		}
+	}
+
+	/**
+	 * A single bean property with its accessors and the PropertyMetaData derived
+	 * from the class and property annotations
+	 */
+	private static class BeanPropertyMetaData {
+
+		private final PropertyDescriptor descriptor;
+		private final Method readMethod;
+		private final Method writeMethod;
+		private final PropertyMetaData propertyMetaData;
+
+		BeanPropertyMetaData(PropertyDescriptor pd, BeanPropertyResource anno) {
+			this.descriptor = pd;
+			this.readMethod = accessible(pd.getReadMethod());
+			this.writeMethod = accessible(pd.getWriteMethod());
+			this.propertyMetaData = metaData(pd, anno);
+		}
+
+		private static PropertyMetaData metaData(PropertyDescriptor pd, BeanPropertyResource anno) {
+			if (anno == null || pd.getReadMethod() == null) {
+				return PropertyMetaData.UNKNOWN;
+			}
 			BeanPropertyAccess propAnno = pd.getReadMethod().getAnnotation(BeanPropertyAccess.class);
 			if (propAnno != null) {
 				if (!propAnno.value()) {
@@ -139,44 +264,4 @@ public class BeanPropertySource implements PropertySource {
 			}
 		}
 	}
-
-	@Override
-	public void clearProperty(QName name, Resource r) throws NotAuthorizedException {
-		setProperty(name, null, r);
-	}
-
-	@Override
-	public List<QName> getAllPropertyNames(Resource r) {
-		BeanPropertyResource anno = getAnnotation(r);
-		if (anno == null) {
-			return null;
-		}
-		PropertyDescriptor[] pds = PropertyUtils.getPropertyDescriptors(r);
-		List<QName> list = new ArrayList<QName>();
-		for (PropertyDescriptor pd : pds) {
-			if (pd.getReadMethod() != null) {
-				list.add(new QName(anno.value(), pd.getName()));
-			}
-		}
-		return list;
-	}
-
-	
-
-	public BeanPropertyResource getAnnotation(Resource r) {
-		return r.getClass().getAnnotation(BeanPropertyResource.class);
-	}
-
-	public PropertyDescriptor getPropertyDescriptor(Resource r, String name) {
-		try {
-			PropertyDescriptor pd = PropertyUtils.getPropertyDescriptor(r, name);
-			return pd;
-		} catch (IllegalAccessException ex) {
-			throw new RuntimeException(ex);
-		} catch (InvocationTargetException ex) {
-			throw new RuntimeException(ex);
-		} catch (NoSuchMethodException ex) {
-			return null;
-		}
-	}
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.property;
+
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.values.ValueAndType;
+import io.milton.resource.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+
+/**
+ * Optional interface to load properties for many resources at once, such as
+ * the children of a collection in a Depth:1 PROPFIND, or the resources
+ * selected by a calendar query or multiget report.
+ *
+ * May be implemented by a CollectionResource, in which case it is asked to
+ * load properties for its own children, or by a PropertySource, in which case
+ * it is asked for every batch.
+ *
+ * This allows implementations backed by a database to fetch all values in a
+ * single query instead of one query per property per resource. Any property
+ * which is not in the returned map is resolved through the normal
+ * PropertySource's, so implementations only need to return the properties
+ * they can load efficiently. Values are ignored for properties supported on a
+ * resource by a source which is neither a ClassBasedPropertySource nor a
+ * BulkPropertyLoader, because such a source may decide the value per resource
+ * or request.
+ *
+ * @author brad
+ */
+public interface BulkPropertyLoader {
+
+	/**
+	 * Load the given properties for all of the given resources
+	 *
+	 * @param fields - the requested properties
+	 * @param resources - the resources to load properties for
+	 * @return - a map from each resource to its loaded property values. Values
+	 * found here take precedence over those from class based PropertySource's.
+	 * May be null
+	 */
+	Map<Resource, Map<QName, ValueAndType>> loadProperties(Set<QName> fields, List<? extends Resource> resources) throws NotAuthorizedException, BadRequestException;
+}
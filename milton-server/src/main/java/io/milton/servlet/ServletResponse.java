@@ -18,6 +18,8 @@ package io.milton.servlet;
 import io.milton.http.AbstractResponse;
 import io.milton.http.Cookie;
 import io.milton.http.Response;
+import io.milton.http.entity.ZeroCopyResponse;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collections;
@@ -26,11 +28,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ServletResponse extends AbstractResponse {
+public class ServletResponse extends AbstractResponse implements ZeroCopyResponse {
 
     private static final Logger log = LoggerFactory.getLogger(ServletResponse.class);
     private static ThreadLocal<HttpServletResponse> tlResponse = new ThreadLocal<HttpServletResponse>();
@@ -103,6 +106,24 @@ public class ServletResponse extends AbstractResponse {
         }
     }
 
+    /**
+     * Uses the Tomcat sendfile request attributes if the connector supports
+     * them, so the container sends the file after the request completes.
+     * Otherwise returns false and the file is written to the output stream
+     */
+    @Override
+    public boolean sendFile(File file, long offset, long length) throws IOException {
+        HttpServletRequest req = ServletRequest.getRequest();
+        if (req == null || !Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            return false;
+        }
+        log.trace("sendFile: using container sendfile");
+        req.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+        req.setAttribute("org.apache.tomcat.sendfile.start", offset);
+        req.setAttribute("org.apache.tomcat.sendfile.end", offset + length);
+        return true;
+    }
+
     @Override
     public void close() {
         try {
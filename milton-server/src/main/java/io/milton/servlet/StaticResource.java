@@ -15,11 +15,10 @@
 package io.milton.servlet;
 
 import io.milton.common.ContentTypeUtils;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.Date;
 import java.util.Map;
 
@@ -27,6 +26,8 @@ import io.milton.http.Auth;
 import io.milton.http.LockToken;
 import io.milton.http.Range;
 import io.milton.http.Request;
+import io.milton.http.entity.FileRegionEntity;
+import io.milton.resource.FileBackedResource;
 import io.milton.resource.GetableResource;
 import io.milton.resource.Resource;
 
@@ -38,7 +39,7 @@ import io.milton.resource.Resource;
  *
  * @author brad
  */
-public class StaticResource implements GetableResource {
+public class StaticResource implements GetableResource, FileBackedResource {
 
 	private final File file;
 	private String contentType;
@@ -62,13 +63,12 @@ public class StaticResource implements GetableResource {
 
 	@Override
 	public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException {
-		FileInputStream fis = new FileInputStream(file);
-		BufferedInputStream bin = new BufferedInputStream(fis);
-		final byte[] buffer = new byte[1024];
-		int n = 0;
-		while (-1 != (n = bin.read(buffer))) {
-			out.write(buffer, 0, n);
-		}
+		FileRegionEntity.transfer(file, 0, file.length(), Channels.newChannel(out));
+	}
+
+	@Override
+	public File getContentFile() {
+		return file;
 	}
 
 	@Override
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.milton.http;
+
+import io.milton.event.DeleteEvent;
+import io.milton.event.MoveEvent;
+import io.milton.event.PutEvent;
+import io.milton.event.ResponseEvent;
+import io.milton.resource.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import static org.easymock.EasyMock.*;
+
+public class CachingResourceFactoryTest extends TestCase {
+
+	CachingResourceFactory factory;
+	Map<String, Integer> loads;
+	Runnable duringLoad;
+
+	@Override
+	protected void setUp() throws Exception {
+		loads = new HashMap<String, Integer>();
+		factory = new CachingResourceFactory(new ResourceFactory() {
+
+			@Override
+			public Resource getResource(String host, String path) {
+				Integer n = loads.get(path);
+				loads.put(path, n == null ? 1 : n + 1);
+				if (duringLoad != null) {
+					Runnable run = duringLoad;
+					duringLoad = null;
+					run.run();
+				}
+				Resource r = createNiceMock(Resource.class);
+				replay(r);
+				return r;
+			}
+		}, 1000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		HttpManager.unbind();
+	}
+
+	public void testGetResource_CachesBetweenRequests() throws Exception {
+		Resource r1 = factory.getResource("host", "/a/b");
+		Resource r2 = factory.getResource("host", "/a/b/");
+		assertSame(r1, r2);
+		assertEquals(Integer.valueOf(1), loads.get("/a/b"));
+		assertEquals(1, factory.getHits());
+		assertEquals(1, factory.getMisses());
+		assertNotSame(r1, factory.getResource("other", "/a/b"));
+	}
+
+	public void testGetResource_EvictsLeastRecentlyUsed() throws Exception {
+		factory = new CachingResourceFactory(factory.getWrapped(), 16);
+		for (int i = 0; i < 100; i++) {
+			factory.getResource("host", "/file" + i);
+		}
+		assertTrue(factory.getSize() <= 16);
+		assertEquals(100 - factory.getSize(), factory.getEvictions());
+	}
+
+	public void testPutEvent_InvalidatesTargetAndParent() throws Exception {
+		load("/a", "/a/b", "/a/b/c", "/a/x");
+		Request request = request(Request.Method.PUT, "/a/b/c", null);
+		factory.onEvent(new PutEvent(factory.getResource("host", "/a/b/c")));
+		assertCached("/a", "/a/x");
+		assertNotCached("/a/b", "/a/b/c");
+		factory.onEvent(new ResponseEvent(request, null, 0));
+		assertTrue(request.getAttributes().isEmpty());
+	}
+
+	public void testDeleteEvent_UsesPathFromEvent() throws Exception {
+		load("/src", "/dest", "/dest/x", "/dest/x/y", "/dest/z");
+		// the overwritten destination of a MOVE is not the request path
+		request(Request.Method.MOVE, "/src", "http://host/dest/x");
+		factory.onEvent(new DeleteEvent(factory.getResource("host", "/dest/x"), "/dest/x"));
+		assertCached("/src", "/dest/z");
+		assertNotCached("/dest", "/dest/x", "/dest/x/y");
+	}
+
+	public void testCopyResponse_InvalidatesDestinationAndParent() throws Exception {
+		load("/src", "/dest", "/dest/x", "/dest/z");
+		Request request = request(Request.Method.COPY, "/src", "http://host/dest/x");
+		factory.onEvent(new ResponseEvent(request, null, 0));
+		assertCached("/src", "/dest/z");
+		assertNotCached("/dest", "/dest/x");
+	}
+
+	public void testLoadStartedBeforeDeleteNotCached() throws Exception {
+		load("/a");
+		request(Request.Method.DELETE, "/a/b", null);
+		duringLoad = new Runnable() {
+
+			@Override
+			public void run() {
+				factory.onEvent(new DeleteEvent(null, "/a/b"));
+			}
+		};
+		factory.getResource("host", "/a/b");
+		assertNotCached("/a/b");
+		assertCached("/a/b");
+	}
+
+	public void testLoadStartedBeforeAncestorMovedNotCached() throws Exception {
+		request(Request.Method.MOVE, "/a", "http://host/c");
+		duringLoad = new Runnable() {
+
+			@Override
+			public void run() {
+				factory.onEvent(new MoveEvent(null, null, "c"));
+			}
+		};
+		factory.getResource("host", "/a/b/c");
+		assertNotCached("/a/b/c");
+	}
+
+	private void load(String... paths) throws Exception {
+		for (String p : paths) {
+			factory.getResource("host", p);
+		}
+	}
+
+	private void assertCached(String... paths) throws Exception {
+		for (String p : paths) {
+			int before = loads.get(p);
+			factory.getResource("host", p);
+			assertEquals("should be cached: " + p, before, (int) loads.get(p));
+		}
+	}
+
+	private void assertNotCached(String... paths) throws Exception {
+		for (String p : paths) {
+			int before = loads.get(p);
+			factory.getResource("host", p);
+			assertEquals("should have been invalidated: " + p, before + 1, (int) loads.get(p));
+		}
+	}
+
+	private Request request(Request.Method method, String path, String destination) {
+		Request request = createNiceMock(Request.class);
+		expect(request.getMethod()).andReturn(method).anyTimes();
+		expect(request.getHostHeader()).andReturn("host").anyTimes();
+		expect(request.getAbsolutePath()).andReturn(path).anyTimes();
+		expect(request.getDestinationHeader()).andReturn(destination).anyTimes();
+		expect(request.getAttributes()).andReturn(new HashMap<String, Object>()).anyTimes();
+		replay(request);
+		HttpManager.bind(request, null);
+		return request;
+	}
+}
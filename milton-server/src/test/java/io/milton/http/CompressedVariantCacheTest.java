@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class CompressedVariantCacheTest extends TestCase {
+
+	File dir;
+	CompressedVariantCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("variants", "");
+		dir.delete();
+		cache = new CompressedVariantCache(dir);
+		cache.setMaxMemoryEntrySize(10);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	public void testMemoryVariantCompressedOnce() throws Exception {
+		Counting compressor = new Counting(5);
+		assertEquals(5, write(cache.get("a", compressor)).length);
+		assertEquals(5, write(cache.get("a", compressor)).length);
+		assertEquals(1, compressor.count);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(5, cache.getMemorySize());
+		assertEquals(0, dir.list().length);
+	}
+
+	public void testReplaceUpdatesSizeAndDeletesOldFile() throws Exception {
+		write(cache.put("a", new Counting(100)));
+		write(cache.put("a", new Counting(100)));
+		assertEquals(100, cache.getDiskSize());
+		assertEquals(1, dir.list().length);
+
+		write(cache.put("a", new Counting(5)));
+		assertEquals(0, cache.getDiskSize());
+		assertEquals(5, cache.getMemorySize());
+		assertEquals(0, dir.list().length);
+	}
+
+	public void testEvictedFileKeptUntilWritten() throws Exception {
+		cache.setMaxDiskSize(150);
+		CompressedVariantCache.Variant a = cache.get("a", new Counting(100));
+		write(cache.get("b", new Counting(100)));
+		assertEquals(100, cache.getDiskSize());
+		assertEquals(2, dir.list().length);
+
+		byte[] arr = write(a);
+		assertTrue(Arrays.equals(new Counting(100).content(), arr));
+		assertEquals(1, dir.list().length);
+	}
+
+	public void testReleasedWithoutWriting() throws Exception {
+		cache.setMaxDiskSize(150);
+		CompressedVariantCache.Variant a = cache.get("a", new Counting(100));
+		write(cache.get("b", new Counting(100)));
+		a.release();
+		a.release();
+		assertEquals(1, dir.list().length);
+	}
+
+	public void testAbandonedVariantDeletedAfterLeaseTimeout() throws Exception {
+		cache.setMaxDiskSize(150);
+		cache.setLeaseTimeout(50);
+		cache.get("a", new Counting(100));
+		write(cache.get("b", new Counting(100)));
+		assertEquals(2, dir.list().length);
+		assertEquals(1, cache.getEvictedCount());
+
+		Thread.sleep(100);
+		write(cache.get("c", new Counting(100)));
+		// a was abandoned and b was evicted after being written
+		assertEquals(1, dir.list().length);
+		assertEquals(0, cache.getEvictedCount());
+	}
+
+	public void testClearDeletesFiles() throws Exception {
+		write(cache.get("a", new Counting(100)));
+		write(cache.get("b", new Counting(5)));
+		cache.clear();
+		assertEquals(0, cache.getDiskSize());
+		assertEquals(0, cache.getMemorySize());
+		assertEquals(0, dir.list().length);
+	}
+
+	private byte[] write(CompressedVariantCache.Variant v) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		v.write(null, out);
+		assertEquals(v.getLength(), out.size());
+		return out.toByteArray();
+	}
+
+	private static class Counting implements CompressedVariantCache.Compressor {
+
+		private final int size;
+		private int count;
+
+		Counting(int size) {
+			this.size = size;
+		}
+
+		byte[] content() {
+			byte[] arr = new byte[size];
+			for (int i = 0; i < size; i++) {
+				arr[i] = (byte) i;
+			}
+			return arr;
+		}
+
+		@Override
+		public void compress(OutputStream out) throws Exception {
+			count++;
+			out.write(content());
+		}
+	}
+}
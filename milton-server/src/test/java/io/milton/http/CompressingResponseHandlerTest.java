@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+import io.milton.http.entity.ByteArrayEntity;
+import io.milton.http.entity.GzipEntity;
+import io.milton.http.webdav.StreamingResponseHandler;
+import io.milton.http.webdav.WebDavResponseHandler;
+import io.milton.resource.GetableResource;
+import io.milton.resource.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class CompressingResponseHandlerTest extends TestCase {
+
+	StreamingResponseHandler wrapped;
+	CompressingResponseHandler handler;
+	Resource resource;
+	Request request;
+	Response response;
+
+	@Override
+	protected void setUp() throws Exception {
+		wrapped = createMock(StreamingResponseHandler.class);
+		handler = new CompressingResponseHandler(wrapped);
+		resource = createMock(Resource.class);
+		request = createMock(Request.class);
+		response = createMock(Response.class);
+		expect(request.getAcceptEncodingHeader()).andReturn("gzip, deflate").anyTimes();
+	}
+
+	public void testMultiStatusNotCompressedByDefault() {
+		Response.Entity entity = new ByteArrayEntity(new byte[5000]);
+		wrapped.respondReport(resource, response, request, entity);
+		replay(wrapped, request, response);
+		handler.respondReport(resource, response, request, entity);
+		verify(wrapped, request, response);
+	}
+
+	public void testSmallBufferedMultiStatusNotCompressed() {
+		handler.setCompressMultiStatus(true);
+		Response.Entity entity = new ByteArrayEntity(new byte[10]);
+		wrapped.respondReport(resource, response, request, entity);
+		expect(response.getEntity()).andReturn(entity);
+		response.setVaryHeader("Accept-Encoding");
+		replay(wrapped, request, response);
+		handler.respondReport(resource, response, request, entity);
+		verify(wrapped, request, response);
+	}
+
+	public void testBufferedMultiStatusCompressed() throws Exception {
+		handler.setCompressMultiStatus(true);
+		byte[] body = xml(200).getBytes("UTF-8");
+		Response.Entity entity = new ByteArrayEntity(body);
+		Capture<Response.Entity> compressed = new Capture<Response.Entity>();
+		Capture<Long> length = new Capture<Long>();
+		wrapped.respondReport(resource, response, request, entity);
+		expect(response.getEntity()).andReturn(entity);
+		response.setVaryHeader("Accept-Encoding");
+		response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+		response.setContentLengthHeader(captureLong(length));
+		response.setEntity(capture(compressed));
+		replay(wrapped, request, response);
+		handler.respondReport(resource, response, request, entity);
+		verify(wrapped, request, response);
+
+		byte[] arr = ((ByteArrayEntity) compressed.getValue()).getArr();
+		assertEquals(arr.length, length.getValue().longValue());
+		assertTrue(arr.length < body.length);
+		assertTrue(java.util.Arrays.equals(body, gunzip(arr)));
+	}
+
+	public void testStreamedMultiStatusEncodingSetBeforeWriting() throws Exception {
+		handler.setCompressMultiStatus(true);
+		final String body = xml(50);
+		final boolean[] written = new boolean[1];
+		Response.Entity entity = new Response.Entity() {
+
+			@Override
+			public void write(Response response, OutputStream outputStream) throws Exception {
+				written[0] = true;
+				outputStream.write(body.getBytes("UTF-8"));
+				outputStream.close();
+			}
+		};
+		Capture<Response.Entity> compressed = new Capture<Response.Entity>();
+		wrapped.respondReport(resource, response, request, entity);
+		expect(response.getEntity()).andReturn(entity);
+		response.setVaryHeader("Accept-Encoding");
+		response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+		response.setEntity(capture(compressed));
+		replay(wrapped, request, response);
+		handler.respondReport(resource, response, request, entity);
+		verify(wrapped, request, response);
+		assertFalse(written[0]);
+
+		assertTrue(compressed.getValue() instanceof GzipEntity);
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+
+			@Override
+			public void close() throws IOException {
+				closed[0] = true;
+			}
+		};
+		compressed.getValue().write(response, out);
+		assertFalse(closed[0]);
+		assertEquals(body, new String(gunzip(out.toByteArray()), "UTF-8"));
+	}
+
+	public void testReportWithNonStreamingHandler() {
+		WebDavResponseHandler plain = createMock(WebDavResponseHandler.class);
+		handler = new CompressingResponseHandler(plain);
+		Response.Entity entity = new ByteArrayEntity(new byte[10]);
+		response.setStatus(Response.Status.SC_MULTI_STATUS);
+		response.setContentTypeHeader("text/xml");
+		response.setEntity(entity);
+		replay(plain, request, response);
+		handler.respondReport(resource, response, request, entity);
+		verify(plain, request, response);
+	}
+
+	public void testContentNotCompressedForBinaryType() throws Exception {
+		GetableResource r = getable("image/png", 5000L, new byte[5000]);
+		Map<String, String> params = new HashMap<String, String>();
+		wrapped.respondContent(r, response, request, params);
+		expect(request.getAcceptHeader()).andReturn(null);
+		replay(wrapped, request, response, r);
+		handler.respondContent(r, response, request, params);
+		verify(wrapped, request, response);
+	}
+
+	public void testContentNotCompressedBelowMinSize() throws Exception {
+		handler.setMinCompressSize(1000);
+		GetableResource r = getable("text/html", 500L, new byte[500]);
+		Map<String, String> params = new HashMap<String, String>();
+		wrapped.respondContent(r, response, request, params);
+		expect(request.getAcceptHeader()).andReturn(null);
+		replay(wrapped, request, response, r);
+		handler.respondContent(r, response, request, params);
+		verify(wrapped, request, response);
+	}
+
+	public void testContentCompressed() throws Exception {
+		handler.setMinCompressSize(1000);
+		byte[] body = xml(100).getBytes("UTF-8");
+		GetableResource r = getable("text/html", (long) body.length, body);
+		Capture<Response.Entity> entity = new Capture<Response.Entity>();
+		Capture<Long> length = new Capture<Long>();
+		respondContent(r, entity, length);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.getValue().write(response, out);
+		assertEquals(length.getValue().longValue(), out.size());
+		assertTrue(out.size() < body.length);
+		assertTrue(java.util.Arrays.equals(body, gunzip(out.toByteArray())));
+	}
+
+	public void testLoadProbeSelectsFastLevel() throws Exception {
+		final boolean[] saturated = new boolean[1];
+		handler.setCompressionLevel(Deflater.BEST_COMPRESSION);
+		handler.setFastCompressionLevel(Deflater.NO_COMPRESSION);
+		handler.setLoadProbe(new LoadProbe() {
+
+			@Override
+			public boolean isSaturated() {
+				return saturated[0];
+			}
+		});
+		assertEquals(Deflater.BEST_COMPRESSION, handler.currentCompressionLevel());
+		saturated[0] = true;
+		assertEquals(Deflater.NO_COMPRESSION, handler.currentCompressionLevel());
+
+		// stored rather than deflated, so larger than the original
+		byte[] body = xml(100).getBytes("UTF-8");
+		GetableResource r = getable("text/html", (long) body.length, body);
+		Capture<Response.Entity> entity = new Capture<Response.Entity>();
+		Capture<Long> length = new Capture<Long>();
+		respondContent(r, entity, length);
+		assertTrue(length.getValue() > body.length);
+	}
+
+	public void testVariantKeyIncludesUser() throws Exception {
+		GetableResource r = getable("text/css", 100L, new byte[100]);
+		expect(r.getUniqueId()).andReturn("r1").anyTimes();
+		expect(wrapped.generateEtag(r)).andReturn("e1").anyTimes();
+		replay(wrapped, r);
+		String anon = handler.variantKey(r, "text/css", null, null);
+		String joe = handler.variantKey(r, "text/css", null, new Auth("joe", null));
+		String sue = handler.variantKey(r, "text/css", null, new Auth("sue", null));
+		assertNotNull(anon);
+		assertFalse(anon.equals(joe));
+		assertFalse(joe.equals(sue));
+		assertEquals(joe, handler.variantKey(r, "text/css", null, new Auth("joe", null)));
+		assertNull(handler.variantKey(r, "text/css", java.util.Collections.singletonMap("a", "b"), null));
+	}
+
+	private void respondContent(GetableResource r, Capture<Response.Entity> entity, Capture<Long> length) throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		expect(request.getAcceptHeader()).andReturn(null);
+		expect(request.getAuthorization()).andReturn(null).anyTimes();
+		expect(wrapped.generateEtag(r)).andReturn(null);
+		response = createNiceMock(Response.class);
+		response.setContentEncodingHeader(Response.ContentEncoding.GZIP);
+		response.setContentLengthHeader(captureLong(length));
+		response.setEntity(capture(entity));
+		replay(wrapped, request, response, r);
+		handler.respondContent(r, response, request, params);
+		verify(wrapped, request, response);
+	}
+
+	private GetableResource getable(String contentType, Long length, final byte[] content) throws Exception {
+		GetableResource r = createNiceMock(GetableResource.class);
+		expect(r.getContentType((String) anyObject())).andReturn(contentType).anyTimes();
+		expect(r.getContentLength()).andReturn(length).anyTimes();
+		r.sendContent((OutputStream) anyObject(), (Range) isNull(), EasyMock.<Map<String, String>>anyObject(), (String) anyObject());
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+
+			@Override
+			public Object answer() throws Throwable {
+				((OutputStream) getCurrentArguments()[0]).write(content);
+				return null;
+			}
+		}).anyTimes();
+		return r;
+	}
+
+	private String xml(int responses) {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" ?><D:multistatus xmlns:D=\"DAV:\">");
+		for (int i = 0; i < responses; i++) {
+			sb.append("<D:response><D:href>/folder/file").append(i).append(".txt</D:href></D:response>");
+		}
+		return sb.append("</D:multistatus>").toString();
+	}
+
+	private byte[] gunzip(byte[] arr) throws IOException {
+		return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(arr)));
+	}
+}
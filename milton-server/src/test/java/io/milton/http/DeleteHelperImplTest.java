@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.milton.http;
+
+import io.milton.event.DeleteEvent;
+import io.milton.event.Event;
+import io.milton.event.EventListener;
+import io.milton.event.EventManagerImpl;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.DeletableResource;
+import io.milton.resource.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+
+public class DeleteHelperImplTest extends TestCase {
+
+	DeleteHelperImpl deleteHelper;
+	EventManagerImpl eventManager;
+	List<DeleteEvent> events;
+	Set<String> deleteThreads;
+	TestFolder root;
+
+	@Override
+	protected void setUp() throws Exception {
+		deleteHelper = new DeleteHelperImpl(new HandlerHelper(null));
+		eventManager = new EventManagerImpl();
+		events = Collections.synchronizedList(new ArrayList<DeleteEvent>());
+		eventManager.registerEventListener(new EventListener() {
+
+			@Override
+			public void onEvent(Event e) {
+				events.add((DeleteEvent) e);
+			}
+		}, DeleteEvent.class);
+		deleteThreads = Collections.synchronizedSet(new HashSet<String>());
+		root = new TestFolder(null, "root");
+		for (int i = 0; i < 4; i++) {
+			TestFolder folder = new TestFolder(root, "folder" + i);
+			for (int j = 0; j < 50; j++) {
+				new TestFile(folder, "file" + j);
+			}
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteHelper.stop();
+	}
+
+	public void testDeleteIfNotLocked_FiresOneEventWithPath() throws Exception {
+		assertTrue(deleteHelper.deleteIfNotLocked(null, root, "/dav/root", eventManager));
+		assertEquals(1, events.size());
+		assertSame(root, events.get(0).getResource());
+		assertEquals("/dav/root", events.get(0).getPath());
+		assertTrue(root.deleted);
+		assertTrue(root.children.isEmpty());
+	}
+
+	public void testDeleteIfNotLocked_FailureReportsOnlyRemoved() throws Exception {
+		TestFile bad = (TestFile) ((TestFolder) root.child("folder2")).child("file7");
+		bad.fail = true;
+		try {
+			deleteHelper.deleteIfNotLocked(null, root, "/dav/root", eventManager);
+			fail("expected ConflictException");
+		} catch (ConflictException e) {
+			// expected
+		}
+		assertFalse(root.deleted);
+		assertFalse(events.isEmpty());
+		for (DeleteEvent e : events) {
+			assertNotSame(root, e.getResource());
+			assertTrue(((TestResource) e.getResource()).deleted);
+			assertEquals("/dav/root/" + ((TestResource) e.getResource()).path(), e.getPath());
+		}
+	}
+
+	public void testDelete_SequentialByDefault() throws Exception {
+		deleteHelper.setParallelThreshold(1);
+		deleteHelper.delete(root, eventManager);
+		assertEquals(Collections.singleton(Thread.currentThread().getName()), deleteThreads);
+		assertNull(events.get(0).getPath());
+	}
+
+	public void testDelete_ParallelWhenEnabled() throws Exception {
+		deleteHelper.setDeleteThreads(4);
+		deleteHelper.setParallelThreshold(1);
+		deleteHelper.delete(root, eventManager);
+		assertTrue(root.deleted);
+		assertEquals(1, events.size());
+		boolean usedPool = false;
+		for (String s : deleteThreads) {
+			usedPool = usedPool || s.startsWith("milton-delete-");
+		}
+		assertTrue(usedPool);
+	}
+
+	private abstract class TestResource implements DeletableResource {
+
+		final TestFolder parent;
+		final String name;
+		boolean deleted;
+
+		TestResource(TestFolder parent, String name) {
+			this.parent = parent;
+			this.name = name;
+			if (parent != null) {
+				parent.children.add(this);
+			}
+		}
+
+		String path() {
+			return (parent == null || parent.parent == null) ? name : parent.path() + "/" + name;
+		}
+
+		@Override
+		public void delete() throws ConflictException {
+			deleteThreads.add(Thread.currentThread().getName());
+			if (parent != null) {
+				parent.children.remove(this);
+			}
+			deleted = true;
+		}
+
+		@Override
+		public String getUniqueId() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public Object authenticate(String user, String password) {
+			return null;
+		}
+
+		@Override
+		public boolean authorise(Request request, Request.Method method, Auth auth) {
+			return true;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public Date getModifiedDate() {
+			return null;
+		}
+
+		@Override
+		public String checkRedirect(Request request) {
+			return null;
+		}
+	}
+
+	private class TestFolder extends TestResource implements CollectionResource {
+
+		final List<Resource> children = Collections.synchronizedList(new ArrayList<Resource>());
+
+		TestFolder(TestFolder parent, String name) {
+			super(parent, name);
+		}
+
+		@Override
+		public Resource child(String childName) {
+			for (Resource r : getChildren()) {
+				if (r.getName().equals(childName)) {
+					return r;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public List<? extends Resource> getChildren() {
+			synchronized (children) {
+				return new ArrayList<Resource>(children);
+			}
+		}
+	}
+
+	private class TestFile extends TestResource {
+
+		boolean fail;
+
+		TestFile(TestFolder parent, String name) {
+			super(parent, name);
+		}
+
+		@Override
+		public void delete() throws ConflictException {
+			if (fail) {
+				throw new ConflictException(this);
+			}
+			super.delete();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http;
+
+import io.milton.resource.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import static org.easymock.EasyMock.*;
+
+public class RequestCachingResourceFactoryTest extends TestCase {
+
+	ResourceFactory wrapped;
+	RequestCachingResourceFactory factory;
+	Request request;
+	Resource a;
+	Resource b;
+
+	@Override
+	protected void setUp() throws Exception {
+		wrapped = createMock(ResourceFactory.class);
+		factory = new RequestCachingResourceFactory(wrapped);
+		request = createMock(Request.class);
+		Map<String, Object> atts = new HashMap<String, Object>();
+		expect(request.getAttributes()).andReturn(atts).anyTimes();
+		a = createMock(Resource.class);
+		b = createMock(Resource.class);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		HttpManager.unbind();
+	}
+
+	public void testFoundResourcesCachedForRequest() throws Exception {
+		expect(wrapped.getResource("host", "/a")).andReturn(a).once();
+		replay(wrapped, request);
+		HttpManager.bind(request, null);
+		assertSame(a, factory.getResource("host", "/a"));
+		assertSame(a, factory.getResource("host", "/a/"));
+		verify(wrapped);
+	}
+
+	public void testNotFoundNotCached() throws Exception {
+		// eg a POST or custom handler creates the resource without invalidating
+		expect(wrapped.getResource("host", "/a")).andReturn(null);
+		expect(wrapped.getResource("host", "/a")).andReturn(a);
+		replay(wrapped, request);
+		HttpManager.bind(request, null);
+		assertNull(factory.getResource("host", "/a"));
+		assertSame(a, factory.getResource("host", "/a"));
+		verify(wrapped);
+	}
+
+	public void testInvalidateRemovesPathAndChildren() throws Exception {
+		expect(wrapped.getResource("host", "/a")).andReturn(a).times(2);
+		expect(wrapped.getResource("host", "/a/b")).andReturn(b).times(2);
+		expect(wrapped.getResource("host", "/ab")).andReturn(b).once();
+		replay(wrapped, request);
+		HttpManager.bind(request, null);
+		factory.getResource("host", "/a");
+		factory.getResource("host", "/a/b");
+		factory.getResource("host", "/ab");
+		RequestCachingResourceFactory.invalidate("host", "/a");
+		factory.getResource("host", "/a");
+		factory.getResource("host", "/a/b");
+		factory.getResource("host", "/ab");
+		verify(wrapped);
+	}
+
+	public void testNoRequestNotCached() throws Exception {
+		expect(wrapped.getResource("host", "/a")).andReturn(a).times(2);
+		replay(wrapped, request);
+		factory.getResource("host", "/a");
+		factory.getResource("host", "/a");
+		verify(wrapped);
+	}
+}
@@ -54,4 +54,46 @@ public class TestXmlWriter extends TestCase {
         String s = out.toString();
         System.out.println("actual: \n" + s);
     }
+
+    public void testEncodingAndEscaping() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlWriter w = new XmlWriter(out);
+        w.writeEscapedProperty("d", "displayname", "a<b & \"c\" \u00e9\u4e2d\ud83d\ude00");
+        w.writeProperty("d", "href", "/x");
+        w.flush();
+        String s = out.toString("UTF-8");
+        assertEquals("<d:displayname>a&lt;b &amp; &quot;c&quot; \u00e9\u4e2d\ud83d\ude00</d:displayname><d:href>/x</d:href>", s);
+    }
+
+    public void testLargerThanBuffer() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlWriter w = new XmlWriter(out);
+        StringBuilder sb = new StringBuilder();
+        for( int i=0; i<20000; i++ ) {
+            sb.append((char)('a' + i % 26));
+        }
+        w.writeProperty(null, "a", sb.toString());
+        w.flush();
+        assertEquals("<a>" + sb + "</a>\n", out.toString("UTF-8"));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testSubclassWriterKeepsOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlWriter w = new XmlWriter(out) {
+
+            @Override
+            public void writeText(String text) {
+                try {
+                    writer.write("[" + text + "\ud83d\ude00]");
+                } catch (java.io.IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        w.writeProperty(null, "a", "x");
+        w.writeText("\u00e9");
+        w.flush();
+        assertEquals("<a>x</a>\n[\u00e9\ud83d\ude00]", out.toString("UTF-8"));
+    }
 }
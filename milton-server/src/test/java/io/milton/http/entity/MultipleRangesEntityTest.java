@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.entity;
+
+import io.milton.http.Auth;
+import io.milton.http.Range;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.http11.PartialGetHelper;
+import io.milton.resource.FileBackedResource;
+import io.milton.resource.GetableResource;
+import io.milton.resource.SeekableResource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class MultipleRangesEntityTest extends TestCase {
+
+	private static final String BOUNDARY = "BOUNDARY";
+	byte[] content;
+	List<Range> ranges;
+
+	@Override
+	protected void setUp() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		content = sb.toString().getBytes("UTF-8");
+		ranges = Arrays.asList(new Range(10, 19), new Range(50, 59));
+	}
+
+	public void testWrite_Seekable() throws Exception {
+		assertEquals(expected(ranges), write(new SeekableStub(), ranges));
+	}
+
+	public void testWrite_FileBacked() throws Exception {
+		File file = File.createTempFile("ranges", ".txt");
+		try {
+			FileUtils.writeByteArrayToFile(file, content);
+			assertEquals(expected(ranges), write(new FileBackedStub(file), ranges));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testWrite_NotSeekable() throws Exception {
+		SequentialStub resource = new SequentialStub();
+		assertEquals(expected(ranges), write(resource, ranges));
+		// the resource is not interrupted after the last range
+		assertEquals(content.length, resource.sent);
+	}
+
+	public void testWrite_NotSeekable_LastRangeAtEnd() throws Exception {
+		ranges = Arrays.asList(new Range(0, 0), new Range(90, 99));
+		assertEquals(expected(ranges), write(new SequentialStub(), ranges));
+	}
+
+	public void testWrite_UnsortedAndOverlappingRanges() throws Exception {
+		List<Range> requested = Arrays.asList(new Range(50, 59), new Range(15, 25), new Range(10, 19), new Range(55, 56));
+		List<Range> coalesced = Arrays.asList(new Range(10, 25), new Range(50, 59));
+		String expected = expected(coalesced);
+
+		Request request = createNiceMock(Request.class);
+		Response response = createNiceMock(Response.class);
+		Capture<Response.Entity> entity = new Capture<Response.Entity>();
+		response.setEntity(capture(entity));
+		expectLastCall();
+		replay(request, response);
+		SequentialStub resource = new SequentialStub();
+		new PartialGetHelper(null).sendPartialContent(resource, request, response, requested, null);
+		MultipleRangesEntity ranged = (MultipleRangesEntity) entity.getValue();
+		assertEquals(2, ranged.getRanges().size());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ranged.write(response, out);
+		assertEquals(expected.replace(BOUNDARY, ranged.getBoundary()), out.toString("UTF-8"));
+	}
+
+	private String write(GetableResource resource, List<Range> list) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new MultipleRangesEntity(resource, list, null, "text/plain", (long) content.length, BOUNDARY).write(null, out);
+		return out.toString("UTF-8");
+	}
+
+	private String expected(List<Range> list) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (Range r : list) {
+			sb.append("\r\n--").append(BOUNDARY).append("\r\n");
+			sb.append("Content-Type: text/plain\r\n");
+			sb.append("Content-Range: bytes ").append(r.getStart()).append("-").append(r.getFinish()).append("/100\r\n\r\n");
+			sb.append(new String(content, (int) r.getStart(), (int) (r.getFinish() - r.getStart() + 1), "UTF-8"));
+		}
+		sb.append("\r\n--").append(BOUNDARY).append("--\r\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Writes its content in small pieces and, like many resources, reports any
+	 * IOException as a different one
+	 */
+	class SequentialStub extends AbstractStub {
+
+		int sent;
+
+		@Override
+		public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException {
+			assertNull(range);
+			try {
+				for (int i = 0; i < content.length; i += 7) {
+					int n = Math.min(7, content.length - i);
+					out.write(content, i, n);
+					sent += n;
+				}
+			} catch (IOException e) {
+				throw new IOException("Couldnt send content: " + e.getMessage());
+			}
+		}
+	}
+
+	class SeekableStub extends AbstractStub implements SeekableResource {
+
+		@Override
+		public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException {
+			out.write(content, (int) range.getStart(), (int) (range.getFinish() - range.getStart() + 1));
+		}
+	}
+
+	class FileBackedStub extends AbstractStub implements FileBackedResource {
+
+		final File file;
+
+		FileBackedStub(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public File getContentFile() {
+			return file;
+		}
+
+		@Override
+		public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException {
+			fail("should transfer from the file");
+		}
+	}
+
+	abstract class AbstractStub implements GetableResource {
+
+		@Override
+		public Long getMaxAgeSeconds(Auth auth) {
+			return null;
+		}
+
+		@Override
+		public String getContentType(String accepts) {
+			return "text/plain";
+		}
+
+		@Override
+		public Long getContentLength() {
+			return (long) content.length;
+		}
+
+		@Override
+		public String getUniqueId() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return "file.txt";
+		}
+
+		@Override
+		public Object authenticate(String user, String password) {
+			return null;
+		}
+
+		@Override
+		public boolean authorise(Request request, Request.Method method, Auth auth) {
+			return true;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public Date getModifiedDate() {
+			return null;
+		}
+
+		@Override
+		public String checkRedirect(Request request) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class AtomicFileWriterTest extends TestCase {
+
+    File dir;
+    AtomicFileWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("milton-writer", null);
+        dir.delete();
+        dir.mkdir();
+        // small buffers so content spans several of them
+        writer = new AtomicFileWriter(16, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void testWrite() throws Exception {
+        File dest = new File(dir, "a.txt");
+        FileUtils.writeStringToFile(dest, "old content");
+        String content = content(100);
+        assertEquals(100, writer.write(dest, in(content), 100L));
+        assertEquals(content, FileUtils.readFileToString(dest));
+        assertEquals(Arrays.asList("a.txt"), Arrays.asList(dir.list()));
+    }
+
+    public void testWrite_UnknownLength() throws Exception {
+        File dest = new File(dir, "a.txt");
+        assertEquals(40, writer.write(dest, in(content(40)), null));
+        assertEquals(content(40), FileUtils.readFileToString(dest));
+    }
+
+    public void testWrite_LengthMismatch() throws Exception {
+        File dest = new File(dir, "a.txt");
+        FileUtils.writeStringToFile(dest, "old content");
+        try {
+            writer.write(dest, in(content(30)), 50L);
+            fail("short content should be refused");
+        } catch (IOException expected) {
+        }
+        try {
+            writer.write(dest, in(content(30)), 20L);
+            fail("long content should be refused");
+        } catch (IOException expected) {
+        }
+        // the target is untouched and the temporary files are gone
+        assertEquals("old content", FileUtils.readFileToString(dest));
+        assertEquals(Arrays.asList("a.txt"), Arrays.asList(dir.list()));
+    }
+
+    public void testWrite_LengthMismatch_NewFile() throws Exception {
+        try {
+            writer.write(new File(dir, "a.txt"), in(content(30)), 50L);
+            fail("short content should be refused");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, dir.list().length);
+    }
+
+    public void testCopy() throws Exception {
+        File src = new File(dir, "src.txt");
+        FileUtils.writeStringToFile(src, content(100));
+        File dest = new File(dir, "dest.txt");
+        assertEquals(100, writer.copy(src, dest));
+        assertEquals(content(100), FileUtils.readFileToString(dest));
+        assertEquals(2, dir.list().length);
+    }
+
+    public void testGroupCommit_ConcurrentWriters() throws Exception {
+        writer.setSyncPolicy(AtomicFileWriter.SyncPolicy.GROUP_COMMIT);
+        writer.setGroupCommitDelayMillis(20);
+        final int count = 8;
+        final CyclicBarrier start = new CyclicBarrier(count);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            final File dest = new File(dir, i + ".txt");
+            final String content = content(50 + i);
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        writer.write(dest, in(content), (long) content.length());
+                    } catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse("writer did not return", t.isAlive());
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int i = 0; i < count; i++) {
+            assertEquals(content(50 + i), FileUtils.readFileToString(new File(dir, i + ".txt")));
+        }
+        assertEquals(count, dir.list().length);
+    }
+
+    public void testIsTempFile() throws Exception {
+        assertTrue(AtomicFileWriter.isTempFile(new File(dir, ".a.txt.0f8fad5b-d9cb-469f-a165-70867728950e.milton-tmp")));
+        // user files which only share the suffix are not hidden
+        assertFalse(AtomicFileWriter.isTempFile(new File(dir, "notes.milton-tmp")));
+        assertFalse(AtomicFileWriter.isTempFile(new File(dir, ".notes.milton-tmp")));
+        assertFalse(AtomicFileWriter.isTempFile(new File(dir, "a.txt")));
+    }
+
+    public void testRemoveIfStale() throws Exception {
+        writer.setStaleTempMillis(60000);
+        File stale = new File(dir, ".a.txt.0f8fad5b-d9cb-469f-a165-70867728950e.milton-tmp");
+        File recent = new File(dir, ".b.txt.0f8fad5b-d9cb-469f-a165-70867728950e.milton-tmp");
+        File user = new File(dir, "notes.milton-tmp");
+        FileUtils.writeStringToFile(stale, "x");
+        FileUtils.writeStringToFile(recent, "x");
+        FileUtils.writeStringToFile(user, "x");
+        long old = System.currentTimeMillis() - 120000;
+        stale.setLastModified(old);
+        user.setLastModified(old);
+
+        assertTrue(writer.removeIfStale(stale));
+        assertFalse(writer.removeIfStale(recent));
+        assertFalse(writer.removeIfStale(user));
+        assertFalse(stale.exists());
+        assertTrue(recent.exists());
+        assertTrue(user.exists());
+    }
+
+    private String content(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    private ByteArrayInputStream in(String s) {
+        return new ByteArrayInputStream(s.getBytes());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.fs;
+
+import io.milton.http.LockInfo;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
+import io.milton.http.exceptions.NotAuthorizedException;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class ConcurrentLockManagerTest extends TestCase {
+
+    ConcurrentLockManager lockManager;
+    SimpleFileContentService contentService;
+    File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        lockManager = new ConcurrentLockManager();
+        contentService = new SimpleFileContentService();
+        dir = new File( System.getProperty( "java.io.tmpdir" ) );
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        lockManager.stop();
+    }
+
+    public void testLockUnLock() throws NotAuthorizedException {
+        FsResource resource = file( "a.txt" );
+
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource );
+        assertTrue( res.isSuccessful() );
+
+        LockToken token = lockManager.getCurrentToken( resource );
+        assertNotNull( token );
+        assertEquals( token.tokenId, res.getLockToken().tokenId );
+
+        // can't lock twice
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource ).isSuccessful() );
+
+        lockManager.unlock( token.tokenId, resource );
+        assertNull( lockManager.getCurrentToken( resource ) );
+    }
+
+    public void testDepthInfinityLocksMembers() throws NotAuthorizedException {
+        FsResource folder = new FsDirectoryResource( null, null, dir, contentService );
+        FsResource member = file( "a.txt" );
+
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.INFINITY ), folder );
+        assertTrue( res.isSuccessful() );
+
+        LockToken token = lockManager.getCurrentToken( member );
+        assertNotNull( token );
+        assertEquals( res.getLockToken().tokenId, token.tokenId );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), member ).isSuccessful() );
+
+        Map<String, LockToken> locks = lockManager.getChildLocks( folder, Arrays.asList( "a.txt", "b.txt" ) );
+        assertEquals( 2, locks.size() );
+
+        // the lock can be removed through any resource within its scope
+        lockManager.unlock( token.tokenId, member );
+        assertNull( lockManager.getCurrentToken( folder ) );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), member ).isSuccessful() );
+    }
+
+    public void testMemberLockPreventsDepthInfinityLock() {
+        FsResource folder = new FsDirectoryResource( null, null, dir, contentService );
+        FsResource member = file( "a.txt" );
+
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), member ).isSuccessful() );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.INFINITY ), folder ).isSuccessful() );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), folder ).isSuccessful() );
+        assertNull( lockManager.getChildLocks( folder, Arrays.asList( "b.txt" ) ).get( "b.txt" ) );
+    }
+
+    public void testRefresh() {
+        FsResource resource = file( "a.txt" );
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource );
+        assertTrue( lockManager.refresh( res.getLockToken().tokenId, resource ).isSuccessful() );
+        assertFalse( lockManager.refresh( "nope", resource ).isSuccessful() );
+    }
+
+    private FsResource file( String name ) {
+        return new FsFileResource( null, null, new File( dir, name ), contentService );
+    }
+
+    private LockInfo info( LockInfo.LockDepth depth ) {
+        return new LockInfo( LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "me", depth );
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.fs;
+
+import io.milton.http.HrefStatus;
+import io.milton.http.MultiStatusException;
+import io.milton.http.Response;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FsDirectoryCopyTest extends TestCase {
+
+    File root;
+    FileSystemResourceFactory factory;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("milton-copy", null);
+        root.delete();
+        root.mkdir();
+        File src = new File(root, "src");
+        FileUtils.writeStringToFile(new File(src, "a.txt"), "a");
+        FileUtils.writeStringToFile(new File(src, "b.txt"), "b");
+        FileUtils.writeStringToFile(new File(src, "sub/c.txt"), "c");
+        FileUtils.writeStringToFile(new File(src, "sub/deeper/d.txt"), "d");
+        factory = new FileSystemResourceFactory(root, new NullSecurityManager());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        factory.stop();
+        FileUtils.deleteDirectory(root);
+    }
+
+    public void testCopyUsesExecutor() throws Exception {
+        CountingExecutor exec = new CountingExecutor();
+        factory.setCopyExecutor(exec);
+        try {
+            copy("copy");
+            assertEquals(4, exec.count.get());
+            File dest = new File(root, "copy");
+            assertEquals("a", FileUtils.readFileToString(new File(dest, "a.txt")));
+            assertEquals("b", FileUtils.readFileToString(new File(dest, "b.txt")));
+            assertEquals("c", FileUtils.readFileToString(new File(dest, "sub/c.txt")));
+            assertEquals("d", FileUtils.readFileToString(new File(dest, "sub/deeper/d.txt")));
+            // an executor given to the factory belongs to the caller
+            factory.stop();
+            assertFalse(exec.isShutdown());
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testPartialFailure() throws Exception {
+        // a non-empty directory where a file should go cant be replaced
+        File dest = new File(root, "copy");
+        FileUtils.writeStringToFile(new File(dest, "b.txt/x"), "x");
+        try {
+            copy("copy");
+            fail("expected MultiStatusException");
+        } catch (MultiStatusException e) {
+            assertEquals(1, e.getStatii().size());
+            HrefStatus s = e.getStatii().get(0);
+            assertEquals("b.txt", s.href);
+            assertEquals(Response.Status.SC_INTERNAL_SERVER_ERROR, s.status);
+        }
+        assertEquals("a", FileUtils.readFileToString(new File(dest, "a.txt")));
+        assertEquals("d", FileUtils.readFileToString(new File(dest, "sub/deeper/d.txt")));
+    }
+
+    public void testStopShutsDownDefaultExecutor() throws Exception {
+        ExecutorService exec = factory.getCopyExecutor();
+        copy("copy");
+        factory.stop();
+        assertTrue(exec.isShutdown());
+        assertNotSame(exec, factory.getCopyExecutor());
+    }
+
+    private void copy(String name) throws Exception {
+        FsDirectoryResource src = (FsDirectoryResource) factory.getResource("localhost", "/src");
+        FsDirectoryResource parent = (FsDirectoryResource) factory.getResource("localhost", "/");
+        src.copyTo(parent, name);
+    }
+
+    private static class CountingExecutor extends ThreadPoolExecutor {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        CountingExecutor() {
+            super(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            count.incrementAndGet();
+        }
+    }
+}
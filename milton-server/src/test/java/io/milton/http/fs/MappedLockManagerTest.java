@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.fs;
+
+import io.milton.http.LockInfo;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
+import io.milton.http.exceptions.NotAuthorizedException;
+import java.io.File;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class MappedLockManagerTest extends TestCase {
+
+    File lockFile;
+    MappedLockManager lockManager;
+    SimpleFileContentService contentService;
+    File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        lockFile = File.createTempFile( "milton-locks", ".tbl" );
+        lockFile.delete();
+        lockManager = new MappedLockManager( lockFile, 64 );
+        contentService = new SimpleFileContentService();
+        dir = new File( System.getProperty( "java.io.tmpdir" ) );
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        lockManager.close();
+        lockFile.delete();
+    }
+
+    public void testLockUnLock() throws NotAuthorizedException {
+        FsResource resource = file( "a.txt" );
+
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource );
+        assertTrue( res.isSuccessful() );
+
+        LockToken token = lockManager.getCurrentToken( resource );
+        assertNotNull( token );
+        assertEquals( res.getLockToken().tokenId, token.tokenId );
+        assertEquals( "me", token.info.lockedByUser );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource ).isSuccessful() );
+
+        lockManager.unlock( token.tokenId, resource );
+        assertNull( lockManager.getCurrentToken( resource ) );
+    }
+
+    public void testLocksArePersisted() throws Exception {
+        FsResource resource = file( "a.txt" );
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource );
+        lockManager.close();
+
+        lockManager = new MappedLockManager( lockFile );
+        LockToken token = lockManager.getCurrentToken( resource );
+        assertNotNull( token );
+        assertEquals( res.getLockToken().tokenId, token.tokenId );
+        assertTrue( lockManager.refresh( token.tokenId, resource ).isSuccessful() );
+    }
+
+    public void testDepthInfinity() throws NotAuthorizedException {
+        FsResource folder = new FsDirectoryResource( null, null, dir, contentService );
+        FsResource member = file( "a.txt" );
+
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), member ).isSuccessful() );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.INFINITY ), folder ).isSuccessful() );
+        lockManager.unlock( lockManager.getCurrentToken( member ).tokenId, member );
+
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.INFINITY ), folder );
+        assertTrue( res.isSuccessful() );
+        assertEquals( res.getLockToken().tokenId, lockManager.getCurrentToken( member ).tokenId );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), member ).isSuccessful() );
+    }
+
+    public void testSlotsAreReclaimedOnUnlock() throws NotAuthorizedException {
+        for( int i = 0; i < 64 * 4; i++ ) {
+            FsResource resource = file( "reclaim" + i + ".txt" );
+            LockResult res = lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), resource );
+            assertTrue( "lock " + i, res.isSuccessful() );
+            assertEquals( res.getLockToken().tokenId, lockManager.getCurrentToken( resource ).tokenId );
+            lockManager.unlock( res.getLockToken().tokenId, resource );
+            assertNull( lockManager.getCurrentToken( resource ) );
+        }
+        assertEquals( 64, lockManager.getEmptySlots() );
+    }
+
+    public void testExpiredSlotsAreReclaimed() throws Exception {
+        for( int i = 0; i < 64 * 4; i++ ) {
+            FsResource resource = file( "expire" + i + ".txt" );
+            assertTrue( "lock " + i, lockManager.lock( new LockTimeout( 0l ), info( LockInfo.LockDepth.ZERO ), resource ).isSuccessful() );
+            Thread.sleep( 2 );
+        }
+        assertTrue( lockManager.getEmptySlots() > 0 );
+        for( int i = 0; i < 64 * 4; i++ ) {
+            assertNull( lockManager.getCurrentToken( file( "expire" + i + ".txt" ) ) );
+        }
+
+        // a table which is full of live locks refuses new ones, rather than using the last empty slot
+        for( int i = 0; i < 63; i++ ) {
+            assertTrue( "lock " + i, lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), file( "full" + i + ".txt" ) ).isSuccessful() );
+        }
+        assertEquals( 1, lockManager.getEmptySlots() );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), file( "full63.txt" ) ).isSuccessful() );
+        for( int i = 0; i < 63; i++ ) {
+            assertNotNull( lockManager.getCurrentToken( file( "full" + i + ".txt" ) ) );
+        }
+    }
+
+    public void testEmptyCountIsRecoveredOnOpen() throws Exception {
+        lockManager.lock( new LockTimeout( 100l ), info( LockInfo.LockDepth.ZERO ), file( "a.txt" ) );
+        lockManager.close();
+        lockManager = new MappedLockManager( lockFile );
+        assertEquals( 63, lockManager.getEmptySlots() );
+    }
+
+    private FsResource file( String name ) {
+        return new FsFileResource( null, null, new File( dir, name ), contentService );
+    }
+
+    private LockInfo info( LockInfo.LockDepth depth ) {
+        return new LockInfo( LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "me", depth );
+    }
+}
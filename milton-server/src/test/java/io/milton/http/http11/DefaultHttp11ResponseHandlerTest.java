@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11;
+
+import io.milton.http.Auth;
+import io.milton.http.Range;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.entity.DefaultEntityTransport;
+import io.milton.http.entity.FileRegionEntity;
+import io.milton.http.entity.ZeroCopyResponse;
+import io.milton.resource.FileBackedResource;
+import io.milton.resource.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.easymock.Capture;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class DefaultHttp11ResponseHandlerTest extends TestCase {
+
+	byte[] content;
+	File file;
+	DefaultHttp11ResponseHandler responseHandler;
+	Request request;
+	Response response;
+	Capture<Response.Entity> entity;
+
+	@Override
+	protected void setUp() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		content = sb.toString().getBytes("UTF-8");
+		file = File.createTempFile("content", ".txt");
+		FileUtils.writeByteArrayToFile(file, content);
+		responseHandler = new DefaultHttp11ResponseHandler(null, new ETagGenerator() {
+
+			@Override
+			public String generateEtag(Resource r) {
+				return null;
+			}
+		});
+		request = createNiceMock(Request.class);
+		response = createNiceMock(Response.class);
+		entity = new Capture<Response.Entity>();
+		response.setEntity(capture(entity));
+		expectLastCall();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testRespondContent_SendsWholeFile() throws Exception {
+		response.setContentLengthHeader(100L);
+		expectLastCall();
+		replay(request, response);
+		responseHandler.respondContent(new FileBackedStub(), response, request, null);
+		verify(response);
+		assertTrue(entity.getValue() instanceof FileRegionEntity);
+		assertEquals(new String(content, "UTF-8"), write(entity.getValue()));
+	}
+
+	public void testRespondPartialContent_SendsRange() throws Exception {
+		response.setContentLengthHeader(10L);
+		expectLastCall();
+		response.setContentRangeHeader(20, 29, 100L);
+		expectLastCall();
+		replay(request, response);
+		responseHandler.respondPartialContent(new FileBackedStub(), response, request, null, new Range(20, 29));
+		verify(response);
+		assertEquals(new String(content, 20, 10, "UTF-8"), write(entity.getValue()));
+	}
+
+	public void testRespondPartialContent_SendsLastByte() throws Exception {
+		replay(request, response);
+		responseHandler.respondPartialContent(new FileBackedStub(), response, request, null, new Range(99, 99));
+		assertEquals("v", write(entity.getValue()));
+	}
+
+	public void testTransport_ZeroCopyResponseSendsFile() throws Exception {
+		ZeroCopyTestResponse zeroCopy = createMock(ZeroCopyTestResponse.class);
+		expect(zeroCopy.getEntity()).andReturn(new FileRegionEntity(file, 20, 10));
+		expect(zeroCopy.sendFile(file, 20, 10)).andReturn(true);
+		replay(zeroCopy);
+		new DefaultEntityTransport().sendResponseEntity(zeroCopy);
+		// the output stream is not used
+		verify(zeroCopy);
+	}
+
+	public void testTransport_ZeroCopyResponseFallsBackToStream() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZeroCopyTestResponse zeroCopy = createMock(ZeroCopyTestResponse.class);
+		expect(zeroCopy.getEntity()).andReturn(new FileRegionEntity(file, 20, 10));
+		expect(zeroCopy.sendFile(file, 20, 10)).andReturn(false);
+		expect(zeroCopy.getOutputStream()).andReturn(out);
+		replay(zeroCopy);
+		new DefaultEntityTransport().sendResponseEntity(zeroCopy);
+		verify(zeroCopy);
+		assertEquals(new String(content, 20, 10, "UTF-8"), out.toString("UTF-8"));
+	}
+
+	private String write(Response.Entity e) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		e.write(response, out);
+		return out.toString("UTF-8");
+	}
+
+	interface ZeroCopyTestResponse extends Response, ZeroCopyResponse {
+	}
+
+	class FileBackedStub implements FileBackedResource {
+
+		@Override
+		public File getContentFile() {
+			return file;
+		}
+
+		@Override
+		public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException {
+			fail("should transfer from the file");
+		}
+
+		@Override
+		public Long getMaxAgeSeconds(Auth auth) {
+			return null;
+		}
+
+		@Override
+		public String getContentType(String accepts) {
+			return "text/plain";
+		}
+
+		@Override
+		public Long getContentLength() {
+			return (long) content.length;
+		}
+
+		@Override
+		public String getUniqueId() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return "file.txt";
+		}
+
+		@Override
+		public Object authenticate(String user, String password) {
+			return null;
+		}
+
+		@Override
+		public boolean authorise(Request request, Request.Method method, Auth auth) {
+			return true;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public Date getModifiedDate() {
+			return null;
+		}
+
+		@Override
+		public String checkRedirect(Request request) {
+			return null;
+		}
+	}
+}
@@ -79,6 +79,32 @@ public class PartialGetHelperTest extends TestCase {
 		
 	}
 
+	public void testGetRange_suffixAndOpen() {
+		List<Range> ranges = partialGetHelper.getRanges("bytes=-500, 9000-", 10000L);
+		assertEquals(2, ranges.size());
+		assertEquals(9500, ranges.get(0).getStart());
+		assertEquals(9999, ranges.get(0).getFinish());
+		assertEquals(9000, ranges.get(1).getStart());
+		assertEquals(9999, ranges.get(1).getFinish());
+		// can't be resolved without a length
+		ranges = partialGetHelper.getRanges("bytes=-500, 9000-");
+		assertEquals(0, ranges.size());
+	}
+
+	public void testGetRange_tooMany() {
+		partialGetHelper.setMaxRanges(2);
+		assertNull(partialGetHelper.getRanges("bytes=0-1,3-4,6-7"));
+	}
+
+	public void testCoalesce() {
+		List<Range> ranges = PartialGetHelper.coalesce(partialGetHelper.getRanges("bytes=2000-2500,0-499,500-600,550-700,1000-1500"));
+		assertEquals(3, ranges.size());
+		assertEquals(0, ranges.get(0).getStart());
+		assertEquals(700, ranges.get(0).getFinish());
+		assertEquals(1000, ranges.get(1).getStart());
+		assertEquals(2000, ranges.get(2).getStart());
+	}
+
 	public void testGetRanges() {
 	}
 
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.http11;
+
+import io.milton.event.EventManager;
+import io.milton.event.PutEvent;
+import io.milton.http.HttpExtension;
+import io.milton.http.HttpManager;
+import io.milton.http.ProtocolHandlers;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.fs.FileSystemResourceFactory;
+import io.milton.http.fs.NullSecurityManager;
+import io.milton.http.fs.SimpleFileContentService;
+import io.milton.resource.ReplaceableResource;
+import io.milton.resource.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class PatchHandlerTest extends TestCase {
+
+	File root;
+	FileSystemResourceFactory factory;
+	Http11ResponseHandler responseHandler;
+	PatchHandler handler;
+	HttpManager manager;
+	EventManager eventManager;
+	Request request;
+	Response response;
+
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("milton-patch", "");
+		root.delete();
+		root.mkdirs();
+		factory = new FileSystemResourceFactory(root, new NullSecurityManager());
+		factory.setContentService(new SimpleFileContentService());
+		responseHandler = createMock(Http11ResponseHandler.class);
+		handler = new PatchHandler(responseHandler, null, new PutHelper());
+		eventManager = createMock(EventManager.class);
+		manager = new HttpManager(factory, null, new ProtocolHandlers(new ArrayList<HttpExtension>()), null, null, eventManager, null);
+		request = createMock(Request.class);
+		response = createMock(Response.class);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(root);
+	}
+
+	public void testPatchUpdatesFileInPlace() throws Exception {
+		File file = new File(root, "a.txt");
+		FileUtils.writeStringToFile(file, "0123456789");
+		Resource r = factory.getResource("localhost", "/a.txt");
+		assertTrue(handler.isCompatible(r));
+
+		expect(request.getRequestHeader(Request.Header.X_UPDATE_RANGE)).andReturn("bytes=2-");
+		expect(request.getContentLengthHeader()).andReturn(3L).anyTimes();
+		expect(request.getInputStream()).andReturn(new ByteArrayInputStream("abc".getBytes()));
+		expect(request.getHostHeader()).andReturn("localhost");
+		expect(request.getAbsolutePath()).andReturn("/a.txt");
+		eventManager.fireEvent(isA(PutEvent.class));
+		responseHandler.respondNoContent(r, response, request);
+		replay(request, eventManager, responseHandler);
+
+		handler.processExistingResource(manager, request, response, r);
+		verify(request, eventManager, responseHandler);
+		assertEquals("01abc56789", FileUtils.readFileToString(file));
+	}
+
+	/**
+	 * Supporting partial updates makes files replaceable, so PUT to an
+	 * existing file replaces its content through replaceContent
+	 */
+	public void testExistingFileIsReplaceable() throws Exception {
+		File file = new File(root, "a.txt");
+		FileUtils.writeStringToFile(file, "0123456789");
+		Resource r = factory.getResource("localhost", "/a.txt");
+		assertTrue(r instanceof ReplaceableResource);
+
+		((ReplaceableResource) r).replaceContent(new ByteArrayInputStream("abc".getBytes()), 3L);
+		assertEquals("abc", FileUtils.readFileToString(file));
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.http.http11;
+
+import io.milton.http.Auth;
+import io.milton.http.HttpManager;
+import io.milton.http.Range;
+import io.milton.http.Request;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.resource.GetableResource;
+import io.milton.resource.ReplaceableResource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class PutHelperTest extends TestCase {
+
+	PutHelper putHelper;
+	File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		putHelper = new PutHelper();
+		file = File.createTempFile("milton-test", null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		putHelper.stop();
+		file.delete();
+		HttpManager.unbind();
+	}
+
+	public void testPatchFileWithinContent() throws Exception {
+		FileUtils.writeStringToFile(file, "0123456789");
+		long length = PutHelper.patchFile(file, new Range(2, 4), in("abc"));
+		assertEquals(10, length);
+		assertEquals("01abc56789", FileUtils.readFileToString(file));
+	}
+
+	public void testPatchFileNoMoreThanRange() throws Exception {
+		FileUtils.writeStringToFile(file, "0123456789");
+		PutHelper.patchFile(file, new Range(2, 3), in("abcdef"));
+		assertEquals("01ab456789", FileUtils.readFileToString(file));
+	}
+
+	public void testPatchFileExtends() throws Exception {
+		FileUtils.writeStringToFile(file, "0123");
+		long length = PutHelper.patchFile(file, new Range(6, 7), in("ab"));
+		assertEquals(8, length);
+		assertEquals("0123\0\0ab", FileUtils.readFileToString(file));
+	}
+
+	public void testPatchFileShortPatch() throws Exception {
+		FileUtils.writeStringToFile(file, "0123");
+		long length = PutHelper.patchFile(file, new Range(2, 9), in("ab"));
+		assertEquals(4, length);
+		assertEquals("01ab", FileUtils.readFileToString(file));
+	}
+
+	public void testPartialUpdateThroughTempFile() throws Exception {
+		StubResource resource = new StubResource("0123456789");
+		putHelper.replacePartialContent(resource, new Range(8, 11), in("abcd"));
+		assertEquals("01234567abcd", new String(resource.replaced));
+		assertEquals(Long.valueOf(12), resource.replacedLength);
+	}
+
+	public void testStreamingPartialUpdate() throws Exception {
+		putHelper.setStreamingPartialUpdate(true);
+		Request request = createMock(Request.class);
+		HttpManager.bind(request, null);
+		StubResource resource = new StubResource("0123456789");
+		putHelper.replacePartialContent(resource, new Range(2, 4), in("abc"));
+		assertEquals("01abc56789", new String(resource.replaced));
+		assertEquals(Long.valueOf(10), resource.replacedLength);
+		// the existing content was read on another thread with the request bound
+		assertNotSame(Thread.currentThread(), resource.sendThread);
+		assertSame(request, resource.sendRequest);
+	}
+
+	public void testStreamingPartialUpdateShortPatchBeyondEnd() throws Exception {
+		putHelper.setStreamingPartialUpdate(true);
+		StubResource resource = new StubResource("0123");
+		putHelper.replacePartialContent(resource, new Range(6, 9), in("ab"));
+		assertEquals("0123\0\0ab", new String(resource.replaced));
+		// the final length depends on the patch data, so is not given
+		assertNull(resource.replacedLength);
+	}
+
+	public void testParseUpdateRange() throws Exception {
+		assertEquals("2-4", parse("bytes=2-4", 3L).getRange());
+		assertEquals("2-5", parse("bytes=2-", 4L).getRange());
+		assertEquals("7-9", parse("bytes=-3", 3L).getRange());
+		assertEquals("10-12", parse("append", 3L).getRange());
+		try {
+			parse("bytes=4-2", 3L);
+			fail("expected BadRequestException");
+		} catch (BadRequestException e) {
+			// expected
+		}
+		try {
+			parse("2-4", 3L);
+			fail("expected BadRequestException");
+		} catch (BadRequestException e) {
+			// expected
+		}
+	}
+
+	private Range parse(String updateRange, Long bodyLength) throws Exception {
+		GetableResource r = createMock(GetableResource.class);
+		Request request = createMock(Request.class);
+		expect(r.getContentLength()).andReturn(10L).anyTimes();
+		expect(request.getRequestHeader(Request.Header.X_UPDATE_RANGE)).andReturn(updateRange);
+		expect(request.getContentLengthHeader()).andReturn(bodyLength).anyTimes();
+		replay(r, request);
+		return putHelper.parseUpdateRange(r, request);
+	}
+
+	private InputStream in(String s) {
+		return new ByteArrayInputStream(s.getBytes());
+	}
+
+	private static class StubResource implements ReplaceableResource, GetableResource {
+
+		private final String existing;
+		private volatile Thread sendThread;
+		private volatile Request sendRequest;
+		private byte[] replaced;
+		private Long replacedLength;
+
+		StubResource(String existing) {
+			this.existing = existing;
+		}
+
+		@Override
+		public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException {
+			sendThread = Thread.currentThread();
+			sendRequest = HttpManager.request();
+			out.write(existing.getBytes());
+		}
+
+		@Override
+		public void replaceContent(InputStream in, Long length) {
+			try {
+				replaced = IOUtils.toByteArray(in);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			replacedLength = length;
+		}
+
+		@Override
+		public Long getContentLength() {
+			return (long) existing.length();
+		}
+
+		@Override
+		public Long getMaxAgeSeconds(Auth auth) {
+			return null;
+		}
+
+		@Override
+		public String getContentType(String accepts) {
+			return null;
+		}
+
+		@Override
+		public String getUniqueId() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return "stub";
+		}
+
+		@Override
+		public Object authenticate(String user, String password) {
+			return null;
+		}
+
+		@Override
+		public boolean authorise(Request request, Request.Method method, Auth auth) {
+			return true;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public Date getModifiedDate() {
+			return null;
+		}
+
+		@Override
+		public String checkRedirect(Request request) {
+			return null;
+		}
+	}
+}
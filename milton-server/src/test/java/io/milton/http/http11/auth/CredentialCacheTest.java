@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11.auth;
+
+import io.milton.http.Auth;
+import io.milton.http.Request;
+import io.milton.resource.RealmAuthenticatedResource;
+import io.milton.resource.Resource;
+import junit.framework.TestCase;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class CredentialCacheTest extends TestCase {
+
+    CredentialCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        cache = new CredentialCache();
+    }
+
+    public void testPutAndGet() {
+        assertNull(cache.get("Basic", "realm", null, "joe", "pwd"));
+        cache.put("Basic", "realm", null, "joe", "pwd", "joe-principal", cache.getGeneration());
+        assertEquals("joe-principal", cache.get("Basic", "realm", null, "joe", "pwd"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testKeysAreSeparate() {
+        cache.put("Basic", "realm", "r1", "joe", "pwd", "joe-principal", cache.getGeneration());
+        assertNull(cache.get("Basic", "realm", "r1", "joe", "wrong"));
+        assertNull(cache.get("Basic", "realm", "r1", "fred", "pwd"));
+        assertNull(cache.get("Basic", "realm", "r2", "joe", "pwd"));
+        assertNull(cache.get("Basic", "realm", null, "joe", "pwd"));
+        assertNull(cache.get("Basic", "other", "r1", "joe", "pwd"));
+        assertNull(cache.get("Cookie", "realm", "r1", "joe", "pwd"));
+        // fields cant run into each other
+        assertNull(cache.get("Basic", "realm", "r1", "joep", "wd"));
+        assertNotNull(cache.get("Basic", "realm", "r1", "joe", "pwd"));
+    }
+
+    public void testEntriesExpire() throws Exception {
+        cache.setTtlSeconds(0);
+        cache.put("Basic", "realm", null, "joe", "pwd", "joe-principal", cache.getGeneration());
+        Thread.sleep(5);
+        assertNull(cache.get("Basic", "realm", null, "joe", "pwd"));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testSizeIsLimited() {
+        cache.setMaxSize(10);
+        for (int i = 0; i < 25; i++) {
+            cache.put("Basic", "realm", null, "user" + i, "pwd", "p" + i, cache.getGeneration());
+            assertTrue(cache.getSize() <= 10);
+        }
+        assertEquals("p24", cache.get("Basic", "realm", null, "user24", "pwd"));
+    }
+
+    public void testInvalidate() {
+        cache.put("Basic", "realm", null, "joe", "pwd", "joe-principal", cache.getGeneration());
+        cache.put("Basic", "realm", null, "fred", "pwd", "fred-principal", cache.getGeneration());
+        cache.invalidate("joe");
+        assertNull(cache.get("Basic", "realm", null, "joe", "pwd"));
+        assertEquals("fred-principal", cache.get("Basic", "realm", null, "fred", "pwd"));
+        cache.invalidateAll();
+        assertNull(cache.get("Basic", "realm", null, "fred", "pwd"));
+    }
+
+    public void testLoginVerifiedBeforeInvalidateIsNotCached() {
+        long generation = cache.getGeneration();
+        // the password is changed while the old one is being verified
+        cache.invalidate("joe");
+        cache.put("Basic", "realm", null, "joe", "old", "joe-principal", generation);
+        assertNull(cache.get("Basic", "realm", null, "joe", "old"));
+    }
+
+    public void testBasicAuthHandlerCachesPerRealm() {
+        BasicAuthHandler handler = new BasicAuthHandler();
+        handler.setCredentialCache(cache);
+        Request request = request();
+        RealmAuthenticatedResource r1 = createMock(RealmAuthenticatedResource.class);
+        expect(r1.getRealm()).andReturn("realm").anyTimes();
+        expect(r1.authenticate("joe", "pwd")).andReturn("joe-principal").once();
+        RealmAuthenticatedResource r2 = createMock(RealmAuthenticatedResource.class);
+        expect(r2.getRealm()).andReturn("realm").anyTimes();
+        RealmAuthenticatedResource other = createMock(RealmAuthenticatedResource.class);
+        expect(other.getRealm()).andReturn("other").anyTimes();
+        expect(other.authenticate("joe", "pwd")).andReturn(null).times(2);
+        replay(request, r1, r2, other);
+
+        assertEquals("joe-principal", handler.authenticate(r1, request));
+        assertEquals("joe-principal", handler.authenticate(r1, request));
+        // any resource in the realm, whatever its id, uses the cached login
+        assertEquals("joe-principal", handler.authenticate(r2, request));
+        // another realm makes its own decision, and failures are not cached
+        assertNull(handler.authenticate(other, request));
+        assertNull(handler.authenticate(other, request));
+        verify(r1, r2, other);
+    }
+
+    public void testBasicAuthHandlerAlwaysAsksOtherResources() {
+        BasicAuthHandler handler = new BasicAuthHandler();
+        handler.setCredentialCache(cache);
+        Request request = request();
+        Resource r = createMock(Resource.class);
+        expect(r.getRealm()).andReturn("realm").anyTimes();
+        expect(r.authenticate("joe", "pwd")).andReturn("joe-principal").times(2);
+        replay(request, r);
+
+        assertEquals("joe-principal", handler.authenticate(r, request));
+        assertEquals("joe-principal", handler.authenticate(r, request));
+        verify(r);
+        assertEquals(0, cache.getSize());
+    }
+
+    private Request request() {
+        Request request = createMock(Request.class);
+        expect(request.getAuthorization()).andReturn(new Auth("Basic " + "am9lOnB3ZA==")).anyTimes(); // joe:pwd
+        return request;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.http11.auth;
+
+import io.milton.http.http11.auth.NonceProvider.NonceValidity;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class HmacNonceProviderTest extends TestCase {
+
+    byte[] secret = "0123456789abcdef0123456789abcdef".getBytes();
+    HmacNonceProvider provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        provider = new HmacNonceProvider(60, secret);
+        provider.setEnableNonceCountChecking(true);
+    }
+
+    public void testValidNonce() {
+        String nonce = provider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, null));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 1l));
+        // another server with the same secret accepts it
+        assertEquals(NonceValidity.OK, new HmacNonceProvider(60, secret).getNonceValidity(nonce, null));
+    }
+
+    public void testTamperedNonce() {
+        String nonce = provider.createNonce(null, null);
+        char[] chars = nonce.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char[] tampered = chars.clone();
+            tampered[i] = tampered[i] == '0' ? '1' : '0';
+            assertEquals("changed char " + i, NonceValidity.INVALID, provider.getNonceValidity(new String(tampered), null));
+        }
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity(nonce.substring(2), null));
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity("not hex", null));
+        assertEquals(NonceValidity.INVALID, new HmacNonceProvider(60, "another secret".getBytes()).getNonceValidity(nonce, null));
+    }
+
+    public void testExpiredNonce() {
+        provider = new HmacNonceProvider(-1, secret);
+        String nonce = provider.createNonce(null, null);
+        assertEquals(NonceValidity.EXPIRED, provider.getNonceValidity(nonce, null));
+        assertEquals(NonceValidity.EXPIRED, provider.getNonceValidity(nonce, 1l));
+    }
+
+    public void testReplayedNonceCount() {
+        String nonce = provider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 1l));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 2l));
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity(nonce, 2l));
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity(nonce, 1l));
+
+        // counts are per nonce
+        String other = provider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(other, 1l));
+    }
+
+    public void testOutOfOrderNonceCount() {
+        String nonce = provider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 5l));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 3l));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 4l));
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity(nonce, 3l));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 40l));
+        // more than 32 behind the highest is too old to check, so is refused
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity(nonce, 8l));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 9l));
+    }
+
+    public void testCountsNotCheckedWhenDisabled() {
+        provider.setEnableNonceCountChecking(false);
+        String nonce = provider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 1l));
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 1l));
+        assertEquals(0, provider.getWindowCount());
+    }
+
+    public void testWindowsAreLimited() {
+        provider.setMaxWindows(10);
+        for (int i = 0; i < 100; i++) {
+            String nonce = provider.createNonce(null, null);
+            assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 1l));
+            assertTrue(provider.getWindowCount() <= 10);
+        }
+    }
+
+    public void testExpiredWindowsAreRemovedFirst() throws Exception {
+        provider = new HmacNonceProvider(0, secret);
+        provider.setEnableNonceCountChecking(true);
+        provider.setMaxWindows(10);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(NonceValidity.OK, provider.getNonceValidity(provider.createNonce(null, null), 1l));
+        }
+        Thread.sleep(1100); // let the nonces expire
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(provider.createNonce(null, null), 1l));
+        String nonce = provider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, provider.getNonceValidity(nonce, 1l));
+        assertEquals(2, provider.getWindowCount());
+        assertEquals(NonceValidity.INVALID, provider.getNonceValidity(nonce, 1l));
+    }
+
+    public void testUnknownNonceIsStaleInMemoryProvider() {
+        SimpleMemoryNonceProvider memoryProvider = new SimpleMemoryNonceProvider(60);
+        String nonce = memoryProvider.createNonce(null, null);
+        assertEquals(NonceValidity.OK, memoryProvider.getNonceValidity(nonce, null));
+        // eg issued before a restart
+        assertEquals(NonceValidity.EXPIRED, memoryProvider.getNonceValidity(java.util.UUID.randomUUID().toString(), null));
+        assertEquals(NonceValidity.INVALID, memoryProvider.getNonceValidity("not a uuid", null));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.milton.http.report;
+
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.webdav.WebDavResponseHandler;
+import io.milton.resource.Resource;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import static org.easymock.EasyMock.*;
+
+public class ReportRequestParserTest extends TestCase {
+
+	private static final String DOCTYPE_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>"
+			+ "<!DOCTYPE lolz [<!ENTITY lol \"lol\"><!ENTITY lol2 \"&lol;&lol;&lol;&lol;\">]>"
+			+ "<D:sync-collection xmlns:D=\"DAV:\"><D:sync-token>&lol2;</D:sync-token></D:sync-collection>";
+
+	ReportRequestParser parser;
+
+	@Override
+	protected void setUp() throws Exception {
+		parser = new ReportRequestParser();
+	}
+
+	public void testParse() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>"
+				+ "<D:sync-collection xmlns:D=\"DAV:\"><D:sync-token>t1</D:sync-token>"
+				+ "<D:prop><D:getetag/></D:prop></D:sync-collection>";
+		ReportRequest req = parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		assertEquals("sync-collection", req.getName().getLocalPart());
+		assertEquals("t1", req.getRoot().getChild("DAV:", "sync-token").getText());
+		assertTrue(req.getProperties().contains(new QName("DAV:", "getetag")));
+	}
+
+	public void testParse_KeepsDocumentAsParsed() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>"
+				+ "<C:calendar-multiget xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:caldav\">"
+				+ "<D:prop><D:getetag/><C:calendar-data><C:comp name=\"VCALENDAR\"/></C:calendar-data></D:prop>"
+				+ "<D:href>/a.ics</D:href><C:filter/><D:href>/b.ics</D:href></C:calendar-multiget>";
+		ReportRequest req = parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), Collections.singleton("calendar-multiget"));
+		assertEquals(2, req.getHrefs().size());
+		Element root = req.toDocument().getRootElement();
+		assertEquals("C", root.getNamespacePrefix());
+		List<?> children = root.getChildren();
+		assertEquals(4, children.size());
+		assertEquals("prop", ((Element) children.get(0)).getName());
+		assertEquals("/a.ics", ((Element) children.get(1)).getText());
+		assertEquals("filter", ((Element) children.get(2)).getName());
+		assertEquals("/b.ics", ((Element) children.get(3)).getText());
+		Element calendarData = ((Element) children.get(0)).getChild("calendar-data", Namespace.getNamespace("urn:ietf:params:xml:ns:caldav"));
+		assertEquals("VCALENDAR", ((Element) calendarData.getChildren().get(0)).getAttributeValue("name"));
+	}
+
+	public void testParse_DocumentOnlyKeptWhenNeeded() throws Exception {
+		String xml = "<D:sync-collection xmlns:D=\"DAV:\"><D:sync-token/></D:sync-collection>";
+		ReportRequest req = parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), Collections.singleton("calendar-multiget"));
+		try {
+			req.toDocument();
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testParse_Document() throws Exception {
+		Document doc = new Document(new Element("sync-collection", Namespace.getNamespace("D", "DAV:")));
+		ReportRequest req = parser.parse(doc);
+		assertEquals("sync-collection", req.getName().getLocalPart());
+		assertSame(doc, req.toDocument());
+	}
+
+	public void testParse_RejectsDoctype() throws Exception {
+		try {
+			parser.parse(new ByteArrayInputStream(DOCTYPE_BODY.getBytes("UTF-8")));
+			fail("expected BadRequestException");
+		} catch (BadRequestException e) {
+			// expected
+		}
+	}
+
+	public void testReportHandler_DoctypeIsBadRequest() throws Exception {
+		// BadRequestException is turned into a 400 by StandardFilter
+		Request request = createMock(Request.class);
+		Response response = createMock(Response.class);
+		Resource resource = createMock(Resource.class);
+		WebDavResponseHandler responseHandler = createMock(WebDavResponseHandler.class);
+		expect(request.getInputStream()).andReturn(new ByteArrayInputStream(DOCTYPE_BODY.getBytes("UTF-8")));
+		replay(request, response, resource, responseHandler);
+		ReportHandler handler = new ReportHandler(responseHandler, null, new HashMap<String, Report>());
+		try {
+			handler.processExistingResource(null, request, response, resource);
+			fail("expected BadRequestException");
+		} catch (BadRequestException e) {
+			// expected
+		}
+		verify(responseHandler);
+	}
+}
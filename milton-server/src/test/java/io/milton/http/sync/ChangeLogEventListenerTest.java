@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.event.MoveEvent;
+import io.milton.event.PutEvent;
+import io.milton.event.ResponseEvent;
+import io.milton.http.HttpManager;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.fs.FileSystemResourceFactory;
+import io.milton.http.sync.ChangeLog.Changes;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.Resource;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author brad
+ */
+public class ChangeLogEventListenerTest extends TestCase {
+
+	File root;
+	File dir;
+	FileSystemResourceFactory resourceFactory;
+	MemoryChangeLog changeLog;
+	ChangeLogEventListener listener;
+
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("changelog", "");
+		root.delete();
+		dir = new File(root, "dir");
+		dir.mkdirs();
+		resourceFactory = new FileSystemResourceFactory(root, null, null);
+		changeLog = new MemoryChangeLog();
+		listener = new ChangeLogEventListener(changeLog, resourceFactory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		HttpManager.unbind();
+		resourceFactory.stop();
+		FileUtils.deleteDirectory(root);
+	}
+
+	public void testAddedMembersFoundFromFirstToken() throws Exception {
+		String token = changeLog.getCurrentToken(key("/dir"));
+		put("/dir/a.txt");
+		put("/dir/b.txt");
+
+		Changes changes = changeLog.getChangesSince(key("/dir"), token);
+		assertNotNull("token should still be valid", changes);
+		assertEquals(2, changes.getChanges().size());
+		assertEquals("a.txt", changes.getChanges().get(0).getMemberName());
+		assertEquals("b.txt", changes.getChanges().get(1).getMemberName());
+	}
+
+	public void testMovedCollectionKeepsChanges() throws Exception {
+		String token = changeLog.getCurrentToken(key("/dir"));
+		put("/dir/a.txt");
+
+		Resource moving = resourceFactory.getResource("host", "/dir");
+		CollectionResource dest = (CollectionResource) resourceFactory.getResource("host", "/");
+		Request request = bind("/dir", "http://host/moved");
+		listener.onEvent(new MoveEvent(moving, dest, "moved"));
+		assertTrue(new File(root, "dir").renameTo(new File(root, "moved")));
+		respond(request, Response.Status.SC_CREATED);
+
+		assertNull(changeLog.getChangesSince(key("/dir"), token));
+		Changes changes = changeLog.getChangesSince(key("/moved"), token);
+		assertEquals(1, changes.getChanges().size());
+		assertEquals("a.txt", changes.getChanges().get(0).getMemberName());
+	}
+
+	public void testFailedRequestNotRecorded() throws Exception {
+		String token = changeLog.getCurrentToken(key("/dir"));
+		FileUtils.writeStringToFile(new File(dir, "a.txt"), "a");
+		Request request = bind("/dir/a.txt", null);
+		listener.onEvent(new PutEvent(resourceFactory.getResource("host", "/dir/a.txt")));
+		respond(request, Response.Status.SC_INTERNAL_SERVER_ERROR);
+		assertEquals(0, changeLog.getChangesSince(key("/dir"), token).getChanges().size());
+	}
+
+	/**
+	 * Write a file and fire the events for a successful PUT. The directory's
+	 * modified date is moved on, so its unique id changes as it would on a
+	 * file system with coarse timestamps
+	 */
+	private void put(String path) throws Exception {
+		FileUtils.writeStringToFile(new File(root, path.substring(1)), path);
+		dir.setLastModified(dir.lastModified() + 2000);
+		Request request = bind(path, null);
+		listener.onEvent(new PutEvent(resourceFactory.getResource("host", path)));
+		respond(request, Response.Status.SC_CREATED);
+	}
+
+	private String key(String path) throws Exception {
+		return SyncUtils.collectionKey(resourceFactory.getResource("host", path), path);
+	}
+
+	private Request bind(String path, String destination) {
+		Request request = createMock(Request.class);
+		Map<String, Object> atts = new HashMap<String, Object>();
+		expect(request.getAttributes()).andReturn(atts).anyTimes();
+		expect(request.getAbsolutePath()).andReturn(path).anyTimes();
+		expect(request.getHostHeader()).andReturn("host").anyTimes();
+		expect(request.getDestinationHeader()).andReturn(destination).anyTimes();
+		replay(request);
+		HttpManager.bind(request, null);
+		return request;
+	}
+
+	private void respond(Request request, Response.Status status) {
+		Response response = createMock(Response.class);
+		expect(response.getStatus()).andReturn(status).anyTimes();
+		replay(response);
+		listener.onEvent(new ResponseEvent(request, response, 0));
+		HttpManager.unbind();
+	}
+}
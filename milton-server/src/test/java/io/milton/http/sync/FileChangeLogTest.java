@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.http.sync.ChangeLog.ChangeType;
+import java.io.File;
+import java.io.FileOutputStream;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FileChangeLogTest extends TestCase {
+
+	File file;
+	FileChangeLog changeLog;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("changelog", ".txt");
+		file.delete();
+		changeLog = new FileChangeLog(file);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		changeLog.stop();
+		file.delete();
+	}
+
+	public void testReloadKeepsTokens() {
+		String token = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x y", ChangeType.MODIFIED);
+		changeLog.recordChange("/a", "z", ChangeType.DELETED);
+		reload();
+		ChangeLog.Changes changes = changeLog.getChangesSince("/a", token);
+		assertEquals(2, changes.getChanges().size());
+		assertEquals("x y", changes.getChanges().get(0).getMemberName());
+		assertEquals(changeLog.getCurrentToken("/a"), changes.getToken());
+	}
+
+	public void testReloadKeepsTokensWithoutChanges() {
+		String token = changeLog.getCurrentToken("/a");
+		reload();
+		assertEquals(token, changeLog.getCurrentToken("/a"));
+		assertEquals(0, changeLog.getChangesSince("/a", token).getChanges().size());
+	}
+
+	public void testReloadKeepsMovesAndDeletes() {
+		String tokenA = changeLog.getCurrentToken("path:/a");
+		String tokenB = changeLog.getCurrentToken("path:/b");
+		changeLog.recordChange("path:/a", "x", ChangeType.ADDED);
+		changeLog.recordChange("path:/b", "y", ChangeType.ADDED);
+		changeLog.moveCollection("path:/a", "path:/c");
+		changeLog.deleteCollection("path:/b");
+		reload();
+		assertNull(changeLog.getChangesSince("path:/a", tokenA));
+		assertNull(changeLog.getChangesSince("path:/b", tokenB));
+		assertEquals("x", changeLog.getChangesSince("path:/c", tokenA).getChanges().get(0).getMemberName());
+		changeLog.compact();
+		reload();
+		assertEquals("x", changeLog.getChangesSince("path:/c", tokenA).getChanges().get(0).getMemberName());
+	}
+
+	public void testPartialLineTruncated() throws Exception {
+		String token = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x", ChangeType.MODIFIED);
+		changeLog.stop();
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write("2\tMODIFIED\t%2Fa\tpar".getBytes("UTF-8"));
+		out.close();
+
+		changeLog = new FileChangeLog(file);
+		assertTrue(FileUtils.readFileToString(file, "UTF-8").endsWith("\n"));
+		changeLog.recordChange("/a", "y", ChangeType.MODIFIED);
+		reload();
+		ChangeLog.Changes changes = changeLog.getChangesSince("/a", token);
+		assertEquals(2, changes.getChanges().size());
+		assertEquals("x", changes.getChanges().get(0).getMemberName());
+		assertEquals("y", changes.getChanges().get(1).getMemberName());
+	}
+
+	public void testCompaction() {
+		changeLog.setMaxChangesPerCollection(3);
+		changeLog.setMinCompactLines(10);
+		String expired = changeLog.getCurrentToken("/a");
+		for (int i = 0; i < 50; i++) {
+			changeLog.recordChange("/a", "m" + i, ChangeType.MODIFIED);
+		}
+		assertTrue("lines: " + changeLog.getLines(), changeLog.getLines() < 20);
+		String token = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "last", ChangeType.MODIFIED);
+
+		reload();
+		assertEquals(3, changeLog.getChangeCount());
+		assertNull(changeLog.getChangesSince("/a", expired));
+		ChangeLog.Changes changes = changeLog.getChangesSince("/a", token);
+		assertEquals(1, changes.getChanges().size());
+		assertEquals("last", changes.getChanges().get(0).getMemberName());
+	}
+
+	public void testDiscardedCollectionsSurviveCompaction() {
+		changeLog.setMaxCollections(2);
+		changeLog.setMinCompactLines(1);
+		String tokenA = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x", ChangeType.MODIFIED);
+		changeLog.recordChange("/b", "x", ChangeType.MODIFIED);
+		changeLog.recordChange("/c", "x", ChangeType.MODIFIED);
+		changeLog.compact();
+		reload();
+		assertNull(changeLog.getChangesSince("/a", tokenA));
+	}
+
+	private void reload() {
+		int maxCollections = changeLog.getMaxCollections();
+		changeLog.stop();
+		changeLog = new FileChangeLog(file, changeLog.getMaxChangesPerCollection());
+		changeLog.setMaxCollections(maxCollections);
+	}
+}
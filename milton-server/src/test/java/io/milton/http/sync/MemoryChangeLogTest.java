@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.sync;
+
+import io.milton.http.sync.ChangeLog.ChangeType;
+import io.milton.http.sync.ChangeLog.Changes;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class MemoryChangeLogTest extends TestCase {
+
+	MemoryChangeLog changeLog;
+
+	@Override
+	protected void setUp() throws Exception {
+		changeLog = new MemoryChangeLog();
+	}
+
+	public void testChangesSince() {
+		String token = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x", ChangeType.MODIFIED);
+		changeLog.recordChange("/a", "y", ChangeType.MODIFIED);
+		changeLog.recordChange("/a", "x", ChangeType.DELETED);
+		changeLog.recordChange("/b", "z", ChangeType.MODIFIED);
+
+		Changes changes = changeLog.getChangesSince("/a", token);
+		assertEquals(2, changes.getChanges().size());
+		assertEquals("y", changes.getChanges().get(0).getMemberName());
+		assertEquals("x", changes.getChanges().get(1).getMemberName());
+		assertEquals(ChangeType.DELETED, changes.getChanges().get(1).getType());
+		assertEquals(changeLog.getCurrentToken("/a"), changes.getToken());
+		assertEquals(0, changeLog.getChangesSince("/a", changes.getToken()).getChanges().size());
+	}
+
+	public void testInvalidToken() {
+		assertNull(changeLog.getChangesSince("/a", "http://example.com/1"));
+		assertNull(changeLog.getChangesSince("/a", MemoryChangeLog.TOKEN_PREFIX + changeLog.getStoreId() + "/5"));
+	}
+
+	public void testTokenExpiresWhenChangesDiscarded() {
+		changeLog.setMaxChangesPerCollection(2);
+		String token = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x", ChangeType.MODIFIED);
+		String token2 = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "y", ChangeType.MODIFIED);
+		changeLog.recordChange("/a", "z", ChangeType.MODIFIED);
+		assertNull(changeLog.getChangesSince("/a", token));
+		assertEquals(2, changeLog.getChangesSince("/a", token2).getChanges().size());
+		assertEquals(2, changeLog.getChangeCount());
+	}
+
+	public void testLeastRecentlyUsedCollectionDiscarded() {
+		changeLog.setMaxCollections(2);
+		String tokenA = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x", ChangeType.MODIFIED);
+		changeLog.recordChange("/b", "x", ChangeType.MODIFIED);
+		changeLog.recordChange("/c", "x", ChangeType.MODIFIED);
+		assertEquals(2, changeLog.getChangeCount());
+		assertNull(changeLog.getChangesSince("/a", tokenA));
+
+		// and the changes are still lost once the collection changes again
+		changeLog.recordChange("/a", "y", ChangeType.MODIFIED);
+		assertNull(changeLog.getChangesSince("/a", tokenA));
+		String tokenA2 = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "z", ChangeType.MODIFIED);
+		assertEquals(1, changeLog.getChangesSince("/a", tokenA2).getChanges().size());
+	}
+
+	public void testUnknownCollectionHasNoValidTokens() {
+		String tokenA = changeLog.getCurrentToken("/a");
+		changeLog.recordChange("/a", "x", ChangeType.MODIFIED);
+		assertNull(changeLog.getChangesSince("/b", tokenA));
+
+		// once a token has been issued every change is kept
+		String tokenB = changeLog.getCurrentToken("/b");
+		assertEquals(0, changeLog.getChangesSince("/b", tokenB).getChanges().size());
+		changeLog.recordChange("/b", "y", ChangeType.ADDED);
+		assertEquals(1, changeLog.getChangesSince("/b", tokenB).getChanges().size());
+	}
+
+	public void testMoveCollection() {
+		String tokenA = changeLog.getCurrentToken("path:/a");
+		String tokenAB = changeLog.getCurrentToken("path:/a/b");
+		String tokenOther = changeLog.getCurrentToken("path:/ab");
+		changeLog.recordChange("path:/a", "x", ChangeType.ADDED);
+		changeLog.recordChange("path:/a/b", "y", ChangeType.ADDED);
+		changeLog.recordChange("path:/ab", "z", ChangeType.ADDED);
+		changeLog.moveCollection("path:/a", "path:/c");
+
+		assertNull(changeLog.getChangesSince("path:/a", tokenA));
+		assertNull(changeLog.getChangesSince("path:/a/b", tokenAB));
+		assertEquals("x", changeLog.getChangesSince("path:/c", tokenA).getChanges().get(0).getMemberName());
+		assertEquals("y", changeLog.getChangesSince("path:/c/b", tokenAB).getChanges().get(0).getMemberName());
+		assertEquals("z", changeLog.getChangesSince("path:/ab", tokenOther).getChanges().get(0).getMemberName());
+	}
+
+	public void testMoveOntoExistingCollection() {
+		String tokenA = changeLog.getCurrentToken("path:/a");
+		String tokenC = changeLog.getCurrentToken("path:/c");
+		changeLog.recordChange("path:/a", "x", ChangeType.ADDED);
+		changeLog.recordChange("path:/c", "y", ChangeType.ADDED);
+		changeLog.moveCollection("path:/a", "path:/c");
+
+		// tokens for the two collections can't be told apart
+		assertNull(changeLog.getChangesSince("path:/c", tokenA));
+		assertNull(changeLog.getChangesSince("path:/c", tokenC));
+		String token = changeLog.getCurrentToken("path:/c");
+		assertEquals(0, changeLog.getChangesSince("path:/c", token).getChanges().size());
+		assertEquals(0, changeLog.getChangeCount());
+	}
+
+	public void testDeletedCollectionTokensNotValidWhenRecreated() {
+		changeLog.getCurrentToken("path:/a");
+		changeLog.recordChange("path:/a", "x", ChangeType.ADDED);
+		String token = changeLog.getCurrentToken("path:/a");
+		changeLog.getCurrentToken("path:/a/b");
+		changeLog.deleteCollection("path:/a");
+		assertEquals(0, changeLog.getChangeCount());
+
+		changeLog.recordChange("path:/a", "y", ChangeType.ADDED);
+		assertNull(changeLog.getChangesSince("path:/a", token));
+		assertNull(changeLog.getChangesSince("path:/a/b", token));
+	}
+}
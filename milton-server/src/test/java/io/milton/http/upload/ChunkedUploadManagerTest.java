@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class ChunkedUploadManagerTest extends TestCase {
+
+	File dir;
+	ChunkedUploadManager manager;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("milton-uploads", "");
+		dir.delete();
+		dir.mkdirs();
+		manager = new ChunkedUploadManager(dir, 60);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		org.apache.commons.io.FileUtils.deleteDirectory(dir);
+	}
+
+	public void testSessionLimit() throws Exception {
+		manager.setMaxSessions(2);
+		UploadSession s1 = manager.create("host", "/a.txt", "joe");
+		assertNotNull(s1);
+		assertNotNull(manager.create("host", "/b.txt", "joe"));
+		assertNull(manager.create("host", "/c.txt", "joe"));
+
+		manager.remove(s1);
+		assertNotNull(manager.create("host", "/c.txt", "joe"));
+	}
+
+	public void testSessionLimitPerUser() throws Exception {
+		manager.setMaxSessionsPerUser(2);
+		UploadSession s1 = manager.create("host", "/a.txt", "joe");
+		assertNotNull(manager.create("host", "/b.txt", "joe"));
+		assertNull(manager.create("host", "/c.txt", "joe"));
+		// other users, and anonymous uploads, have their own allowance
+		assertNotNull(manager.create("host", "/c.txt", "fred"));
+		assertNotNull(manager.create("host", "/c.txt", null));
+		assertNotNull(manager.create("host", "/d.txt", null));
+		assertNull(manager.create("host", "/e.txt", null));
+
+		// sessions are counted after a restart
+		manager = new ChunkedUploadManager(dir, 60);
+		manager.setMaxSessionsPerUser(2);
+		assertNull(manager.create("host", "/c.txt", "joe"));
+		manager.remove(manager.get(s1.getId()));
+		assertNotNull(manager.create("host", "/c.txt", "joe"));
+	}
+
+	public void testSessionBelongsToCreator() throws Exception {
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		s = manager.get(s.getId());
+		assertEquals("joe", s.getUser());
+		assertTrue(s.isFor("host", "/a.txt", "joe"));
+		assertFalse(s.isFor("host", "/a.txt", "fred"));
+		assertFalse(s.isFor("host", "/a.txt", null));
+
+		UploadSession anon = manager.get(manager.create("host", "/a.txt", null).getId());
+		assertNull(anon.getUser());
+		assertTrue(anon.isFor("host", "/a.txt", null));
+		assertFalse(anon.isFor("host", "/a.txt", "joe"));
+	}
+
+	public void testChunkSizeLimit() throws Exception {
+		manager.setMaxChunkSize(10);
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		assertEquals(10, manager.writeChunk(s, 0, data(10), null));
+
+		assertRefused(s, 1, data(11), null, ChunkedUploadManager.UploadException.Reason.TOO_LARGE);
+		assertRefused(s, 1, data(5), 11L, ChunkedUploadManager.UploadException.Reason.TOO_LARGE);
+		assertFalse(s.getChunkStore().getChunkNumbers().contains(1));
+	}
+
+	public void testUploadSizeLimit() throws Exception {
+		manager.setMaxUploadSize(15);
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		manager.writeChunk(s, 0, data(10), null);
+		assertRefused(s, 1, data(6), null, ChunkedUploadManager.UploadException.Reason.TOO_LARGE);
+		assertEquals(5, manager.writeChunk(s, 1, data(5), 5L));
+
+		// replacing a chunk only counts its new length
+		assertEquals(5, manager.writeChunk(s, 1, data(5), null));
+		assertEquals(15, s.getChunkStore().getLength(2));
+	}
+
+	public void testUploadSizeCountsChunksFromBeforeRestart() throws Exception {
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		manager.writeChunk(s, 0, data(10), null);
+
+		manager = new ChunkedUploadManager(dir, 60);
+		manager.setMaxUploadSize(15);
+		s = manager.get(s.getId());
+		assertRefused(s, 1, data(6), null, ChunkedUploadManager.UploadException.Reason.TOO_LARGE);
+		assertEquals(5, manager.writeChunk(s, 1, data(5), null));
+	}
+
+	public void testDiscardedChunkIsNotCounted() throws Exception {
+		manager.setMaxUploadSize(15);
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		manager.writeChunk(s, 0, data(10), null);
+		// the incomplete copy replaced the stored chunk, and both are gone
+		assertRefused(s, 0, data(3), 5L, ChunkedUploadManager.UploadException.Reason.INCOMPLETE);
+		assertEquals(15, manager.writeChunk(s, 1, data(15), null));
+	}
+
+	public void testIncompleteChunkIsDiscarded() throws Exception {
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		assertRefused(s, 0, data(3), 5L, ChunkedUploadManager.UploadException.Reason.INCOMPLETE);
+		assertTrue(s.getChunkStore().getChunkNumbers().isEmpty());
+	}
+
+	public void testNoChunksWhileFinishing() throws Exception {
+		UploadSession s = manager.create("host", "/a.txt", "joe");
+		assertTrue(manager.beginFinish(s));
+		assertFalse(manager.beginFinish(s));
+		assertRefused(s, 0, data(3), null, ChunkedUploadManager.UploadException.Reason.FINISHING);
+		manager.endFinish(s);
+		assertEquals(3, manager.writeChunk(s, 0, data(3), null));
+	}
+
+	public void testCannotFinishWhileChunkIsBeingWritten() throws Exception {
+		final UploadSession s = manager.create("host", "/a.txt", "joe");
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final InputStream in = new InputStream() {
+			boolean done;
+
+			@Override
+			public int read() throws IOException {
+				if (done) {
+					return -1;
+				}
+				reading.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					throw new IOException(ex.toString());
+				}
+				done = true;
+				return 'x';
+			}
+		};
+		Thread t = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					manager.writeChunk(s, 0, in, null);
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+		t.start();
+		assertTrue(reading.await(5, TimeUnit.SECONDS));
+		assertFalse(manager.beginFinish(s));
+		release.countDown();
+		t.join(5000);
+		assertTrue(manager.beginFinish(s));
+		assertEquals(1, s.getChunkStore().getLength(1));
+	}
+
+	private void assertRefused(UploadSession s, int chunk, InputStream in, Long contentLength, ChunkedUploadManager.UploadException.Reason reason) throws IOException {
+		try {
+			manager.writeChunk(s, chunk, in, contentLength);
+			fail("chunk should have been refused");
+		} catch (ChunkedUploadManager.UploadException ex) {
+			assertEquals(reason, ex.getReason());
+		}
+	}
+
+	private InputStream data(int length) {
+		return new ByteArrayInputStream(new byte[length]);
+	}
+}
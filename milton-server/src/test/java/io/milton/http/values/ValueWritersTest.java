@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.values;
+
+import io.milton.http.XmlWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class ValueWritersTest extends TestCase {
+
+	QName name = new QName("ns", "a");
+	CountingWriter counting;
+	List<ValueWriter> list;
+	ValueWriters valueWriters;
+
+	@Override
+	protected void setUp() throws Exception {
+		counting = new CountingWriter("a", "counted:");
+		list = new ArrayList<ValueWriter>();
+		list.add(counting);
+		valueWriters = new ValueWriters(list);
+	}
+
+	public void testWriterSelectionIsCached() {
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		assertEquals("counted:y", valueWriters.parse(name, String.class, "y"));
+		assertEquals(1, counting.calls);
+		// a different value class is a different selection
+		assertEquals("counted:z", valueWriters.parse(name, Integer.class, "z"));
+		assertEquals(2, counting.calls);
+	}
+
+	public void testLeastRecentlyUsedIsDroppedAtLimit() {
+		valueWriters.setMaxCacheSize(5);
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		for (int i = 0; i < 20; i++) {
+			assertNull(valueWriters.parse(new QName("ns", "other" + i), String.class, "x"));
+			// keep the real property recently used
+			assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		}
+		assertEquals(21, counting.calls);
+		// a recent miss is still cached, an old one was dropped
+		assertNull(valueWriters.parse(new QName("ns", "other19"), String.class, "x"));
+		assertEquals(21, counting.calls);
+		assertNull(valueWriters.parse(new QName("ns", "other0"), String.class, "x"));
+		assertEquals(22, counting.calls);
+	}
+
+	public void testCacheKeepsWorkingAfterManyNames() {
+		valueWriters.setMaxCacheSize(5);
+		for (int i = 0; i < 20; i++) {
+			assertNull(valueWriters.parse(new QName("ns", "other" + i), String.class, "x"));
+		}
+		assertEquals(20, counting.calls);
+		// new selections are still cached once the cache is full
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		assertEquals("counted:y", valueWriters.parse(name, String.class, "y"));
+		assertEquals(21, counting.calls);
+	}
+
+	public void testChangesThroughListClearCache() {
+		assertSame(valueWriters.getValueWriters(), valueWriters.getValueWriters());
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		valueWriters.getValueWriters().add(0, new CountingWriter("a", "first:"));
+		assertEquals("first:x", valueWriters.parse(name, String.class, "x"));
+		valueWriters.getValueWriters().remove(0);
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+	}
+
+	public void testConstructorListIsCopied() {
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		list.add(0, new CountingWriter("a", "first:"));
+		assertEquals("counted:x", valueWriters.parse(name, String.class, "x"));
+		assertEquals(1, valueWriters.getValueWriters().size());
+	}
+
+	private static class CountingWriter implements ValueWriter {
+
+		final String localName;
+		final String prefix;
+		int calls;
+
+		CountingWriter(String localName, String prefix) {
+			this.localName = localName;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public boolean supports(String nsUri, String localName, Class<?> c) {
+			calls++;
+			return this.localName.equals(localName);
+		}
+
+		@Override
+		public void writeValue(XmlWriter writer, String nsUri, String prefix, String localName, Object val, String href, Map<String, String> nsPrefixes) {
+		}
+
+		@Override
+		public Object parse(String namespaceURI, String localPart, String value) {
+			return prefix + value;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.webdav;
+
+import io.milton.http.values.ValueAndType;
+import io.milton.property.BulkPropertyLoader;
+import io.milton.property.PropertySource;
+import io.milton.resource.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+
+import static org.easymock.EasyMock.*;
+
+public class BulkPropertyLoaderTest extends TestCase {
+
+	QName displayName = new QName(WebDavProtocol.DAV_URI, "displayname");
+	QName other = new QName("http://example.com/ns", "other");
+	PropertySource requestSource;
+	StubLoader loader;
+	PropFindPropertyBuilder propertyBuilder;
+	ParallelPropFindTraverserTest.TestCollection root;
+
+	@Override
+	protected void setUp() throws Exception {
+		requestSource = createMock(PropertySource.class);
+		loader = new StubLoader();
+		List<PropertySource> sources = new ArrayList<PropertySource>();
+		sources.add(requestSource);
+		sources.add(loader);
+		propertyBuilder = new PropFindPropertyBuilder(sources);
+		root = new ParallelPropFindTraverserTest.TestCollection("root");
+		root.children.add(new ParallelPropFindTraverserTest.TestCollection("a"));
+		root.children.add(new ParallelPropFindTraverserTest.TestCollection("b"));
+	}
+
+	public void testPreloadedValuesUsed() throws Exception {
+		expect(requestSource.getPropertyMetaData(same(other), isA(Resource.class))).andReturn(PropertySource.PropertyMetaData.UNKNOWN).anyTimes();
+		replay(requestSource);
+		List<PropFindResponse> responses = propfind(other);
+		assertEquals(1, loader.calls);
+		assertEquals(3, responses.size());
+		assertEquals("bulk-a", responses.get(1).getKnownProperties().get(other).getValue());
+		assertEquals("bulk-b", responses.get(2).getKnownProperties().get(other).getValue());
+	}
+
+	public void testOtherSourceTakesPrecedence() throws Exception {
+		PropertySource.PropertyMetaData meta = new PropertySource.PropertyMetaData(PropertySource.PropertyAccessibility.READ_ONLY, String.class);
+		expect(requestSource.getPropertyMetaData(same(displayName), isA(Resource.class))).andReturn(meta).anyTimes();
+		expect(requestSource.getProperty(same(displayName), isA(Resource.class))).andReturn("instance").anyTimes();
+		replay(requestSource);
+		List<PropFindResponse> responses = propfind(displayName);
+		assertEquals(1, loader.calls);
+		assertEquals("instance", responses.get(1).getKnownProperties().get(displayName).getValue());
+		assertEquals("instance", responses.get(2).getKnownProperties().get(displayName).getValue());
+	}
+
+	private List<PropFindResponse> propfind(QName field) throws Exception {
+		Set<QName> names = new LinkedHashSet<QName>(Arrays.asList(field));
+		List<PropFindResponse> responses = new ArrayList<PropFindResponse>();
+		propertyBuilder.processResource(responses, root, PropertiesRequest.toProperties(names), "/root", 1, 0, null);
+		return responses;
+	}
+
+	private static class StubLoader implements PropertySource, BulkPropertyLoader {
+
+		int calls;
+
+		@Override
+		public Map<Resource, Map<QName, ValueAndType>> loadProperties(Set<QName> fields, List<? extends Resource> resources) {
+			calls++;
+			Map<Resource, Map<QName, ValueAndType>> result = new HashMap<Resource, Map<QName, ValueAndType>>();
+			for (Resource r : resources) {
+				Map<QName, ValueAndType> values = new HashMap<QName, ValueAndType>();
+				for (QName field : fields) {
+					values.put(field, new ValueAndType("bulk-" + r.getName(), String.class));
+				}
+				result.put(r, values);
+			}
+			return result;
+		}
+
+		@Override
+		public Object getProperty(QName name, Resource r) {
+			return null;
+		}
+
+		@Override
+		public void setProperty(QName name, Object value, Resource r) {
+		}
+
+		@Override
+		public PropertyMetaData getPropertyMetaData(QName name, Resource r) {
+			return PropertyMetaData.UNKNOWN;
+		}
+
+		@Override
+		public void clearProperty(QName name, Resource r) {
+		}
+
+		@Override
+		public List<QName> getAllPropertyNames(Resource r) {
+			return null;
+		}
+	}
+}
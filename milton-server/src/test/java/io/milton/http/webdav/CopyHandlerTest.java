@@ -19,7 +19,25 @@
  */
 package io.milton.http.webdav;
 
+import io.milton.event.EventManagerImpl;
+import io.milton.http.HandlerHelper;
+import io.milton.http.HrefStatus;
+import io.milton.http.HttpExtension;
+import io.milton.http.HttpManager;
+import io.milton.http.MultiStatusException;
+import io.milton.http.ProtocolHandlers;
+import io.milton.http.Request;
+import io.milton.http.ResourceFactory;
+import io.milton.http.Response;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.CopyableResource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import junit.framework.TestCase;
+import org.easymock.Capture;
+
+import static org.easymock.EasyMock.*;
 
 /**
  *
@@ -51,6 +69,40 @@ public class CopyHandlerTest extends TestCase {
 	public void testProcessExistingResource() throws Exception {
 	}
 
+	public void testPartialFailureRespondsMultiStatus() throws Exception {
+		ResourceFactory rf = createMock(ResourceFactory.class);
+		WebDavResponseHandler responseHandler = createMock(WebDavResponseHandler.class);
+		Request request = createMock(Request.class);
+		Response response = createMock(Response.class);
+		CopyableResource resource = createMock(CopyableResource.class);
+		CollectionResource destFolder = createMock(CollectionResource.class);
+		HttpManager manager = new HttpManager(rf, null, new ProtocolHandlers(new ArrayList<HttpExtension>()), null, null, new EventManagerImpl(), null);
+		CopyHandler handler = new CopyHandler(responseHandler, new HandlerHelper(null), null, null);
+
+		expect(request.getDestinationHeader()).andReturn("http://host/dest/copy").anyTimes();
+		expect(request.getMethod()).andReturn(Request.Method.COPY).anyTimes();
+		expect(request.getAuthorization()).andReturn(null).anyTimes();
+		expect(resource.getName()).andReturn("src").anyTimes();
+		expect(rf.getResource("host", "/dest")).andReturn(destFolder);
+		expect(rf.getResource("host", "/dest/copy")).andReturn(null);
+		expect(destFolder.getName()).andReturn("dest").anyTimes();
+		expect(destFolder.child("copy")).andReturn(null);
+		expect(destFolder.authorise(request, Request.Method.COPY, null)).andReturn(true);
+		List<HrefStatus> failures = Arrays.asList(new HrefStatus("sub/b.txt", Response.Status.SC_INTERNAL_SERVER_ERROR));
+		resource.copyTo(destFolder, "copy");
+		expectLastCall().andThrow(new MultiStatusException(resource, failures));
+		Capture<List<HrefStatus>> statii = new Capture<List<HrefStatus>>();
+		responseHandler.responseMultiStatus(same(resource), same(response), same(request), capture(statii));
+		replay(rf, responseHandler, request, response, resource, destFolder);
+
+		handler.processExistingResource(manager, request, response, resource);
+
+		verify(rf, responseHandler, resource, destFolder);
+		assertEquals(1, statii.getValue().size());
+		assertEquals("http://host/dest/copy/sub/b.txt", statii.getValue().get(0).href);
+		assertEquals(Response.Status.SC_INTERNAL_SERVER_ERROR, statii.getValue().get(0).status);
+	}
+
 	public void testSetDeleteExistingBeforeCopy() {
 	}
 
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.milton.http.webdav;
+
+import io.milton.http.Auth;
+import io.milton.http.Request;
+import io.milton.http.values.ValueWriters;
+import io.milton.property.PropertySource;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.PropFindableResource;
+import io.milton.resource.Resource;
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+
+public class ParallelPropFindTraverserTest extends TestCase {
+
+	ParallelPropFindTraverser traverser;
+	PropFindPropertyBuilder propertyBuilder;
+	PropertiesRequest parseResult;
+	TestCollection root;
+
+	@Override
+	protected void setUp() throws Exception {
+		// a single thread and a queue of one means most resources are processed by the caller
+		traverser = new ParallelPropFindTraverser(1, 1);
+		propertyBuilder = new PropFindPropertyBuilder(Collections.<PropertySource>emptyList());
+		propertyBuilder.setTraverser(traverser);
+		parseResult = PropertiesRequest.toProperties(Collections.singleton(new QName(WebDavProtocol.DAV_URI, "getetag")));
+		root = new TestCollection("root");
+		for (int i = 0; i < 3; i++) {
+			TestCollection dir = new TestCollection("dir" + i);
+			root.children.add(dir);
+			for (int j = 0; j < 20; j++) {
+				dir.children.add(new TestCollection("file" + j));
+			}
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		traverser.stop();
+	}
+
+	public void testTraverse_BoundedQueue() throws Exception {
+		List<PropFindResponse> list = propertyBuilder.buildProperties(root, 2, parseResult, "/root/");
+		assertEquals(64, list.size());
+		assertEquals("/root/", list.get(0).getHref());
+		assertEquals("/root/dir0/", list.get(1).getHref());
+		assertEquals("/root/dir0/file0/", list.get(2).getHref());
+		assertEquals("/root/dir1/", list.get(22).getHref());
+	}
+
+	public void testTraverse_LimitExceeded() throws Exception {
+		traverser.setMaxNodes(10);
+		try {
+			propertyBuilder.buildProperties(root, 2, parseResult, "/root/");
+			fail("expected LimitExceededException");
+		} catch (ParallelPropFindTraverser.LimitExceededException e) {
+			// expected
+		}
+	}
+
+	public void testGenerate_LimitExceededIsWrittenInStream() throws Exception {
+		traverser.setMaxNodes(10);
+		PropFindXmlGenerator xmlGenerator = new PropFindXmlGenerator(new ValueWriters());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		xmlGenerator.generate(root, 2, parseResult, "/root/", propertyBuilder, out);
+		String xml = out.toString("UTF-8").trim();
+		assertTrue(xml, xml.contains("507"));
+		assertTrue(xml, xml.contains("number-of-matches-within-limits"));
+		assertTrue(xml, xml.endsWith("multistatus>"));
+	}
+
+	public void testTraverse_ReleasesWrittenSubtrees() throws Exception {
+		final List<WeakReference<PropFindResponse>> written = new ArrayList<WeakReference<PropFindResponse>>();
+		final boolean[] released = new boolean[1];
+		traverser.traverse(propertyBuilder, new PropFindResponseListener() {
+
+			@Override
+			public void onResponse(PropFindResponse r) {
+				written.add(new WeakReference<PropFindResponse>(r));
+				if (r.getHref().equals("/root/dir2/file19/")) {
+					// everything under dir0 was written long ago
+					for (int i = 0; i < 10 && !released[0]; i++) {
+						System.gc();
+						released[0] = written.get(2).get() == null;
+					}
+				}
+			}
+		}, root, parseResult, "/root/", 2, null);
+		assertEquals(64, written.size());
+		assertTrue("first file's response is still reachable", released[0]);
+	}
+
+	public void testStop_RejectsInsteadOfDiscarding() throws Exception {
+		traverser.stop();
+		try {
+			propertyBuilder.buildProperties(root, 2, parseResult, "/root/");
+			fail("expected an exception");
+		} catch (RuntimeException e) {
+			assertFalse(e instanceof ParallelPropFindTraverser.LimitExceededException);
+		}
+	}
+
+	static class TestCollection implements CollectionResource, PropFindableResource {
+
+		final String name;
+		final List<Resource> children = new ArrayList<Resource>();
+
+		TestCollection(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Resource child(String childName) {
+			for (Resource r : children) {
+				if (r.getName().equals(childName)) {
+					return r;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public List<? extends Resource> getChildren() {
+			return children;
+		}
+
+		@Override
+		public String getUniqueId() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public Object authenticate(String user, String password) {
+			return null;
+		}
+
+		@Override
+		public boolean authorise(Request request, Request.Method method, Auth auth) {
+			return true;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public Date getModifiedDate() {
+			return null;
+		}
+
+		@Override
+		public String checkRedirect(Request request) {
+			return null;
+		}
+
+		@Override
+		public Date getCreateDate() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.webdav;
+
+import io.milton.property.ClassBasedPropertySource;
+import io.milton.property.PropertySource;
+import io.milton.property.PropertySource.PropertyMetaData;
+import io.milton.resource.Resource;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+
+import static org.easymock.EasyMock.*;
+
+public class PropFindPropertyBuilderTest extends TestCase {
+
+	QName field = new QName("http://example.com/ns", "field");
+	PropertyMetaData meta = new PropertyMetaData(PropertySource.PropertyAccessibility.READ_ONLY, String.class);
+	PropertySourcesList sources;
+	PropFindPropertyBuilder propertyBuilder;
+	Resource a;
+	Resource b;
+
+	@Override
+	protected void setUp() throws Exception {
+		sources = new PropertySourcesList();
+		propertyBuilder = new PropFindPropertyBuilder(sources);
+		a = new ParallelPropFindTraverserTest.TestCollection("a");
+		b = new ParallelPropFindTraverserTest.TestCollection("b");
+	}
+
+	public void testClassBasedResolutionCached() throws Exception {
+		ClassBasedPropertySource source = createMock(ClassBasedPropertySource.class);
+		expect(source.getPropertyMetaData(field, a)).andReturn(meta).once();
+		expect(source.getProperty(field, a)).andReturn("va");
+		expect(source.getProperty(field, b)).andReturn("vb");
+		replay(source);
+		sources.add(source);
+		assertEquals("va", propertyBuilder.getProperty(field, a).getValue());
+		assertEquals("vb", propertyBuilder.getProperty(field, b).getValue());
+		verify(source);
+	}
+
+	public void testOtherSourcesAskedForEachResource() throws Exception {
+		PropertySource source = createMock(PropertySource.class);
+		expect(source.getPropertyMetaData(field, a)).andReturn(meta);
+		expect(source.getPropertyMetaData(field, b)).andReturn(PropertyMetaData.UNKNOWN);
+		expect(source.getProperty(field, a)).andReturn("va");
+		replay(source);
+		sources.add(source);
+		assertEquals("va", propertyBuilder.getProperty(field, a).getValue());
+		assertNull(propertyBuilder.getProperty(field, b));
+		verify(source);
+	}
+
+	public void testChangedSourcesListRebuildsIndex() throws Exception {
+		ClassBasedPropertySource first = createMock(ClassBasedPropertySource.class);
+		ClassBasedPropertySource second = createMock(ClassBasedPropertySource.class);
+		expect(first.getPropertyMetaData(field, a)).andReturn(meta);
+		expect(first.getProperty(field, a)).andReturn("first");
+		expect(second.getPropertyMetaData(field, a)).andReturn(meta);
+		expect(second.getProperty(field, a)).andReturn("second");
+		replay(first, second);
+		sources.add(first);
+		assertEquals("first", propertyBuilder.getProperty(field, a).getValue());
+		sources.set(0, second);
+		assertEquals("second", propertyBuilder.getProperty(field, a).getValue());
+		verify(first, second);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.http.webdav;
+
+import io.milton.http.AbstractWrappingResponseHandler;
+import io.milton.http.Request;
+import io.milton.http.Response;
+import io.milton.http.values.ValueWriters;
+import io.milton.property.PropertySource;
+import io.milton.resource.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.TestCase;
+import org.easymock.EasyMock;
+import org.w3c.dom.Document;
+
+import static org.easymock.EasyMock.*;
+
+public class StreamingPropFindTest extends TestCase {
+
+	PropFindPropertyBuilder propertyBuilder;
+	PropFindXmlGenerator xmlGenerator;
+	PropertiesRequest parseResult;
+	ParallelPropFindTraverserTest.TestCollection root;
+
+	@Override
+	protected void setUp() throws Exception {
+		propertyBuilder = new PropFindPropertyBuilder(Collections.<PropertySource>emptyList());
+		xmlGenerator = new PropFindXmlGenerator(new ValueWriters());
+		parseResult = PropertiesRequest.toProperties(Collections.singleton(new QName(WebDavProtocol.DAV_URI, "getetag")));
+		root = new ParallelPropFindTraverserTest.TestCollection("root");
+		for (int i = 0; i < 3; i++) {
+			root.children.add(new ParallelPropFindTraverserTest.TestCollection("dir" + i));
+		}
+	}
+
+	public void testStreamedResponseIsComplete() throws Exception {
+		Document doc = parse(generate());
+		assertEquals(4, doc.getElementsByTagNameNS(WebDavProtocol.DAV_URI, "response").getLength());
+	}
+
+	public void testErrorPartWayThroughCompletesDocument() throws Exception {
+		root.children.add(1, new ParallelPropFindTraverserTest.TestCollection("broken") {
+
+			@Override
+			public List<? extends Resource> getChildren() {
+				throw new RuntimeException("simulated failure");
+			}
+		});
+		String xml = generate();
+		Document doc = parse(xml);
+		assertTrue(xml, xml.contains("500"));
+		// the responses written before the failure are kept
+		assertTrue(xml, xml.contains("/root/dir0/"));
+		assertTrue(doc.getElementsByTagNameNS(WebDavProtocol.DAV_URI, "response").getLength() >= 2);
+	}
+
+	public void testWrapperFallsBackForNonStreamingHandler() throws Exception {
+		WebDavResponseHandler wrapped = createMock(WebDavResponseHandler.class);
+		Request request = createMock(Request.class);
+		Response response = createMock(Response.class);
+		wrapped.respondPropFind(EasyMock.<List<PropFindResponse>>notNull(), same(response), same(request), same(root));
+		replay(wrapped, request, response);
+		AbstractWrappingResponseHandler handler = new AbstractWrappingResponseHandler(wrapped) {
+		};
+		handler.respondPropFind(root, 1, parseResult, "/root/", propertyBuilder, response, request);
+		verify(wrapped);
+	}
+
+	public void testWrapperPassesOnToStreamingHandler() throws Exception {
+		StreamingResponseHandler wrapped = createMock(StreamingResponseHandler.class);
+		Request request = createMock(Request.class);
+		Response response = createMock(Response.class);
+		wrapped.respondPropFind(root, 1, parseResult, "/root/", propertyBuilder, response, request);
+		replay(wrapped, request, response);
+		AbstractWrappingResponseHandler handler = new AbstractWrappingResponseHandler(wrapped) {
+		};
+		handler.respondPropFind(root, 1, parseResult, "/root/", propertyBuilder, response, request);
+		verify(wrapped);
+	}
+
+	private String generate() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		xmlGenerator.generate(root, 2, parseResult, "/root/", propertyBuilder, out);
+		return out.toString("UTF-8");
+	}
+
+	private Document parse(String xml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+}
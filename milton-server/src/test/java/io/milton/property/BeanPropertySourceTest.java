@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.milton.property;
+
+import io.milton.http.Auth;
+import io.milton.http.Request;
+import io.milton.property.PropertySource.PropertyAccessibility;
+import io.milton.property.PropertySource.PropertyMetaData;
+import io.milton.resource.Resource;
+import java.util.Date;
+import java.util.List;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class BeanPropertySourceTest extends TestCase {
+
+	static final String NS = "http://example.com/ns";
+	BeanPropertySource source;
+
+	@Override
+	protected void setUp() throws Exception {
+		source = new BeanPropertySource();
+	}
+
+	public void testMetaDataCachedPerClass() throws Exception {
+		PropertyMetaData m1 = source.getPropertyMetaData(new QName(NS, "colour"), new TestBean());
+		PropertyMetaData m2 = source.getPropertyMetaData(new QName(NS, "colour"), new TestBean());
+		assertTrue(m1.isWritable());
+		assertSame(m1, m2);
+		assertSame(source.getPropertyDescriptor(new TestBean(), "colour"), source.getPropertyDescriptor(new TestBean(), "colour"));
+	}
+
+	public void testReadOnlyProperty() throws Exception {
+		TestBean bean = new TestBean();
+		PropertyMetaData meta = source.getPropertyMetaData(new QName(NS, "size"), bean);
+		assertEquals(PropertyAccessibility.READ_ONLY, meta.getAccessibility());
+		assertEquals(Integer.valueOf(3), source.getProperty(new QName(NS, "size"), bean));
+	}
+
+	public void testPropertyAccessAnnotation() throws Exception {
+		assertTrue(source.getPropertyMetaData(new QName(NS, "secret"), new TestBean()).isUnknown());
+		List<QName> names = source.getAllPropertyNames(new TestBean());
+		assertTrue(names.contains(new QName(NS, "colour")));
+		assertTrue(names.contains(new QName(NS, "size")));
+	}
+
+	public void testOtherNamespaceUnknown() throws Exception {
+		assertTrue(source.getPropertyMetaData(new QName("http://other", "colour"), new TestBean()).isUnknown());
+	}
+
+	public void testInheritedAccessors() throws Exception {
+		SubBean bean = new SubBean();
+		QName colour = new QName(NS, "colour");
+		assertTrue(source.getPropertyMetaData(colour, bean).isWritable());
+		source.setProperty(colour, "blue", bean);
+		assertEquals("blue", source.getProperty(colour, bean));
+		assertEquals("x", source.getProperty(new QName(NS, "extra"), bean));
+	}
+
+	public void testUnannotatedClass() throws Exception {
+		assertTrue(source.getPropertyMetaData(new QName(NS, "name"), new StubResource()).isUnknown());
+		assertNull(source.getAllPropertyNames(new StubResource()));
+	}
+
+	public static class StubResource implements Resource {
+
+		@Override
+		public String getUniqueId() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return "stub";
+		}
+
+		@Override
+		public Object authenticate(String user, String password) {
+			return null;
+		}
+
+		@Override
+		public boolean authorise(Request request, Request.Method method, Auth auth) {
+			return true;
+		}
+
+		@Override
+		public String getRealm() {
+			return null;
+		}
+
+		@Override
+		public Date getModifiedDate() {
+			return null;
+		}
+
+		@Override
+		public String checkRedirect(Request request) {
+			return null;
+		}
+	}
+
+	@BeanPropertyResource(NS)
+	public static class TestBean extends StubResource {
+
+		private String colour = "red";
+
+		public String getColour() {
+			return colour;
+		}
+
+		public void setColour(String colour) {
+			this.colour = colour;
+		}
+
+		public int getSize() {
+			return 3;
+		}
+
+		@BeanPropertyAccess(false)
+		public String getSecret() {
+			return "secret";
+		}
+	}
+
+	@BeanPropertyResource(NS)
+	public static class SubBean extends TestBean {
+
+		public String getExtra() {
+			return "x";
+		}
+	}
+}
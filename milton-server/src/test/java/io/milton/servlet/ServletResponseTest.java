@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.milton.servlet;
+
+import java.io.File;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+import static org.easymock.EasyMock.*;
+
+public class ServletResponseTest extends TestCase {
+
+    File file;
+    HttpServletRequest req;
+    ServletResponse response;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("content", ".txt");
+        req = createMock(HttpServletRequest.class);
+        expect(req.getMethod()).andReturn("GET");
+        expect(req.getRequestURL()).andReturn(new StringBuffer("http://localhost/file.txt"));
+        response = new ServletResponse(createNiceMock(HttpServletResponse.class));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ServletRequest.clearThreadLocals();
+        file.delete();
+    }
+
+    public void testSendFile_ContainerSupportsSendfile() throws Exception {
+        expect(req.getAttribute("org.apache.tomcat.sendfile.support")).andReturn(Boolean.TRUE);
+        req.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+        req.setAttribute("org.apache.tomcat.sendfile.start", 20L);
+        req.setAttribute("org.apache.tomcat.sendfile.end", 30L);
+        replay(req);
+        new ServletRequest(req, createNiceMock(ServletContext.class));
+        assertTrue(response.sendFile(file, 20, 10));
+        verify(req);
+    }
+
+    public void testSendFile_NoContainerSupport() throws Exception {
+        expect(req.getAttribute("org.apache.tomcat.sendfile.support")).andReturn(null);
+        replay(req);
+        new ServletRequest(req, createNiceMock(ServletContext.class));
+        // nothing is set, so the file will be written to the output stream
+        assertFalse(response.sendFile(file, 20, 10));
+        verify(req);
+    }
+}